@@ -0,0 +1,67 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import bench.BenchmarkParams;
+import bench.KeySequence;
+
+/**
+ * The `KeyMix` class holds the request mix shared by the benchmarks: how many keys there are, how
+ * their popularity is distributed, the share of GETs and the range of PUT values. Every parameter
+ * can be changed with "-p name=value"; JMH prints them with the results, so a run can be repeated
+ * exactly. The key names and the distribution are built once per trial and shared by the
+ * sequences of all threads.
+ */
+@State(Scope.Benchmark)
+public class KeyMix {
+  /** Number of distinct keys, all present before measuring. */
+  @Param("100000")
+  public int keys;
+
+  /** Key popularity: uniform or zipf. */
+  @Param("uniform")
+  public String distribution;
+
+  /** Skew of the zipf distribution. */
+  @Param("0.99")
+  public double zipfExponent;
+
+  /** Share of GETs among GETs and PUTs. */
+  @Param("0.9")
+  public double readRatio;
+
+  /** PUT values are drawn uniformly from [0, valueRange). */
+  @Param("1000000")
+  public int valueRange;
+
+  /** Seed of the key and value sequences. */
+  @Param("42")
+  public int seed;
+
+  BenchmarkParams params;
+  KeySequence sequence;
+
+  /**
+   * Builds the key names and the distribution.
+   */
+  @Setup(Level.Trial)
+  public void setUp() {
+    params = new BenchmarkParams(new String[] {
+        "keys=" + keys, "distribution=" + distribution, "zipfExponent=" + zipfExponent,
+        "readRatio=" + readRatio, "valueRange=" + valueRange, "seed=" + seed});
+    sequence = new KeySequence(params, -1);
+  }
+
+  /**
+   * Retrieves every key of the run, for filling a store before measuring.
+   *
+   * @return The keys, which must not be modified.
+   */
+  String[] allKeys() {
+    return sequence.allKeys();
+  }
+}
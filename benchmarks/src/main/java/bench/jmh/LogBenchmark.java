@@ -0,0 +1,86 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import logger.LoggerHandler;
+import logger.OverflowPolicy;
+
+/**
+ * The `LogBenchmark` class measures the server log: every operation logs one request outcome
+ * through a logger set up by `LoggerHandler`, whose writer formats the records and writes them to
+ * a temporary file. The queue blocks when full, so the measured rate is that of the formatter
+ * and writer once the queue has filled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LogBenchmark {
+  private Logger logger;
+  private Path file;
+
+  /**
+   * Sets up the logger and its file.
+   *
+   * @throws IOException If the temporary file cannot be created.
+   */
+  @Setup(org.openjdk.jmh.annotations.Level.Trial)
+  public void setUp() throws IOException {
+    file = Files.createTempFile("bench", ".log");
+    logger = Logger.getAnonymousLogger();
+    LoggerHandler.initLogger(logger, file.toString(), 64 * 1024, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Closes the log and deletes its file.
+   *
+   * @throws IOException If the file cannot be deleted.
+   */
+  @TearDown(org.openjdk.jmh.annotations.Level.Trial)
+  public void tearDown() throws IOException {
+    for (Handler handler : logger.getHandlers()) {
+      logger.removeHandler(handler);
+      handler.close();
+    }
+    Files.deleteIfExists(file);
+  }
+
+  /**
+   * Logs one request outcome.
+   *
+   * @param packets The packet ids of the thread.
+   */
+  @Benchmark
+  public void log(PacketIds packets) {
+    logger.log(Level.INFO, "Put operation success packet_id: #" + packets.next++
+        + " InetAddress: /127.0.0.1 port: 9000");
+  }
+
+  /**
+   * The packet ids logged by one thread.
+   */
+  @State(Scope.Thread)
+  public static class PacketIds {
+    long next = 1_696_456_808_742L;
+  }
+}
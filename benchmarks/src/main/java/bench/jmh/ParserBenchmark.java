@@ -0,0 +1,120 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bench.KeySequence;
+import protocol.BinaryProtocol;
+import protocol.Command;
+import protocol.TextProtocol;
+
+/**
+ * The `ParserBenchmark` class measures request parsing without the store or the network.
+ * `textSplit` splits a text request on spaces and parses its value as the text request handler
+ * does with -Dkvstore.parser=split, and splits a response on '#' as the console client does.
+ * `textInPlace` decodes the request bytes with `TextProtocol.readRequest` and writes the response
+ * into a reused buffer. `binary` decodes a request with `BinaryProtocol.readRequest`. Each thread
+ * cycles through 4096 requests of the configured mix, generated before measuring.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+  private static final int REQUESTS = 4096;
+
+  private final String[] textRequests = new String[REQUESTS];
+  private final String[] textResponses = new String[REQUESTS];
+  private final ByteBuffer[] encodedRequests = new ByteBuffer[REQUESTS];
+  private final ByteBuffer[] binaryRequests = new ByteBuffer[REQUESTS];
+  private final Command command = new Command();
+  private final ByteBuffer response = ByteBuffer.allocate(TextProtocol.MAX_RESPONSE_BYTES);
+  private int next;
+
+  /**
+   * Generates the requests of the thread in every encoding.
+   *
+   * @param keys The key sequence of the thread.
+   */
+  @Setup(Level.Trial)
+  public void setUp(ThreadKeys keys) {
+    KeySequence sequence = keys.sequence;
+    long packetId = 1_696_456_808_742L;
+    for (int i = 0; i < REQUESTS; i++) {
+      boolean read = sequence.nextIsRead();
+      String key = sequence.nextKey();
+      int value = sequence.nextValue();
+      textRequests[i] = read ? "GET " + key + " #" + (packetId + i)
+          : "PUT " + key + " " + value + " #" + (packetId + i);
+      textResponses[i] = value + " #" + (packetId + i);
+      encodedRequests[i] = ByteBuffer.wrap(textRequests[i].getBytes(StandardCharsets.US_ASCII));
+      byte opcode = read ? BinaryProtocol.GET : BinaryProtocol.PUT;
+      binaryRequests[i] = ByteBuffer.allocate(BinaryProtocol.requestSize(opcode, key));
+      BinaryProtocol.writeRequest(binaryRequests[i], opcode, key, value, packetId + i);
+      binaryRequests[i].flip();
+    }
+  }
+
+  /**
+   * Splits a text request and its response into words.
+   *
+   * @param blackhole Consumes the parsed value, request id and key.
+   */
+  @Benchmark
+  public void textSplit(Blackhole blackhole) {
+    int i = next++ & (REQUESTS - 1);
+    String[] instructions = textRequests[i].split(" ");
+    if (instructions.length == 4) {
+      blackhole.consume(Integer.parseInt(instructions[2]));
+    }
+    String[] messages = textResponses[i].split("#");
+    blackhole.consume(Long.parseLong(messages[1]));
+    blackhole.consume(instructions[1]);
+  }
+
+  /**
+   * Decodes a text request in place and writes its response.
+   *
+   * @param blackhole Consumes the response length and the decoded key.
+   */
+  @Benchmark
+  public void textInPlace(Blackhole blackhole) {
+    ByteBuffer request = encodedRequests[next++ & (REQUESTS - 1)];
+    TextProtocol.readRequest(request, 0, request.limit(), command);
+    response.clear();
+    TextProtocol.writeDecimal(response, command.value());
+    TextProtocol.writeRequestId(response, command.requestId());
+    blackhole.consume(response.position());
+    blackhole.consume(command.key());
+  }
+
+  /**
+   * Decodes a binary request.
+   *
+   * @param blackhole Consumes the decoded request id and key.
+   */
+  @Benchmark
+  public void binary(Blackhole blackhole) {
+    ByteBuffer request = binaryRequests[next++ & (REQUESTS - 1)];
+    request.position(0);
+    BinaryProtocol.readRequest(request, command);
+    blackhole.consume(command.requestId());
+    blackhole.consume(command.key());
+  }
+}
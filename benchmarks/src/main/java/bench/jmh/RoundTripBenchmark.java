@@ -0,0 +1,156 @@
+package bench.jmh;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bench.KeySequence;
+import client.Client;
+import client.TCPClient;
+import client.UDPClient;
+import server.ConcurrentServer;
+import server.IdempotencyCache;
+import server.NioTCPServer;
+import server.RequestHandler;
+import server.WorkerUDPServer;
+import store.KeyValueStore;
+import store.KeyValueStores;
+
+/**
+ * The `RoundTripBenchmark` class measures complete requests over loopback: a server runs in the
+ * benchmark JVM on a free port with a filled store, every thread has a client connection of its
+ * own, and each operation sends one GET or PUT of the configured mix and waits for its response.
+ * The TCP server uses one selector thread; the UDP server one worker with its response cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dkvstore.consoleLog=false")
+public class RoundTripBenchmark {
+  /** Transport of the server and the clients: tcp or udp. */
+  @Param({"tcp", "udp"})
+  public String transport;
+
+  /** Protocol of the clients: text or binary. */
+  @Param("text")
+  public String wire;
+
+  /** Text request parser of the server: split or inplace. */
+  @Param("inplace")
+  public String parser;
+
+  /** Store backend: striped or offheap. */
+  @Param("striped")
+  public String backend;
+
+  private ConcurrentServer server;
+  private int port;
+
+  /**
+   * Fills a store and starts the server.
+   *
+   * @param mix The request mix of the run.
+   * @throws IOException If no free port is found or the server cannot start.
+   */
+  @Setup(Level.Trial)
+  public void setUp(KeyMix mix) throws IOException {
+    // The request handler reads its parser when it is created.
+    System.setProperty("kvstore.parser", parser);
+    KeyValueStore store = KeyValueStores.create(backend);
+    String[] all = mix.allKeys();
+    for (int i = 0; i < all.length; i++) {
+      store.put(all[i], i);
+    }
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    if (transport.equals("udp")) {
+      try (DatagramSocket probe = new DatagramSocket(0)) {
+        port = probe.getLocalPort();
+      }
+      server = new WorkerUDPServer(new RequestHandler(store, silentLogger, port), 1,
+          new IdempotencyCache(65536, 60_000));
+    } else if (transport.equals("tcp")) {
+      try (ServerSocket probe = new ServerSocket(0)) {
+        port = probe.getLocalPort();
+      }
+      server = new NioTCPServer(new RequestHandler(store, silentLogger, port), 1);
+    } else {
+      throw new IllegalArgumentException("Unknown transport: " + transport);
+    }
+    server.start(port);
+  }
+
+  /**
+   * Stops the server.
+   *
+   * @throws IOException If the server cannot be stopped.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    server.stop();
+  }
+
+  /**
+   * Sends one GET or PUT of the mix and waits for its response.
+   *
+   * @param connection The client connection of the thread.
+   * @param keys       The key sequence of the thread.
+   * @param blackhole  Consumes the response.
+   */
+  @Benchmark
+  public void request(Connection connection, ThreadKeys keys, Blackhole blackhole) {
+    KeySequence sequence = keys.sequence;
+    String request = sequence.nextIsRead() ? "GET " + sequence.nextKey() + " #" + connection.packetId++
+        : "PUT " + sequence.nextKey() + " " + sequence.nextValue() + " #" + connection.packetId++;
+    blackhole.consume(connection.client.sendRequestAsync(request).join());
+  }
+
+  /**
+   * The client connection of one thread.
+   */
+  @State(Scope.Thread)
+  public static class Connection {
+    Client client;
+    long packetId = 1;
+
+    /**
+     * Connects to the server of the benchmark.
+     *
+     * @param benchmark The benchmark whose server to connect to.
+     * @throws IOException If the connection fails.
+     */
+    @Setup(Level.Trial)
+    public void setUp(RoundTripBenchmark benchmark) throws IOException {
+      boolean binary = benchmark.wire.equals("binary");
+      client = benchmark.transport.equals("udp") ? new UDPClient(binary) : new TCPClient(binary);
+      client.openConnection("localhost", benchmark.port);
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      client.closeConnection();
+    }
+  }
+}
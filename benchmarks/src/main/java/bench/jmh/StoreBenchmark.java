@@ -0,0 +1,70 @@
+package bench.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import bench.KeySequence;
+import store.KeyValueStore;
+import store.KeyValueStores;
+
+/**
+ * The `StoreBenchmark` class measures the store operations behind the server: GETs and PUTs of
+ * the configured mix straight on a `KeyValueStore` of the configured backend, with every key
+ * present from the start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+  /** Store backend: striped or offheap. */
+  @Param("striped")
+  public String backend;
+
+  private KeyValueStore store;
+
+  /**
+   * Creates the store and puts every key of the run.
+   *
+   * @param mix The request mix of the run.
+   */
+  @Setup(Level.Trial)
+  public void setUp(KeyMix mix) {
+    store = KeyValueStores.create(backend);
+    String[] all = mix.allKeys();
+    for (int i = 0; i < all.length; i++) {
+      store.put(all[i], i);
+    }
+  }
+
+  /**
+   * Performs one GET or PUT of the mix.
+   *
+   * @param keys      The key sequence of the thread.
+   * @param blackhole Consumes the value read.
+   */
+  @Benchmark
+  public void mix(ThreadKeys keys, Blackhole blackhole) {
+    KeySequence sequence = keys.sequence;
+    if (sequence.nextIsRead()) {
+      blackhole.consume(store.get(sequence.nextKey()));
+    } else {
+      store.put(sequence.nextKey(), sequence.nextValue());
+    }
+  }
+}
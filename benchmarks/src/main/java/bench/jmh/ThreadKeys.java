@@ -0,0 +1,29 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import bench.KeySequence;
+
+/**
+ * The `ThreadKeys` class holds the key sequence of one benchmark thread, seeded from the run seed
+ * and the index of the thread, so two runs with the same parameters issue the same requests.
+ */
+@State(Scope.Thread)
+public class ThreadKeys {
+  KeySequence sequence;
+
+  /**
+   * Creates the sequence of the calling thread.
+   *
+   * @param mix    The request mix of the run.
+   * @param thread The JMH description of the thread.
+   */
+  @Setup(Level.Trial)
+  public void setUp(KeyMix mix, ThreadParams thread) {
+    sequence = new KeySequence(mix.sequence, mix.params, thread.getThreadIndex());
+  }
+}
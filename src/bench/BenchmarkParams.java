@@ -0,0 +1,119 @@
+package bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The `BenchmarkParams` class holds the parameters of a benchmark run. Every parameter has a
+ * default and can be set on the command line as "name=value"; the full set is printed with the
+ * results, so a run can be repeated exactly.
+ */
+public final class BenchmarkParams {
+  private static final String[][] DEFAULTS = {
+      {"keys", "100000", "number of distinct keys"},
+      {"distribution", "uniform", "key popularity: uniform or zipf"},
+      {"zipfExponent", "0.99", "skew of the zipf distribution"},
+      {"readRatio", "0.9", "share of GETs among GETs and PUTs"},
+      {"valueRange", "1000000", "PUT values are drawn uniformly from [0, valueRange)"},
+      {"seed", "42", "seed of the key and value sequences"},
+  };
+
+  private final Map<String, String> values = new LinkedHashMap<>();
+
+  /**
+   * Parses "name=value" arguments over the defaults of a `KeySequence`.
+   *
+   * @param args The arguments.
+   * @throws IllegalArgumentException If an argument is malformed or names no parameter.
+   */
+  public BenchmarkParams(String[] args) {
+    this(DEFAULTS, args);
+  }
+
+  /**
+   * Parses "name=value" arguments over the defaults of another tool.
+   *
+   * @param defaults One {name, default, meaning} row per parameter.
+   * @param args     The arguments.
+   * @throws IllegalArgumentException If an argument is malformed or names no parameter.
+   */
+  public BenchmarkParams(String[][] defaults, String[] args) {
+    for (String[] parameter : defaults) {
+      values.put(parameter[0], parameter[1]);
+    }
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals < 1 || !values.containsKey(arg.substring(0, equals))) {
+        throw new IllegalArgumentException("Unknown parameter: " + arg);
+      }
+      values.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+  }
+
+  /**
+   * Retrieves a parameter as text.
+   *
+   * @param name The parameter name.
+   * @return Its value.
+   */
+  public String get(String name) {
+    return values.get(name);
+  }
+
+  /**
+   * Retrieves an integer parameter.
+   *
+   * @param name The parameter name.
+   * @return Its value.
+   */
+  public int getInt(String name) {
+    return Integer.parseInt(values.get(name));
+  }
+
+  /**
+   * Retrieves a decimal parameter.
+   *
+   * @param name The parameter name.
+   * @return Its value.
+   */
+  public double getDouble(String name) {
+    return Double.parseDouble(values.get(name));
+  }
+
+  /**
+   * Lists every parameter of a `KeySequence` with its meaning and default.
+   *
+   * @return One line per parameter.
+   */
+  public static String usage() {
+    return usage(DEFAULTS);
+  }
+
+  /**
+   * Lists every parameter of another tool with its meaning and default.
+   *
+   * @param defaults One {name, default, meaning} row per parameter.
+   * @return One line per parameter.
+   */
+  public static String usage(String[][] defaults) {
+    StringBuilder usage = new StringBuilder();
+    for (String[] parameter : defaults) {
+      usage.append(String.format("  %-13s %s (default %s)%n", parameter[0], parameter[2], parameter[1]));
+    }
+    return usage.toString();
+  }
+
+  /**
+   * Formats the parameters of the run.
+   *
+   * @return "name=value" pairs separated by spaces.
+   */
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, String> parameter : values.entrySet()) {
+      text.append(text.length() == 0 ? "" : " ").append(parameter.getKey()).append('=').append(parameter.getValue());
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,127 @@
+package bench;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+import store.CachingKeyValueStore;
+import store.KeyValueStore;
+import store.StripedKeyValueStore;
+
+/**
+ * The `CacheBenchmark` class compares the cache mode of the server, a `CachingKeyValueStore` with
+ * W-TinyLFU eviction, with a plain LRU cache. Both replay the same trace of uniformly or Zipfian
+ * distributed keys as a read-through cache: every key is read, and a key that misses is written
+ * with a value as if it had been loaded from elsewhere. For every capacity the benchmark reports
+ * the hit ratio and the throughput of each policy.
+ *
+ * With several threads the trace is dealt out round-robin, so the hit ratios then also reflect how
+ * each policy copes with concurrent updates.
+ *
+ * Usage: java bench.CacheBenchmark [name=value...]
+ */
+public class CacheBenchmark {
+  private static final String[][] DEFAULTS = {
+      {"keys", "1000000", "number of distinct keys"},
+      {"distribution", "zipf", "key popularity: uniform or zipf"},
+      {"zipfExponent", "0.99", "skew of the zipf distribution"},
+      {"requests", "5000000", "length of the trace"},
+      {"capacities", "1000,10000,100000", "comma-separated cache capacities in entries"},
+      {"threads", "1", "threads replaying the trace"},
+      {"rounds", "3", "replays per policy and capacity; the best throughput is reported"},
+      {"seed", "42", "seed of the trace"},
+  };
+
+  /**
+   * Default constructor for the `CacheBenchmark` class.
+   */
+  CacheBenchmark() {
+
+  }
+
+  /**
+   * Replays the trace against both policies at every capacity and prints the results.
+   *
+   * @param args Optional "name=value" parameters.
+   * @throws InterruptedException If interrupted while waiting for the replaying threads.
+   */
+  public static void main(String args[]) throws InterruptedException {
+    BenchmarkParams params;
+    try {
+      params = new BenchmarkParams(DEFAULTS, args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println("Usage: java bench.CacheBenchmark [name=value...]");
+      System.out.print(BenchmarkParams.usage(DEFAULTS));
+      return;
+    }
+    String[] trace = trace(params);
+    int threads = params.getInt("threads");
+    int rounds = params.getInt("rounds");
+    DecimalFormat ratio = new DecimalFormat("0.0000");
+    DecimalFormat throughput = new DecimalFormat("#,##0");
+    System.out.println("# " + params);
+    System.out.println(String.format("%-10s %-12s %10s %16s", "policy", "capacity", "hit ratio", "ops/s"));
+    for (String capacityText : params.get("capacities").split(",")) {
+      long capacity = Long.parseLong(capacityText.trim());
+      for (String policy : new String[] {"lru", "tinylfu"}) {
+        long hits = 0;
+        double best = 0;
+        for (int round = 0; round < rounds; round++) {
+          KeyValueStore cache = policy.equals("lru")
+              ? new LruKeyValueStore(capacity)
+              : new CachingKeyValueStore(new StripedKeyValueStore(), capacity, CachingKeyValueStore.Budget.ENTRIES);
+          AtomicLong roundHits = new AtomicLong();
+          long start = System.nanoTime();
+          replay(cache, trace, threads, roundHits);
+          double seconds = (System.nanoTime() - start) / 1e9;
+          best = Math.max(best, trace.length / seconds);
+          hits = roundHits.get();
+        }
+        System.out.println(String.format("%-10s %-12d %10s %16s", policy, capacity,
+            ratio.format((double) hits / trace.length), throughput.format(best)));
+      }
+    }
+  }
+
+  /**
+   * Draws the keys of the trace.
+   */
+  private static String[] trace(BenchmarkParams params) {
+    // The key sequence reads its parameters from the defaults of `BenchmarkParams`, overridden by ours.
+    BenchmarkParams sequence = new BenchmarkParams(new String[] {
+        "keys=" + params.get("keys"), "distribution=" + params.get("distribution"),
+        "zipfExponent=" + params.get("zipfExponent"), "seed=" + params.get("seed")});
+    KeySequence keys = new KeySequence(sequence, -1);
+    String[] trace = new String[params.getInt("requests")];
+    for (int i = 0; i < trace.length; i++) {
+      trace[i] = keys.nextKey();
+    }
+    return trace;
+  }
+
+  /**
+   * Replays the trace as a read-through cache, dealing its requests round-robin to the threads.
+   */
+  private static void replay(KeyValueStore cache, String[] trace, int threadCount, AtomicLong hits)
+      throws InterruptedException {
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      int first = t;
+      threads[t] = new Thread(() -> {
+        long threadHits = 0;
+        for (int i = first; i < trace.length; i += threadCount) {
+          if (cache.get(trace[i]) != KeyValueStore.NO_VALUE) {
+            threadHits++;
+          } else {
+            cache.put(trace[i], i);
+          }
+        }
+        hits.addAndGet(threadHits);
+      }, "cache-" + t);
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+}
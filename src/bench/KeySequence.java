@@ -0,0 +1,126 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The `KeySequence` class draws the keys and values of a benchmark thread. Keys are "key<i>" for
+ * i below the key count, picked uniformly or by a Zipfian distribution in which key i is chosen
+ * with a probability proportional to 1 / (i + 1)^s. Each thread gets its own sequence seeded from
+ * the run seed and its index, so two runs with the same parameters issue the same requests.
+ */
+public final class KeySequence {
+  private final String[] keys;
+  private final double[] cumulative;
+  private final double readRatio;
+  private final int valueRange;
+  private final SplittableRandom random;
+
+  /**
+   * Creates the sequence of one thread.
+   *
+   * @param params The run parameters.
+   * @param thread The index of the thread.
+   */
+  public KeySequence(BenchmarkParams params, int thread) {
+    this(params, thread, keys(params.getInt("keys")), cumulative(params));
+  }
+
+  /**
+   * Creates the sequence of one thread sharing the key names and distribution of another, which
+   * saves building them per thread.
+   *
+   * @param other  A sequence of the same run.
+   * @param params The run parameters.
+   * @param thread The index of the thread.
+   */
+  public KeySequence(KeySequence other, BenchmarkParams params, int thread) {
+    this(params, thread, other.keys, other.cumulative);
+  }
+
+  private KeySequence(BenchmarkParams params, int thread, String[] keys, double[] cumulative) {
+    this.keys = keys;
+    this.cumulative = cumulative;
+    this.readRatio = params.getDouble("readRatio");
+    this.valueRange = params.getInt("valueRange");
+    this.random = new SplittableRandom(params.getInt("seed") * 1_000_003L + thread);
+  }
+
+  /**
+   * Retrieves every key of the run, for filling a store before measuring.
+   *
+   * @return The keys, which must not be modified.
+   */
+  public String[] allKeys() {
+    return keys;
+  }
+
+  /**
+   * Draws the next key.
+   *
+   * @return The key.
+   */
+  public String nextKey() {
+    if (cumulative == null) {
+      return keys[random.nextInt(keys.length)];
+    }
+    int i = Arrays.binarySearch(cumulative, random.nextDouble());
+    return keys[Math.min(i < 0 ? -i - 1 : i, keys.length - 1)];
+  }
+
+  /**
+   * Draws whether the next operation reads.
+   *
+   * @return True for a GET, false for a PUT.
+   */
+  public boolean nextIsRead() {
+    return random.nextDouble() < readRatio;
+  }
+
+  /**
+   * Draws the value of the next PUT.
+   *
+   * @return The value.
+   */
+  public int nextValue() {
+    return random.nextInt(valueRange);
+  }
+
+  /**
+   * Draws a number uniformly from [0, 1), for choices of the caller such as the kind of a write.
+   *
+   * @return The number.
+   */
+  public double nextDouble() {
+    return random.nextDouble();
+  }
+
+  private static String[] keys(int count) {
+    String[] keys = new String[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = "key" + i;
+    }
+    return keys;
+  }
+
+  private static double[] cumulative(BenchmarkParams params) {
+    String distribution = params.get("distribution");
+    if (distribution.equals("uniform")) {
+      return null;
+    }
+    if (!distribution.equals("zipf")) {
+      throw new IllegalArgumentException("Unknown distribution: " + distribution);
+    }
+    double exponent = params.getDouble("zipfExponent");
+    double[] cumulative = new double[params.getInt("keys")];
+    double sum = 0;
+    for (int i = 0; i < cumulative.length; i++) {
+      sum += 1 / Math.pow(i + 1, exponent);
+      cumulative[i] = sum;
+    }
+    for (int i = 0; i < cumulative.length; i++) {
+      cumulative[i] /= sum;
+    }
+    return cumulative;
+  }
+}
@@ -0,0 +1,298 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import client.Client;
+import client.TCPClient;
+import client.UDPClient;
+
+/**
+ * The `LoadGenerator` class applies load to a running server through the `Client` interface and
+ * reports the latency distribution and throughput. Every connection has a thread of its own that
+ * sends GET, PUT and DELETE requests of the configured mix over uniformly or Zipfian distributed
+ * keys.
+ *
+ * With rate=0 the load is a closed loop: each connection sends its next request once the last one
+ * is answered, which measures the service time at the server's own pace. With a positive rate the
+ * load is an open loop: requests are due at fixed intervals whether or not earlier ones have been
+ * answered, and every latency is measured from the time its request was due rather than from the
+ * time it was sent. A server that stalls therefore shows its stall in the latencies of all the
+ * requests it held up instead of in one slow request, which avoids coordinated omission. TCP
+ * connections pipeline requests in the open loop; UDP clients wait for each response, so a
+ * connection that falls behind sends its overdue requests back to back.
+ *
+ * Latencies are recorded in an HdrHistogram. A closed loop cannot measure from a schedule, so
+ * next to the measured percentiles it reports percentiles corrected with
+ * `copyCorrectedForCoordinatedOmission`, which fills in the requests a stall kept each connection
+ * from sending at the expected interval.
+ *
+ * Usage: java bench.LoadGenerator &lt;host&gt; &lt;port&gt; &lt;TCP|UDP&gt; [name=value...]
+ */
+public class LoadGenerator {
+  private static final String[][] DEFAULTS = {
+      {"connections", "4", "client connections, each driven by one thread"},
+      {"rate", "0", "requests per second over all connections; 0 runs a closed loop"},
+      {"durationMs", "10000", "length of the measured run"},
+      {"warmupMs", "2000", "load applied before measuring, not reported"},
+      {"keys", "100000", "number of distinct keys"},
+      {"distribution", "uniform", "key popularity: uniform or zipf"},
+      {"zipfExponent", "0.99", "skew of the zipf distribution"},
+      {"readRatio", "0.8", "share of GETs among all requests"},
+      {"deleteRatio", "0.05", "share of DELETEs among all requests; the rest are PUTs"},
+      {"valueRange", "1000000", "PUT values are drawn uniformly from [0, valueRange)"},
+      {"prefill", "true", "PUT every key before the run, so GETs find their keys"},
+      {"timeoutMs", "5000", "time a request may take before it counts as timed out"},
+      {"seed", "42", "seed of the key and request sequences"},
+      {"wire", "text", "protocol of the requests: text or binary"},
+      {"expectedIntervalUs", "0", "closed loop: request interval assumed by the correction; 0 uses the mean latency"},
+  };
+
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+  /**
+   * Default constructor for the `LoadGenerator` class.
+   */
+  LoadGenerator() {
+
+  }
+
+  /**
+   * Runs the load against a server and prints its report.
+   *
+   * @param args The host, port and protocol of the server followed by optional "name=value"
+   *             parameters.
+   * @throws Exception If the server cannot be reached.
+   */
+  public static void main(String args[]) throws Exception {
+    if (args.length < 3 || !(args[2].equals("TCP") || args[2].equals("UDP"))) {
+      System.out.println("Usage: java bench.LoadGenerator <host> <port> <TCP|UDP> [name=value...]");
+      System.out.print(BenchmarkParams.usage(DEFAULTS));
+      return;
+    }
+    BenchmarkParams params = new BenchmarkParams(DEFAULTS, Arrays.copyOfRange(args, 3, args.length));
+    String host = args[0];
+    int port = Integer.parseInt(args[1]);
+    boolean udp = args[2].equals("UDP");
+    boolean binary = params.get("wire").equals("binary");
+    int connectionCount = params.getInt("connections");
+    double rate = params.getDouble("rate");
+    long timeoutMillis = params.getInt("timeoutMs");
+
+    KeySequence keys = new KeySequence(params, -1);
+    Connection[] connections = new Connection[connectionCount];
+    for (int c = 0; c < connectionCount; c++) {
+      // A single attempt per UDP request: a lost datagram is a timeout of the load, not hidden.
+      Client client = udp ? new UDPClient(binary, 1, timeoutMillis) : new TCPClient(binary);
+      client.openConnection(host, port);
+      connections[c] = new Connection(c, client, new KeySequence(keys, params, c), params);
+    }
+    System.out.println("# " + args[2] + " " + host + ":" + port + ", " + connectionCount + " connections, "
+        + (rate > 0 ? "open loop at " + (long) rate + " req/s" : "closed loop"));
+    System.out.println("# " + params);
+    PrintStream console = System.out;
+    // The clients echo every response to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try {
+      if (Boolean.parseBoolean(params.get("prefill"))) {
+        prefill(connections[0].client, keys.allKeys());
+      }
+      long start = System.nanoTime();
+      long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(params.getInt("warmupMs"));
+      long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(params.getInt("durationMs"));
+      Thread[] threads = new Thread[connectionCount];
+      for (int c = 0; c < connectionCount; c++) {
+        Connection connection = connections[c];
+        // Stagger the schedules so the connections together send at an even rate.
+        long firstDue = rate > 0 ? start + (long) (c * 1e9 / rate) : start;
+        long interval = rate > 0 ? (long) (connectionCount * 1e9 / rate) : 0;
+        threads[c] = new Thread(() -> connection.drive(firstDue, interval, measureFrom, end, timeoutMillis),
+            "load-" + c);
+        threads[c].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      System.setOut(console);
+      report(connections, (end - measureFrom) / 1e9, rate > 0 ? -1 : params.getInt("expectedIntervalUs") * 1000L);
+    } finally {
+      System.setOut(console);
+      for (Connection connection : connections) {
+        connection.client.closeConnection();
+      }
+    }
+  }
+
+  /**
+   * Writes every key once, in batches, so the run starts with a full store.
+   */
+  private static void prefill(Client client, String[] keys) throws Exception {
+    List<String> names = new ArrayList<>(Arrays.asList(keys));
+    List<Integer> values = new ArrayList<>(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      values.add(i);
+    }
+    client.multiPut(names, values);
+  }
+
+  /**
+   * Prints the outcome counts, the throughput and the latency percentiles of the measured run.
+   * For a closed loop (expectedIntervalNanos 0 or above) the percentiles corrected for coordinated
+   * omission are printed next to the measured ones.
+   */
+  private static void report(Connection[] connections, double seconds, long expectedIntervalNanos) {
+    Histogram latencies = new Histogram(3);
+    long[] sent = new long[3];
+    long errors = 0;
+    long timeouts = 0;
+    for (Connection connection : connections) {
+      latencies.add(connection.latencies);
+      for (int kind = 0; kind < sent.length; kind++) {
+        sent[kind] += connection.sent[kind];
+      }
+      errors += connection.errors.get();
+      timeouts += connection.timeouts.get();
+    }
+    System.out.println(String.format("requests %d (GET %d, PUT %d, DELETE %d), errors %d, timeouts %d",
+        sent[0] + sent[1] + sent[2], sent[0], sent[1], sent[2], errors, timeouts));
+    System.out.println(String.format("throughput %.0f req/s", latencies.getTotalCount() / seconds));
+    if (expectedIntervalNanos < 0) {
+      System.out.println(String.format("latency (us) mean %.1f", latencies.getMean() / 1e3));
+      for (double percentile : PERCENTILES) {
+        System.out.println(String.format("  p%-6s %12.1f", new DecimalFormat("0.##").format(percentile),
+            latencies.getValueAtPercentile(percentile) / 1e3));
+      }
+      System.out.println(String.format("  %-7s %12.1f", "max", latencies.getMaxValue() / 1e3));
+      return;
+    }
+    long interval = expectedIntervalNanos > 0 ? expectedIntervalNanos : (long) latencies.getMean();
+    // Each connection is corrected on its own: its stalls held up only its own requests.
+    Histogram corrected = new Histogram(3);
+    for (Connection connection : connections) {
+      corrected.add(connection.latencies.copyCorrectedForCoordinatedOmission(interval));
+    }
+    System.out.println(String.format("latency (us) mean %.1f, corrected mean %.1f (expected interval %.1f)",
+        latencies.getMean() / 1e3, corrected.getMean() / 1e3, interval / 1e3));
+    System.out.println(String.format("  %-7s %12s %12s", "", "measured", "corrected"));
+    for (double percentile : PERCENTILES) {
+      System.out.println(String.format("  p%-6s %12.1f %12.1f", new DecimalFormat("0.##").format(percentile),
+          latencies.getValueAtPercentile(percentile) / 1e3, corrected.getValueAtPercentile(percentile) / 1e3));
+    }
+    System.out.println(String.format("  %-7s %12.1f %12.1f", "max", latencies.getMaxValue() / 1e3,
+        corrected.getMaxValue() / 1e3));
+  }
+
+  /**
+   * One connection of the load and the thread that drives it.
+   */
+  private static final class Connection {
+    private final Client client;
+    private final KeySequence keys;
+    private final double readRatio;
+    private final double deleteRatio;
+    private final long idBase;
+    private final Histogram latencies = new ConcurrentHistogram(3);
+    private final long[] sent = new long[3];
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    Connection(int index, Client client, KeySequence keys, BenchmarkParams params) {
+      this.client = client;
+      this.keys = keys;
+      this.readRatio = params.getDouble("readRatio");
+      this.deleteRatio = params.getDouble("deleteRatio");
+      // Packet ids of different connections never meet, so responses cannot be confused.
+      this.idBase = (long) (index + 1) << 40;
+    }
+
+    /**
+     * Sends requests until the end of the run. With an interval the i-th request is due at
+     * firstDue + i * interval; without one each request is due when the last one is answered.
+     */
+    void drive(long firstDue, long interval, long measureFrom, long end, long timeoutMillis) {
+      long due = firstDue;
+      for (long i = 1; ; i++) {
+        long now = System.nanoTime();
+        if (interval == 0) {
+          due = now;
+        } else if (due > now) {
+          LockSupport.parkNanos(due - now);
+        }
+        if (due >= end) {
+          break;
+        }
+        boolean measured = due >= measureFrom;
+        long scheduled = due;
+        CompletableFuture<String> response = client.sendRequestAsync(nextRequest(idBase + i, measured));
+        outstanding.incrementAndGet();
+        String packetId = "#" + (idBase + i);
+        response.whenComplete((message, failure) -> {
+          long latency = System.nanoTime() - scheduled;
+          if (!measured) {
+            // Warm-up requests only load the server.
+          } else if (failure != null || message == null || !message.endsWith(packetId)) {
+            errors.incrementAndGet();
+          } else {
+            latencies.recordValue(latency);
+          }
+          outstanding.decrementAndGet();
+        });
+        if (interval == 0) {
+          await(response, timeoutMillis);
+        }
+        due += interval;
+      }
+      // Let the requests still in flight finish, or count them as timed out.
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+      }
+      timeouts.addAndGet(outstanding.get());
+    }
+
+    private String nextRequest(long packetId, boolean measured) {
+      double choice = keys.nextDouble();
+      int kind = choice < readRatio ? 0 : choice < readRatio + deleteRatio ? 2 : 1;
+      if (measured) {
+        sent[kind]++;
+      }
+      String key = keys.nextKey();
+      switch (kind) {
+        case 0:
+          return "GET " + key + " #" + packetId;
+        case 2:
+          return "DELETE " + key + " #" + packetId;
+        default:
+          return "PUT " + key + " " + keys.nextValue() + " #" + packetId;
+      }
+    }
+
+    /**
+     * Waits for a closed-loop response; one that does not come in time is given up on and
+     * counted as a timeout when the run ends.
+     */
+    private void await(CompletableFuture<String> response, long timeoutMillis) {
+      try {
+        response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException | TimeoutException e) {
+        // Counted by the completion callback, or as a timeout at the end.
+      }
+    }
+  }
+}
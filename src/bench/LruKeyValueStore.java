@@ -0,0 +1,75 @@
+package bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+import store.KeyValueStore;
+
+/**
+ * The `LruKeyValueStore` class is the plain LRU cache that `CacheBenchmark` compares the server's
+ * cache mode with: an access-ordered `LinkedHashMap` that drops its least recently used entry once
+ * it holds more than its capacity, behind one lock that every GET takes as well, since a GET
+ * reorders the map.
+ */
+final class LruKeyValueStore implements KeyValueStore {
+  private final Map<String, Integer> map;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param capacity The number of entries the cache keeps.
+   */
+  LruKeyValueStore(long capacity) {
+    this.map = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  @Override
+  public synchronized long get(CharSequence key) {
+    Integer value = map.get(key.toString());
+    return value == null ? NO_VALUE : value;
+  }
+
+  @Override
+  public synchronized void put(CharSequence key, int value) {
+    map.put(key.toString(), value);
+  }
+
+  @Override
+  public synchronized int addAndGet(CharSequence key, int delta) {
+    Integer value = map.get(key.toString());
+    int updated = Math.addExact(value == null ? 0 : value, delta);
+    map.put(key.toString(), updated);
+    return updated;
+  }
+
+  @Override
+  public synchronized long compareAndExchange(CharSequence key, long expected, int value) {
+    Integer current = map.get(key.toString());
+    long witness = current == null ? NO_VALUE : current;
+    if (witness == expected) {
+      map.put(key.toString(), value);
+    }
+    return witness;
+  }
+
+  @Override
+  public synchronized boolean remove(CharSequence key) {
+    return map.remove(key.toString()) != null;
+  }
+
+  @Override
+  public synchronized int size() {
+    return map.size();
+  }
+
+  @Override
+  public synchronized void forEach(ObjIntConsumer<String> action) {
+    map.forEach(action::accept);
+  }
+}
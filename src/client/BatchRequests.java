@@ -0,0 +1,156 @@
+package client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The `BatchRequests` class implements the batch methods of `Client`. It splits a batch into text
+ * MPUT, MGET, MDELETE, MINCRBY or MCAS requests that fit one `writeUTF` frame or one datagram, sends them all
+ * through `sendRequestAsync`, so that a pipelining client has every chunk in flight at once, and
+ * collects the per-key outcomes in key order.
+ */
+final class BatchRequests {
+    /** Most keys in one request; it keeps text responses well below the frame and datagram limits. */
+    static final int MAX_KEYS_PER_REQUEST = 1024;
+
+    /** Most UTF-8 bytes in one text request. */
+    static final int MAX_REQUEST_BYTES = 60000;
+
+    private static final long RESPONSE_TIMEOUT_MILLIS = 5000;
+
+    // Ids start far above the millisecond timestamps `ClientApp` uses, so they never collide.
+    private static final AtomicLong nextRequestId = new AtomicLong(System.currentTimeMillis() << 20);
+
+    private BatchRequests() {
+    }
+
+    /**
+     * Sends a batch and waits for all of its responses.
+     *
+     * @param client  The client to send through.
+     * @param command "MPUT", "MGET", "MDELETE" or "MINCRBY".
+     * @param keys    The keys of the batch; they must not contain spaces or '#'.
+     * @param values  The values of an MPUT or the deltas of an MINCRBY, one per key, or null for the
+     *                other commands.
+     * @return One outcome per key, in key order.
+     * @throws IOException If a request fails, times out or is rejected by the server.
+     */
+    static List<String> exchange(Client client, String command, List<String> keys, List<Integer> values)
+            throws IOException {
+        return exchange(client, command, keys, null, values);
+    }
+
+    /**
+     * Sends a batch whose entries may carry an expected value, and waits for all of its responses.
+     *
+     * @param client   The client to send through.
+     * @param command  "MPUT", "MGET", "MDELETE", "MINCRBY" or "MCAS".
+     * @param keys     The keys of the batch; they must not contain spaces or '#'.
+     * @param expected The expected values of an MCAS, one per key with null for a key that has to
+     *                 be absent, or null for the other commands.
+     * @param values   The values or deltas, one per key, or null for MGET and MDELETE.
+     * @return One outcome per key, in key order.
+     * @throws IOException If a request fails, times out or is rejected by the server.
+     */
+    static List<String> exchange(Client client, String command, List<String> keys, List<Integer> expected,
+                                 List<Integer> values) throws IOException {
+        if (values != null && values.size() != keys.size()) {
+            throw new IllegalArgumentException(keys.size() + " keys but " + values.size() + " values");
+        }
+        if (expected != null && expected.size() != keys.size()) {
+            throw new IllegalArgumentException(keys.size() + " keys but " + expected.size() + " expected values");
+        }
+        List<CompletableFuture<String>> responses = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        StringBuilder request = new StringBuilder(command);
+        int requestBytes = command.length();
+        int keysInRequest = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            String entry = " " + key;
+            if (expected != null) {
+                entry += " " + (expected.get(i) == null ? "-" : expected.get(i));
+            }
+            if (values != null) {
+                entry += " " + values.get(i);
+            }
+            int entryBytes = entry.getBytes(StandardCharsets.UTF_8).length;
+            if (keysInRequest > 0 && (keysInRequest == MAX_KEYS_PER_REQUEST
+                    || requestBytes + entryBytes + 21 > MAX_REQUEST_BYTES)) {
+                responses.add(send(client, request));
+                chunkSizes.add(keysInRequest);
+                request.setLength(command.length());
+                requestBytes = command.length();
+                keysInRequest = 0;
+            }
+            request.append(entry);
+            requestBytes += entryBytes;
+            keysInRequest++;
+        }
+        if (keysInRequest > 0) {
+            responses.add(send(client, request));
+            chunkSizes.add(keysInRequest);
+        }
+
+        List<String> outcomes = new ArrayList<>(keys.size());
+        for (int chunk = 0; chunk < responses.size(); chunk++) {
+            String response = await(responses.get(chunk));
+            int hashIndex = response.lastIndexOf(" #");
+            String[] parts = hashIndex < 0 ? new String[0] : response.substring(0, hashIndex).split(" ");
+            if (parts.length != chunkSizes.get(chunk) + 1 || !parts[0].equals(command)) {
+                throw new IOException("Batch rejected by the server: " + response);
+            }
+            for (int k = 1; k < parts.length; k++) {
+                outcomes.add(parts[k]);
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Sends a request with a fresh packet id.
+     *
+     * @param client  The client to send through.
+     * @param request The request without its packet id.
+     * @return A future completed with the response.
+     */
+    static CompletableFuture<String> send(Client client, CharSequence request) {
+        return client.sendRequestAsync(request + " #" + nextRequestId());
+    }
+
+    /**
+     * Draws a fresh packet id.
+     *
+     * @return An id no other request of this process carries.
+     */
+    static long nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    /**
+     * Waits for a response.
+     *
+     * @param response The future of the response.
+     * @return The response.
+     * @throws IOException If the request failed or no response arrived in time.
+     */
+    static String await(CompletableFuture<String> response) throws IOException {
+        try {
+            return response.get(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("No response within " + RESPONSE_TIMEOUT_MILLIS + " ms", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response", e);
+        }
+    }
+}
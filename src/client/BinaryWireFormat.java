@@ -0,0 +1,389 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import cluster.WriteAck;
+import protocol.BinaryProtocol;
+
+/**
+ * The `BinaryWireFormat` class lets the clients keep their text interface while talking the
+ * binary protocol: text requests such as "PUT a 78 #1696456808742" or "MGET a b #1696456808743"
+ * are encoded with `BinaryProtocol` and binary responses are turned back into the text the server
+ * would have answered with. An "ACK=ONE" style token before the id of a write becomes the
+ * acknowledgement flag of its opcode, and a "TTL=30000" token after the value of a PUT is sent
+ * with the expiry flag. SCAN and PREFIX requests travel with their bounds and continuation token
+ * as keys, and a page comes back in the text form "SCAN a 4 b 6 NEXT=b #7". DECRBY is sent as an
+ * INCRBY of the negated delta, and the "-" a CAS or MCAS takes for an absent key as `Long.MIN_VALUE`.
+ * WATCH and UNWATCH become a WATCH with flags, and the changes the server pushes for a watch come
+ * back as "EVENT PUT a 5 #7", "EVENT DELETE a #7" or "EVENT OVERFLOW #7".
+ */
+final class BinaryWireFormat {
+
+    private BinaryWireFormat() {
+    }
+
+    /**
+     * Encodes a text request.
+     *
+     * @param textRequest The request in the text protocol, ending with "#" and a numeric id.
+     * @return A buffer in read mode holding the binary request, or null if the request is not
+     *         a valid PUT, GET, DELETE, INCRBY, DECRBY, CAS, MPUT, MGET, MDELETE, MINCRBY, MCAS,
+     *         SCAN, PREFIX, WATCH, UNWATCH or PING.
+     */
+    static ByteBuffer encode(String textRequest) {
+        String[] parts = textRequest.split(" ");
+        if (parts[0].equals("PING") && parts.length == 2) {
+            try {
+                ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.PING_REQUEST_BYTES);
+                BinaryProtocol.writePingRequest(request, Long.parseLong(parts[1].substring(1)));
+                return parts[1].startsWith("#") ? request.flip() : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (parts[0].equals("WATCH") || parts[0].equals("UNWATCH")) {
+            return encodeWatch(parts);
+        }
+        byte ack = 0;
+        if (parts.length >= 4 && parts[parts.length - 2].startsWith("ACK=")) {
+            if (parts[0].equals("GET") || parts[0].equals("MGET") || parts[0].equals("SCAN")
+                    || parts[0].equals("PREFIX")) {
+                return null;
+            }
+            try {
+                ack = WriteAck.fromName(parts[parts.length - 2].substring(4)).flag();
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            String packetId = parts[parts.length - 1];
+            parts = Arrays.copyOf(parts, parts.length - 1);
+            parts[parts.length - 1] = packetId;
+        }
+        byte batchOpcode = parts[0].equals("MPUT") ? BinaryProtocol.MPUT
+                : parts[0].equals("MGET") ? BinaryProtocol.MGET
+                : parts[0].equals("MDELETE") ? BinaryProtocol.MDELETE
+                : parts[0].equals("MINCRBY") ? BinaryProtocol.MINCRBY
+                : parts[0].equals("MCAS") ? BinaryProtocol.MCAS : 0;
+        if (batchOpcode != 0) {
+            return encodeBatch((byte) (batchOpcode | ack), parts);
+        }
+        if (parts[0].equals("SCAN") || parts[0].equals("PREFIX")) {
+            return encodeScan(parts);
+        }
+        if (parts[0].equals("CAS")) {
+            return encodeCas((byte) (BinaryProtocol.CAS | ack), parts);
+        }
+        long ttlMillis = 0;
+        if (parts[0].equals("PUT") && parts.length == 5 && parts[3].startsWith("TTL=")) {
+            try {
+                ttlMillis = Long.parseLong(parts[3].substring(4));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (ttlMillis <= 0) {
+                return null;
+            }
+            parts = new String[] {parts[0], parts[1], parts[2], parts[4]};
+        }
+        byte opcode;
+        if (parts[0].equals("PUT") && parts.length == 4) {
+            opcode = ttlMillis > 0 ? (byte) (BinaryProtocol.PUT | BinaryProtocol.EXPIRES) : BinaryProtocol.PUT;
+        } else if (parts[0].equals("GET") && parts.length == 3) {
+            opcode = BinaryProtocol.GET;
+        } else if (parts[0].equals("DELETE") && parts.length == 3) {
+            opcode = BinaryProtocol.DELETE;
+        } else if ((parts[0].equals("INCRBY") || parts[0].equals("DECRBY")) && parts.length == 4) {
+            opcode = BinaryProtocol.INCRBY;
+        } else {
+            return null;
+        }
+        opcode |= ack;
+        String packetId = parts[parts.length - 1];
+        try {
+            if (!packetId.startsWith("#")) {
+                return null;
+            }
+            long requestId = Long.parseLong(packetId.substring(1));
+            int value = parts.length == 4 ? Integer.parseInt(parts[2]) : 0;
+            if (parts[0].equals("DECRBY")) {
+                value = Math.negateExact(value);
+            }
+            ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.requestSize(opcode, parts[1]));
+            BinaryProtocol.writeRequest(request, opcode, parts[1], value, ttlMillis, requestId);
+            return request.flip();
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer encodeWatch(String[] parts) {
+        boolean prefix = parts.length == 4 && parts[1].equals("PREFIX");
+        String packetId = parts[parts.length - 1];
+        if (parts.length != (prefix ? 4 : 3) || !packetId.startsWith("#")) {
+            return null;
+        }
+        int flags = (prefix ? BinaryProtocol.WATCH_PREFIX : 0) | (parts[0].equals("UNWATCH") ? BinaryProtocol.UNWATCH : 0);
+        String key = parts[prefix ? 2 : 1];
+        try {
+            long requestId = Long.parseLong(packetId.substring(1));
+            ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.requestSize(BinaryProtocol.WATCH, key));
+            BinaryProtocol.writeRequest(request, BinaryProtocol.WATCH, key, flags, requestId);
+            return request.flip();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer encodeCas(byte opcode, String[] parts) {
+        String packetId = parts[parts.length - 1];
+        if (parts.length != 5 || !packetId.startsWith("#")) {
+            return null;
+        }
+        try {
+            long expected = parts[2].equals("-") ? Long.MIN_VALUE : Integer.parseInt(parts[2]);
+            int value = Integer.parseInt(parts[3]);
+            long requestId = Long.parseLong(packetId.substring(1));
+            ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.requestSize(opcode, parts[1]));
+            BinaryProtocol.writeCasRequest(request, opcode, parts[1], expected, value, requestId);
+            return request.flip();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer encodeBatch(byte opcode, String[] parts) {
+        String packetId = parts[parts.length - 1];
+        int arguments = parts.length - 2;
+        byte base = BinaryProtocol.baseOpcode(opcode);
+        int stride = base == BinaryProtocol.MCAS ? 3
+                : base == BinaryProtocol.MPUT || base == BinaryProtocol.MINCRBY ? 2 : 1;
+        int count = arguments / stride;
+        if (!packetId.startsWith("#") || count < 1 || arguments % stride != 0
+                || count > BinaryProtocol.MAX_BATCH_KEYS) {
+            return null;
+        }
+        String[] keys = new String[count];
+        int[] values = new int[count];
+        long[] expected = stride == 3 ? new long[count] : null;
+        try {
+            for (int i = 0; i < count; i++) {
+                keys[i] = parts[1 + stride * i];
+                if (stride == 3) {
+                    expected[i] = parts[2 + 3 * i].equals("-") ? Long.MIN_VALUE
+                            : Integer.parseInt(parts[2 + 3 * i]);
+                }
+                if (stride > 1) {
+                    values[i] = Integer.parseInt(parts[stride * (i + 1)]);
+                }
+            }
+            long requestId = Long.parseLong(packetId.substring(1));
+            ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.batchRequestSize(opcode, keys, count));
+            BinaryProtocol.writeBatchRequest(request, opcode, keys, expected, values, count, requestId);
+            return request.flip();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer encodeScan(String[] parts) {
+        boolean prefix = parts[0].equals("PREFIX");
+        int bounds = prefix ? 1 : 2;
+        int arguments = parts.length - 2;
+        String packetId = parts[parts.length - 1];
+        if ((arguments != bounds + 1 && arguments != bounds + 2) || !packetId.startsWith("#")) {
+            return null;
+        }
+        String first = prefix || !parts[1].equals("-") ? parts[1] : null;
+        String to = prefix || parts[2].equals("-") ? null : parts[2];
+        String token = arguments == bounds + 2 ? parts[bounds + 2] : null;
+        try {
+            int pageSize = Integer.parseInt(parts[1 + bounds]);
+            long requestId = Long.parseLong(packetId.substring(1));
+            ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.scanRequestSize(first, to, token, pageSize));
+            BinaryProtocol.writeScanRequest(request, prefix ? BinaryProtocol.PREFIX : BinaryProtocol.SCAN, first, to,
+                    token, pageSize, requestId);
+            return request.flip();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the response the server gives to a request that cannot be encoded.
+     *
+     * @param textRequest The request in the text protocol.
+     * @return The text response.
+     */
+    static String rejected(String textRequest) {
+        String[] parts = textRequest.split(" ");
+        if (parts[0].equals("PUT") && parts.length == 4) {
+            return "Put operation terminated with exception, packet_id: " + parts[3];
+        }
+        int hashIndex = textRequest.indexOf('#');
+        return "Invalid operation provided by user. #" + (hashIndex < 0 ? "" : textRequest.substring(hashIndex + 1));
+    }
+
+    /**
+     * Turns a binary response back into the text the server sends for the same outcome.
+     *
+     * @param response A buffer in read mode holding one complete response.
+     * @return The text response.
+     */
+    static String decode(ByteBuffer response) {
+        byte opcode = response.get();
+        byte status = response.get();
+        long requestId = response.getLong();
+        if (status == BinaryProtocol.BUSY) {
+            return "Server busy RETRY_AFTER=" + response.getInt() + " #" + requestId;
+        }
+        if (BinaryProtocol.isBatch(opcode)) {
+            return decodeBatch(response, opcode, status, requestId);
+        }
+        if (BinaryProtocol.isScan(opcode)) {
+            return decodeScan(response, opcode, status, requestId);
+        }
+        if (opcode == BinaryProtocol.PING) {
+            return (status == BinaryProtocol.OK ? "PONG #" : "Invalid operation provided by user. #") + requestId;
+        }
+        if (opcode == BinaryProtocol.WATCH) {
+            return decodeWatch(response, status, requestId);
+        }
+        if (opcode == BinaryProtocol.INCRBY) {
+            return status == BinaryProtocol.OK ? response.getInt() + " #" + requestId
+                    : "Incrby operation terminated with exception, packet_id: #" + requestId;
+        }
+        if (opcode == BinaryProtocol.CAS) {
+            if (status == BinaryProtocol.OK) {
+                return "Cas operation success #" + requestId;
+            } else if (status == BinaryProtocol.NOT_FOUND) {
+                return "Cas operation failed, value: NOT_FOUND #" + requestId;
+            } else if (status == BinaryProtocol.CONFLICT) {
+                return "Cas operation failed, value: " + response.getInt() + " #" + requestId;
+            }
+            return "Cas operation terminated with exception, packet_id: #" + requestId;
+        }
+        if (status == BinaryProtocol.OK) {
+            if (opcode == BinaryProtocol.PUT) {
+                return "Put operation success #" + requestId;
+            } else if (opcode == BinaryProtocol.GET) {
+                return response.getInt() + " #" + requestId;
+            }
+            return "Delete operation success #" + requestId;
+        }
+        if (opcode == BinaryProtocol.GET && status == BinaryProtocol.NOT_FOUND) {
+            return "Get operation terminated with exception, packet_id: #" + requestId;
+        }
+        if (opcode == BinaryProtocol.DELETE && status == BinaryProtocol.NOT_FOUND) {
+            return "Invalid operation provided by user. #" + requestId;
+        }
+        String operation = opcode == BinaryProtocol.PUT ? "Put" : opcode == BinaryProtocol.GET ? "Get" : "Delete";
+        return operation + " operation terminated with exception, packet_id: #" + requestId;
+    }
+
+    /**
+     * Reads one complete binary response from a stream and turns it into text.
+     *
+     * @param in The stream the server's responses arrive on.
+     * @return The text response.
+     * @throws IOException If the response cannot be read or is malformed.
+     */
+    static String read(DataInputStream in) throws IOException {
+        ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.MAX_RESPONSE_BYTES);
+        int length;
+        while ((length = BinaryProtocol.responseLength(response.duplicate().flip())) > response.position()) {
+            if (length > response.capacity()) {
+                response = ByteBuffer.wrap(Arrays.copyOf(response.array(), Math.max(length, response.capacity() * 2)))
+                        .position(response.position());
+            }
+            in.readFully(response.array(), response.position(), length - response.position());
+            response.position(length);
+        }
+        return decode(response.flip());
+    }
+
+    private static String decodeWatch(ByteBuffer response, byte status, long requestId) {
+        if (status == BinaryProtocol.OK) {
+            return "Watch operation success #" + requestId;
+        } else if (status == BinaryProtocol.NOT_FOUND) {
+            return "Invalid operation provided by user. #" + requestId;
+        } else if (status == BinaryProtocol.OVERFLOW_EVENT) {
+            return "EVENT OVERFLOW #" + requestId;
+        } else if (status != BinaryProtocol.PUT_EVENT && status != BinaryProtocol.DELETE_EVENT) {
+            return "Watch operation terminated with exception, packet_id: #" + requestId;
+        }
+        int keyBytes = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = response.get();
+            keyBytes |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        String key = new String(response.array(), response.arrayOffset() + response.position(), keyBytes,
+                StandardCharsets.UTF_8);
+        response.position(response.position() + keyBytes);
+        if (status == BinaryProtocol.DELETE_EVENT) {
+            return "EVENT DELETE " + key + " #" + requestId;
+        }
+        return "EVENT PUT " + key + " " + response.getInt() + " #" + requestId;
+    }
+
+    private static String decodeScan(ByteBuffer response, byte opcode, byte status, long requestId) {
+        if (status != BinaryProtocol.OK) {
+            return "Scan operation terminated with exception, packet_id: #" + requestId;
+        }
+        int count = response.getShort() & 0xFFFF;
+        StringBuilder text = new StringBuilder(opcode == BinaryProtocol.PREFIX ? "PREFIX" : "SCAN");
+        String key = null;
+        for (int i = 0; i < count; i++) {
+            int keyBytes = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = response.get();
+                keyBytes |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            key = new String(response.array(), response.arrayOffset() + response.position(), keyBytes,
+                    StandardCharsets.UTF_8);
+            response.position(response.position() + keyBytes);
+            text.append(' ').append(key).append(' ').append(response.getInt());
+        }
+        if (response.get() != 0) {
+            text.append(" NEXT=").append(key);
+        }
+        return text.append(" #").append(requestId).toString();
+    }
+
+    private static String decodeBatch(ByteBuffer response, byte opcode, byte status, long requestId) {
+        if (status != BinaryProtocol.OK) {
+            return "Invalid operation provided by user. #" + requestId;
+        }
+        int count = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = response.get();
+            count |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        StringBuilder text = new StringBuilder(12 * count + 28);
+        text.append(opcode == BinaryProtocol.MPUT ? "MPUT" : opcode == BinaryProtocol.MGET ? "MGET"
+                : opcode == BinaryProtocol.MINCRBY ? "MINCRBY" : opcode == BinaryProtocol.MCAS ? "MCAS" : "MDELETE");
+        for (int i = 0; i < count; i++) {
+            byte entryStatus = response.get();
+            text.append(' ');
+            if (BinaryProtocol.hasValue(opcode, entryStatus)) {
+                text.append(response.getInt());
+            } else {
+                text.append(entryStatus == BinaryProtocol.OK ? "OK"
+                        : entryStatus == BinaryProtocol.NOT_FOUND ? "NOT_FOUND" : "ERROR");
+            }
+        }
+        return text.append(" #").append(requestId).toString();
+    }
+}
@@ -0,0 +1,99 @@
+package client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The `BusyResponses` class holds what the clients share to retry requests that a server turned
+ * away because it was at its concurrency limit. Such a response reads "Server busy
+ * RETRY_AFTER=&lt;millis&gt; #id" and the request was not applied, so it is safe to send again.
+ *
+ * A client waits the hinted time plus a random part of it again, so that clients rejected
+ * together do not come back together, and keeps retrying for at most three seconds after it
+ * first sent the request; then it hands the busy response to the caller.
+ */
+final class BusyResponses {
+    private static final String BUSY_PREFIX = "Server busy RETRY_AFTER=";
+
+    /** How long after a request was first sent it may still be retried. */
+    static final long RETRY_BUDGET_NANOS = 3_000_000_000L;
+
+    private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "busy-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BusyResponses() {
+    }
+
+    /**
+     * Reads the retry hint of a busy response.
+     *
+     * @param response A response from the server.
+     * @return The hint in milliseconds, or -1 if the response is not a busy response.
+     */
+    static long retryAfterMillis(String response) {
+        if (!response.startsWith(BUSY_PREFIX)) {
+            return -1;
+        }
+        long millis = 0;
+        for (int i = BUSY_PREFIX.length(); i < response.length(); i++) {
+            char c = response.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            millis = millis * 10 + (c - '0');
+        }
+        return millis;
+    }
+
+    /**
+     * Picks how long to wait before retrying a request that was turned away.
+     *
+     * @param response  A response from the server.
+     * @param sentNanos The `System.nanoTime` at which the request was first sent.
+     * @return The wait in milliseconds, or -1 if the response is not a busy response or the
+     *         request has used up its retry budget.
+     */
+    static long retryDelayMillis(String response, long sentNanos) {
+        long retryAfter = retryAfterMillis(response);
+        if (retryAfter < 0) {
+            return -1;
+        }
+        long delay = retryAfter + ThreadLocalRandom.current().nextLong(retryAfter + 1);
+        if (System.nanoTime() + delay * 1_000_000 - sentNanos > RETRY_BUDGET_NANOS) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Waits before a blocking retry.
+     *
+     * @param millis The wait.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    static void pause(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a busy request");
+        }
+    }
+
+    /**
+     * Runs a pipelined retry after a wait, on a thread shared by every client.
+     *
+     * @param retry  Sends the request again.
+     * @param millis The wait.
+     */
+    static void schedule(Runnable retry, long millis) {
+        retries.schedule(retry, millis, TimeUnit.MILLISECONDS);
+    }
+}
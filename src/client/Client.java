@@ -3,6 +3,9 @@ package client;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ObjIntConsumer;
 
 /**
  * This interface defines the contract for a generic client that can establish a connection,
@@ -36,6 +39,141 @@ public interface Client {
    */
   String receiveResponse() throws IOException;
 
+  /**
+   * Sends a request and returns a future for its response. Clients that support pipelining
+   * return straight away and match responses to requests by the packet id after '#'; the
+   * default implementation sends the request and waits for the response before returning.
+   *
+   * @param message The request message to send to the server.
+   * @return A future completed with the response, or exceptionally if it cannot be exchanged.
+   */
+  default CompletableFuture<String> sendRequestAsync(String message) {
+    try {
+      sendRequest(message);
+      return CompletableFuture.completedFuture(receiveResponse());
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Writes several keys with MPUT requests. Large batches are split into requests of at most
+   * 1024 keys, which a pipelining client sends without waiting in between.
+   *
+   * @param keys   The keys to write; they must not contain spaces or '#'.
+   * @param values The value of each key, in key order.
+   * @return "OK" or "ERROR" for each key, in key order.
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default List<String> multiPut(List<String> keys, List<Integer> values) throws IOException {
+    return BatchRequests.exchange(this, "MPUT", keys, values);
+  }
+
+  /**
+   * Reads several keys with MGET requests, split like `multiPut`.
+   *
+   * @param keys The keys to read; they must not contain spaces or '#'.
+   * @return The value of each key, or "NOT_FOUND" or "ERROR", in key order.
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default List<String> multiGet(List<String> keys) throws IOException {
+    return BatchRequests.exchange(this, "MGET", keys, null);
+  }
+
+  /**
+   * Deletes several keys with MDELETE requests, split like `multiPut`.
+   *
+   * @param keys The keys to delete; they must not contain spaces or '#'.
+   * @return "OK", "NOT_FOUND" or "ERROR" for each key, in key order.
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default List<String> multiDelete(List<String> keys) throws IOException {
+    return BatchRequests.exchange(this, "MDELETE", keys, null);
+  }
+
+  /**
+   * Adds a delta to the value of a key with an INCRBY request. The server applies it atomically,
+   * so concurrent increments from many clients are never lost; an absent key counts as 0.
+   *
+   * @param key   The key to update; it must not contain spaces or '#'.
+   * @param delta The amount to add; negative to subtract.
+   * @return The value of the key after the update.
+   * @throws IOException If the request fails, times out or is rejected, for example because the
+   *                     result would overflow.
+   */
+  default int incrementBy(String key, int delta) throws IOException {
+    return NumericRequests.incrementBy(this, key, delta);
+  }
+
+  /**
+   * Sets the value of a key with a CAS request if the key holds an expected value.
+   *
+   * @param key      The key to update; it must not contain spaces or '#'.
+   * @param expected The value the key has to hold, or null for a key that has to be absent.
+   * @param value    The new value.
+   * @return "OK" if the key was set, otherwise the value the key holds or "NOT_FOUND".
+   * @throws IOException If the request fails, times out or is rejected by the server.
+   */
+  default String compareAndSet(String key, Integer expected, int value) throws IOException {
+    return NumericRequests.compareAndSet(this, key, expected, value);
+  }
+
+  /**
+   * Adds deltas to several keys with MINCRBY requests, split like `multiPut`. Each key is
+   * updated atomically, but the batch as a whole is not.
+   *
+   * @param keys   The keys to update; they must not contain spaces or '#'.
+   * @param deltas The amount to add to each key, in key order.
+   * @return The new value of each key, or "ERROR" where it would overflow, in key order.
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default List<String> multiIncrementBy(List<String> keys, List<Integer> deltas) throws IOException {
+    return BatchRequests.exchange(this, "MINCRBY", keys, deltas);
+  }
+
+  /**
+   * Applies several compare-and-set updates with MCAS requests, split like `multiPut`.
+   *
+   * @param keys     The keys to update; they must not contain spaces or '#'.
+   * @param expected The value each key has to hold, or null for a key that has to be absent.
+   * @param values   The new value of each key, in key order.
+   * @return For each key, in key order, "OK" if it was set, otherwise the value it holds,
+   *         "NOT_FOUND" or "ERROR".
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default List<String> multiCompareAndSet(List<String> keys, List<Integer> expected, List<Integer> values)
+      throws IOException {
+    return BatchRequests.exchange(this, "MCAS", keys, expected, values);
+  }
+
+  /**
+   * Reads the entries whose keys lie in a range, in key order, with one SCAN request per page.
+   * The next page is only requested once the action has seen the previous one. The server has
+   * to keep an ordered index of its keys.
+   *
+   * @param from     The lowest key of the range, or null to start at the smallest key. Bounds must
+   *                 not contain spaces or '#', and "-" stands for an open end.
+   * @param to       The key the range ends before, or null to run to the largest key.
+   * @param pageSize The most entries per request, from 1 to 1024.
+   * @param action   Receives each key and value.
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default void scan(String from, String to, int pageSize, ObjIntConsumer<String> action) throws IOException {
+    ScanRequests.scan(this, "SCAN " + (from == null ? "-" : from) + " " + (to == null ? "-" : to), pageSize, action);
+  }
+
+  /**
+   * Reads the entries whose keys start with a prefix, in key order, paged like `scan`.
+   *
+   * @param prefix   The prefix; it must not contain spaces or '#'.
+   * @param pageSize The most entries per request, from 1 to 1024.
+   * @param action   Receives each key and value.
+   * @throws IOException If a request fails, times out or is rejected by the server.
+   */
+  default void scanPrefix(String prefix, int pageSize, ObjIntConsumer<String> action) throws IOException {
+    ScanRequests.scan(this, "PREFIX " + prefix, pageSize, action);
+  }
+
   /**
    * Closes the connection to the server.
    * This method should be called when the client is done communicating with the server.
@@ -1,10 +1,16 @@
 package client;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import cluster.HashRing;
 import logger.LoggerHandler;
 
 /**
@@ -70,11 +76,25 @@ public class ClientApp {
       Scanner sc = new Scanner(System.in);
       System.out.println("Enter protocol mode of the client.");
       String protocolType = sc.nextLine();
+      boolean binary = System.getProperty("kvstore.wire", "text").equals("binary");
+      Supplier<Client> clients = null;
       if (protocolType.equals("TCP")) {
-        socketProtocolConnection = new TCPClient();
-        socketProtocolConnection.openConnection(host, port);
+        // A pool shares up to that many pipelined connections per server.
+        int poolConnections = Integer.getInteger("kvstore.poolConnections", 0);
+        clients = poolConnections > 0 ? () -> new ConnectionPool(binary, poolConnections) : () -> new TCPClient(binary);
       } else if (protocolType.equals("UDP")) {
-        socketProtocolConnection = new UDPClient();
+        // Retransmitted requests keep their packet id, so the server never applies them twice.
+        int attempts = Integer.getInteger("kvstore.udpAttempts", 5);
+        long initialTimeout = Long.getLong("kvstore.udpTimeoutMs", 200L);
+        clients = () -> new UDPClient(binary, attempts, initialTimeout);
+      }
+      if (clients != null) {
+        String ringFile = System.getProperty("kvstore.cluster");
+        // With a ring file every request goes straight to the node owning its key, or to a
+        // replica when that node fails.
+        socketProtocolConnection = ringFile != null
+            ? new ClusterClient(HashRing.load(Paths.get(ringFile)), clients, Boolean.getBoolean("kvstore.readReplicas"))
+            : clients.get();
         socketProtocolConnection.openConnection(host, port);
       }
       while (true) {
@@ -84,16 +104,15 @@ public class ClientApp {
           String clientCommandMsg = sc.nextLine();
           if (clientCommandMsg != null && clientCommandMsg.length() < 80) {
             logClientSendingMessage(clientCommandMsg + " " + String.valueOf(currentTime));
-            socketProtocolConnection.sendRequest(clientCommandMsg + " #" + String.valueOf(currentTime));
             long timeToLive = 5000;
-            while (timeToLive > 0) {
-              String response = socketProtocolConnection.receiveResponse();
+            try {
+              String response = socketProtocolConnection.sendRequestAsync(clientCommandMsg + " #" + String.valueOf(currentTime))
+                  .get(timeToLive, TimeUnit.MILLISECONDS);
               logClientReceivingMessage(response, currentTime);
-              if (response == null) {
-                timeToLive -= 1000;
-              } else {
-                break;
-              }
+            } catch (TimeoutException e) {
+              System.out.println("No response received from server within " + timeToLive + " ms");
+            } catch (ExecutionException e) {
+              System.out.println("Request failed: " + e.getCause());
             }
           } else {
             System.out.println("Enter a non-empty command/ Enter message in less than 80 characters");
@@ -0,0 +1,312 @@
+package client;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import cluster.HashRing;
+
+/**
+ * The `ClusterClient` class talks to a cluster of servers through one client per node and sends
+ * every request straight to the node that owns its key on the `HashRing`, so no request has to
+ * be forwarded between nodes. A batch is split into one request per owner, all in flight at
+ * once, and their outcomes are merged back into key order.
+ *
+ * When the ring keeps replicas, a request whose node fails is sent again to the next node of the
+ * preference list of its key, which stands in for the primary, and the failed node is skipped
+ * until a probe interval has passed and it is connected again. GETs may also be spread over all
+ * live nodes keeping a copy, which the servers answer from their own copy if it is recent
+ * enough.
+ */
+public class ClusterClient implements Client {
+    /** How long a node that failed is skipped before the client connects to it again. */
+    private static final long PROBE_INTERVAL_MILLIS = 1000;
+
+    private final HashRing ring;
+    private final Supplier<Client> nodeClients;
+    private final boolean readFromReplicas;
+    private Client[] clients;
+    private long[] downUntil;
+    private CompletableFuture<String> pendingResponse;
+
+    /**
+     * Constructor for the `ClusterClient` class.
+     *
+     * @param ring        The ring shared with the servers.
+     * @param nodeClients Creates the client used for each node, such as a binary `TCPClient`.
+     */
+    public ClusterClient(HashRing ring, Supplier<Client> nodeClients) {
+        this(ring, nodeClients, false);
+    }
+
+    /**
+     * Constructor for the `ClusterClient` class.
+     *
+     * @param ring             The ring shared with the servers.
+     * @param nodeClients      Creates the client used for each node, such as a binary `TCPClient`.
+     * @param readFromReplicas True to send every GET to a random live node keeping the key.
+     */
+    public ClusterClient(HashRing ring, Supplier<Client> nodeClients, boolean readFromReplicas) {
+        this.ring = ring;
+        this.nodeClients = nodeClients;
+        this.readFromReplicas = readFromReplicas;
+    }
+
+    /**
+     * Connects to every node of the ring. The address given is not used, as the ring lists the
+     * address of every node. Nodes that cannot be connected are skipped and tried again later.
+     *
+     * @param hostname Ignored.
+     * @param port     Ignored.
+     * @throws SocketException       If no node can be connected.
+     * @throws UnknownHostException If the hostname of a node is not found.
+     */
+    @Override
+    public void openConnection(String hostname, int port) throws SocketException, UnknownHostException {
+        clients = new Client[ring.nodes().size()];
+        downUntil = new long[clients.length];
+        int connected = 0;
+        for (int n = 0; n < clients.length; n++) {
+            try {
+                clients[n] = connect(n);
+                connected++;
+            } catch (SocketException | RuntimeException e) {
+                downUntil[n] = System.currentTimeMillis() + PROBE_INTERVAL_MILLIS;
+            }
+        }
+        if (connected == 0) {
+            throw new SocketException("No node of the ring can be connected");
+        }
+    }
+
+    /**
+     * Sends a request to the node owning its key; the response is collected by `receiveResponse`.
+     *
+     * @param message The request message to send.
+     */
+    @Override
+    public void sendRequest(String message) {
+        pendingResponse = sendRequestAsync(message);
+    }
+
+    /**
+     * Waits for the response to the last request sent with `sendRequest`.
+     *
+     * @return The response.
+     * @throws IOException If the request failed.
+     */
+    @Override
+    public String receiveResponse() throws IOException {
+        try {
+            return pendingResponse.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends a request to the node owning its key, or a batch to all nodes owning its keys.
+     * Requests without a key go to the first node, which answers them as invalid.
+     *
+     * @param message The request message, ending with '#' and a packet id.
+     * @return A future completed with the response.
+     */
+    @Override
+    public CompletableFuture<String> sendRequestAsync(String message) {
+        String[] parts = message.split(" ");
+        boolean batch = parts[0].equals("MPUT") || parts[0].equals("MGET") || parts[0].equals("MDELETE")
+                || parts[0].equals("MINCRBY") || parts[0].equals("MCAS");
+        if (batch && parts.length >= 3) {
+            return sendBatchAsync(parts, message);
+        }
+        if (parts.length < 3) {
+            return send(0, message, 0);
+        }
+        int[] preference = ring.preferenceList(parts[1]);
+        boolean spread = readFromReplicas && parts[0].equals("GET");
+        return send(spread ? pickReplica(preference) : preference[0], message, 0);
+    }
+
+    /**
+     * Sends a request to a node, or to the node standing in for it, and sends it on to the next
+     * node of the preference list of its key when that node fails.
+     *
+     * @param owner   The node the request is meant for.
+     * @param message The request message.
+     * @param attempt The number of nodes that already failed for this request.
+     */
+    private CompletableFuture<String> send(int owner, String message, int attempt) {
+        int node = liveNode(owner, message);
+        CompletableFuture<String> response;
+        try {
+            response = client(node).sendRequestAsync(message);
+        } catch (IOException | RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.handle((result, failure) -> {
+            if (failure == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            markDown(node);
+            return attempt + 1 < clients.length ? send(owner, message, attempt + 1)
+                    : CompletableFuture.<String>failedFuture(failure);
+        }).thenCompose(next -> next);
+    }
+
+    /**
+     * Finds the node to send a request for a node to: the node itself if it is up, else the
+     * first live node of the preference list of the key, else any live node.
+     */
+    private int liveNode(int owner, String message) {
+        if (!isDown(owner)) {
+            return owner;
+        }
+        String[] parts = message.split(" ", 3);
+        if (parts.length == 3) {
+            for (int node : ring.preferenceList(parts[1])) {
+                if (!isDown(node)) {
+                    return node;
+                }
+            }
+        }
+        for (int node = 0; node < clients.length; node++) {
+            if (!isDown(node)) {
+                return node;
+            }
+        }
+        return owner;
+    }
+
+    private int pickReplica(int[] preference) {
+        int start = ThreadLocalRandom.current().nextInt(preference.length);
+        for (int i = 0; i < preference.length; i++) {
+            int node = preference[(start + i) % preference.length];
+            if (!isDown(node)) {
+                return node;
+            }
+        }
+        return preference[0];
+    }
+
+    private synchronized boolean isDown(int node) {
+        return System.currentTimeMillis() < downUntil[node];
+    }
+
+    /**
+     * Skips a node for the probe interval and drops its connection.
+     */
+    private synchronized void markDown(int node) {
+        downUntil[node] = System.currentTimeMillis() + PROBE_INTERVAL_MILLIS;
+        if (clients[node] != null) {
+            Client failed = clients[node];
+            clients[node] = null;
+            try {
+                failed.closeConnection();
+            } catch (RuntimeException e) {
+                // The connection is gone already.
+            }
+        }
+    }
+
+    /**
+     * Retrieves the client of a node, connecting it again if it failed before.
+     */
+    private synchronized Client client(int node) throws IOException {
+        if (clients[node] == null) {
+            clients[node] = connect(node);
+        }
+        return clients[node];
+    }
+
+    private Client connect(int node) throws SocketException, UnknownHostException {
+        Client client = nodeClients.get();
+        client.openConnection(ring.nodes().get(node).host(), ring.nodes().get(node).port());
+        return client;
+    }
+
+    /**
+     * Splits a batch by owner, sends every part with the packet id of the batch and merges the
+     * outcomes. When a part fails or is rejected its response is returned as it is. An ACK token
+     * is passed on to every part.
+     */
+    private CompletableFuture<String> sendBatchAsync(String[] parts, String message) {
+        String ack = parts.length >= 4 && parts[parts.length - 2].startsWith("ACK=") ? parts[parts.length - 2] : null;
+        int step = parts[0].equals("MCAS") ? 3 : parts[0].equals("MPUT") || parts[0].equals("MINCRBY") ? 2 : 1;
+        int arguments = parts.length - 2 - (ack == null ? 0 : 1);
+        if (arguments % step != 0) {
+            return send(0, message, 0);
+        }
+        int count = arguments / step;
+        int[] owners = new int[count];
+        StringBuilder[] requests = new StringBuilder[clients.length];
+        int[] keysPerOwner = new int[clients.length];
+        int partsUsed = 0;
+        for (int i = 0; i < count; i++) {
+            int owner = ring.ownerIndex(parts[1 + i * step]);
+            owners[i] = owner;
+            if (requests[owner] == null) {
+                requests[owner] = new StringBuilder(parts[0]);
+                partsUsed++;
+            }
+            for (int j = 0; j < step; j++) {
+                requests[owner].append(' ').append(parts[1 + i * step + j]);
+            }
+            keysPerOwner[owner]++;
+        }
+        if (partsUsed == 1) {
+            return send(owners[0], message, 0);
+        }
+        String packetId = parts[parts.length - 1];
+        List<CompletableFuture<String>> responses = new ArrayList<>(clients.length);
+        for (int n = 0; n < clients.length; n++) {
+            if (requests[n] != null && ack != null) {
+                requests[n].append(' ').append(ack);
+            }
+            responses.add(requests[n] == null ? null
+                    : send(n, requests[n].append(' ').append(packetId).toString(), 0));
+        }
+        return CompletableFuture.allOf(responses.stream().filter(r -> r != null).toArray(CompletableFuture[]::new))
+                .thenApply(done -> {
+                    String[][] outcomes = new String[clients.length][];
+                    for (int n = 0; n < clients.length; n++) {
+                        if (requests[n] == null) {
+                            continue;
+                        }
+                        String response = responses.get(n).join();
+                        outcomes[n] = response.split(" ");
+                        if (!outcomes[n][0].equals(parts[0]) || outcomes[n].length != keysPerOwner[n] + 2) {
+                            return response;
+                        }
+                    }
+                    StringBuilder merged = new StringBuilder(parts[0]);
+                    int[] next = new int[clients.length];
+                    for (int i = 0; i < count; i++) {
+                        merged.append(' ').append(outcomes[owners[i]][1 + next[owners[i]]++]);
+                    }
+                    return merged.append(' ').append(outcomes[owners[0]][outcomes[owners[0]].length - 1]).toString();
+                });
+    }
+
+    /**
+     * Closes the connection to every node.
+     */
+    @Override
+    public synchronized void closeConnection() {
+        if (clients != null) {
+            for (Client client : clients) {
+                if (client != null) {
+                    client.closeConnection();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The `ConnectionPool` class shares a bounded set of pipelined `TCPClient` connections to one
+ * server between any number of threads. Each request goes to the open connection with the fewest
+ * requests in flight; a new connection is opened only while every connection already carries the
+ * per-connection limit and the pool is below its size, so a few busy callers share one socket and
+ * many callers spread over several.
+ *
+ * The server address is resolved once. Callers may use the same packet ids concurrently: the pool
+ * gives every request an id of its own on the wire and puts the caller's id back into the
+ * response. A background check sends a PING over every idle connection at a fixed interval and
+ * drops connections that fail it or fail a request, so the next request opens a fresh one.
+ *
+ * `sendRequestAsync` and the batch methods are safe to call from many threads. The blocking
+ * `sendRequest`/`receiveResponse` pair keeps one pending response and is meant for one thread.
+ */
+public class ConnectionPool implements Client {
+    private static final long PING_TIMEOUT_MILLIS = 2000;
+
+    private final boolean binary;
+    private final int maxConnections;
+    private final int maxInFlightPerConnection;
+    private final long healthCheckMillis;
+    private final List<TCPClient> connections = new ArrayList<>();
+    private final AtomicLong nextPacketId = new AtomicLong();
+    private InetSocketAddress address;
+    private ScheduledExecutorService healthCheck;
+    private boolean closed;
+    private CompletableFuture<String> pendingResponse;
+
+    /**
+     * Constructor for a `ConnectionPool` that lets up to 64 requests share a connection and checks
+     * idle connections every five seconds.
+     *
+     * @param binary         True to encode requests with the binary protocol.
+     * @param maxConnections The most connections the pool opens.
+     */
+    public ConnectionPool(boolean binary, int maxConnections) {
+        this(binary, maxConnections, 64, 5000);
+    }
+
+    /**
+     * Constructor for the `ConnectionPool` class.
+     *
+     * @param binary                   True to encode requests with the binary protocol.
+     * @param maxConnections           The most connections the pool opens.
+     * @param maxInFlightPerConnection The requests in flight on a connection before another one
+     *                                 is opened.
+     * @param healthCheckMillis        How often idle connections are checked, or 0 for never.
+     */
+    public ConnectionPool(boolean binary, int maxConnections, int maxInFlightPerConnection, long healthCheckMillis) {
+        if (maxConnections < 1 || maxInFlightPerConnection < 1) {
+            throw new IllegalArgumentException("A pool needs at least one connection and one request per connection");
+        }
+        this.binary = binary;
+        this.maxConnections = maxConnections;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * Resolves the server address and opens the first connection.
+     *
+     * @param hostname The hostname or IP address of the server to connect to.
+     * @param port     The port number on which the server is listening.
+     * @throws SocketException       If the server cannot be connected.
+     * @throws UnknownHostException If the hostname is not found.
+     */
+    @Override
+    public void openConnection(String hostname, int port) throws SocketException, UnknownHostException {
+        InetSocketAddress resolved = new InetSocketAddress(InetAddress.getByName(hostname), port);
+        synchronized (this) {
+            address = resolved;
+            closed = false;
+            connections.add(connect());
+        }
+        if (healthCheckMillis > 0) {
+            healthCheck = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "connection-pool-health-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthCheck.scheduleWithFixedDelay(this::checkIdleConnections, healthCheckMillis, healthCheckMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends a request over the least busy connection.
+     *
+     * @param message The request message to send to the server.
+     */
+    @Override
+    public void sendRequest(String message) {
+        pendingResponse = sendRequestAsync(message);
+    }
+
+    /**
+     * Waits for the response to the last request sent with `sendRequest`.
+     *
+     * @return The response.
+     * @throws IOException If the request failed.
+     */
+    @Override
+    public String receiveResponse() throws IOException {
+        try {
+            return pendingResponse.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends a request over the least busy connection, opening a connection if every one is at
+     * its limit and the pool is not full.
+     *
+     * @param message The request message, ending with '#' and a packet id.
+     * @return A future completed with the response, which carries the packet id of the message,
+     *         or exceptionally if the connection fails.
+     */
+    @Override
+    public CompletableFuture<String> sendRequestAsync(String message) {
+        int hashIndex = message.lastIndexOf('#');
+        if (hashIndex < 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Request has no packet id: " + message));
+        }
+        String packetId = message.substring(hashIndex + 1);
+        TCPClient connection;
+        try {
+            connection = acquire();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return connection.sendRequestAsync(message.substring(0, hashIndex + 1) + nextPacketId.incrementAndGet())
+                .thenApply(response -> {
+                    int responseHash = response.lastIndexOf('#');
+                    return responseHash < 0 ? response : response.substring(0, responseHash + 1) + packetId;
+                });
+    }
+
+    /**
+     * Retrieves the number of open connections.
+     *
+     * @return The connections currently in the pool.
+     */
+    public synchronized int connectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Stops the health check and closes every connection; requests in flight fail.
+     */
+    @Override
+    public void closeConnection() {
+        if (healthCheck != null) {
+            healthCheck.shutdownNow();
+        }
+        List<TCPClient> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<>(connections);
+            connections.clear();
+        }
+        for (TCPClient connection : open) {
+            connection.closeConnection();
+        }
+    }
+
+    /**
+     * Picks the connection for a request, dropping connections that failed.
+     */
+    private synchronized TCPClient acquire() throws IOException {
+        if (closed || address == null) {
+            throw new SocketException("The connection pool is not open");
+        }
+        TCPClient best = null;
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            TCPClient connection = connections.get(i);
+            if (!connection.isHealthy()) {
+                connections.remove(i);
+                connection.closeConnection();
+            } else if (best == null || connection.inFlightCount() < best.inFlightCount()) {
+                best = connection;
+            }
+        }
+        if ((best == null || best.inFlightCount() >= maxInFlightPerConnection) && connections.size() < maxConnections) {
+            best = connect();
+            connections.add(best);
+        }
+        return best;
+    }
+
+    private TCPClient connect() throws SocketException {
+        TCPClient connection = new TCPClient(binary);
+        connection.openConnection(address);
+        return connection;
+    }
+
+    /**
+     * Pings every connection without requests in flight and drops those that do not answer.
+     */
+    private void checkIdleConnections() {
+        List<TCPClient> idle = new ArrayList<>();
+        synchronized (this) {
+            for (TCPClient connection : connections) {
+                if (connection.inFlightCount() == 0) {
+                    idle.add(connection);
+                }
+            }
+        }
+        for (TCPClient connection : idle) {
+            boolean healthy;
+            try {
+                healthy = connection.sendRequestAsync("PING #" + nextPacketId.incrementAndGet())
+                        .get(PING_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).startsWith("PONG");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                healthy = false;
+            }
+            if (!healthy) {
+                synchronized (this) {
+                    connections.remove(connection);
+                }
+                connection.closeConnection();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * The `NumericRequests` class implements the counter and compare-and-set methods of `Client`. It
+ * sends one INCRBY or CAS request and turns the text response into the outcome the caller sees.
+ */
+final class NumericRequests {
+
+    private NumericRequests() {
+    }
+
+    /**
+     * Sends an INCRBY request and waits for the new value.
+     *
+     * @param client The client to send through.
+     * @param key    The key to update.
+     * @param delta  The amount to add.
+     * @return The value of the key after the update.
+     * @throws IOException If the request fails, times out or is rejected by the server.
+     */
+    static int incrementBy(Client client, String key, int delta) throws IOException {
+        String response = BatchRequests.await(BatchRequests.send(client, "INCRBY " + key + " " + delta));
+        int hashIndex = response.lastIndexOf(" #");
+        try {
+            return Integer.parseInt(hashIndex < 0 ? response : response.substring(0, hashIndex));
+        } catch (NumberFormatException e) {
+            throw new IOException("Increment rejected by the server: " + response, e);
+        }
+    }
+
+    /**
+     * Sends a CAS request and waits for its outcome.
+     *
+     * @param client   The client to send through.
+     * @param key      The key to update.
+     * @param expected The value the key has to hold, or null for a key that has to be absent.
+     * @param value    The new value.
+     * @return "OK" if the key was set, otherwise the value the key holds or "NOT_FOUND".
+     * @throws IOException If the request fails, times out or is rejected by the server.
+     */
+    static String compareAndSet(Client client, String key, Integer expected, int value) throws IOException {
+        String request = "CAS " + key + " " + (expected == null ? "-" : expected) + " " + value;
+        String response = BatchRequests.await(BatchRequests.send(client, request));
+        if (response.startsWith("Cas operation success ")) {
+            return "OK";
+        }
+        String failed = "Cas operation failed, value: ";
+        int hashIndex = response.lastIndexOf(" #");
+        if (response.startsWith(failed) && hashIndex > failed.length()) {
+            return response.substring(failed.length(), hashIndex);
+        }
+        throw new IOException("Compare-and-set rejected by the server: " + response);
+    }
+}
@@ -0,0 +1,51 @@
+package client;
+
+import java.io.IOException;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `ScanRequests` class implements the scan methods of `Client`. It reads a range of keys with
+ * one SCAN or PREFIX request per page, passing the continuation token of each page to the request
+ * for the next, and hands the entries of a page to the caller before it asks for the next one, so
+ * a scan over many keys never holds more than a page in memory.
+ */
+final class ScanRequests {
+
+    private ScanRequests() {
+    }
+
+    /**
+     * Reads every page of a scan.
+     *
+     * @param client   The client to send through.
+     * @param request  The request up to the page size, such as "SCAN a m" or "PREFIX user:".
+     * @param pageSize The most entries per page, from 1 to 1024.
+     * @param action   Receives each key and value, in key order.
+     * @throws IOException If a request fails, times out or is rejected by the server.
+     */
+    static void scan(Client client, String request, int pageSize, ObjIntConsumer<String> action) throws IOException {
+        String command = request.substring(0, request.indexOf(' '));
+        String token = null;
+        do {
+            String page = request + " " + pageSize + (token == null ? "" : " " + token);
+            String response = BatchRequests.await(BatchRequests.send(client, page));
+            int hashIndex = response.lastIndexOf(" #");
+            String[] parts = hashIndex < 0 ? new String[0] : response.substring(0, hashIndex).split(" ");
+            int end = parts.length;
+            token = null;
+            if (end % 2 == 0 && end > 1 && parts[end - 1].startsWith("NEXT=")) {
+                token = parts[--end].substring(5);
+            }
+            if (end % 2 == 0 || !parts[0].equals(command)) {
+                throw new IOException("Scan rejected by the server: " + response);
+            }
+            for (int i = 1; i < end; i += 2) {
+                try {
+                    action.accept(parts[i], Integer.parseInt(parts[i + 1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed scan response: " + response, e);
+                }
+            }
+        } while (token != null);
+    }
+}
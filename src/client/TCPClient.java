@@ -1,23 +1,65 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The `TCPClient` class represents a client using the TCP protocol to communicate with a server.
+ * Requests are sent as `writeUTF` text frames or, optionally, in the binary protocol.
+ *
+ * Besides the blocking `sendRequest`/`receiveResponse` pair, `sendRequestAsync` pipelines any
+ * number of requests over the connection. A reader thread matches every response to its
+ * request by the packet id after the last '#', so the server may answer in any order. The two
+ * styles must not be mixed on one connection. The buffered streams are created once per
+ * connection and shared by both styles.
+ *
+ * `watch` and `watchPrefix` ask the server to push the changes of keys over the connection,
+ * which the reader thread hands to a `WatchListener` instead of polling the keys. Changes that
+ * arrive for a watch started elsewhere, such as a WATCH typed into `ClientApp`, are printed.
+ *
+ * A request the server turns away as busy is sent again after the wait the server hints at, in
+ * both styles, until it is answered or `BusyResponses` gives up on it.
  */
 public class TCPClient implements Client {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
     private Socket socketPort = null;
     private DataInputStream clientIn = null;
     private DataOutputStream clientOut = null;
+    private final boolean binary;
+    private String rejectedResponse;
+    private String lastRequest;
+    private long lastRequestNanos;
+    private final ConcurrentHashMap<String, PendingRequest> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, WatchListener> watchListeners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> watchIds = new ConcurrentHashMap<>();
+    private boolean pipelining;
+    private volatile IOException pipelineFailure;
 
     /**
      * Default constructor for the `TCPClient` class.
      */
     public TCPClient() {
+        this(false);
+    }
 
+    /**
+     * Constructor for a `TCPClient` that can use the binary protocol.
+     *
+     * @param binary True to encode requests with the binary protocol.
+     */
+    public TCPClient(boolean binary) {
+        this.binary = binary;
     }
 
     /**
@@ -25,14 +67,60 @@ public class TCPClient implements Client {
      *
      * @param hostname The hostname or IP address of the server to connect to.
      * @param port     The port number on which the server is listening.
+     * @throws SocketException       If the server cannot be connected.
+     * @throws UnknownHostException If the hostname is not found.
      */
     @Override
-    public void openConnection(String hostname, int port) {
+    public void openConnection(String hostname, int port) throws SocketException, UnknownHostException {
+        InetSocketAddress address = new InetSocketAddress(hostname, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(hostname);
+        }
+        openConnection(address);
+    }
+
+    /**
+     * Opens a TCP connection to an address that is already resolved.
+     *
+     * @param address The address of the server.
+     * @throws SocketException If the server cannot be connected.
+     */
+    void openConnection(InetSocketAddress address) throws SocketException {
+        Socket socket = new Socket();
         try {
-            socketPort = new Socket(hostname, port);
+            socket.setTcpNoDelay(true);
+            socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            clientIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            clientOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
         } catch (IOException e) {
-            System.out.println(e);
+            try {
+                socket.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            SocketException failure = new SocketException("Cannot connect to " + address + ": " + e.getMessage());
+            failure.initCause(e);
+            throw failure;
         }
+        socketPort = socket;
+    }
+
+    /**
+     * Checks whether the connection can still carry requests.
+     *
+     * @return False once the connection is closed or a pipelined exchange failed on it.
+     */
+    boolean isHealthy() {
+        return socketPort != null && !socketPort.isClosed() && pipelineFailure == null;
+    }
+
+    /**
+     * Retrieves the number of pipelined requests waiting for their response.
+     *
+     * @return The requests in flight.
+     */
+    int inFlightCount() {
+        return inFlight.size();
     }
 
     /**
@@ -44,9 +132,20 @@ public class TCPClient implements Client {
     @Override
     public void sendRequest(String message) throws IOException {
         System.out.println("Client Connected");
-        clientOut = new DataOutputStream(
-                socketPort.getOutputStream());
-        clientOut.writeUTF(message);
+        lastRequest = message;
+        lastRequestNanos = System.nanoTime();
+        if (!binary) {
+            clientOut.writeUTF(message);
+            clientOut.flush();
+            return;
+        }
+        ByteBuffer request = BinaryWireFormat.encode(message);
+        if (request == null) {
+            rejectedResponse = BinaryWireFormat.rejected(message);
+            return;
+        }
+        clientOut.write(request.array(), 0, request.limit());
+        clientOut.flush();
     }
 
     /**
@@ -57,8 +156,238 @@ public class TCPClient implements Client {
      */
     @Override
     public String receiveResponse() throws IOException {
-        clientIn = new DataInputStream(socketPort.getInputStream());
-        return clientIn.readUTF();
+        if (rejectedResponse != null) {
+            String response = rejectedResponse;
+            rejectedResponse = null;
+            return response;
+        }
+        while (true) {
+            String response = binary ? BinaryWireFormat.read(clientIn) : clientIn.readUTF();
+            long delay = BusyResponses.retryDelayMillis(response, lastRequestNanos);
+            if (delay < 0) {
+                return response;
+            }
+            System.out.println("Server busy, retrying request in " + delay + " ms");
+            BusyResponses.pause(delay);
+            write(lastRequest, binary ? BinaryWireFormat.encode(lastRequest) : null);
+        }
+    }
+
+    /**
+     * Sends a request without waiting for the responses to earlier ones.
+     *
+     * @param message The request message, ending with '#' and a packet id that is unique among
+     *                the requests in flight.
+     * @return A future completed with the response, or exceptionally if the connection fails.
+     */
+    @Override
+    public CompletableFuture<String> sendRequestAsync(String message) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        int hashIndex = message.lastIndexOf('#');
+        if (hashIndex < 0) {
+            response.completeExceptionally(new IllegalArgumentException("Request has no packet id: " + message));
+            return response;
+        }
+        String packetId = message.substring(hashIndex + 1);
+        ByteBuffer binaryRequest = null;
+        if (binary) {
+            binaryRequest = BinaryWireFormat.encode(message);
+            if (binaryRequest == null) {
+                response.complete(BinaryWireFormat.rejected(message));
+                return response;
+            }
+            // Binary responses carry the id as a number.
+            packetId = String.valueOf(Long.parseLong(packetId));
+        }
+        PendingRequest pending = new PendingRequest(response, message, binaryRequest);
+        if (inFlight.putIfAbsent(packetId, pending) != null) {
+            response.completeExceptionally(new IllegalArgumentException("Packet id already in flight: " + packetId));
+            return response;
+        }
+        try {
+            synchronized (this) {
+                if (socketPort == null) {
+                    throw new SocketException("Not connected");
+                }
+                if (!pipelining) {
+                    pipelining = true;
+                    Thread reader = new Thread(this::readPipelinedResponses, "tcp-client-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            }
+            write(message, binaryRequest);
+        } catch (IOException e) {
+            inFlight.remove(packetId, pending);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /**
+     * Writes a request to the connection, in whichever style it is used.
+     *
+     * @param message       The request message.
+     * @param binaryRequest The message encoded in the binary protocol, or null for text.
+     */
+    private synchronized void write(String message, ByteBuffer binaryRequest) throws IOException {
+        if (pipelineFailure != null) {
+            throw pipelineFailure;
+        }
+        if (binaryRequest != null) {
+            clientOut.write(binaryRequest.array(), 0, binaryRequest.limit());
+        } else {
+            clientOut.writeUTF(message);
+        }
+        clientOut.flush();
+    }
+
+    /**
+     * Sends a pipelined request again after the server turned it away as busy. It stays in
+     * flight under the same packet id meanwhile.
+     */
+    private void resend(String packetId, PendingRequest pending) {
+        try {
+            write(pending.message, pending.binaryRequest);
+        } catch (IOException e) {
+            if (inFlight.remove(packetId, pending)) {
+                pending.response.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Starts pushing the changes of a key to a listener. The watch lasts until it is cancelled,
+     * the connection closes or the listener learns that it was lost.
+     *
+     * @param key      The key; it must not contain spaces or '#'.
+     * @param listener Receives the changes.
+     * @throws IOException If the request fails or the server cannot serve watches.
+     */
+    public void watch(String key, WatchListener listener) throws IOException {
+        startWatch("WATCH " + key, "K " + key, listener);
+    }
+
+    /**
+     * Starts pushing the changes of every key starting with a prefix to a listener.
+     *
+     * @param prefix   The prefix; it must not contain spaces or '#'.
+     * @param listener Receives the changes.
+     * @throws IOException If the request fails or the server cannot serve watches.
+     */
+    public void watchPrefix(String prefix, WatchListener listener) throws IOException {
+        startWatch("WATCH PREFIX " + prefix, "P " + prefix, listener);
+    }
+
+    /**
+     * Cancels the watch of a key.
+     *
+     * @param key The key.
+     * @throws IOException If the request fails or the key was not watched.
+     */
+    public void unwatch(String key) throws IOException {
+        stopWatch("UNWATCH " + key, "K " + key);
+    }
+
+    /**
+     * Cancels the watch of a prefix.
+     *
+     * @param prefix The prefix.
+     * @throws IOException If the request fails or the prefix was not watched.
+     */
+    public void unwatchPrefix(String prefix) throws IOException {
+        stopWatch("UNWATCH PREFIX " + prefix, "P " + prefix);
+    }
+
+    private void startWatch(String request, String name, WatchListener listener) throws IOException {
+        String watchId = String.valueOf(BatchRequests.nextRequestId());
+        // Registered first: the first change may follow the response right away.
+        watchListeners.put(watchId, listener);
+        String response = BatchRequests.await(sendRequestAsync(request + " #" + watchId));
+        if (!response.startsWith("Watch operation success")) {
+            watchListeners.remove(watchId);
+            throw new IOException("Watch rejected by the server: " + response);
+        }
+        String previous = watchIds.put(name, watchId);
+        if (previous != null) {
+            // The server replaced the earlier watch of the same key or prefix.
+            watchListeners.remove(previous);
+        }
+    }
+
+    private void stopWatch(String request, String name) throws IOException {
+        String response = BatchRequests.await(BatchRequests.send(this, request));
+        if (!response.startsWith("Watch operation success")) {
+            throw new IOException("Unwatch rejected by the server: " + response);
+        }
+        String watchId = watchIds.remove(name);
+        if (watchId != null) {
+            watchListeners.remove(watchId);
+        }
+    }
+
+    /**
+     * Hands a change pushed by the server to the listener of its watch: "EVENT PUT a 5 #7",
+     * "EVENT DELETE a #7" or "EVENT OVERFLOW #7".
+     */
+    private void deliverEvent(String event) {
+        String[] parts = event.split(" ");
+        String watchId = parts[parts.length - 1].substring(1);
+        WatchListener listener = parts[1].equals("OVERFLOW") ? watchListeners.remove(watchId) : watchListeners.get(watchId);
+        if (listener == null) {
+            System.out.println("Change received from server: " + event);
+        } else if (parts[1].equals("PUT") && parts.length == 5) {
+            listener.onPut(parts[2], Integer.parseInt(parts[3]));
+        } else if (parts[1].equals("DELETE") && parts.length == 4) {
+            listener.onDelete(parts[2]);
+        } else {
+            watchIds.values().remove(watchId);
+            listener.onLost();
+        }
+    }
+
+    /**
+     * Completes the future of every response that arrives until the connection fails, and
+     * hands pushed changes to their listeners.
+     */
+    private void readPipelinedResponses() {
+        try {
+            while (true) {
+                String response = binary ? BinaryWireFormat.read(clientIn) : clientIn.readUTF();
+                if (response.startsWith("EVENT ") && response.lastIndexOf(" #") > 0) {
+                    deliverEvent(response);
+                    continue;
+                }
+                int hashIndex = response.lastIndexOf('#');
+                String packetId = hashIndex < 0 ? null : response.substring(hashIndex + 1);
+                PendingRequest pending = packetId == null ? null : inFlight.get(packetId);
+                long delay = pending == null ? -1 : BusyResponses.retryDelayMillis(response, pending.sentNanos);
+                if (delay >= 0) {
+                    BusyResponses.schedule(() -> resend(packetId, pending), delay);
+                } else if (pending != null && inFlight.remove(packetId, pending)) {
+                    pending.response.complete(response);
+                } else {
+                    System.out.println("Unrequested response received from server: " + response);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                pipelineFailure = e;
+            }
+            for (String packetId : inFlight.keySet()) {
+                PendingRequest pending = inFlight.remove(packetId);
+                if (pending != null) {
+                    pending.response.completeExceptionally(e);
+                }
+            }
+            watchIds.clear();
+            for (String watchId : watchListeners.keySet()) {
+                WatchListener listener = watchListeners.remove(watchId);
+                if (listener != null) {
+                    listener.onLost();
+                }
+            }
+        }
     }
 
     /**
@@ -66,12 +395,32 @@ public class TCPClient implements Client {
      */
     @Override
     public void closeConnection() {
+        if (socketPort == null) {
+            return;
+        }
+        // Watches end with the connection; their listeners are not told they were lost.
+        watchListeners.clear();
+        watchIds.clear();
         try {
-            clientIn.close();
-            clientOut.close();
             socketPort.close();
         } catch (IOException e) {
             System.out.println(e);
         }
     }
+
+    /**
+     * A pipelined request waiting for its response, kept to send it again if the server is busy.
+     */
+    private static final class PendingRequest {
+        private final CompletableFuture<String> response;
+        private final String message;
+        private final ByteBuffer binaryRequest;
+        private final long sentNanos = System.nanoTime();
+
+        PendingRequest(CompletableFuture<String> response, String message, ByteBuffer binaryRequest) {
+            this.response = response;
+            this.message = message;
+            this.binaryRequest = binaryRequest;
+        }
+    }
 }
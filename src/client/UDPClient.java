@@ -5,12 +5,29 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * The `UDPClient` class represents a client using the UDP protocol to communicate with a server.
+ * Requests are sent as text or, optionally, in the smaller binary protocol.
+ *
+ * A reliable client retransmits a request when no response arrives in time, doubling the wait
+ * after every attempt. Retransmissions carry the same packet id, which the server uses to answer
+ * duplicates from its response cache instead of applying them again. Late responses to earlier
+ * requests are recognised by their packet id and discarded. A request the server turns away as
+ * busy is sent again after the wait the server hints at; this does not count as a retransmission
+ * and starts the attempts over.
+ *
+ * The server address is resolved once when the connection is opened, and the request and
+ * response datagrams and the receive buffer are reused for every request.
  */
 public class UDPClient implements Client {
+    private static final int MAX_DATAGRAM_BYTES = 65507;
+    private static final long MAX_RETRANSMIT_TIMEOUT_MILLIS = 2000;
+
     private DatagramSocket udpSocket;
     private InetAddress address;
 
@@ -19,12 +36,46 @@ public class UDPClient implements Client {
     private byte[] dataGramPacket;
 
     private DatagramPacket packet;
+    private final boolean binary;
+    private final int maxAttempts;
+    private final long initialTimeoutMillis;
+    private final byte[] receiveBuffer = new byte[MAX_DATAGRAM_BYTES];
+    private final DatagramPacket response = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+    private String rejectedResponse;
+    private String expectedPacketId;
+    private long sentNanos;
+    private long retransmissions;
 
     /**
      * Default constructor for the `UDPClient` class.
      */
     public UDPClient() {
+        this(false);
+    }
 
+    /**
+     * Constructor for a `UDPClient` that can use the binary protocol. It sends every request
+     * once and waits for its response indefinitely.
+     *
+     * @param binary True to encode requests with the binary protocol.
+     */
+    public UDPClient(boolean binary) {
+        this(binary, 1, 0);
+    }
+
+    /**
+     * Constructor for a reliable `UDPClient` that retransmits requests with exponential backoff.
+     *
+     * @param binary               True to encode requests with the binary protocol.
+     * @param maxAttempts          How often a request is sent at most; 1 sends it once and waits
+     *                             for the response indefinitely.
+     * @param initialTimeoutMillis How long to wait for the first response; every retransmission
+     *                             doubles the wait, up to two seconds.
+     */
+    public UDPClient(boolean binary, int maxAttempts, long initialTimeoutMillis) {
+        this.binary = binary;
+        this.maxAttempts = maxAttempts;
+        this.initialTimeoutMillis = initialTimeoutMillis;
     }
 
     /**
@@ -37,10 +88,11 @@ public class UDPClient implements Client {
      */
     @Override
     public void openConnection(String hostname, int port) throws SocketException, UnknownHostException {
-        udpSocket = new DatagramSocket();
         this.hostName = hostname;
         this.port = port;
-        address = InetAddress.getByName("localhost");
+        address = InetAddress.getByName(hostname);
+        udpSocket = new DatagramSocket();
+        packet = new DatagramPacket(receiveBuffer, 0, address, port);
     }
 
     /**
@@ -51,27 +103,126 @@ public class UDPClient implements Client {
      */
     @Override
     public void sendRequest(String message) throws IOException {
-        dataGramPacket = message.getBytes();
-        packet = new DatagramPacket(dataGramPacket, dataGramPacket.length,
-                InetAddress.getByName(this.hostName), this.port);
+        if (binary) {
+            ByteBuffer request = BinaryWireFormat.encode(message);
+            if (request == null) {
+                rejectedResponse = BinaryWireFormat.rejected(message);
+                return;
+            }
+            dataGramPacket = request.array();
+        } else {
+            dataGramPacket = message.getBytes();
+        }
+        int hashIndex = message.lastIndexOf('#');
+        expectedPacketId = hashIndex < 0 ? null : message.substring(hashIndex + 1);
+        if (binary && expectedPacketId != null) {
+            // Binary responses carry the id as a number.
+            expectedPacketId = String.valueOf(Long.parseLong(expectedPacketId));
+        }
+        packet.setData(dataGramPacket);
+        sentNanos = System.nanoTime();
         udpSocket.send(packet);
     }
 
     /**
-     * Receives a response message from the server over the UDP connection.
+     * Receives a response message from the server over the UDP connection. A reliable client
+     * retransmits the request whenever the wait for its response runs out, and every client
+     * sends it again when the server is busy.
      *
      * @return A string containing the response received from the server.
-     * @throws IOException If there is an issue with receiving the response.
+     * @throws SocketTimeoutException If a reliable client got no response after its last attempt.
+     * @throws IOException            If there is an issue with receiving the response.
      */
     @Override
     public String receiveResponse() throws IOException {
-        dataGramPacket = new byte[5000];
-        packet = new DatagramPacket(dataGramPacket, dataGramPacket.length);
-        udpSocket.receive(packet);
-        String received = new String(
-                packet.getData(), 0, packet.getLength());
-        System.out.println("Client is getting this:" + received);
-        return received;
+        if (rejectedResponse != null) {
+            String response = rejectedResponse;
+            rejectedResponse = null;
+            return response;
+        }
+        while (true) {
+            String received = receiveAttempts();
+            long delay = BusyResponses.retryDelayMillis(received, sentNanos);
+            if (delay < 0) {
+                return received;
+            }
+            System.out.println("Server busy, retrying request #" + expectedPacketId + " in " + delay + " ms");
+            BusyResponses.pause(delay);
+            udpSocket.send(packet);
+        }
+    }
+
+    /**
+     * Receives the response to the current request, retransmitting it as often as the client
+     * is configured to.
+     */
+    private String receiveAttempts() throws IOException {
+        if (maxAttempts <= 1) {
+            udpSocket.setSoTimeout(0);
+            return receiveMatching(0);
+        }
+        long timeout = initialTimeoutMillis;
+        for (int attempt = 1; ; attempt++) {
+            // Waiting a random part of the second half of the timeout keeps clients that lost
+            // packets at the same moment from retransmitting in lockstep.
+            long wait = timeout / 2 + ThreadLocalRandom.current().nextLong(timeout / 2 + 1);
+            String received = receiveMatching(System.nanoTime() + wait * 1_000_000);
+            if (received != null) {
+                return received;
+            }
+            if (attempt == maxAttempts) {
+                throw new SocketTimeoutException("No response after " + maxAttempts + " attempts");
+            }
+            retransmissions++;
+            System.out.println("Retransmitting request #" + expectedPacketId + " (attempt " + (attempt + 1) + ")");
+            udpSocket.send(packet);
+            timeout = Math.min(timeout * 2, MAX_RETRANSMIT_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Retrieves the number of requests sent again because their response did not arrive in time.
+     *
+     * @return The number of retransmissions.
+     */
+    public long retransmissionCount() {
+        return retransmissions;
+    }
+
+    /**
+     * Receives datagrams until the response to the current request arrives, discarding late
+     * responses to earlier requests.
+     *
+     * @param deadlineNanos When to give up, or 0 to wait indefinitely.
+     * @return The response, or null if the deadline passed first.
+     */
+    private String receiveMatching(long deadlineNanos) throws IOException {
+        while (true) {
+            if (deadlineNanos != 0) {
+                long remainingMillis = (deadlineNanos - System.nanoTime()) / 1_000_000;
+                if (remainingMillis <= 0) {
+                    return null;
+                }
+                udpSocket.setSoTimeout((int) remainingMillis);
+            }
+            response.setLength(receiveBuffer.length);
+            try {
+                udpSocket.receive(response);
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            String received = binary
+                    ? BinaryWireFormat.decode(ByteBuffer.wrap(receiveBuffer, 0, response.getLength()))
+                    : new String(receiveBuffer, 0, response.getLength());
+            int hashIndex = received.lastIndexOf('#');
+            if (expectedPacketId != null && hashIndex >= 0
+                    && !received.substring(hashIndex + 1).equals(expectedPacketId)) {
+                System.out.println("Discarding late response: " + received);
+                continue;
+            }
+            System.out.println("Client is getting this:" + received);
+            return received;
+        }
     }
 
     /**
@@ -0,0 +1,34 @@
+package client;
+
+/**
+ * The `WatchListener` interface receives the changes the server pushes for a watched key or
+ * prefix. Its methods are called on the thread that reads the connection's responses, in the
+ * order the changes of each key were applied, and have to return quickly: until they do, no
+ * other response of the connection is read. A client that falls far behind is given up on by the
+ * server, and a key changed repeatedly while the client lags is only reported with its latest
+ * value.
+ */
+public interface WatchListener {
+
+  /**
+   * Receives a write of a watched key.
+   *
+   * @param key   The key.
+   * @param value Its new value.
+   */
+  void onPut(String key, int value);
+
+  /**
+   * Receives the removal of a watched key, by a DELETE, an expiry or an eviction.
+   *
+   * @param key The key.
+   */
+  void onDelete(String key);
+
+  /**
+   * Learns that the watch has ended without being cancelled, because the client fell too far
+   * behind or the connection failed. Changes may have been missed: the keys have to be read
+   * again, and watched again on a healthy connection.
+   */
+  void onLost();
+}
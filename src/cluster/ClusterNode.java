@@ -0,0 +1,55 @@
+package cluster;
+
+/**
+ * The `ClusterNode` class names one server of a cluster and the address it serves clients on.
+ */
+public final class ClusterNode {
+    private final String id;
+    private final String host;
+    private final int port;
+
+    /**
+     * Constructor for the `ClusterNode` class.
+     *
+     * @param id   The name of the node, unique within the ring; it places the node on the ring.
+     * @param host The hostname or IP address of the node.
+     * @param port The port number the node listens on.
+     */
+    public ClusterNode(String id, String host, int port) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Retrieves the name of the node.
+     *
+     * @return The node id.
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Retrieves the hostname of the node.
+     *
+     * @return The hostname or IP address.
+     */
+    public String host() {
+        return host;
+    }
+
+    /**
+     * Retrieves the port of the node.
+     *
+     * @return The port number.
+     */
+    public int port() {
+        return port;
+    }
+
+    @Override
+    public String toString() {
+        return id + "@" + host + ":" + port;
+    }
+}
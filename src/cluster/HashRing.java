@@ -0,0 +1,265 @@
+package cluster;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The `HashRing` class assigns every key to one node of a cluster by consistent hashing. Each
+ * node is placed on a 64-bit ring at a number of virtual points derived from its id, and a key
+ * belongs to the node of the first point at or after the hash of the key, wrapping around at the
+ * end of the ring. Virtual points even out the share of each node, and adding or removing a node
+ * only moves the keys next to its own points.
+ *
+ * A ring may also keep replicas of every key: the preference list of a key is its owner, the
+ * primary, followed by the next distinct nodes met walking the ring onwards from the key.
+ *
+ * The placement only depends on the node ids, the number of virtual nodes and the number of
+ * replicas, so servers and clients that load the same ring file agree on the owner and replicas
+ * of every key without talking to each other. A ring is immutable and safe to share between
+ * threads.
+ */
+public final class HashRing {
+    /** Virtual points per node when the ring file does not say otherwise. */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final List<ClusterNode> nodes;
+    private final int replicas;
+    private final long[] points;
+    private final int[] owners;
+    private final int[][] preferenceLists;
+
+    /**
+     * Places the nodes on a ring without replicas.
+     *
+     * @param nodes        The nodes of the cluster, with distinct ids.
+     * @param virtualNodes The number of points of every node.
+     * @throws IllegalArgumentException If there are no nodes, an id repeats or the number of
+     *                                  virtual nodes is not positive.
+     */
+    public HashRing(List<ClusterNode> nodes, int virtualNodes) {
+        this(nodes, virtualNodes, 0);
+    }
+
+    /**
+     * Places the nodes on the ring.
+     *
+     * @param nodes        The nodes of the cluster, with distinct ids.
+     * @param virtualNodes The number of points of every node.
+     * @param replicas     The number of nodes besides the primary that keep a copy of every key;
+     *                     it is capped at the number of other nodes.
+     * @throws IllegalArgumentException If there are no nodes, an id repeats, the number of
+     *                                  virtual nodes is not positive or replicas is negative.
+     */
+    public HashRing(List<ClusterNode> nodes, int virtualNodes, int replicas) {
+        if (nodes.isEmpty() || virtualNodes < 1 || replicas < 0) {
+            throw new IllegalArgumentException("A ring needs nodes and virtual nodes, got " + nodes.size()
+                    + " nodes, " + virtualNodes + " virtual nodes and " + replicas + " replicas");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.replicas = Math.min(replicas, nodes.size() - 1);
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int n = 0; n < nodes.size(); n++) {
+            String id = nodes.get(n).id();
+            for (int m = 0; m < n; m++) {
+                if (nodes.get(m).id().equals(id)) {
+                    throw new IllegalArgumentException("Duplicate node id: " + id);
+                }
+            }
+            for (int v = 0; v < virtualNodes; v++) {
+                // On the rare equal point the smaller id wins, whatever the order of the nodes.
+                ring.merge(hash(id + "#" + v), n,
+                        (a, b) -> nodes.get(a).id().compareTo(nodes.get(b).id()) <= 0 ? a : b);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+        preferenceLists = new int[points.length][];
+        for (int p = 0; p < points.length; p++) {
+            int[] preference = new int[this.replicas + 1];
+            int found = 0;
+            for (int q = p; found < preference.length; q = q + 1 == points.length ? 0 : q + 1) {
+                int owner = owners[q];
+                boolean seen = false;
+                for (int f = 0; f < found; f++) {
+                    seen |= preference[f] == owner;
+                }
+                if (!seen) {
+                    preference[found++] = owner;
+                }
+            }
+            preferenceLists[p] = preference;
+        }
+    }
+
+    /**
+     * Reads a ring file. Every line is "node <id> <host>:<port>", "vnodes <count>" or
+     * "replicas <count>"; blank lines and lines starting with '#' are ignored.
+     *
+     * @param file The ring file.
+     * @return The ring of the nodes listed in the file.
+     * @throws IOException If the file cannot be read or a line is malformed.
+     */
+    public static HashRing load(Path file) throws IOException {
+        List<ClusterNode> nodes = new ArrayList<>();
+        int virtualNodes = DEFAULT_VIRTUAL_NODES;
+        int replicas = 0;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                if (parts[0].equals("vnodes") && parts.length == 2) {
+                    virtualNodes = Integer.parseInt(parts[1]);
+                    continue;
+                }
+                if (parts[0].equals("replicas") && parts.length == 2) {
+                    replicas = Integer.parseInt(parts[1]);
+                    continue;
+                }
+                int colon = parts.length == 3 ? parts[2].lastIndexOf(':') : -1;
+                if (parts[0].equals("node") && colon > 0) {
+                    nodes.add(new ClusterNode(parts[1], parts[2].substring(0, colon),
+                            Integer.parseInt(parts[2].substring(colon + 1))));
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below.
+            }
+            throw new IOException(file + ":" + lineNumber + ": expected \"node <id> <host>:<port>\", "
+                    + "\"vnodes <count>\" or \"replicas <count>\" but found \"" + line + "\"");
+        }
+        try {
+            return new HashRing(nodes, virtualNodes, replicas);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieves the nodes of the ring in the order they were given.
+     *
+     * @return An unmodifiable list of the nodes.
+     */
+    public List<ClusterNode> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Retrieves the number of replicas every key has besides its primary.
+     *
+     * @return The replica count.
+     */
+    public int replicas() {
+        return replicas;
+    }
+
+    /**
+     * Looks a node up by id.
+     *
+     * @param id The node id.
+     * @return The node, or null if the ring has no node of that id.
+     */
+    public ClusterNode node(String id) {
+        for (ClusterNode node : nodes) {
+            if (node.id().equals(id)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node that owns a key.
+     *
+     * @param key The key.
+     * @return The index of the owner in `nodes()`.
+     */
+    public int ownerIndex(CharSequence key) {
+        return owners[pointIndex(key)];
+    }
+
+    /**
+     * Finds the nodes that keep a key.
+     *
+     * @param key The key.
+     * @return The indexes in `nodes()` of the primary followed by the replicas. The array is
+     *         shared and must not be modified.
+     */
+    public int[] preferenceList(CharSequence key) {
+        return preferenceLists[pointIndex(key)];
+    }
+
+    private int pointIndex(CharSequence key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == points.length ? 0 : i;
+    }
+
+    /**
+     * Finds the node that owns a key.
+     *
+     * @param key The key.
+     * @return The owner.
+     */
+    public ClusterNode ownerOf(CharSequence key) {
+        return nodes.get(ownerIndex(key));
+    }
+
+    /**
+     * Computes the share of the ring each node owns, which is the share of keys it can expect.
+     *
+     * @return The fraction of the hash space owned by every node, in the order of `nodes()`.
+     */
+    public double[] ownership() {
+        double[] shares = new double[nodes.size()];
+        if (points.length == 1) {
+            shares[owners[0]] = 1;
+            return shares;
+        }
+        for (int i = 0; i < points.length; i++) {
+            // The arc up to and including a point belongs to the owner of that point; the
+            // difference wraps around the end of the ring and is read as unsigned.
+            long arc = points[i] - points[i == 0 ? points.length - 1 : i - 1];
+            shares[owners[i]] += (arc >= 0 ? arc : arc + 0x1p64) / 0x1p64;
+        }
+        return shares;
+    }
+
+    /**
+     * Hashes a key or a virtual point onto the ring. The characters go through 64-bit FNV-1a and
+     * a MurmurHash3 finalizer, so that keys that differ in their last character land far apart.
+     *
+     * @param key The characters to hash.
+     * @return The position on the ring.
+     */
+    static long hash(CharSequence key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,59 @@
+package cluster;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The `NodeHealth` class tracks which nodes of the ring this node currently cannot reach. A node
+ * is marked down when a request or a replication batch to it fails, and up again when one
+ * succeeds or a batch from it arrives. While a node is down the next node of each preference
+ * list stands in for it; after the probe interval requests try the node again.
+ */
+final class NodeHealth {
+    /** How long a node that failed is passed over before it is tried again. */
+    static final long PROBE_INTERVAL_MILLIS = 1000;
+
+    private final HashRing ring;
+    private final AtomicLongArray downUntil;
+
+    /**
+     * Constructor for the `NodeHealth` class; every node starts up.
+     *
+     * @param ring The ring of the nodes.
+     */
+    NodeHealth(HashRing ring) {
+        this.ring = ring;
+        this.downUntil = new AtomicLongArray(ring.nodes().size());
+    }
+
+    /**
+     * Checks whether a node is passed over.
+     *
+     * @param node The index of the node on the ring.
+     * @return True if the node failed within the probe interval.
+     */
+    boolean isDown(int node) {
+        return System.currentTimeMillis() < downUntil.get(node);
+    }
+
+    /**
+     * Records that a node could not be reached.
+     *
+     * @param node The index of the node on the ring.
+     */
+    void markDown(int node) {
+        if (downUntil.getAndSet(node, System.currentTimeMillis() + PROBE_INTERVAL_MILLIS) == 0) {
+            System.out.println("Node " + ring.nodes().get(node) + " is unreachable; its replicas stand in for it");
+        }
+    }
+
+    /**
+     * Records that a node answered.
+     *
+     * @param node The index of the node on the ring.
+     */
+    void markUp(int node) {
+        if (downUntil.get(node) != 0 && downUntil.getAndSet(node, 0) != 0) {
+            System.out.println("Node " + ring.nodes().get(node) + " is reachable again");
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
+
+import protocol.BinaryProtocol;
+import store.KeyValueStore;
+
+/**
+ * The `RemoteKeyValueStore` class applies store operations on another node of the cluster by
+ * sending them as binary requests over TCP. Every operation borrows a connection, sends one
+ * request and waits for its response, so concurrent callers use separate connections; idle
+ * connections are kept for reuse up to a bound.
+ *
+ * Writes can carry an acknowledgement flag, and `replicate` streams mutations to a replica. A
+ * failed exchange surfaces as an `UncheckedIOException` and its connection is discarded; a
+ * request the remote node refused, or turned away as busy, as an `IllegalStateException`. The
+ * remote node only reports keys it owns, so `size` and `forEach` are not supported.
+ */
+final class RemoteKeyValueStore implements KeyValueStore, Closeable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int RESPONSE_TIMEOUT_MILLIS = 5000;
+
+    private final ClusterNode node;
+    private final int maxIdle;
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Constructor for the `RemoteKeyValueStore` class. No connection is opened until the first
+     * operation.
+     *
+     * @param node    The node the operations are sent to.
+     * @param maxIdle The most idle connections to keep open.
+     */
+    RemoteKeyValueStore(ClusterNode node, int maxIdle) {
+        this.node = node;
+        this.maxIdle = maxIdle;
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        ByteBuffer response = exchange(BinaryProtocol.GET, key, 0);
+        byte status = response.get(1);
+        return status == BinaryProtocol.OK ? response.getInt(10) : KeyValueStore.NO_VALUE;
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        put(key, value, (byte) 0);
+    }
+
+    /**
+     * Writes a key on the node.
+     *
+     * @param key   The key to write.
+     * @param value The value to store.
+     * @param ack   The acknowledgement flag of the write, or 0 for the node's default.
+     */
+    void put(CharSequence key, int value, byte ack) {
+        exchange((byte) (BinaryProtocol.PUT | ack), key, value);
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        return remove(key, (byte) 0);
+    }
+
+    /**
+     * Removes a key on the node.
+     *
+     * @param key The key to remove.
+     * @param ack The acknowledgement flag of the write, or 0 for the node's default.
+     * @return True if the key was present.
+     */
+    boolean remove(CharSequence key, byte ack) {
+        return exchange((byte) (BinaryProtocol.DELETE | ack), key, 0).get(1) == BinaryProtocol.OK;
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        return addAndGet(key, delta, (byte) 0);
+    }
+
+    /**
+     * Adds to the value of a key on the node.
+     *
+     * @param key   The key to update.
+     * @param delta The amount to add.
+     * @param ack   The acknowledgement flag of the write, or 0 for the node's default.
+     * @return The value of the key after the update.
+     * @throws IllegalStateException If the node failed the update, as it does when the result
+     *                               overflows.
+     */
+    int addAndGet(CharSequence key, int delta, byte ack) {
+        return exchange((byte) (BinaryProtocol.INCRBY | ack), key, delta).getInt(10);
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        return compareAndExchange(key, expected, value, (byte) 0);
+    }
+
+    /**
+     * Sets the value of a key on the node if it holds the expected one.
+     *
+     * @param key      The key to update.
+     * @param expected The value the key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param value    The new value.
+     * @param ack      The acknowledgement flag of the write, or 0 for the node's default.
+     * @return The value the key held before, or `NO_VALUE` if it was absent.
+     */
+    long compareAndExchange(CharSequence key, long expected, int value, byte ack) {
+        byte opcode = (byte) (BinaryProtocol.CAS | ack);
+        long requestId = nextRequestId.incrementAndGet();
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.requestSize(opcode, key));
+        BinaryProtocol.writeCasRequest(request, opcode, key, expected, value, requestId);
+        ByteBuffer response = checked(send(request, requestId), opcode, key);
+        return witness(response.get(1), expected, response, 10);
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        for (int from = 0; from < count; from += BinaryProtocol.MAX_BATCH_KEYS) {
+            int n = Math.min(BinaryProtocol.MAX_BATCH_KEYS, count - from);
+            ByteBuffer response = exchangeBatch(BinaryProtocol.MGET, keys, null, null, from, n);
+            for (int i = from; i < from + n; i++) {
+                values[i] = response.get() == BinaryProtocol.OK ? response.getInt() : KeyValueStore.NO_VALUE;
+            }
+        }
+    }
+
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        putAll(keys, values, count, (byte) 0);
+    }
+
+    /**
+     * Writes several keys on the node with MPUT requests.
+     *
+     * @param keys   The keys to write.
+     * @param values The value of each key.
+     * @param count  The number of entries to use from the start of the arrays.
+     * @param ack    The acknowledgement flag of the writes, or 0 for the node's default.
+     */
+    void putAll(CharSequence[] keys, int[] values, int count, byte ack) {
+        for (int from = 0; from < count; from += BinaryProtocol.MAX_BATCH_KEYS) {
+            int n = Math.min(BinaryProtocol.MAX_BATCH_KEYS, count - from);
+            ByteBuffer response = exchangeBatch((byte) (BinaryProtocol.MPUT | ack), keys, null, values, from, n);
+            for (int i = 0; i < n; i++) {
+                if (response.get() != BinaryProtocol.OK) {
+                    throw new IllegalArgumentException("Node " + node.id() + " rejected key " + keys[from + i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        removeAll(keys, count, removed, (byte) 0);
+    }
+
+    /**
+     * Removes several keys on the node with MDELETE requests.
+     *
+     * @param keys    The keys to remove.
+     * @param count   The number of keys to use from the start of the array.
+     * @param removed Receives whether each key was present.
+     * @param ack     The acknowledgement flag of the writes, or 0 for the node's default.
+     */
+    void removeAll(CharSequence[] keys, int count, boolean[] removed, byte ack) {
+        for (int from = 0; from < count; from += BinaryProtocol.MAX_BATCH_KEYS) {
+            int n = Math.min(BinaryProtocol.MAX_BATCH_KEYS, count - from);
+            ByteBuffer response = exchangeBatch((byte) (BinaryProtocol.MDELETE | ack), keys, null, null, from, n);
+            for (int i = from; i < from + n; i++) {
+                removed[i] = response.get() == BinaryProtocol.OK;
+            }
+        }
+    }
+
+    @Override
+    public void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results) {
+        addAndGetAll(keys, deltas, count, results, (byte) 0);
+    }
+
+    /**
+     * Adds to several keys on the node with MINCRBY requests.
+     *
+     * @param keys    The keys to update.
+     * @param deltas  The amount to add to each key.
+     * @param count   The number of entries to use from the start of the arrays.
+     * @param results Receives the value of each key after its update, or `NO_VALUE` where the
+     *                node failed it.
+     * @param ack     The acknowledgement flag of the writes, or 0 for the node's default.
+     */
+    void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results, byte ack) {
+        for (int from = 0; from < count; from += BinaryProtocol.MAX_BATCH_KEYS) {
+            int n = Math.min(BinaryProtocol.MAX_BATCH_KEYS, count - from);
+            ByteBuffer response = exchangeBatch((byte) (BinaryProtocol.MINCRBY | ack), keys, null, deltas, from, n);
+            for (int i = from; i < from + n; i++) {
+                results[i] = response.get() == BinaryProtocol.OK ? response.getInt() : KeyValueStore.NO_VALUE;
+            }
+        }
+    }
+
+    @Override
+    public void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count,
+                                      long[] witnesses) {
+        compareAndExchangeAll(keys, expected, values, count, witnesses, (byte) 0);
+    }
+
+    /**
+     * Applies several compare-and-set updates on the node with MCAS requests.
+     *
+     * @param keys      The keys to update.
+     * @param expected  The value each key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param values    The new value of each key.
+     * @param count     The number of entries to use from the start of the arrays.
+     * @param witnesses Receives the value each key held before, or `NO_VALUE`.
+     * @param ack       The acknowledgement flag of the writes, or 0 for the node's default.
+     */
+    void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count, long[] witnesses,
+                               byte ack) {
+        for (int from = 0; from < count; from += BinaryProtocol.MAX_BATCH_KEYS) {
+            int n = Math.min(BinaryProtocol.MAX_BATCH_KEYS, count - from);
+            ByteBuffer response = exchangeBatch((byte) (BinaryProtocol.MCAS | ack), keys, expected, values, from, n);
+            for (int i = from; i < from + n; i++) {
+                byte status = response.get();
+                if (status == BinaryProtocol.ERROR) {
+                    throw new IllegalArgumentException("Node " + node.id() + " rejected key " + keys[i]);
+                }
+                witnesses[i] = witness(status, expected[i], response, response.position());
+                if (status == BinaryProtocol.CONFLICT) {
+                    response.position(response.position() + 4);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies mutations streamed from a primary on the node, which is a replica of their keys.
+     *
+     * @param source   The index of this node on the ring.
+     * @param asOf     The time up to which every mutation has been sent.
+     * @param keys     The keys of the mutations.
+     * @param values   The value of each put.
+     * @param removals Whether each mutation deletes its key.
+     * @param count    The number of mutations, at most `BinaryProtocol.MAX_BATCH_KEYS`; 0 only
+     *                 reports how current the replica is.
+     */
+    void replicate(int source, long asOf, CharSequence[] keys, int[] values, boolean[] removals, int count) {
+        long requestId = nextRequestId.incrementAndGet();
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.replicateRequestSize(source, keys, removals, count));
+        BinaryProtocol.writeReplicateRequest(request, source, asOf, keys, values, removals, count, requestId);
+        checked(send(request, requestId), BinaryProtocol.REPLICATE, null);
+    }
+
+    @Override
+    public int size() {
+        throw new UnsupportedOperationException("The size of node " + node.id() + " is not known here");
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        throw new UnsupportedOperationException("The entries of node " + node.id() + " are not known here");
+    }
+
+    /**
+     * Closes the idle connections; connections in use are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Turns the status of a CAS, or of an MCAS entry, back into the value the key held.
+     */
+    private static long witness(byte status, long expected, ByteBuffer response, int valueIndex) {
+        if (status == BinaryProtocol.OK) {
+            return expected;
+        }
+        return status == BinaryProtocol.CONFLICT ? response.getInt(valueIndex) : KeyValueStore.NO_VALUE;
+    }
+
+    /**
+     * Sends a single-key request.
+     *
+     * @return The response, with its status checked not to be ERROR.
+     */
+    private ByteBuffer exchange(byte opcode, CharSequence key, int value) {
+        long requestId = nextRequestId.incrementAndGet();
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.requestSize(opcode, key));
+        BinaryProtocol.writeRequest(request, opcode, key, value, requestId);
+        return checked(send(request, requestId), opcode, key);
+    }
+
+    /**
+     * Sends a batch request for a range of keys.
+     *
+     * @return The response, positioned at the first per-key entry.
+     */
+    private ByteBuffer exchangeBatch(byte opcode, CharSequence[] keys, long[] expected, int[] values, int from,
+                                     int count) {
+        CharSequence[] batchKeys = from == 0 ? keys : Arrays.copyOfRange(keys, from, from + count);
+        long[] batchExpected = expected == null || from == 0 ? expected : Arrays.copyOfRange(expected, from, from + count);
+        int[] batchValues = values == null || from == 0 ? values : Arrays.copyOfRange(values, from, from + count);
+        long requestId = nextRequestId.incrementAndGet();
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.batchRequestSize(opcode, batchKeys, count));
+        BinaryProtocol.writeBatchRequest(request, opcode, batchKeys, batchExpected, batchValues, count, requestId);
+        ByteBuffer response = checked(send(request, requestId), opcode, null);
+        response.position(10);
+        int received = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = response.get();
+            received |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (received != count) {
+            throw new UncheckedIOException(new IOException("Node " + node.id() + " answered " + received
+                    + " of " + count + " keys"));
+        }
+        return response;
+    }
+
+    private ByteBuffer checked(ByteBuffer response, byte opcode, CharSequence key) {
+        opcode = BinaryProtocol.baseOpcode(opcode);
+        if (response.get(0) != opcode) {
+            throw new UncheckedIOException(new IOException("Node " + node.id() + " answered opcode "
+                    + response.get(0) + " to opcode " + opcode));
+        }
+        if (response.get(1) == BinaryProtocol.ERROR) {
+            throw new IllegalStateException("Node " + node.id() + " failed the request"
+                    + (key == null ? "" : " for key " + key));
+        }
+        if (response.get(1) == BinaryProtocol.BUSY) {
+            // Not applied; the forwarding node's client sees a failed request and may retry it.
+            throw new IllegalStateException("Node " + node.id() + " is busy, retry after "
+                    + response.getInt(10) + " ms");
+        }
+        return response;
+    }
+
+    /**
+     * Sends a request on an idle or new connection and reads its response.
+     *
+     * @return The complete response in read mode.
+     */
+    private ByteBuffer send(ByteBuffer request, long requestId) {
+        Connection connection = idle.poll();
+        if (connection != null) {
+            idleCount.decrementAndGet();
+        }
+        try {
+            if (connection == null) {
+                connection = new Connection(node);
+            }
+            connection.out.write(request.array(), 0, request.position());
+            connection.out.flush();
+            ByteBuffer response = connection.read();
+            if (response.getLong(2) != requestId) {
+                throw new IOException("Node " + node.id() + " answered request " + response.getLong(2)
+                        + " instead of " + requestId);
+            }
+            release(connection);
+            return response;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            throw new UncheckedIOException("Cannot reach node " + node, e);
+        }
+    }
+
+    private void release(Connection connection) {
+        if (!closed && idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(connection);
+        } else {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    /**
+     * One blocking TCP connection to the node.
+     */
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(ClusterNode node) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(node.host(), node.port()), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(RESPONSE_TIMEOUT_MILLIS);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads one complete binary response.
+         */
+        ByteBuffer read() throws IOException {
+            ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.MAX_RESPONSE_BYTES);
+            int length;
+            while ((length = BinaryProtocol.responseLength(response.duplicate().flip())) > response.position()) {
+                if (length > response.capacity()) {
+                    response = ByteBuffer.wrap(Arrays.copyOf(response.array(), Math.max(length, response.capacity() * 2)))
+                            .position(response.position());
+                }
+                in.readFully(response.array(), response.position(), length - response.position());
+                response.position(length);
+            }
+            return response.flip();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing is left to release.
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package cluster;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * The `ReplicaStream` class streams the mutations of the keys this node is primary for to one
+ * replica, in the order they were applied. A sender thread takes every mutation queued since its
+ * last batch, sends them as one REPLICATE request and retries the batch until the replica has
+ * applied it, so a replica that was down receives the mutations it missed once it is back, as
+ * far as they fit in the queue.
+ *
+ * Every mutation gets a ticket, and `acked` tells up to which ticket the replica has applied
+ * them. When the queue is idle the sender still sends an empty batch at the heartbeat interval,
+ * so the replica knows how current it is and that this node is up.
+ */
+final class ReplicaStream implements Closeable {
+    /** Ticket of a mutation that did not fit in the queue; it is never acknowledged. */
+    static final long NOT_QUEUED = Long.MAX_VALUE;
+
+    private static final int MAX_BATCH = 1024;
+    private static final long HEARTBEAT_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    private final int replica;
+    private final int source;
+    private final RemoteKeyValueStore remote;
+    private final NodeHealth health;
+    private final int capacity;
+    private final Object ackMonitor;
+    private final ArrayDeque<Mutation> queue = new ArrayDeque<>();
+    private final Thread sender;
+    private long nextTicket = 1;
+    private boolean overflowing;
+    private volatile long acked;
+    private volatile boolean closed;
+
+    /**
+     * Creates the stream and starts its sender thread.
+     *
+     * @param replica    The index of the replica on the ring.
+     * @param source     The index of this node on the ring.
+     * @param remote     The connections to the replica.
+     * @param health     The reachability of the nodes, updated with every batch.
+     * @param capacity   The most mutations waiting to be sent.
+     * @param ackMonitor Notified whenever the replica acknowledges a batch.
+     */
+    ReplicaStream(int replica, int source, RemoteKeyValueStore remote, NodeHealth health, int capacity,
+                  Object ackMonitor) {
+        this.replica = replica;
+        this.source = source;
+        this.remote = remote;
+        this.health = health;
+        this.capacity = capacity;
+        this.ackMonitor = ackMonitor;
+        this.sender = new Thread(this::sendLoop, "replicate-to-" + replica);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a mutation. The caller must queue the mutations of one key in the order it applied
+     * them.
+     *
+     * @param key     The key of the mutation.
+     * @param value   The value of a put.
+     * @param removal True if the mutation deletes the key.
+     * @return The ticket of the mutation, or `NOT_QUEUED` if the queue is full.
+     */
+    synchronized long append(String key, int value, boolean removal) {
+        if (queue.size() >= capacity) {
+            if (!overflowing) {
+                overflowing = true;
+                System.out.println("Replication queue to node " + replica + " is full; mutations are not streamed"
+                        + " to it until it drains");
+            }
+            return NOT_QUEUED;
+        }
+        overflowing = false;
+        long ticket = nextTicket++;
+        queue.add(new Mutation(key, value, removal, ticket));
+        if (queue.size() == 1) {
+            notifyAll();
+        }
+        return ticket;
+    }
+
+    /**
+     * Retrieves the ticket of the last mutation the replica has applied.
+     *
+     * @return The acknowledged ticket; every earlier ticket is acknowledged as well.
+     */
+    long acked() {
+        return acked;
+    }
+
+    /**
+     * Retrieves the number of mutations waiting to be sent.
+     *
+     * @return The queued mutations.
+     */
+    synchronized int backlog() {
+        return queue.size();
+    }
+
+    /**
+     * Stops the sender thread. Mutations still queued are not sent.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        sender.interrupt();
+    }
+
+    private void sendLoop() {
+        Mutation[] batch = new Mutation[MAX_BATCH];
+        long asOf = 0;
+        while (!closed) {
+            int count = 0;
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    try {
+                        wait(HEARTBEAT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                while (count < MAX_BATCH && !queue.isEmpty()) {
+                    batch[count++] = queue.poll();
+                }
+                // Only a batch that empties the queue brings the replica up to the present.
+                if (queue.isEmpty()) {
+                    asOf = System.currentTimeMillis();
+                }
+            }
+            if (!send(batch, count, asOf)) {
+                return;
+            }
+            if (count > 0) {
+                acked = batch[count - 1].ticket;
+                synchronized (ackMonitor) {
+                    ackMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a batch, retrying with a growing pause until the replica applies it.
+     *
+     * @return False if the stream was closed first.
+     */
+    private boolean send(Mutation[] batch, int count, long asOf) {
+        CharSequence[] keys = new CharSequence[count];
+        int[] values = new int[count];
+        boolean[] removals = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = batch[i].key;
+            values[i] = batch[i].value;
+            removals[i] = batch[i].removal;
+        }
+        long backoff = 50;
+        while (!closed) {
+            try {
+                remote.replicate(source, asOf, keys, values, removals, count);
+                health.markUp(replica);
+                return true;
+            } catch (UncheckedIOException e) {
+                health.markDown(replica);
+            } catch (RuntimeException e) {
+                System.out.println("Replica " + replica + " rejected a replication batch: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+        return false;
+    }
+
+    /**
+     * One queued mutation.
+     */
+    private static final class Mutation {
+        final String key;
+        final int value;
+        final boolean removal;
+        final long ticket;
+
+        Mutation(String key, int value, boolean removal, long ticket) {
+            this.key = key;
+            this.value = value;
+            this.removal = removal;
+            this.ticket = ticket;
+        }
+    }
+}
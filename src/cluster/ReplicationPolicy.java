@@ -0,0 +1,67 @@
+package cluster;
+
+/**
+ * The `ReplicationPolicy` class holds the replication options of a cluster node.
+ */
+public final class ReplicationPolicy {
+    /** Acknowledges writes locally, waits up to two seconds for replicas and reads from primaries only. */
+    public static final ReplicationPolicy DEFAULT = new ReplicationPolicy(WriteAck.LOCAL, 2000, -1, 65536);
+
+    private final WriteAck defaultAck;
+    private final long ackTimeoutMillis;
+    private final long maxStalenessMillis;
+    private final int queueCapacity;
+
+    /**
+     * Constructor for the `ReplicationPolicy` class.
+     *
+     * @param defaultAck         The level of writes that do not choose one.
+     * @param ackTimeoutMillis   How long a write waits for its replicas before it fails.
+     * @param maxStalenessMillis How far behind its primary a replica may be to answer a GET
+     *                           itself, or a negative value to send every GET to the primary.
+     * @param queueCapacity      The most mutations waiting to be streamed to one replica; further
+     *                           mutations are not streamed to it.
+     */
+    public ReplicationPolicy(WriteAck defaultAck, long ackTimeoutMillis, long maxStalenessMillis, int queueCapacity) {
+        this.defaultAck = defaultAck;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Retrieves the level of writes that do not choose one.
+     *
+     * @return The default acknowledgement level.
+     */
+    public WriteAck defaultAck() {
+        return defaultAck;
+    }
+
+    /**
+     * Retrieves how long a write waits for its replicas.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long ackTimeoutMillis() {
+        return ackTimeoutMillis;
+    }
+
+    /**
+     * Retrieves how far behind its primary a replica may be to answer a GET.
+     *
+     * @return The bound in milliseconds, or a negative value if replicas do not answer GETs.
+     */
+    public long maxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * Retrieves the most mutations waiting to be streamed to one replica.
+     *
+     * @return The queue capacity.
+     */
+    public int queueCapacity() {
+        return queueCapacity;
+    }
+}
@@ -0,0 +1,865 @@
+package cluster;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+import store.KeyValueStore;
+
+/**
+ * The `ShardedKeyValueStore` class makes one server a node of a cluster. Every key has a
+ * preference list on the `HashRing`: a primary followed by its replicas. Writes are applied by
+ * the primary, which streams them to the replicas in the background, and every other node
+ * forwards them to it, so a client can send any request to any node. Batches are split by node
+ * and each part is sent as a single batch request, while the local part is applied with one
+ * batch call.
+ *
+ * A write chooses how many copies it waits for with a `WriteAck`: LOCAL returns once the primary
+ * has applied it, ONE once a replica has applied it as well and ALL once every replica that is
+ * up has. A write acknowledged by a replica survives the loss of its primary; a LOCAL write that
+ * has not been streamed yet does not.
+ *
+ * Numeric updates, `addAndGet` and `compareAndExchange`, are applied atomically by the primary of
+ * their key, which streams the value they leave behind to the replicas as a plain write, so a
+ * replica never applies an increment of its own. An update whose primary fails before answering
+ * is retried on the next copy, where an increment that had already been streamed is applied a
+ * second time.
+ *
+ * When a node cannot be reached it is passed over for a while and the next live node of each
+ * preference list acts as primary, so its keys stay readable and writable as long as one copy is
+ * up. The stand-in keeps the mutations for the node that is down in its stream and hands them
+ * over once the node is back, as far as they fit in the queue. Reads go to the primary unless
+ * the policy allows a bounded staleness, in which case a replica that has heard from the primary
+ * recently enough answers from its own copy.
+ *
+ * All nodes must load the same ring. Keys are not moved when the ring changes. `size` and
+ * `forEach` cover the local store, which holds the keys of this node and its replica copies.
+ */
+public final class ShardedKeyValueStore implements KeyValueStore, Closeable {
+    private static final int LOCK_STRIPES = 64;
+    private static final long ACK_POLL_MILLIS = 100;
+
+    private final KeyValueStore localStore;
+    private final HashRing ring;
+    private final int self;
+    private final ReplicationPolicy policy;
+    private final RemoteKeyValueStore[] remotes;
+    private final ReplicaStream[] streams;
+    private final NodeHealth health;
+    private final AtomicLongArray currentAsOf;
+    private final ReentrantLock[] writeLocks;
+    private final Object ackMonitor = new Object();
+
+    /**
+     * Constructor for the `ShardedKeyValueStore` class with the default replication policy.
+     *
+     * @param localStore         The store holding the keys this node keeps.
+     * @param ring               The ring shared by all nodes of the cluster.
+     * @param self               The node of the ring this store serves.
+     * @param connectionsPerNode The most idle connections to keep to every other node.
+     * @throws IllegalArgumentException If the node is not on the ring.
+     */
+    public ShardedKeyValueStore(KeyValueStore localStore, HashRing ring, ClusterNode self, int connectionsPerNode) {
+        this(localStore, ring, self, connectionsPerNode, ReplicationPolicy.DEFAULT);
+    }
+
+    /**
+     * Constructor for the `ShardedKeyValueStore` class. If the ring keeps replicas, a stream to
+     * every other node is started.
+     *
+     * @param localStore         The store holding the keys this node keeps.
+     * @param ring               The ring shared by all nodes of the cluster.
+     * @param self               The node of the ring this store serves.
+     * @param connectionsPerNode The most idle connections to keep to every other node.
+     * @param policy             The replication options.
+     * @throws IllegalArgumentException If the node is not on the ring.
+     */
+    public ShardedKeyValueStore(KeyValueStore localStore, HashRing ring, ClusterNode self, int connectionsPerNode,
+                                ReplicationPolicy policy) {
+        this.localStore = localStore;
+        this.ring = ring;
+        this.policy = policy;
+        List<ClusterNode> nodes = ring.nodes();
+        this.self = nodes.indexOf(self);
+        if (this.self < 0) {
+            throw new IllegalArgumentException("Node " + self + " is not on the ring");
+        }
+        this.health = new NodeHealth(ring);
+        this.currentAsOf = new AtomicLongArray(nodes.size());
+        this.remotes = new RemoteKeyValueStore[nodes.size()];
+        this.streams = ring.replicas() > 0 ? new ReplicaStream[nodes.size()] : null;
+        for (int n = 0; n < nodes.size(); n++) {
+            if (n != this.self) {
+                remotes[n] = new RemoteKeyValueStore(nodes.get(n), connectionsPerNode);
+                if (streams != null) {
+                    streams[n] = new ReplicaStream(n, this.self, remotes[n], health, policy.queueCapacity(),
+                            ackMonitor);
+                }
+            }
+        }
+        this.writeLocks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Checks whether this node currently acts as primary for a key.
+     *
+     * @param key The key.
+     * @return True if writes of the key are applied here.
+     */
+    public boolean isLocal(CharSequence key) {
+        return primary(key) == self;
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        for (int attempt = 0; ; attempt++) {
+            int node = reader(key);
+            if (node == self) {
+                return localStore.get(key);
+            }
+            try {
+                return remotes[node].get(key);
+            } catch (UncheckedIOException e) {
+                unreachable(node, attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        put(key, value, null);
+    }
+
+    /**
+     * Writes a key and waits for the copies its acknowledgement level asks for.
+     *
+     * @param key   The key to write.
+     * @param value The value to store.
+     * @param level The acknowledgement level, or null for the default of the policy.
+     * @throws IllegalStateException If the replicas did not acknowledge the write in time; the
+     *                               write is applied on the primary nonetheless.
+     */
+    public void put(CharSequence key, int value, WriteAck level) {
+        level = resolve(level);
+        for (int attempt = 0; ; attempt++) {
+            int node = primary(key);
+            if (node == self) {
+                applyLocal(key, value, false, level);
+                return;
+            }
+            try {
+                remotes[node].put(key, value, level.flag());
+                return;
+            } catch (UncheckedIOException e) {
+                unreachable(node, attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        return remove(key, null);
+    }
+
+    /**
+     * Removes a key and waits for the copies its acknowledgement level asks for.
+     *
+     * @param key   The key to remove.
+     * @param level The acknowledgement level, or null for the default of the policy.
+     * @return True if the key was present on its primary.
+     * @throws IllegalStateException If the replicas did not acknowledge the removal in time.
+     */
+    public boolean remove(CharSequence key, WriteAck level) {
+        level = resolve(level);
+        for (int attempt = 0; ; attempt++) {
+            int node = primary(key);
+            if (node == self) {
+                return applyLocal(key, 0, true, level);
+            }
+            try {
+                return remotes[node].remove(key, level.flag());
+            } catch (UncheckedIOException e) {
+                unreachable(node, attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        return addAndGet(key, delta, null);
+    }
+
+    /**
+     * Adds to the value of a key and waits for the copies its acknowledgement level asks for.
+     *
+     * @param key   The key to update.
+     * @param delta The amount to add.
+     * @param level The acknowledgement level, or null for the default of the policy.
+     * @return The value of the key after the update.
+     * @throws IllegalStateException If the replicas did not acknowledge the update in time, or the
+     *                               primary failed it.
+     */
+    public int addAndGet(CharSequence key, int delta, WriteAck level) {
+        level = resolve(level);
+        for (int attempt = 0; ; attempt++) {
+            int node = primary(key);
+            if (node == self) {
+                return addLocal(key, delta, level);
+            }
+            try {
+                return remotes[node].addAndGet(key, delta, level.flag());
+            } catch (UncheckedIOException e) {
+                unreachable(node, attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        return compareAndExchange(key, expected, value, null);
+    }
+
+    /**
+     * Sets the value of a key if it holds the expected one and waits for the copies the
+     * acknowledgement level asks for.
+     *
+     * @param key      The key to update.
+     * @param expected The value the key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param value    The new value.
+     * @param level    The acknowledgement level, or null for the default of the policy.
+     * @return The value the key held on its primary before, or `NO_VALUE` if it was absent.
+     * @throws IllegalStateException If the replicas did not acknowledge the update in time.
+     */
+    public long compareAndExchange(CharSequence key, long expected, int value, WriteAck level) {
+        level = resolve(level);
+        for (int attempt = 0; ; attempt++) {
+            int node = primary(key);
+            if (node == self) {
+                return compareAndExchangeLocal(key, expected, value, level);
+            }
+            try {
+                return remotes[node].compareAndExchange(key, expected, value, level.flag());
+            } catch (UncheckedIOException e) {
+                unreachable(node, attempt, e);
+            }
+        }
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        getAll(keys, count, values, 0);
+    }
+
+    private void getAll(CharSequence[] keys, int count, long[] values, int attempt) {
+        Partition partition = new Partition(keys, count, this::reader);
+        for (int n = 0; n < remotes.length; n++) {
+            int size = partition.size(n);
+            if (size == 0) {
+                continue;
+            }
+            CharSequence[] part = size == count ? keys : partition.keys(n);
+            long[] found = size == count ? values : new long[size];
+            if (n == self) {
+                localStore.getAll(part, size, found);
+            } else {
+                try {
+                    remotes[n].getAll(part, size, found);
+                } catch (UncheckedIOException e) {
+                    unreachable(n, attempt, e);
+                    getAll(part, size, found, attempt + 1);
+                }
+            }
+            if (found != values) {
+                for (int k = 0; k < size; k++) {
+                    values[partition.position(n, k)] = found[k];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        putAll(keys, values, count, null);
+    }
+
+    /**
+     * Writes several keys and waits for the copies the acknowledgement level asks for.
+     *
+     * @param keys   The keys to write.
+     * @param values The value of each key.
+     * @param count  The number of entries to use from the start of the arrays.
+     * @param level  The acknowledgement level, or null for the default of the policy.
+     * @throws IllegalStateException If the replicas did not acknowledge the writes in time.
+     */
+    public void putAll(CharSequence[] keys, int[] values, int count, WriteAck level) {
+        putAll(keys, values, count, resolve(level), 0);
+    }
+
+    private void putAll(CharSequence[] keys, int[] values, int count, WriteAck level, int attempt) {
+        Partition partition = new Partition(keys, count, this::primary);
+        for (int n = 0; n < remotes.length; n++) {
+            int size = partition.size(n);
+            if (size == 0) {
+                continue;
+            }
+            CharSequence[] part = size == count ? keys : partition.keys(n);
+            int[] partValues = values;
+            if (size != count) {
+                partValues = new int[size];
+                for (int k = 0; k < size; k++) {
+                    partValues[k] = values[partition.position(n, k)];
+                }
+            }
+            if (n == self) {
+                applyLocal(part, partValues, null, size, level);
+            } else {
+                try {
+                    remotes[n].putAll(part, partValues, size, level.flag());
+                } catch (UncheckedIOException e) {
+                    unreachable(n, attempt, e);
+                    putAll(part, partValues, size, level, attempt + 1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        removeAll(keys, count, removed, null);
+    }
+
+    /**
+     * Removes several keys and waits for the copies the acknowledgement level asks for.
+     *
+     * @param keys    The keys to remove.
+     * @param count   The number of keys to use from the start of the array.
+     * @param removed Receives whether each key was present on its primary.
+     * @param level   The acknowledgement level, or null for the default of the policy.
+     * @throws IllegalStateException If the replicas did not acknowledge the removals in time.
+     */
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed, WriteAck level) {
+        removeAll(keys, count, removed, resolve(level), 0);
+    }
+
+    private void removeAll(CharSequence[] keys, int count, boolean[] removed, WriteAck level, int attempt) {
+        Partition partition = new Partition(keys, count, this::primary);
+        for (int n = 0; n < remotes.length; n++) {
+            int size = partition.size(n);
+            if (size == 0) {
+                continue;
+            }
+            CharSequence[] part = size == count ? keys : partition.keys(n);
+            boolean[] found = size == count ? removed : new boolean[size];
+            if (n == self) {
+                applyLocal(part, null, found, size, level);
+            } else {
+                try {
+                    remotes[n].removeAll(part, size, found, level.flag());
+                } catch (UncheckedIOException e) {
+                    unreachable(n, attempt, e);
+                    removeAll(part, size, found, level, attempt + 1);
+                }
+            }
+            if (found != removed) {
+                for (int k = 0; k < size; k++) {
+                    removed[partition.position(n, k)] = found[k];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results) {
+        addAndGetAll(keys, deltas, count, results, null);
+    }
+
+    /**
+     * Adds to several keys, sending each node its part in one request, and waits for the copies
+     * the acknowledgement level asks for.
+     *
+     * @param keys    The keys to update.
+     * @param deltas  The amount to add to each key.
+     * @param count   The number of entries to use from the start of the arrays.
+     * @param results Receives the value of each key after its update, or `NO_VALUE` where it
+     *                failed.
+     * @param level   The acknowledgement level, or null for the default of the policy.
+     * @throws IllegalStateException If the replicas did not acknowledge the updates in time.
+     */
+    public void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results, WriteAck level) {
+        updateAll(keys, null, deltas, count, results, resolve(level), 0);
+    }
+
+    @Override
+    public void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count,
+                                      long[] witnesses) {
+        compareAndExchangeAll(keys, expected, values, count, witnesses, null);
+    }
+
+    /**
+     * Applies several compare-and-set updates, sending each node its part in one request, and
+     * waits for the copies the acknowledgement level asks for.
+     *
+     * @param keys      The keys to update.
+     * @param expected  The value each key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param values    The new value of each key.
+     * @param count     The number of entries to use from the start of the arrays.
+     * @param witnesses Receives the value each key held on its primary before, or `NO_VALUE`.
+     * @param level     The acknowledgement level, or null for the default of the policy.
+     * @throws IllegalStateException If the replicas did not acknowledge the updates in time.
+     */
+    public void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count,
+                                      long[] witnesses, WriteAck level) {
+        updateAll(keys, expected, values, count, witnesses, resolve(level), 0);
+    }
+
+    /**
+     * Applies numeric updates of keys of any node: additions if `expected` is null, else
+     * compare-and-sets.
+     */
+    private void updateAll(CharSequence[] keys, long[] expected, int[] values, int count, long[] results,
+                           WriteAck level, int attempt) {
+        Partition partition = new Partition(keys, count, this::primary);
+        for (int n = 0; n < remotes.length; n++) {
+            int size = partition.size(n);
+            if (size == 0) {
+                continue;
+            }
+            CharSequence[] part = size == count ? keys : partition.keys(n);
+            int[] partValues = values;
+            long[] partExpected = expected;
+            long[] found = size == count ? results : new long[size];
+            if (size != count) {
+                partValues = new int[size];
+                partExpected = expected == null ? null : new long[size];
+                for (int k = 0; k < size; k++) {
+                    partValues[k] = values[partition.position(n, k)];
+                    if (expected != null) {
+                        partExpected[k] = expected[partition.position(n, k)];
+                    }
+                }
+            }
+            if (n == self) {
+                applyLocalUpdates(part, partExpected, partValues, size, found, level);
+            } else {
+                try {
+                    if (expected == null) {
+                        remotes[n].addAndGetAll(part, partValues, size, found, level.flag());
+                    } else {
+                        remotes[n].compareAndExchangeAll(part, partExpected, partValues, size, found, level.flag());
+                    }
+                } catch (UncheckedIOException e) {
+                    unreachable(n, attempt, e);
+                    updateAll(part, partExpected, partValues, size, found, level, attempt + 1);
+                }
+            }
+            if (found != results) {
+                for (int k = 0; k < size; k++) {
+                    results[partition.position(n, k)] = found[k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies mutations a primary streamed to this node, which keeps replicas of their keys.
+     *
+     * @param source   The index on the ring of the primary that sent them.
+     * @param asOf     The time up to which the primary has sent every mutation, or 0 if unknown.
+     * @param keys     The keys of the mutations.
+     * @param values   The value of each put.
+     * @param removals Whether each mutation deletes its key.
+     * @param count    The number of mutations, in the order the primary applied them.
+     * @throws IllegalArgumentException If the source is not a node of the ring.
+     */
+    public void applyReplicated(int source, long asOf, CharSequence[] keys, int[] values, boolean[] removals,
+                                int count) {
+        if (source < 0 || source >= remotes.length || source == self) {
+            throw new IllegalArgumentException("Replication from unknown node " + source);
+        }
+        for (int i = 0; i < count; i++) {
+            ReentrantLock lock = writeLocks[stripe(keys[i])];
+            lock.lock();
+            try {
+                if (removals[i]) {
+                    localStore.remove(keys[i]);
+                } else {
+                    localStore.put(keys[i], values[i]);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        currentAsOf.accumulateAndGet(source, asOf, Math::max);
+        health.markUp(source);
+    }
+
+    /**
+     * Retrieves the number of keys in the local store.
+     *
+     * @return The number of keys this node holds, replica copies included.
+     */
+    @Override
+    public int size() {
+        return localStore.size();
+    }
+
+    /**
+     * Calls the action once for every entry of the local store.
+     *
+     * @param action The action to call with each key and value, replica copies included.
+     */
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        localStore.forEach(action);
+    }
+
+    /**
+     * Retrieves the number of mutations queued for the replicas of this node's keys.
+     *
+     * @return The mutations not streamed yet, over all replicas.
+     */
+    public int replicationBacklog() {
+        int backlog = 0;
+        for (int n = 0; n < remotes.length; n++) {
+            if (n != self && streams != null) {
+                backlog += streams[n].backlog();
+            }
+        }
+        return backlog;
+    }
+
+    /**
+     * Stops the replication streams and closes the connections to the other nodes. Mutations not
+     * streamed yet are dropped. The local store is left open.
+     */
+    @Override
+    public void close() {
+        for (int n = 0; n < remotes.length; n++) {
+            if (n != self) {
+                if (streams != null) {
+                    streams[n].close();
+                }
+                remotes[n].close();
+            }
+        }
+    }
+
+    private WriteAck resolve(WriteAck level) {
+        return level != null ? level : policy.defaultAck();
+    }
+
+    /**
+     * Finds the node that applies the writes of a key: the first node of its preference list that
+     * is not passed over, or the primary if every node is.
+     */
+    private int primary(CharSequence key) {
+        int[] preference = ring.preferenceList(key);
+        for (int node : preference) {
+            if (node == self || !health.isDown(node)) {
+                return node;
+            }
+        }
+        return preference[0];
+    }
+
+    /**
+     * Finds the node that answers a read of a key: this node if it keeps a copy that is recent
+     * enough, else the primary.
+     */
+    private int reader(CharSequence key) {
+        int primary = primary(key);
+        if (primary == self || policy.maxStalenessMillis() < 0) {
+            return primary;
+        }
+        for (int node : ring.preferenceList(key)) {
+            if (node == self) {
+                long lag = System.currentTimeMillis() - currentAsOf.get(primary);
+                return lag <= policy.maxStalenessMillis() ? self : primary;
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * Records that a request to a node failed and lets the caller try the next copy, unless every
+     * copy has been tried.
+     */
+    private void unreachable(int node, int attempt, UncheckedIOException e) {
+        health.markDown(node);
+        if (attempt >= ring.replicas()) {
+            throw e;
+        }
+    }
+
+    private int stripe(CharSequence key) {
+        return (int) HashRing.hash(key) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Applies a write of a key this node is primary for, queues it for the replicas and waits for
+     * their acknowledgement.
+     *
+     * @return True if a removed key was present.
+     */
+    private boolean applyLocal(CharSequence key, int value, boolean removal, WriteAck level) {
+        if (streams == null) {
+            if (removal) {
+                return localStore.remove(key);
+            }
+            localStore.put(key, value);
+            return false;
+        }
+        long[] tickets = new long[remotes.length];
+        boolean removed = false;
+        ReentrantLock lock = writeLocks[stripe(key)];
+        // The stripe lock keeps the order of the queued mutations of a key that of the store.
+        lock.lock();
+        try {
+            if (removal) {
+                removed = localStore.remove(key);
+            } else {
+                localStore.put(key, value);
+            }
+            queue(key, value, removal, tickets);
+        } finally {
+            lock.unlock();
+        }
+        awaitAcks(tickets, level);
+        return removed;
+    }
+
+    /**
+     * Adds to a key this node is primary for and queues the result for the replicas.
+     */
+    private int addLocal(CharSequence key, int delta, WriteAck level) {
+        if (streams == null) {
+            return localStore.addAndGet(key, delta);
+        }
+        long[] tickets = new long[remotes.length];
+        int value;
+        ReentrantLock lock = writeLocks[stripe(key)];
+        lock.lock();
+        try {
+            value = localStore.addAndGet(key, delta);
+            queue(key, value, false, tickets);
+        } finally {
+            lock.unlock();
+        }
+        awaitAcks(tickets, level);
+        return value;
+    }
+
+    /**
+     * Applies a compare-and-set to a key this node is primary for and queues the new value for
+     * the replicas if it took place.
+     */
+    private long compareAndExchangeLocal(CharSequence key, long expected, int value, WriteAck level) {
+        if (streams == null) {
+            return localStore.compareAndExchange(key, expected, value);
+        }
+        long[] tickets = new long[remotes.length];
+        long witness;
+        ReentrantLock lock = writeLocks[stripe(key)];
+        lock.lock();
+        try {
+            witness = localStore.compareAndExchange(key, expected, value);
+            if (witness == expected) {
+                queue(key, value, false, tickets);
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitAcks(tickets, level);
+        return witness;
+    }
+
+    /**
+     * Applies a batch of writes this node is primary for; a null `values` means removals.
+     */
+    private void applyLocal(CharSequence[] keys, int[] values, boolean[] removed, int count, WriteAck level) {
+        if (streams == null) {
+            if (values == null) {
+                localStore.removeAll(keys, count, removed);
+            } else {
+                localStore.putAll(keys, values, count);
+            }
+            return;
+        }
+        boolean[] stripes = lockStripes(keys, count);
+        long[] tickets = new long[remotes.length];
+        try {
+            if (values == null) {
+                localStore.removeAll(keys, count, removed);
+            } else {
+                localStore.putAll(keys, values, count);
+            }
+            for (int i = 0; i < count; i++) {
+                queue(keys[i], values == null ? 0 : values[i], values == null, tickets);
+            }
+        } finally {
+            unlockStripes(stripes);
+        }
+        awaitAcks(tickets, level);
+    }
+
+    /**
+     * Applies a batch of numeric updates this node is primary for, additions if `expected` is
+     * null and compare-and-sets otherwise, and queues the values they leave behind.
+     */
+    private void applyLocalUpdates(CharSequence[] keys, long[] expected, int[] values, int count, long[] results,
+                                   WriteAck level) {
+        boolean[] stripes = streams == null ? null : lockStripes(keys, count);
+        long[] tickets = new long[remotes.length];
+        try {
+            if (expected == null) {
+                localStore.addAndGetAll(keys, values, count, results);
+            } else {
+                localStore.compareAndExchangeAll(keys, expected, values, count, results);
+            }
+            for (int i = 0; i < count && stripes != null; i++) {
+                if (expected == null ? results[i] != NO_VALUE : results[i] == expected[i]) {
+                    queue(keys[i], expected == null ? (int) results[i] : values[i], false, tickets);
+                }
+            }
+        } finally {
+            if (stripes != null) {
+                unlockStripes(stripes);
+            }
+        }
+        awaitAcks(tickets, level);
+    }
+
+    /**
+     * Takes the write locks of the stripes of a batch's keys.
+     *
+     * @return The stripes taken, to pass to `unlockStripes`.
+     */
+    private boolean[] lockStripes(CharSequence[] keys, int count) {
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (int i = 0; i < count; i++) {
+            stripes[stripe(keys[i])] = true;
+        }
+        // Stripes are always taken in ascending order, so batches cannot deadlock each other.
+        for (int s = 0; s < LOCK_STRIPES; s++) {
+            if (stripes[s]) {
+                writeLocks[s].lock();
+            }
+        }
+        return stripes;
+    }
+
+    private void unlockStripes(boolean[] stripes) {
+        for (int s = LOCK_STRIPES - 1; s >= 0; s--) {
+            if (stripes[s]) {
+                writeLocks[s].unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues a mutation for every other node of the preference list of its key and records the
+     * highest ticket per node.
+     */
+    private void queue(CharSequence key, int value, boolean removal, long[] tickets) {
+        String name = key.toString();
+        for (int node : ring.preferenceList(key)) {
+            if (node != self) {
+                tickets[node] = Math.max(tickets[node], streams[node].append(name, value, removal));
+            }
+        }
+    }
+
+    /**
+     * Waits until the replicas have applied the queued mutations as far as the level asks. ONE
+     * needs one replica and ALL needs every replica that is up, and at least one.
+     */
+    private void awaitAcks(long[] tickets, WriteAck level) {
+        if (level == WriteAck.LOCAL) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + policy.ackTimeoutMillis();
+        synchronized (ackMonitor) {
+            while (true) {
+                int acked = 0;
+                int pending = 0;
+                int replicas = 0;
+                for (int n = 0; n < tickets.length; n++) {
+                    if (tickets[n] == 0) {
+                        continue;
+                    }
+                    replicas++;
+                    if (streams[n].acked() >= tickets[n]) {
+                        acked++;
+                    } else if (!health.isDown(n)) {
+                        pending++;
+                    }
+                }
+                if (replicas == 0 || acked > 0 && (level == WriteAck.ONE || pending == 0)) {
+                    return;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || acked + pending == 0) {
+                    throw new IllegalStateException(acked + " of " + replicas + " replicas acknowledged the write"
+                            + " before the " + level + " deadline");
+                }
+                try {
+                    ackMonitor.wait(Math.min(left, ACK_POLL_MILLIS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for replicas");
+                }
+            }
+        }
+    }
+
+    /**
+     * The keys of a batch grouped by node. Keys of one node keep their batch order, so a key
+     * written twice in one batch ends up with its last value.
+     */
+    private final class Partition {
+        private final CharSequence[] keys;
+        private final int[] start;
+        private final int[] positions;
+
+        Partition(CharSequence[] keys, int count, ToIntFunction<CharSequence> route) {
+            this.keys = keys;
+            int[] nodeOf = new int[count];
+            start = new int[remotes.length + 1];
+            for (int i = 0; i < count; i++) {
+                nodeOf[i] = route.applyAsInt(keys[i]);
+                start[nodeOf[i] + 1]++;
+            }
+            for (int n = 0; n < remotes.length; n++) {
+                start[n + 1] += start[n];
+            }
+            positions = new int[count];
+            int[] next = start.clone();
+            for (int i = 0; i < count; i++) {
+                positions[next[nodeOf[i]]++] = i;
+            }
+        }
+
+        int size(int node) {
+            return start[node + 1] - start[node];
+        }
+
+        int position(int node, int k) {
+            return positions[start[node] + k];
+        }
+
+        CharSequence[] keys(int node) {
+            CharSequence[] part = new CharSequence[size(node)];
+            for (int k = 0; k < part.length; k++) {
+                part[k] = keys[position(node, k)];
+            }
+            return part;
+        }
+    }
+}
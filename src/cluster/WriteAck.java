@@ -0,0 +1,71 @@
+package cluster;
+
+import protocol.BinaryProtocol;
+
+/**
+ * The `WriteAck` enum defines when a write to a replicated key is acknowledged to the client.
+ * In every case the primary applies the write first and streams it to the replicas in the
+ * background; the level only decides how long the client waits.
+ */
+public enum WriteAck {
+
+    /**
+     * The write is acknowledged once the primary has applied it. A primary that fails before
+     * streaming the write loses it.
+     */
+    LOCAL(BinaryProtocol.ACK_LOCAL),
+
+    /**
+     * The write is acknowledged once at least one replica has applied it as well.
+     */
+    ONE(BinaryProtocol.ACK_ONE),
+
+    /**
+     * The write is acknowledged once every replica of the key has applied it.
+     */
+    ALL(BinaryProtocol.ACK_ALL);
+
+    // values() copies the array on every call; decoding a request should not allocate.
+    private static final WriteAck[] LEVELS = values();
+
+    private final byte flag;
+
+    WriteAck(byte flag) {
+        this.flag = flag;
+    }
+
+    /**
+     * Retrieves the flag that carries this level in a binary opcode.
+     *
+     * @return One of the acknowledgement flags of `BinaryProtocol`.
+     */
+    public byte flag() {
+        return flag;
+    }
+
+    /**
+     * Parses a level name, ignoring case.
+     *
+     * @param name "local", "one" or "all".
+     * @return The matching level.
+     * @throws IllegalArgumentException If the name is not known.
+     */
+    public static WriteAck fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Finds the level carried by the flag bits of a binary opcode.
+     *
+     * @param flag The acknowledgement bits of an opcode.
+     * @return The level, or null if the opcode carries none.
+     */
+    public static WriteAck fromFlag(byte flag) {
+        for (WriteAck ack : LEVELS) {
+            if (ack.flag == flag) {
+                return ack;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,221 @@
+package logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * The `AsyncLogHandler` class is a `Handler` that takes log I/O off the threads that log.
+ * `publish` only puts the record into a bounded ring buffer; a background writer thread drains
+ * it in batches, formats every record into one reusable buffer and writes each batch to a
+ * `FileChannel` with a single call.
+ *
+ * Lines have the form {@code [yyyy-MM-dd HH:mm:ss.SSS] LEVEL - message}. The date and time are
+ * formatted at most once per second and the milliseconds are appended by hand. When the buffer
+ * is full, the `OverflowPolicy` decides whether the logging thread waits or the record is
+ * dropped and counted.
+ */
+public class AsyncLogHandler extends Handler {
+    private static final int MAX_BATCH = 1024;
+    private static final int OUTPUT_BYTES = 64 * 1024;
+    private static final DateTimeFormatter SECONDS =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final ArrayBlockingQueue<LogRecord> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final FileChannel channel;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Only used by the writer thread.
+    private final List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+    private final StringBuilder line = new StringBuilder(256);
+    private final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BYTES);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedSecondText;
+    private long reportedDrops;
+
+    /**
+     * Opens the log file, replacing any previous content, and starts the writer thread.
+     *
+     * @param file           The log file.
+     * @param capacity       The number of records the ring buffer holds.
+     * @param overflowPolicy What to do with a record when the ring buffer is full.
+     * @throws IOException If the log file cannot be opened.
+     */
+    public AsyncLogHandler(Path file, int capacity, OverflowPolicy overflowPolicy) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            if (!queue.offer(record)) {
+                dropped.increment();
+            }
+            return;
+        }
+        try {
+            while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            dropped.increment();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Does nothing; the writer writes every batch as soon as it has been formatted.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes the records still in the ring buffer and closes the log file. Records published
+     * afterwards are ignored.
+     */
+    @Override
+    public void close() {
+        // The writer is not interrupted: an interrupt during a write would close the channel.
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            reportError("Cannot close the log file", e, 0);
+        }
+    }
+
+    /**
+     * Retrieves the number of records dropped because the ring buffer was full.
+     *
+     * @return The number of dropped records.
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Retrieves the number of records waiting for the writer thread.
+     *
+     * @return The number of records in the ring buffer.
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                LogRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            if (closed) {
+                queue.drainTo(batch);
+            }
+            try {
+                writeBatch();
+            } catch (IOException e) {
+                reportError("Cannot write to the log file", e, 0);
+            }
+            batch.clear();
+            if (closed && queue.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        for (LogRecord record : batch) {
+            appendLine(record.getMillis(), record.getLevel(), record.getMessage());
+        }
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            appendLine(System.currentTimeMillis(), Level.WARNING,
+                    "Dropped " + (drops - reportedDrops) + " log records because the log queue was full");
+            reportedDrops = drops;
+        }
+        writeOutput();
+    }
+
+    private void appendLine(long millis, Level level, String message) throws IOException {
+        line.setLength(0);
+        line.append('[');
+        appendTimestamp(millis);
+        line.append("] ").append(level.getName()).append(" - ").append(message).append(System.lineSeparator());
+        CharBuffer chars = CharBuffer.wrap(line);
+        while (encoder.encode(chars, output, true) == CoderResult.OVERFLOW) {
+            writeOutput();
+        }
+        encoder.reset();
+    }
+
+    private void appendTimestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            cachedSecondText = SECONDS.format(Instant.ofEpochSecond(second));
+            cachedSecond = second;
+        }
+        int fraction = Math.floorMod(millis, 1000);
+        line.append(cachedSecondText).append('.');
+        if (fraction < 100) {
+            line.append('0');
+        }
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+
+    private void writeOutput() throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        output.clear();
+    }
+}
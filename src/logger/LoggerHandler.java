@@ -1,49 +1,46 @@
 package logger;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.logging.FileHandler;
-import java.util.logging.Formatter;
-import java.util.logging.LogRecord;
+import java.nio.file.Paths;
 import java.util.logging.Logger;
 
 /**
  * The `LoggerHandler` class provides a utility to initialize and configure a logger with a specified file handler.
  */
 public class LoggerHandler {
+    private static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
 
     /**
-     * Initializes the logger with a file handler and custom log message formatting.
+     * Initializes the logger with an asynchronous file handler that blocks when its queue is full.
      *
      * @param logger   The `Logger` instance to be initialized.
      * @param fileName The name of the log file where log messages will be written.
      */
     public static void initLogger(Logger logger, String fileName) {
-        try {
-            // Create a file handler for logging to the specified file.
-            FileHandler fileHandler = new FileHandler(fileName);
-
-            // Define a custom log message formatter.
-            Formatter customFormatter = new Formatter() {
-                @Override
-                public String format(LogRecord record) {
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-
-                    String formattedMessage = String.format("[%s] %s - %s%n",
-                            dateFormat.format(new Date(record.getMillis())),
-                            record.getLevel().getName(),
-                            record.getMessage());
-
-                    return formattedMessage;
-                }
-            };
+        initLogger(logger, fileName, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+    }
 
-            // Set the custom formatter for the file handler.
-            fileHandler.setFormatter(customFormatter);
+    /**
+     * Initializes the logger with an asynchronous file handler, so that logging a message only
+     * costs the calling thread a queue insertion.
+     *
+     * @param logger         The `Logger` instance to be initialized.
+     * @param fileName       The name of the log file where log messages will be written.
+     * @param queueCapacity  The number of records that can wait for the writer thread.
+     * @param overflowPolicy What to do with a record when the queue is full.
+     */
+    public static void initLogger(Logger logger, String fileName, int queueCapacity, OverflowPolicy overflowPolicy) {
+        try {
+            // Create a handler that writes to the specified file from a background thread.
+            AsyncLogHandler fileHandler = new AsyncLogHandler(Paths.get(fileName), queueCapacity, overflowPolicy);
 
-            // Add the file handler to the logger.
+            // Add the file handler to the logger. The console handler of the root logger would
+            // write every record to the terminal synchronously, so it is not used.
             logger.addHandler(fileHandler);
+            logger.setUseParentHandlers(false);
+
+            // Write the records still queued when the application exits.
+            Runtime.getRuntime().addShutdownHook(new Thread(fileHandler::close, "log-shutdown"));
         } catch (IOException e) {
             e.printStackTrace();
         }
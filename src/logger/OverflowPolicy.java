@@ -0,0 +1,29 @@
+package logger;
+
+/**
+ * The `OverflowPolicy` enum defines what a thread that logs does when the queue of the
+ * `AsyncLogHandler` is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The logging thread waits until the writer has made room, so no record is ever lost.
+     */
+    BLOCK,
+
+    /**
+     * The record is discarded and counted; the writer later logs how many records were dropped.
+     */
+    DROP;
+
+    /**
+     * Parses a policy name, ignoring case.
+     *
+     * @param name "block" or "drop".
+     * @return The matching policy.
+     * @throws IllegalArgumentException If the name is not known.
+     */
+    public static OverflowPolicy fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
@@ -0,0 +1,111 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The `Histogram` class counts durations into fixed buckets, the way a Prometheus histogram
+ * reports them. Bucket upper bounds run from 10 microseconds to 10 seconds in 1-2.5-5 steps, with
+ * a last bucket for anything slower. Every bucket and the running sum are `LongAdder`s, so
+ * recording takes no lock, does not allocate and scales with the number of recording threads.
+ */
+public final class Histogram {
+    /** Upper bounds of the buckets, in microseconds; the last bucket has no bound. */
+    static final long[] BOUNDS_MICROS = {
+            10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000,
+    };
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_MICROS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            BOUNDS_NANOS[i] = BOUNDS_MICROS[i] * 1000;
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MICROS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * Default constructor for the `Histogram` class.
+     */
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts one duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Retrieves the number of durations in one bucket, not including the buckets below it.
+     *
+     * @param bucket The bucket index, from 0 to `BOUNDS_MICROS.length`.
+     * @return The count.
+     */
+    long bucketCount(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * Retrieves the number of recorded durations.
+     *
+     * @return The count.
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves the sum of the recorded durations.
+     *
+     * @return The sum in nanoseconds.
+     */
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket holding it.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The bound in microseconds, `Long.MAX_VALUE` if the percentile falls in the last
+     *         bucket, or 0 if nothing was recorded.
+     */
+    public long percentileMicros(double percentile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS_MICROS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
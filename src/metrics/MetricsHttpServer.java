@@ -0,0 +1,74 @@
+package metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The `MetricsHttpServer` class serves the metrics of a `MetricsRegistry` at
+ * "http://127.0.0.1:&lt;port&gt;/metrics" in the Prometheus text format. It listens on the
+ * loopback address only and answers on a single thread of its own, away from the request path.
+ */
+public final class MetricsHttpServer {
+    private final MetricsRegistry registry;
+    private HttpServer server;
+
+    /**
+     * Constructor for the `MetricsHttpServer` class.
+     *
+     * @param registry The metrics to serve.
+     */
+    public MetricsHttpServer(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Binds the endpoint and starts answering.
+     *
+     * @param port The port to listen on, or 0 for an ephemeral port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+        server.createContext("/metrics", this::serve);
+        server.start();
+    }
+
+    /**
+     * Retrieves the port the endpoint listens on.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops answering and closes the port.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
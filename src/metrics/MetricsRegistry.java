@@ -0,0 +1,196 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The `MetricsRegistry` class gathers the metrics of one server: the `RequestMetrics` its request
+ * handler records, and gauges that are read only when the metrics are collected, such as the key
+ * count or the depth of a queue. It renders them in the Prometheus text format and exposes them
+ * through JMX.
+ *
+ * Every series carries a "transport" label naming the server mode, so servers of different modes
+ * can be scraped into one place. Request series that never counted anything are left out.
+ */
+public final class MetricsRegistry implements MetricsRegistryMXBean {
+    private final String transport;
+    private final RequestMetrics requests = new RequestMetrics();
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    /**
+     * Constructor for the `MetricsRegistry` class.
+     *
+     * @param transport The server mode, used as the "transport" label, for example "tcp".
+     */
+    public MetricsRegistry(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Retrieves the request metrics to record into.
+     *
+     * @return The request metrics.
+     */
+    public RequestMetrics requests() {
+        return requests;
+    }
+
+    /**
+     * Adds a gauge.
+     *
+     * @param name  The metric name, for example "kvstore_keys".
+     * @param help  The description shown with the metric.
+     * @param value Reads the current value; it is called from the thread collecting the metrics.
+     */
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value, "gauge"));
+    }
+
+    /**
+     * Adds a counter kept elsewhere, such as the hit count of a cache.
+     *
+     * @param name  The metric name, ending in "_total".
+     * @param help  The description shown with the metric.
+     * @param value Reads the current count, which never decreases; it is called from the thread
+     *              collecting the metrics.
+     */
+    public synchronized void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value, "counter"));
+    }
+
+    /**
+     * Registers the registry with the platform MBean server as "kvstore:type=Metrics".
+     *
+     * @throws JMException If the name is taken or the registry cannot be registered.
+     */
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("kvstore:type=Metrics"));
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     *
+     * @return The metrics, one sample per line.
+     */
+    public String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        String label = "transport=\"" + transport + "\"";
+        out.append("# HELP kvstore_requests_total Requests handled, by command, wire format and outcome.\n");
+        out.append("# TYPE kvstore_requests_total counter\n");
+        for (int c = 0; c < RequestMetrics.COMMANDS.length; c++) {
+            for (int w = 0; w < RequestMetrics.WIRES.length; w++) {
+                for (int o = 0; o < RequestMetrics.OUTCOMES.length; o++) {
+                    long count = requests.count(c, w, o);
+                    if (count > 0) {
+                        out.append("kvstore_requests_total{").append(label).append(",command=\"")
+                                .append(RequestMetrics.COMMANDS[c]).append("\",wire=\"").append(RequestMetrics.WIRES[w])
+                                .append("\",outcome=\"").append(RequestMetrics.OUTCOMES[o]).append("\"} ")
+                                .append(count).append('\n');
+                    }
+                }
+            }
+        }
+        out.append("# HELP kvstore_request_duration_seconds Time taken to handle a request, by command and wire format.\n");
+        out.append("# TYPE kvstore_request_duration_seconds histogram\n");
+        for (int c = 0; c < RequestMetrics.COMMANDS.length; c++) {
+            for (int w = 0; w < RequestMetrics.WIRES.length; w++) {
+                Histogram histogram = requests.latencies(c, w);
+                String labels = label + ",command=\"" + RequestMetrics.COMMANDS[c] + "\",wire=\""
+                        + RequestMetrics.WIRES[w] + "\"";
+                long cumulative = 0;
+                for (int b = 0; b <= Histogram.BOUNDS_MICROS.length; b++) {
+                    cumulative += histogram.bucketCount(b);
+                    if (cumulative == 0) {
+                        continue;
+                    }
+                    String bound = b < Histogram.BOUNDS_MICROS.length
+                            ? BigDecimal.valueOf(Histogram.BOUNDS_MICROS[b], 6).stripTrailingZeros().toPlainString() : "+Inf";
+                    out.append("kvstore_request_duration_seconds_bucket{").append(labels).append(",le=\"")
+                            .append(bound).append("\"} ").append(cumulative).append('\n');
+                }
+                if (cumulative > 0) {
+                    out.append("kvstore_request_duration_seconds_sum{").append(labels).append("} ")
+                            .append(histogram.sumNanos() / 1e9).append('\n');
+                    out.append("kvstore_request_duration_seconds_count{").append(labels).append("} ")
+                            .append(cumulative).append('\n');
+                }
+            }
+        }
+        for (Gauge gauge : gaugeList()) {
+            out.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n');
+            out.append("# TYPE ").append(gauge.name).append(' ').append(gauge.type).append('\n');
+            out.append(gauge.name).append('{').append(label).append("} ").append(gauge.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int c = 0; c < RequestMetrics.COMMANDS.length; c++) {
+            for (int w = 0; w < RequestMetrics.WIRES.length; w++) {
+                for (int o = 0; o < RequestMetrics.OUTCOMES.length; o++) {
+                    long count = requests.count(c, w, o);
+                    if (count > 0) {
+                        counts.put(RequestMetrics.COMMANDS[c] + "." + RequestMetrics.WIRES[w] + "."
+                                + RequestMetrics.OUTCOMES[o], count);
+                    }
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getP99LatencyMicros() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        for (int c = 0; c < RequestMetrics.COMMANDS.length; c++) {
+            for (int w = 0; w < RequestMetrics.WIRES.length; w++) {
+                Histogram histogram = requests.latencies(c, w);
+                if (histogram.count() > 0) {
+                    latencies.put(RequestMetrics.COMMANDS[c] + "." + RequestMetrics.WIRES[w],
+                            histogram.percentileMicros(99));
+                }
+            }
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Gauge gauge : gaugeList()) {
+            values.put(gauge.name, gauge.value.getAsLong());
+        }
+        return values;
+    }
+
+    private synchronized List<Gauge> gaugeList() {
+        return new ArrayList<>(gauges);
+    }
+
+    /**
+     * A named value read on collection, of the Prometheus type "gauge" or "counter".
+     */
+    private static final class Gauge {
+        private final String name;
+        private final String help;
+        private final LongSupplier value;
+        private final String type;
+
+        Gauge(String name, String help, LongSupplier value, String type) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * This interface defines what a `MetricsRegistry` exposes through JMX, under the object name
+ * "kvstore:type=Metrics".
+ */
+public interface MetricsRegistryMXBean {
+
+    /**
+     * Retrieves the request counts that are not zero.
+     *
+     * @return Counts keyed by "command.wire.outcome", for example "get.text.success".
+     */
+    Map<String, Long> getRequestCounts();
+
+    /**
+     * Retrieves the 99th percentile latency of every command and wire format that has requests.
+     *
+     * @return Upper bounds in microseconds keyed by "command.wire".
+     */
+    Map<String, Long> getP99LatencyMicros();
+
+    /**
+     * Retrieves the current value of every gauge.
+     *
+     * @return Values keyed by gauge name.
+     */
+    Map<String, Long> getGauges();
+}
@@ -0,0 +1,155 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import protocol.BinaryProtocol;
+
+/**
+ * The `RequestMetrics` class counts the requests a server handles by command, wire format and
+ * outcome, and records how long each combination of command and wire format takes to handle.
+ * Every counter and histogram exists from the start and is found by index, so recording a
+ * request takes no lock and does not allocate.
+ */
+public final class RequestMetrics {
+    /** Wire format of a text request. */
+    public static final int TEXT = 0;
+
+    /** Wire format of a binary request. */
+    public static final int BINARY = 1;
+
+    /** Outcome of a request that was carried out. */
+    public static final int SUCCESS = 0;
+
+    /** Outcome of a request that was malformed or named something that cannot be done. */
+    public static final int INVALID = 1;
+
+    /** Outcome of a request that failed, a GET of a missing key included. */
+    public static final int EXCEPTION = 2;
+
+    /** Outcome of a request that an overloaded server turned away unapplied. */
+    public static final int REJECTED = 3;
+
+    static final String[] COMMANDS = {"put", "get", "delete", "mput", "mget", "mdelete", "replicate", "ping", "scan", "prefix",
+            "incrby", "cas", "mincrby", "mcas", "watch", "unknown"};
+    static final String[] WIRES = {"text", "binary"};
+    static final String[] OUTCOMES = {"success", "invalid", "exception", "rejected"};
+
+    private static final int UNKNOWN = COMMANDS.length - 1;
+
+    private final LongAdder[] counts = new LongAdder[COMMANDS.length * WIRES.length * OUTCOMES.length];
+    private final Histogram[] latencies = new Histogram[COMMANDS.length * WIRES.length];
+
+    /**
+     * Default constructor for the `RequestMetrics` class.
+     */
+    public RequestMetrics() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Finds the index of a text command. DECRBY counts as INCRBY and UNWATCH as WATCH, which
+     * they are sent as in the binary protocol.
+     *
+     * @param name The first word of a text request.
+     * @return The command index, "unknown" for anything that is no command.
+     */
+    public static int command(String name) {
+        switch (name) {
+            case "PUT":
+                return 0;
+            case "GET":
+                return 1;
+            case "DELETE":
+                return 2;
+            case "MPUT":
+                return 3;
+            case "MGET":
+                return 4;
+            case "MDELETE":
+                return 5;
+            case "PING":
+                return 7;
+            case "SCAN":
+                return 8;
+            case "PREFIX":
+                return 9;
+            case "INCRBY":
+            case "DECRBY":
+                return 10;
+            case "CAS":
+                return 11;
+            case "MINCRBY":
+                return 12;
+            case "MCAS":
+                return 13;
+            case "WATCH":
+            case "UNWATCH":
+                return 14;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * Finds the index of a binary command.
+     *
+     * @param opcode The opcode of a binary request, with or without flag bits.
+     * @return The command index, "unknown" for an opcode that is no command.
+     */
+    public static int command(byte opcode) {
+        int index = BinaryProtocol.baseOpcode(opcode) - BinaryProtocol.PUT;
+        return index >= 0 && index < UNKNOWN ? index : UNKNOWN;
+    }
+
+    /**
+     * Counts one handled request and records how long it took.
+     *
+     * @param command The command index from `command`.
+     * @param wire    `TEXT` or `BINARY`.
+     * @param outcome `SUCCESS`, `INVALID`, `EXCEPTION` or `REJECTED`.
+     * @param nanos   The time taken to handle the request.
+     */
+    public void record(int command, int wire, int outcome, long nanos) {
+        counts[(command * WIRES.length + wire) * OUTCOMES.length + outcome].increment();
+        latencies[command * WIRES.length + wire].record(nanos);
+    }
+
+    /**
+     * Counts one rejected request. Its latency is not recorded, so that fast rejections do not
+     * hide how long the admitted requests take.
+     *
+     * @param command The command index from `command`.
+     * @param wire    `TEXT` or `BINARY`.
+     */
+    public void reject(int command, int wire) {
+        counts[(command * WIRES.length + wire) * OUTCOMES.length + REJECTED].increment();
+    }
+
+    /**
+     * Retrieves the number of requests handled with a given outcome.
+     *
+     * @param command The command index.
+     * @param wire    `TEXT` or `BINARY`.
+     * @param outcome `SUCCESS`, `INVALID`, `EXCEPTION` or `REJECTED`.
+     * @return The count.
+     */
+    public long count(int command, int wire, int outcome) {
+        return counts[(command * WIRES.length + wire) * OUTCOMES.length + outcome].sum();
+    }
+
+    /**
+     * Retrieves the latencies of a command in a wire format.
+     *
+     * @param command The command index.
+     * @param wire    `TEXT` or `BINARY`.
+     * @return The histogram, which keeps recording.
+     */
+    public Histogram latencies(int command, int wire) {
+        return latencies[command * WIRES.length + wire];
+    }
+}
@@ -0,0 +1,1059 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The `BinaryProtocol` class encodes and decodes the compact binary wire format, working
+ * directly on `ByteBuffer`s. All numbers are big-endian.
+ *
+ * <pre>
+ * request         byte opcode, varint key length, UTF-8 key bytes, int value (PUT) or delta
+ *                 (INCRBY) or long expected value and int new value (CAS) or int flags (WATCH),
+ *                 long time to live millis (PUT with `EXPIRES` only), long request id
+ * response        byte opcode, byte status, long request id, int value (successful GET, result
+ *                 of a successful INCRBY, current value of a CAS answered with CONFLICT, or
+ *                 retry-after millis of a request of any kind answered with BUSY)
+ * batch request   byte opcode, varint key count, per key: varint key length, UTF-8 key bytes,
+ *                 int value (MPUT) or delta (MINCRBY) or long expected and int new value (MCAS);
+ *                 long request id
+ * batch response  byte opcode, byte status, long request id; if the status is OK: varint key
+ *                 count, per key: byte status, int value (where a single-key response has one)
+ * replicate       byte opcode, varint source node, long as-of millis, varint mutation count, per
+ *                 mutation: byte kind (0 put, 1 delete), varint key length, UTF-8 key bytes, int
+ *                 value (put only); long request id
+ * ping            byte opcode, long request id; answered with an OK response
+ * scan request    byte opcode, byte bounds, varint page size; for SCAN the keys flagged in the
+ *                 bounds: from, to, continuation token; for PREFIX the prefix and, if flagged,
+ *                 the continuation token; every key as a varint length and UTF-8 bytes; long
+ *                 request id
+ * scan response   byte opcode, byte status, long request id; if the status is OK: short entry
+ *                 count, per entry: varint key length, UTF-8 key bytes, int value; byte 1 if the
+ *                 range continues after the last entry, else 0
+ * watch event     byte opcode (WATCH), byte event (PUT_EVENT, DELETE_EVENT or OVERFLOW_EVENT),
+ *                 long request id of the WATCH; except for OVERFLOW_EVENT: varint key length,
+ *                 UTF-8 key bytes; int value (PUT_EVENT only)
+ * </pre>
+ *
+ * The opcode of a write may carry `ACK_ONE`, `ACK_ALL` or `ACK_LOCAL` in its flag bits to choose
+ * how many replicas must hold the write before it is acknowledged, and a PUT may carry `EXPIRES`
+ * to give its key a time to live; responses carry the plain opcode. The expected value of a CAS
+ * is `Long.MIN_VALUE` for a key that has to be absent; a CAS whose key does not hold the expected
+ * value is answered with NOT_FOUND if the key is absent and with CONFLICT and the current value
+ * otherwise. A WATCH is answered with an OK response, after which the server pushes
+ * watch events carrying its request id until the watch is cancelled with `UNWATCH` or ends
+ * with an overflow event. A server that is overloaded answers any request but a PING or a
+ * REPLICATE with BUSY and the number of milliseconds after which to send it again, without
+ * applying it. Lengths and counts are unsigned LEB128 varints of at most three bytes. Every opcode has its
+ * high bit set, while a text request starts either with a `writeUTF` length below 32768 (TCP) or
+ * with an ASCII letter (UDP), so a server tells the two protocols apart by the first byte.
+ */
+public final class BinaryProtocol {
+
+    /** Opcode of a PUT request. */
+    public static final byte PUT = (byte) 0x81;
+
+    /** Opcode of a GET request. */
+    public static final byte GET = (byte) 0x82;
+
+    /** Opcode of a DELETE request. */
+    public static final byte DELETE = (byte) 0x83;
+
+    /** Opcode of a batch of PUTs. */
+    public static final byte MPUT = (byte) 0x84;
+
+    /** Opcode of a batch of GETs. */
+    public static final byte MGET = (byte) 0x85;
+
+    /** Opcode of a batch of DELETEs. */
+    public static final byte MDELETE = (byte) 0x86;
+
+    /** Opcode of a batch of mutations streamed from a primary node to a replica. */
+    public static final byte REPLICATE = (byte) 0x87;
+
+    /** Opcode of a health check, which the server answers without touching the store. */
+    public static final byte PING = (byte) 0x88;
+
+    /** Opcode of a SCAN, which reads a page of the entries in a range of keys. */
+    public static final byte SCAN = (byte) 0x89;
+
+    /** Opcode of a PREFIX scan, which reads a page of the entries whose keys start with a prefix. */
+    public static final byte PREFIX = (byte) 0x8A;
+
+    /** Opcode of an INCRBY, which adds a delta to the value of a key; DECRBY is sent as a negative delta. */
+    public static final byte INCRBY = (byte) 0x8B;
+
+    /** Opcode of a CAS, which sets the value of a key if it holds an expected value. */
+    public static final byte CAS = (byte) 0x8C;
+
+    /** Opcode of a batch of INCRBYs. */
+    public static final byte MINCRBY = (byte) 0x8D;
+
+    /** Opcode of a batch of CASes. */
+    public static final byte MCAS = (byte) 0x8E;
+
+    /** Opcode of a WATCH, which starts or cancels the pushing of the changes of a key or prefix. */
+    public static final byte WATCH = (byte) 0x8F;
+
+    /** Flag of a WATCH that covers every key starting with its key. */
+    public static final int WATCH_PREFIX = 1;
+
+    /** Flag of a WATCH that cancels the earlier watch of its key or prefix on the connection. */
+    public static final int UNWATCH = 2;
+
+    /** Size of a PING request. */
+    public static final int PING_REQUEST_BYTES = 9;
+
+    /** Flag of a write that is acknowledged once one replica holds it. */
+    public static final byte ACK_ONE = 0x10;
+
+    /** Flag of a write that is acknowledged once every replica holds it. */
+    public static final byte ACK_ALL = 0x20;
+
+    /** Flag of a write that is acknowledged once the primary has applied it. */
+    public static final byte ACK_LOCAL = 0x30;
+
+    /** The opcode bits holding the acknowledgement flag; without a flag the server's default applies. */
+    public static final byte ACK_MASK = 0x30;
+
+    /** Flag of a PUT that carries a time to live after its value. */
+    public static final byte EXPIRES = 0x40;
+
+    /** Status of a request that succeeded. */
+    public static final byte OK = 0;
+
+    /** Status of a GET or DELETE on a key that is not present. */
+    public static final byte NOT_FOUND = 1;
+
+    /** Status of a request the server could not apply. */
+    public static final byte ERROR = 2;
+
+    /** Status of a CAS whose key holds another value than the expected one. */
+    public static final byte CONFLICT = 3;
+
+    /** Event of a watched key that was written; its new value follows the key. */
+    public static final byte PUT_EVENT = 4;
+
+    /** Event of a watched key that was removed. */
+    public static final byte DELETE_EVENT = 5;
+
+    /** Event of a watch that ended because the client fell behind; changes may have been missed. */
+    public static final byte OVERFLOW_EVENT = 6;
+
+    /** Status of a request the server rejected unapplied because it is overloaded; a retry-after hint follows. */
+    public static final byte BUSY = 7;
+
+    /** Largest key, in bytes, that fits in the three byte varint. */
+    public static final int MAX_KEY_BYTES = (1 << 21) - 1;
+
+    /** Largest number of keys in one batch. */
+    public static final int MAX_BATCH_KEYS = 1 << 16;
+
+    /** Bound flag of a SCAN whose range starts at a key rather than at the smallest key. */
+    public static final byte FROM_KEY = 1;
+
+    /** Bound flag of a SCAN whose range ends before a key rather than after the largest key. */
+    public static final byte TO_KEY = 2;
+
+    /** Bound flag of a SCAN or PREFIX that continues after the last key of an earlier page. */
+    public static final byte AFTER_KEY = 4;
+
+    /** Largest number of entries in one page of a scan. */
+    public static final int MAX_SCAN_PAGE = 1024;
+
+    /** Most bytes of encoded entries in one page of a scan; a page ends early rather than exceed it. */
+    public static final int SCAN_PAGE_BYTES = 32768;
+
+    /** Size of the largest response to a single-key request. */
+    public static final int MAX_RESPONSE_BYTES = 14;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Checks whether the first byte of a connection or datagram starts a binary request.
+     *
+     * @param firstByte The first byte received.
+     * @return True for the binary protocol, false for the text protocol.
+     */
+    public static boolean isBinary(byte firstByte) {
+        return firstByte < 0;
+    }
+
+    /**
+     * Strips the acknowledgement and expiry flags from the first byte of a request.
+     *
+     * @param opcode The opcode as sent.
+     * @return The plain opcode.
+     */
+    public static byte baseOpcode(byte opcode) {
+        return (byte) (opcode & ~(ACK_MASK | EXPIRES));
+    }
+
+    /**
+     * Checks whether an opcode carries a batch of keys.
+     *
+     * @param opcode The opcode of a request or response.
+     * @return True for MPUT, MGET, MDELETE, MINCRBY and MCAS.
+     */
+    public static boolean isBatch(byte opcode) {
+        return opcode == MPUT || opcode == MGET || opcode == MDELETE || opcode == MINCRBY || opcode == MCAS;
+    }
+
+    /**
+     * Checks whether an opcode reads a page of a scan.
+     *
+     * @param opcode The opcode of a request or response.
+     * @return True for SCAN and PREFIX.
+     */
+    public static boolean isScan(byte opcode) {
+        return opcode == SCAN || opcode == PREFIX;
+    }
+
+    /**
+     * Returns the size of the request starting at the buffer position. While the request is
+     * incomplete the result is a lower bound that is larger than the bytes available, and it
+     * grows as more of the request arrives, so a reader can always read up to it without
+     * reading past the request. The buffer position is left untouched.
+     *
+     * @param buffer A buffer in read mode.
+     * @return The request size, or a lower bound of it if the buffer does not hold all of it.
+     * @throws ProtocolException If the opcode is unknown or a length is malformed.
+     */
+    public static int requestLength(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (start >= limit) {
+            return 1;
+        }
+        byte first = buffer.get(start);
+        byte opcode = baseOpcode(first);
+        if ((first & EXPIRES) != 0 && opcode != PUT) {
+            throw new ProtocolException("Time to live on opcode " + (opcode & 0xFF));
+        }
+        if (opcode == REPLICATE) {
+            return replicateLength(buffer, start, limit);
+        }
+        if (opcode == PING) {
+            return PING_REQUEST_BYTES;
+        }
+        if (isScan(opcode)) {
+            return scanLength(buffer, start, limit, opcode);
+        }
+        if (opcode != PUT && opcode != GET && opcode != DELETE && opcode != INCRBY && opcode != CAS
+                && opcode != WATCH && !isBatch(opcode)) {
+            throw new ProtocolException("Unknown opcode " + (opcode & 0xFF));
+        }
+        int valueBytes = valueBytes(opcode) + ((first & EXPIRES) != 0 ? 8 : 0);
+        int index = start + 1;
+        int count = 1;
+        if (isBatch(opcode)) {
+            long header = varintAt(buffer, index);
+            if (header < 0) {
+                return limit - start + 1;
+            }
+            count = (int) header;
+            index += (int) (header >>> 32);
+            if (count == 0 || count > MAX_BATCH_KEYS) {
+                throw new ProtocolException("Batch of " + count + " keys");
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            long keyLength = varintAt(buffer, index);
+            if (keyLength < 0) {
+                // Every remaining key takes at least a one byte length and its value.
+                return Math.max(index - start + (count - k) * (1 + valueBytes) + 8, limit - start + 1);
+            }
+            index += (int) (keyLength >>> 32) + (int) keyLength + valueBytes;
+        }
+        return index - start + 8;
+    }
+
+    /**
+     * Returns the size, or a growing lower bound of it, of the SCAN or PREFIX request at an index.
+     */
+    private static int scanLength(ByteBuffer buffer, int start, int limit, byte opcode) throws ProtocolException {
+        if (limit - start < 2) {
+            // The bounds, a one byte page size, a one byte key length and the request id follow.
+            return 12;
+        }
+        byte bounds = buffer.get(start + 1);
+        if ((bounds & ~(FROM_KEY | TO_KEY | AFTER_KEY)) != 0 || (opcode == PREFIX && (bounds & AFTER_KEY) != bounds)) {
+            throw new ProtocolException("Scan bounds " + bounds);
+        }
+        long pageSize = varintAt(buffer, start + 2);
+        if (pageSize < 0) {
+            return limit - start + 1;
+        }
+        if ((int) pageSize < 1 || (int) pageSize > MAX_SCAN_PAGE) {
+            throw new ProtocolException("Scan page of " + (int) pageSize + " entries");
+        }
+        int index = start + 2 + (int) (pageSize >>> 32);
+        int count = scanKeyCount(opcode, bounds);
+        for (int k = 0; k < count; k++) {
+            long keyLength = varintAt(buffer, index);
+            if (keyLength < 0) {
+                return Math.max(index - start + (count - k) + 8, limit - start + 1);
+            }
+            index += (int) (keyLength >>> 32) + (int) keyLength;
+        }
+        return index - start + 8;
+    }
+
+    /**
+     * Returns the bytes that follow each key of a request with a plain opcode, time to live
+     * aside.
+     */
+    private static int valueBytes(byte opcode) {
+        if (opcode == PUT || opcode == MPUT || opcode == INCRBY || opcode == MINCRBY || opcode == WATCH) {
+            return 4;
+        }
+        return opcode == CAS || opcode == MCAS ? 12 : 0;
+    }
+
+    private static int scanKeyCount(byte opcode, byte bounds) {
+        return opcode == PREFIX ? 1 + Integer.bitCount(bounds) : Integer.bitCount(bounds);
+    }
+
+    /**
+     * Returns the size, or a growing lower bound of it, of the REPLICATE request at an index.
+     */
+    private static int replicateLength(ByteBuffer buffer, int start, int limit) throws ProtocolException {
+        long source = varintAt(buffer, start + 1);
+        if (source < 0) {
+            return limit - start + 1;
+        }
+        int index = start + 1 + (int) (source >>> 32);
+        if (limit - index <= 8) {
+            // The as-of time, a one byte count and the request id follow.
+            return index - start + 17;
+        }
+        index += 8;
+        long header = varintAt(buffer, index);
+        if (header < 0) {
+            return limit - start + 1;
+        }
+        int count = (int) header;
+        index += (int) (header >>> 32);
+        if (count > MAX_BATCH_KEYS) {
+            throw new ProtocolException("Replication batch of " + count + " mutations");
+        }
+        for (int k = 0; k < count; k++) {
+            // Every remaining mutation takes at least its kind and a one byte length.
+            int bound = Math.max(index - start + (count - k) * 2 + 8, limit - start + 1);
+            if (index >= limit) {
+                return bound;
+            }
+            boolean removal = buffer.get(index++) != 0;
+            long keyLength = varintAt(buffer, index);
+            if (keyLength < 0) {
+                return bound;
+            }
+            index += (int) (keyLength >>> 32) + (int) keyLength + (removal ? 0 : 4);
+        }
+        return index - start + 8;
+    }
+
+    /**
+     * Decodes the complete request at the buffer position into a command and advances past it.
+     * The keys of the command point into the buffer.
+     *
+     * @param buffer  A buffer in read mode holding at least `requestLength(buffer)` bytes.
+     * @param command The command to fill.
+     */
+    public static void readRequest(ByteBuffer buffer, Command command) {
+        byte first = buffer.get();
+        byte opcode = baseOpcode(first);
+        command.setAck((byte) (first & ACK_MASK));
+        if (opcode == REPLICATE) {
+            readReplicateRequest(buffer, command);
+            return;
+        }
+        if (opcode == PING) {
+            command.set(PING, 0, buffer.getLong());
+            return;
+        }
+        if (isScan(opcode)) {
+            readScanRequest(buffer, command, opcode);
+            return;
+        }
+        int count = isBatch(opcode) ? readVarint(buffer) : 1;
+        command.ensureCapacity(count);
+        int valueBytes = valueBytes(opcode);
+        for (int k = 0; k < count; k++) {
+            int keyBytes = readVarint(buffer);
+            command.key(k).set(buffer, buffer.position(), keyBytes);
+            buffer.position(buffer.position() + keyBytes);
+            command.setExpected(k, valueBytes == 12 ? buffer.getLong() : 0);
+            command.setValue(k, valueBytes > 0 ? buffer.getInt() : 0);
+        }
+        long ttlMillis = (first & EXPIRES) != 0 ? buffer.getLong() : 0;
+        command.set(opcode, count, buffer.getLong());
+        command.setTtl(ttlMillis);
+    }
+
+    private static void readScanRequest(ByteBuffer buffer, Command command, byte opcode) {
+        byte bounds = buffer.get();
+        int pageSize = readVarint(buffer);
+        command.ensureCapacity(3);
+        // The keys go to fixed places: the start of the range or the prefix, its end, the token.
+        for (int k = 0; k < 3; k++) {
+            boolean present = k == 0 ? opcode == PREFIX || (bounds & FROM_KEY) != 0
+                    : (bounds & (k == 1 ? TO_KEY : AFTER_KEY)) != 0;
+            if (present) {
+                int keyBytes = readVarint(buffer);
+                command.key(k).set(buffer, buffer.position(), keyBytes);
+                buffer.position(buffer.position() + keyBytes);
+            }
+        }
+        command.setBounds(bounds);
+        command.set(opcode, pageSize, buffer.getLong());
+    }
+
+    private static void readReplicateRequest(ByteBuffer buffer, Command command) {
+        int source = readVarint(buffer);
+        long asOf = buffer.getLong();
+        int count = readVarint(buffer);
+        command.ensureCapacity(count);
+        for (int k = 0; k < count; k++) {
+            boolean removal = buffer.get() != 0;
+            int keyBytes = readVarint(buffer);
+            command.key(k).set(buffer, buffer.position(), keyBytes);
+            buffer.position(buffer.position() + keyBytes);
+            command.setValue(k, removal ? 0 : buffer.getInt());
+            command.setRemoval(k, removal);
+        }
+        command.setReplication(source, asOf);
+        command.set(REPLICATE, count, buffer.getLong());
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a request.
+     *
+     * @param opcode The request opcode, with or without its flags.
+     * @param key    The key of the request.
+     * @return The encoded request size.
+     */
+    public static int requestSize(byte opcode, CharSequence key) {
+        int keyBytes = utf8Length(key);
+        return 1 + varintSize(keyBytes) + keyBytes + valueBytes(baseOpcode(opcode)) + 8
+                + ((opcode & EXPIRES) != 0 ? 8 : 0);
+    }
+
+    /**
+     * Encodes a request at the buffer position.
+     *
+     * @param buffer    A buffer in write mode with at least `requestSize` bytes remaining.
+     * @param opcode    The request opcode, with or without an acknowledgement flag.
+     * @param key       The key of the request.
+     * @param value     The value of a PUT, the delta of an INCRBY or the flags of a WATCH; ignored
+     *                  for other requests.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If the key is longer than `MAX_KEY_BYTES`.
+     */
+    public static void writeRequest(ByteBuffer buffer, byte opcode, CharSequence key, int value, long requestId) {
+        writeRequest(buffer, opcode, key, value, 0, requestId);
+    }
+
+    /**
+     * Encodes a CAS request at the buffer position.
+     *
+     * @param buffer    A buffer in write mode with at least `requestSize` bytes remaining.
+     * @param opcode    CAS, with or without an acknowledgement flag.
+     * @param key       The key of the request.
+     * @param expected  The value the key has to hold, or `Long.MIN_VALUE` for an absent key.
+     * @param value     The new value.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If the key is longer than `MAX_KEY_BYTES`.
+     */
+    public static void writeCasRequest(ByteBuffer buffer, byte opcode, CharSequence key, long expected, int value,
+                                       long requestId) {
+        int keyBytes = utf8Length(key);
+        if (keyBytes > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key too long: " + keyBytes + " bytes");
+        }
+        buffer.put(opcode);
+        writeVarint(buffer, keyBytes);
+        writeUtf8(buffer, key);
+        buffer.putLong(expected);
+        buffer.putInt(value);
+        buffer.putLong(requestId);
+    }
+
+    /**
+     * Encodes a request at the buffer position, with the time to live of a PUT that carries
+     * `EXPIRES`.
+     *
+     * @param buffer    A buffer in write mode with at least `requestSize` bytes remaining.
+     * @param opcode    The request opcode, with or without its flags.
+     * @param key       The key of the request.
+     * @param value     The value of a PUT, the delta of an INCRBY or the flags of a WATCH; ignored
+     *                  for other requests.
+     * @param ttlMillis The time to live of a PUT with `EXPIRES`; ignored for other requests.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If the key is longer than `MAX_KEY_BYTES`.
+     */
+    public static void writeRequest(ByteBuffer buffer, byte opcode, CharSequence key, int value, long ttlMillis,
+                                    long requestId) {
+        int keyBytes = utf8Length(key);
+        if (keyBytes > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key too long: " + keyBytes + " bytes");
+        }
+        buffer.put(opcode);
+        writeVarint(buffer, keyBytes);
+        writeUtf8(buffer, key);
+        if (valueBytes(baseOpcode(opcode)) == 4) {
+            buffer.putInt(value);
+            if ((opcode & EXPIRES) != 0) {
+                buffer.putLong(ttlMillis);
+            }
+        }
+        buffer.putLong(requestId);
+    }
+
+    /**
+     * Encodes a PING request at the buffer position.
+     *
+     * @param buffer    A buffer in write mode with at least `PING_REQUEST_BYTES` bytes remaining.
+     * @param requestId The id the response will carry.
+     */
+    public static void writePingRequest(ByteBuffer buffer, long requestId) {
+        buffer.put(PING);
+        buffer.putLong(requestId);
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a batch request.
+     *
+     * @param opcode The batch opcode, with or without an acknowledgement flag.
+     * @param keys   The keys of the batch.
+     * @param count  The number of keys to use from the start of the array.
+     * @return The encoded request size.
+     */
+    public static int batchRequestSize(byte opcode, CharSequence[] keys, int count) {
+        int size = 1 + varintSize(count) + 8;
+        int valueBytes = valueBytes(baseOpcode(opcode));
+        for (int k = 0; k < count; k++) {
+            int keyBytes = utf8Length(keys[k]);
+            size += varintSize(keyBytes) + keyBytes + valueBytes;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a batch request at the buffer position.
+     *
+     * @param buffer    A buffer in write mode with at least `batchRequestSize` bytes remaining.
+     * @param opcode    The batch opcode, with or without an acknowledgement flag.
+     * @param keys      The keys of the batch.
+     * @param values    The value of each key for an MPUT or its delta for an MINCRBY; ignored for
+     *                  other batches.
+     * @param count     The number of keys to use from the start of the arrays, at least one.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If the batch is empty or too large, or a key is too long.
+     */
+    public static void writeBatchRequest(ByteBuffer buffer, byte opcode, CharSequence[] keys, int[] values,
+                                         int count, long requestId) {
+        writeBatchRequest(buffer, opcode, keys, null, values, count, requestId);
+    }
+
+    /**
+     * Encodes a batch request at the buffer position, with the expected values of an MCAS.
+     *
+     * @param buffer    A buffer in write mode with at least `batchRequestSize` bytes remaining.
+     * @param opcode    The batch opcode, with or without an acknowledgement flag.
+     * @param keys      The keys of the batch.
+     * @param expected  The value each key of an MCAS has to hold, or `Long.MIN_VALUE` for an
+     *                  absent key; ignored for other batches.
+     * @param values    The value of each key for an MPUT or MCAS or its delta for an MINCRBY;
+     *                  ignored for other batches.
+     * @param count     The number of keys to use from the start of the arrays, at least one.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If the batch is empty or too large, or a key is too long.
+     */
+    public static void writeBatchRequest(ByteBuffer buffer, byte opcode, CharSequence[] keys, long[] expected,
+                                         int[] values, int count, long requestId) {
+        if (count < 1 || count > MAX_BATCH_KEYS) {
+            throw new IllegalArgumentException("Batch of " + count + " keys");
+        }
+        buffer.put(opcode);
+        writeVarint(buffer, count);
+        for (int k = 0; k < count; k++) {
+            int keyBytes = utf8Length(keys[k]);
+            if (keyBytes > MAX_KEY_BYTES) {
+                throw new IllegalArgumentException("Key too long: " + keyBytes + " bytes");
+            }
+            writeVarint(buffer, keyBytes);
+            writeUtf8(buffer, keys[k]);
+            if (baseOpcode(opcode) == MCAS) {
+                buffer.putLong(expected[k]);
+            }
+            if (baseOpcode(opcode) != MGET && baseOpcode(opcode) != MDELETE) {
+                buffer.putInt(values[k]);
+            }
+        }
+        buffer.putLong(requestId);
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a SCAN or PREFIX request.
+     *
+     * @param first    The start of the range of a SCAN or the prefix of a PREFIX; null for a
+     *                 SCAN from the smallest key.
+     * @param to       The end of the range of a SCAN, or null.
+     * @param after    The continuation token, or null for the first page.
+     * @param pageSize The most entries the page may hold.
+     * @return The encoded request size.
+     */
+    public static int scanRequestSize(CharSequence first, CharSequence to, CharSequence after, int pageSize) {
+        int size = 1 + 1 + varintSize(pageSize) + 8;
+        for (CharSequence key : new CharSequence[] {first, to, after}) {
+            if (key != null) {
+                int keyBytes = utf8Length(key);
+                size += varintSize(keyBytes) + keyBytes;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a SCAN or PREFIX request at the buffer position.
+     *
+     * @param buffer    A buffer in write mode with at least `scanRequestSize` bytes remaining.
+     * @param opcode    SCAN or PREFIX.
+     * @param first     The start of the range of a SCAN or the prefix of a PREFIX; null for a
+     *                  SCAN from the smallest key.
+     * @param to        The end of the range of a SCAN, or null for one to the largest key.
+     * @param after     The continuation token of the previous page, or null for the first page.
+     * @param pageSize  The most entries the page may hold, from 1 to `MAX_SCAN_PAGE`.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If the page size is out of range, a key is too long or a
+     *                                  PREFIX has no prefix or an end.
+     */
+    public static void writeScanRequest(ByteBuffer buffer, byte opcode, CharSequence first, CharSequence to,
+                                        CharSequence after, int pageSize, long requestId) {
+        if (pageSize < 1 || pageSize > MAX_SCAN_PAGE) {
+            throw new IllegalArgumentException("Scan page of " + pageSize + " entries");
+        }
+        if (opcode == PREFIX && (first == null || to != null)) {
+            throw new IllegalArgumentException("A prefix scan needs a prefix and no end");
+        }
+        byte bounds = (byte) ((opcode == SCAN && first != null ? FROM_KEY : 0) | (to != null ? TO_KEY : 0)
+                | (after != null ? AFTER_KEY : 0));
+        buffer.put(opcode);
+        buffer.put(bounds);
+        writeVarint(buffer, pageSize);
+        for (CharSequence key : new CharSequence[] {first, to, after}) {
+            if (key != null) {
+                int keyBytes = utf8Length(key);
+                if (keyBytes > MAX_KEY_BYTES) {
+                    throw new IllegalArgumentException("Key too long: " + keyBytes + " bytes");
+                }
+                writeVarint(buffer, keyBytes);
+                writeUtf8(buffer, key);
+            }
+        }
+        buffer.putLong(requestId);
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a REPLICATE request.
+     *
+     * @param source   The index of the sending node on the ring.
+     * @param keys     The keys of the mutations.
+     * @param removals Whether each mutation deletes its key.
+     * @param count    The number of mutations to use from the start of the arrays.
+     * @return The encoded request size.
+     */
+    public static int replicateRequestSize(int source, CharSequence[] keys, boolean[] removals, int count) {
+        int size = 1 + varintSize(source) + 8 + varintSize(count) + 8;
+        for (int k = 0; k < count; k++) {
+            int keyBytes = utf8Length(keys[k]);
+            size += 1 + varintSize(keyBytes) + keyBytes + (removals[k] ? 0 : 4);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a REPLICATE request at the buffer position. An empty request only tells the
+     * replica how current it is.
+     *
+     * @param buffer    A buffer in write mode with at least `replicateRequestSize` bytes remaining.
+     * @param source    The index of the sending node on the ring.
+     * @param asOf      The time, in milliseconds, up to which the sender has sent every mutation.
+     * @param keys      The keys of the mutations.
+     * @param values    The value of each put; ignored for deletes.
+     * @param removals  Whether each mutation deletes its key.
+     * @param count     The number of mutations to use from the start of the arrays.
+     * @param requestId The id the response will carry.
+     * @throws IllegalArgumentException If there are too many mutations or a key is too long.
+     */
+    public static void writeReplicateRequest(ByteBuffer buffer, int source, long asOf, CharSequence[] keys,
+                                             int[] values, boolean[] removals, int count, long requestId) {
+        if (count > MAX_BATCH_KEYS) {
+            throw new IllegalArgumentException("Replication batch of " + count + " mutations");
+        }
+        buffer.put(REPLICATE);
+        writeVarint(buffer, source);
+        buffer.putLong(asOf);
+        writeVarint(buffer, count);
+        for (int k = 0; k < count; k++) {
+            int keyBytes = utf8Length(keys[k]);
+            if (keyBytes > MAX_KEY_BYTES) {
+                throw new IllegalArgumentException("Key too long: " + keyBytes + " bytes");
+            }
+            buffer.put((byte) (removals[k] ? 1 : 0));
+            writeVarint(buffer, keyBytes);
+            writeUtf8(buffer, keys[k]);
+            if (!removals[k]) {
+                buffer.putInt(values[k]);
+            }
+        }
+        buffer.putLong(requestId);
+    }
+
+    /**
+     * Encodes a response at the buffer position.
+     *
+     * @param buffer    A buffer in write mode with at least `MAX_RESPONSE_BYTES` remaining.
+     * @param opcode    The opcode of the single-key request being answered, or of any request
+     *                  answered with BUSY.
+     * @param status    The outcome of the request.
+     * @param requestId The id of the request being answered.
+     * @param value     The value found by a successful GET, the result of a successful INCRBY,
+     *                  the current value of a CAS answered with CONFLICT or the retry-after
+     *                  millis of a BUSY response; ignored otherwise.
+     */
+    public static void writeResponse(ByteBuffer buffer, byte opcode, byte status, long requestId, int value) {
+        buffer.put(opcode);
+        buffer.put(status);
+        buffer.putLong(requestId);
+        if (hasValue(opcode, status)) {
+            buffer.putInt(value);
+        }
+    }
+
+    /**
+     * Encodes the header of a batch response at the buffer position. When the status is OK it
+     * has to be followed by one `writeBatchEntry` per key, in the order of the request.
+     *
+     * @param buffer    A buffer in write mode with at least `maxResponseSize` bytes remaining.
+     * @param opcode    The opcode of the batch being answered.
+     * @param status    OK if the batch was applied, ERROR if it was rejected as a whole.
+     * @param requestId The id of the batch being answered.
+     * @param count     The number of keys in the batch.
+     */
+    public static void writeBatchHeader(ByteBuffer buffer, byte opcode, byte status, long requestId, int count) {
+        buffer.put(opcode);
+        buffer.put(status);
+        buffer.putLong(requestId);
+        if (status == OK) {
+            writeVarint(buffer, count);
+        }
+    }
+
+    /**
+     * Encodes the outcome for one key of a batch response.
+     *
+     * @param buffer A buffer in write mode positioned after the header or the previous entry.
+     * @param opcode The opcode of the batch being answered.
+     * @param status The outcome for the key.
+     * @param value  The value found by an MGET, the result of an MINCRBY or the current value
+     *               of a conflicting MCAS; ignored otherwise.
+     */
+    public static void writeBatchEntry(ByteBuffer buffer, byte opcode, byte status, int value) {
+        buffer.put(status);
+        if (hasValue(opcode, status)) {
+            buffer.putInt(value);
+        }
+    }
+
+    /**
+     * Encodes the header of a scan response at the buffer position. When the status is OK it
+     * has to be followed by one `writeScanEntry` per entry and by `endScanResponse`.
+     *
+     * @param buffer    A buffer in write mode with at least `maxResponseSize` bytes remaining.
+     * @param opcode    SCAN or PREFIX.
+     * @param status    OK, or ERROR if the scan failed.
+     * @param requestId The id of the request being answered.
+     */
+    public static void writeScanHeader(ByteBuffer buffer, byte opcode, byte status, long requestId) {
+        buffer.put(opcode);
+        buffer.put(status);
+        buffer.putLong(requestId);
+        if (status == OK) {
+            // The entry count is filled in by `endScanResponse`.
+            buffer.putShort((short) 0);
+        }
+    }
+
+    /**
+     * Returns the number of bytes an entry takes in a scan response.
+     *
+     * @param key The key of the entry.
+     * @return The encoded entry size.
+     */
+    public static int scanEntrySize(CharSequence key) {
+        int keyBytes = utf8Length(key);
+        return varintSize(keyBytes) + keyBytes + 4;
+    }
+
+    /**
+     * Encodes an entry of a scan response.
+     *
+     * @param buffer A buffer in write mode positioned after the header or the previous entry.
+     * @param key    The key of the entry.
+     * @param value  The value of the key.
+     */
+    public static void writeScanEntry(ByteBuffer buffer, CharSequence key, int value) {
+        writeVarint(buffer, utf8Length(key));
+        writeUtf8(buffer, key);
+        buffer.putInt(value);
+    }
+
+    /**
+     * Completes a successful scan response.
+     *
+     * @param buffer A buffer in write mode positioned after the last entry.
+     * @param start  The position the header was written at.
+     * @param count  The number of entries written.
+     * @param more   True if the range continues after the last entry.
+     */
+    public static void endScanResponse(ByteBuffer buffer, int start, int count, boolean more) {
+        buffer.putShort(start + 10, (short) count);
+        buffer.put((byte) (more ? 1 : 0));
+    }
+
+    /**
+     * Returns the number of bytes a watch event takes.
+     *
+     * @param key The key that changed, or null for an overflow event.
+     * @return The encoded event size.
+     */
+    public static int eventSize(CharSequence key) {
+        if (key == null) {
+            return 10;
+        }
+        int keyBytes = utf8Length(key);
+        return 10 + varintSize(keyBytes) + keyBytes + 4;
+    }
+
+    /**
+     * Encodes a watch event at the buffer position.
+     *
+     * @param buffer  A buffer in write mode with at least `eventSize` bytes remaining.
+     * @param event   PUT_EVENT, DELETE_EVENT or OVERFLOW_EVENT.
+     * @param watchId The request id of the WATCH the event belongs to.
+     * @param key     The key that changed; ignored for an overflow event.
+     * @param value   The new value of the key; ignored unless the event is PUT_EVENT.
+     */
+    public static void writeEvent(ByteBuffer buffer, byte event, long watchId, CharSequence key, int value) {
+        buffer.put(WATCH);
+        buffer.put(event);
+        buffer.putLong(watchId);
+        if (event != OVERFLOW_EVENT) {
+            writeVarint(buffer, utf8Length(key));
+            writeUtf8(buffer, key);
+            if (event == PUT_EVENT) {
+                buffer.putInt(value);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the largest response to a request.
+     *
+     * @param command A decoded request.
+     * @return The number of bytes a response to it takes at most.
+     */
+    public static int maxResponseSize(Command command) {
+        if (isScan(command.opcode())) {
+            return 13 + SCAN_PAGE_BYTES;
+        }
+        if (!isBatch(command.opcode())) {
+            return MAX_RESPONSE_BYTES;
+        }
+        byte opcode = command.opcode();
+        boolean withValues = opcode == MGET || opcode == MINCRBY || opcode == MCAS;
+        // A BUSY response is as large as a single-key one.
+        return Math.max(MAX_RESPONSE_BYTES, 10 + varintSize(command.count()) + command.count() * (withValues ? 5 : 1));
+    }
+
+    /**
+     * Returns the size of the response starting at the buffer position. Like `requestLength`,
+     * the result is a growing lower bound while the response is incomplete. The buffer position
+     * is left untouched.
+     *
+     * @param buffer A buffer in read mode.
+     * @return The response size, or a lower bound of it if the buffer does not hold all of it.
+     * @throws ProtocolException If the key count of a batch response is malformed.
+     */
+    public static int responseLength(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (limit - start < 2) {
+            return 2;
+        }
+        byte opcode = buffer.get(start);
+        byte status = buffer.get(start + 1);
+        if (isScan(opcode) && status == OK) {
+            return scanResponseLength(buffer, start, limit);
+        }
+        if (opcode == WATCH && (status == PUT_EVENT || status == DELETE_EVENT)) {
+            long keyLength = varintAt(buffer, start + 10);
+            if (keyLength < 0) {
+                return Math.max(11, limit - start + 1);
+            }
+            return 10 + (int) (keyLength >>> 32) + (int) keyLength + (status == PUT_EVENT ? 4 : 0);
+        }
+        if (!isBatch(opcode) || status != OK) {
+            return hasValue(opcode, status) ? 14 : 10;
+        }
+        if (limit - start <= 10) {
+            return 11;
+        }
+        long header = varintAt(buffer, start + 10);
+        if (header < 0) {
+            return limit - start + 1;
+        }
+        int count = (int) header;
+        int index = start + 10 + (int) (header >>> 32);
+        if (opcode == MPUT || opcode == MDELETE) {
+            return index - start + count;
+        }
+        for (int k = 0; k < count; k++) {
+            if (index >= limit) {
+                return index - start + count - k;
+            }
+            index += hasValue(opcode, buffer.get(index)) ? 5 : 1;
+        }
+        return index - start;
+    }
+
+    /**
+     * Returns the size, or a growing lower bound of it, of the successful scan response at an
+     * index.
+     */
+    private static int scanResponseLength(ByteBuffer buffer, int start, int limit) throws ProtocolException {
+        if (limit - start < 12) {
+            return 13;
+        }
+        int count = buffer.getShort(start + 10) & 0xFFFF;
+        int index = start + 12;
+        for (int k = 0; k < count; k++) {
+            long keyLength = varintAt(buffer, index);
+            if (keyLength < 0) {
+                // Every remaining entry takes at least a one byte length and its value.
+                return Math.max(index - start + (count - k) * 5 + 1, limit - start + 1);
+            }
+            index += (int) (keyLength >>> 32) + (int) keyLength + 4;
+        }
+        return index - start + 1;
+    }
+
+    /**
+     * Checks whether a response, or an entry of a batch response, carries a value.
+     *
+     * @param opcode The opcode of the response.
+     * @param status The status of the response or entry.
+     * @return True for a successful GET, INCRBY and the batch entries of either, for a CAS or
+     *         an MCAS entry answered with CONFLICT, and for any BUSY response.
+     */
+    public static boolean hasValue(byte opcode, byte status) {
+        if (status == BUSY) {
+            return true;
+        }
+        if (opcode == CAS || opcode == MCAS) {
+            return status == CONFLICT;
+        }
+        return (opcode == GET || opcode == MGET || opcode == INCRBY || opcode == MINCRBY) && status == OK;
+    }
+
+    /**
+     * Reads a varint at an absolute index without moving the buffer.
+     *
+     * @return Its size in bytes in the high half and its value in the low half, or -1 if the
+     *         buffer ends before the varint does.
+     */
+    private static long varintAt(ByteBuffer buffer, int index) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0, i = index; ; shift += 7) {
+            if (shift == 21) {
+                throw new ProtocolException("Length longer than three bytes");
+            }
+            if (i >= buffer.limit()) {
+                return -1;
+            }
+            byte b = buffer.get(i++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ((long) (i - index) << 32) | value;
+            }
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void writeVarint(ByteBuffer buffer, int value) {
+        for (int remaining = value; ; remaining >>>= 7) {
+            if (remaining < 0x80) {
+                buffer.put((byte) remaining);
+                return;
+            }
+            buffer.put((byte) (remaining & 0x7F | 0x80));
+        }
+    }
+
+    private static int varintSize(int value) {
+        return value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : 3;
+    }
+
+    private static int utf8Length(CharSequence key) {
+        int bytes = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static void writeUtf8(ByteBuffer buffer, CharSequence key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The `ByteKey` class is a reusable `CharSequence` view over UTF-8 key bytes held in a
+ * `ByteBuffer`, so that a key received on the wire can be looked up in the store without
+ * creating a `String`. ASCII keys are read straight from the buffer; other keys are decoded into
+ * a char array that is allocated on first use and kept for the next key.
+ *
+ * The view is only valid until the buffer region it points to is overwritten.
+ */
+public final class ByteKey implements CharSequence {
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private boolean ascii;
+    private char[] chars;
+
+    /**
+     * Default constructor for the `ByteKey` class.
+     */
+    public ByteKey() {
+
+    }
+
+    /**
+     * Points the view at a region of UTF-8 bytes. Malformed sequences read as U+FFFD.
+     *
+     * @param buffer     The buffer holding the key.
+     * @param offset     The absolute offset of the first key byte.
+     * @param byteLength The number of key bytes.
+     * @return This view.
+     */
+    public ByteKey set(ByteBuffer buffer, int offset, int byteLength) {
+        this.buffer = buffer;
+        this.offset = offset;
+        ascii = true;
+        for (int i = 0; i < byteLength; i++) {
+            if (buffer.get(offset + i) < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        length = ascii ? byteLength : decode(byteLength);
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return ascii ? (char) buffer.get(offset + index) : chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (!ascii) {
+            return new String(chars, 0, length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes the UTF-8 bytes into the char array.
+     *
+     * @return The number of chars decoded.
+     */
+    private int decode(int byteLength) {
+        if (chars == null || chars.length < byteLength) {
+            chars = new char[Math.max(byteLength, chars == null ? 64 : chars.length * 2)];
+        }
+        int count = 0;
+        int i = offset;
+        int end = offset + byteLength;
+        while (i < end) {
+            int b = buffer.get(i++) & 0xFF;
+            int extra;
+            int codePoint;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                continue;
+            } else if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                chars[count++] = REPLACEMENT;
+                continue;
+            }
+            if (end - i < extra) {
+                chars[count++] = REPLACEMENT;
+                break;
+            }
+            boolean malformed = false;
+            for (int k = 0; k < extra; k++) {
+                int next = buffer.get(i) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    malformed = true;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                i++;
+            }
+            if (malformed || codePoint > Character.MAX_CODE_POINT) {
+                chars[count++] = REPLACEMENT;
+            } else {
+                count += Character.toChars(codePoint, chars, count);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,227 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * The `Command` class holds one decoded binary request, either a single-key request or a batch.
+ * A connection keeps a single instance and `BinaryProtocol.readRequest` refills it for every
+ * request, so decoding does not allocate once the command has grown to the largest batch seen.
+ */
+public final class Command {
+    private ByteKey[] keys = {new ByteKey()};
+    private int[] values = new int[1];
+    private long[] expected = new long[1];
+    private boolean[] removals = new boolean[1];
+    private byte opcode;
+    private byte ack;
+    private byte bounds;
+    private int source;
+    private long asOf;
+    private int count;
+    private long requestId;
+    private long ttlMillis;
+
+    /**
+     * Default constructor for the `Command` class.
+     */
+    public Command() {
+
+    }
+
+    /**
+     * Retrieves the opcode of the request.
+     *
+     * @return One of the request opcodes of `BinaryProtocol`.
+     */
+    public byte opcode() {
+        return opcode;
+    }
+
+    /**
+     * Retrieves the key of a single-key request. It is a view into the buffer the request was
+     * read from.
+     *
+     * @return The key.
+     */
+    public ByteKey key() {
+        return keys[0];
+    }
+
+    /**
+     * Retrieves the value of a PUT or CAS request, the delta of an INCRBY or the flags of a WATCH.
+     *
+     * @return The value, or 0 for other requests.
+     */
+    public int value() {
+        return values[0];
+    }
+
+    /**
+     * Retrieves the value the key of a CAS request has to hold.
+     *
+     * @return The expected value, or `Long.MIN_VALUE` for a key that has to be absent.
+     */
+    public long expectedValue() {
+        return expected[0];
+    }
+
+    /**
+     * Retrieves the time to live of a PUT request.
+     *
+     * @return The time to live in milliseconds, or 0 if the key does not expire.
+     */
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Retrieves the number of keys in the request.
+     *
+     * @return The batch size, 1 for a single-key request, or the page size of a SCAN or PREFIX.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Retrieves the keys of the request. Only the first `count()` entries belong to it; they are
+     * views into the buffer the request was read from.
+     *
+     * @return The key views.
+     */
+    public ByteKey[] keys() {
+        return keys;
+    }
+
+    /**
+     * Retrieves the values of an MPUT or MCAS request, or the deltas of an MINCRBY, at the index
+     * of their keys. Only the first `count()` entries belong to it.
+     *
+     * @return The values.
+     */
+    public int[] values() {
+        return values;
+    }
+
+    /**
+     * Retrieves the values the keys of an MCAS request have to hold, at the index of their keys.
+     * Only the first `count()` entries belong to it.
+     *
+     * @return The expected values, `Long.MIN_VALUE` for a key that has to be absent.
+     */
+    public long[] expectedValues() {
+        return expected;
+    }
+
+    /**
+     * Retrieves which keys a SCAN or PREFIX carries. The start of a range, or the prefix, is at
+     * index 0 of `keys()`, the end of a range at index 1 and the continuation token at index 2.
+     *
+     * @return `BinaryProtocol.FROM_KEY`, `TO_KEY` and `AFTER_KEY` flags; a PREFIX always
+     *         carries its prefix.
+     */
+    public byte bounds() {
+        return bounds;
+    }
+
+    /**
+     * Retrieves the acknowledgement flag the request was sent with.
+     *
+     * @return `BinaryProtocol.ACK_ONE`, `ACK_ALL` or `ACK_LOCAL`, or 0 for the server's default.
+     */
+    public byte ack() {
+        return ack;
+    }
+
+    /**
+     * Retrieves whether each mutation of a REPLICATE request deletes its key. Only the first
+     * `count()` entries belong to it.
+     *
+     * @return The delete flags, at the index of their keys.
+     */
+    public boolean[] removals() {
+        return removals;
+    }
+
+    /**
+     * Retrieves the node that sent a REPLICATE request.
+     *
+     * @return The index of the sending node on the ring.
+     */
+    public int replicationSource() {
+        return source;
+    }
+
+    /**
+     * Retrieves the time up to which the sender of a REPLICATE request has sent every mutation.
+     *
+     * @return The time in milliseconds on the sender's clock.
+     */
+    public long replicatedAsOf() {
+        return asOf;
+    }
+
+    /**
+     * Retrieves the id the client attached to the request.
+     *
+     * @return The request id.
+     */
+    public long requestId() {
+        return requestId;
+    }
+
+    ByteKey key(int index) {
+        return keys[index];
+    }
+
+    void setValue(int index, int value) {
+        values[index] = value;
+    }
+
+    void setExpected(int index, long value) {
+        expected[index] = value;
+    }
+
+    void setRemoval(int index, boolean removal) {
+        removals[index] = removal;
+    }
+
+    void setAck(byte ack) {
+        this.ack = ack;
+    }
+
+    void setBounds(byte bounds) {
+        this.bounds = bounds;
+    }
+
+    void setReplication(int source, long asOf) {
+        this.source = source;
+        this.asOf = asOf;
+    }
+
+    void ensureCapacity(int keyCount) {
+        if (keys.length >= keyCount) {
+            return;
+        }
+        int capacity = Math.max(keyCount, keys.length * 2);
+        ByteKey[] grown = Arrays.copyOf(keys, capacity);
+        for (int i = keys.length; i < capacity; i++) {
+            grown[i] = new ByteKey();
+        }
+        keys = grown;
+        values = Arrays.copyOf(values, capacity);
+        expected = Arrays.copyOf(expected, capacity);
+        removals = Arrays.copyOf(removals, capacity);
+    }
+
+    void setTtl(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    void set(byte opcode, int count, long requestId) {
+        this.opcode = opcode;
+        this.count = count;
+        this.requestId = requestId;
+        this.ttlMillis = 0;
+    }
+}
@@ -0,0 +1,243 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The `TextProtocol` class decodes the common text requests in place, straight from the bytes
+ * they arrived in, and writes text responses into a buffer, so that serving them allocates
+ * nothing. It understands the requests whose shape it can check cheaply:
+ *
+ * <pre>
+ * PUT &lt;key&gt; &lt;value&gt; [TTL=&lt;millis&gt;] [ACK=LOCAL|ONE|ALL] #&lt;id&gt;
+ * GET &lt;key&gt; #&lt;id&gt;
+ * DELETE &lt;key&gt; [ACK=LOCAL|ONE|ALL] #&lt;id&gt;
+ * PING #&lt;id&gt;
+ * </pre>
+ *
+ * with single spaces, an ASCII request, a value in int range and an id and time to live of at
+ * most 18 decimal digits without leading zeros. Anything else, batches and malformed requests included, is
+ * left to the word-splitting parser of `RequestHandler`, which gives it the usual response.
+ */
+public final class TextProtocol {
+
+    /** Longest response to a request decoded by `readRequest`, in bytes. */
+    public static final int MAX_RESPONSE_BYTES = 128;
+
+    private static final byte[] PUT = {'P', 'U', 'T'};
+    private static final byte[] GET = {'G', 'E', 'T'};
+    private static final byte[] DELETE = {'D', 'E', 'L', 'E', 'T', 'E'};
+    private static final byte[] PING = {'P', 'I', 'N', 'G'};
+    private static final byte[] ACK = {'A', 'C', 'K', '='};
+    private static final byte[] TTL = {'T', 'T', 'L', '='};
+    private static final byte[] LOCAL = {'L', 'O', 'C', 'A', 'L'};
+    private static final byte[] ONE = {'O', 'N', 'E'};
+    private static final byte[] ALL = {'A', 'L', 'L'};
+    private static final int MAX_ID_DIGITS = 18;
+
+    private TextProtocol() {
+    }
+
+    /**
+     * Decodes a text request into a command without moving the buffer position. The key of the
+     * command points into the buffer.
+     *
+     * @param buffer  The buffer holding the request.
+     * @param offset  The index of the first byte of the request.
+     * @param length  The length of the request in bytes.
+     * @param command The command to fill; it is only changed when the request is decoded.
+     * @return True if the request was decoded, false if it has to go to the splitting parser.
+     */
+    public static boolean readRequest(ByteBuffer buffer, int offset, int length, Command command) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (buffer.get(i) < 0) {
+                return false;
+            }
+        }
+        int hash = offset;
+        while (hash < end && buffer.get(hash) != '#') {
+            hash++;
+        }
+        // The first '#' has to start the id, the last word, as the error responses of the
+        // splitting parser take the id from the first '#'.
+        if (hash == offset || hash == end || buffer.get(hash - 1) != ' ') {
+            return false;
+        }
+        long requestId = parseId(buffer, hash + 1, end);
+        if (requestId < 0) {
+            return false;
+        }
+        int wordsEnd = hash - 1;
+        int commandEnd = indexOfSpace(buffer, offset, wordsEnd);
+        if (matches(buffer, offset, commandEnd, PING)) {
+            if (commandEnd != wordsEnd) {
+                return false;
+            }
+            command.set(BinaryProtocol.PING, 0, requestId);
+            command.setAck((byte) 0);
+            return true;
+        }
+        byte opcode = matches(buffer, offset, commandEnd, PUT) ? BinaryProtocol.PUT
+                : matches(buffer, offset, commandEnd, GET) ? BinaryProtocol.GET
+                : matches(buffer, offset, commandEnd, DELETE) ? BinaryProtocol.DELETE : 0;
+        if (opcode == 0 || commandEnd >= wordsEnd) {
+            return false;
+        }
+        int keyStart = commandEnd + 1;
+        int keyEnd = indexOfSpace(buffer, keyStart, wordsEnd);
+        if (keyEnd == keyStart) {
+            return false;
+        }
+        int next = keyEnd;
+        long value = 0;
+        if (opcode == BinaryProtocol.PUT) {
+            if (next >= wordsEnd) {
+                return false;
+            }
+            int valueEnd = indexOfSpace(buffer, next + 1, wordsEnd);
+            value = parseInt(buffer, next + 1, valueEnd);
+            if (value == Long.MIN_VALUE) {
+                return false;
+            }
+            next = valueEnd;
+        }
+        long ttlMillis = 0;
+        if (opcode == BinaryProtocol.PUT && next < wordsEnd) {
+            int ttlEnd = indexOfSpace(buffer, next + 1, wordsEnd);
+            if (matches(buffer, next + 1, Math.min(ttlEnd, next + 1 + TTL.length), TTL)) {
+                ttlMillis = parseId(buffer, next + 1 + TTL.length, ttlEnd);
+                if (ttlMillis <= 0) {
+                    return false;
+                }
+                next = ttlEnd;
+            }
+        }
+        byte ack = 0;
+        if (next < wordsEnd) {
+            if (opcode == BinaryProtocol.GET) {
+                return false;
+            }
+            int ackEnd = indexOfSpace(buffer, next + 1, wordsEnd);
+            ack = parseAck(buffer, next + 1, ackEnd);
+            if (ack == 0 || ackEnd != wordsEnd) {
+                return false;
+            }
+        }
+        command.ensureCapacity(1);
+        command.key(0).set(buffer, keyStart, keyEnd - keyStart);
+        command.setValue(0, (int) value);
+        command.setAck(ack);
+        command.set(opcode, 1, requestId);
+        command.setTtl(ttlMillis);
+        return true;
+    }
+
+    /**
+     * Writes a number in decimal at the buffer position.
+     *
+     * @param buffer A buffer in write mode with room for 20 bytes.
+     * @param value  The number, which must not be `Long.MIN_VALUE`.
+     */
+    public static void writeDecimal(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int position = buffer.position();
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(position + digits);
+    }
+
+    /**
+     * Writes " #" and a request id, the end of every text response.
+     *
+     * @param buffer    A buffer in write mode with room for 21 bytes.
+     * @param requestId The id of the request.
+     */
+    public static void writeRequestId(ByteBuffer buffer, long requestId) {
+        buffer.put((byte) ' ').put((byte) '#');
+        writeDecimal(buffer, requestId);
+    }
+
+    private static int indexOfSpace(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) == ' ') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int from, int to, byte[] word) {
+        if (to - from != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (buffer.get(from + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a request id or time to live of decimal digits.
+     *
+     * @return The number, or -1 if the word is not a plain decimal number.
+     */
+    private static long parseId(ByteBuffer buffer, int from, int to) {
+        int digits = to - from;
+        if (digits < 1 || digits > MAX_ID_DIGITS || (digits > 1 && buffer.get(from) == '0')) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            id = id * 10 + digit;
+        }
+        return id;
+    }
+
+    /**
+     * Parses an optionally negative decimal int.
+     *
+     * @return The value, or `Long.MIN_VALUE` if the word is not an int.
+     */
+    private static long parseInt(ByteBuffer buffer, int from, int to) {
+        boolean negative = from < to && buffer.get(from) == '-';
+        int start = negative ? from + 1 : from;
+        if (start == to || to - start > 10) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = start; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    private static byte parseAck(ByteBuffer buffer, int from, int to) {
+        if (to - from < ACK.length + 1 || !matches(buffer, from, from + ACK.length, ACK)) {
+            return 0;
+        }
+        int level = from + ACK.length;
+        return matches(buffer, level, to, LOCAL) ? BinaryProtocol.ACK_LOCAL
+                : matches(buffer, level, to, ONE) ? BinaryProtocol.ACK_ONE
+                : matches(buffer, level, to, ALL) ? BinaryProtocol.ACK_ALL : 0;
+    }
+}
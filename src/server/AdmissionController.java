@@ -0,0 +1,206 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The `AdmissionController` class bounds the requests a server has admitted and not answered yet,
+ * so that an overloaded server answers the requests it can within a bounded time and turns the
+ * rest away at once, instead of letting every request wait longer and longer until clients give
+ * up and retry.
+ *
+ * The bound, the concurrency limit, adapts to the latency the admitted requests see, measured
+ * from their arrival to their completion and so including any wait to be read or for a worker
+ * thread. Latency is judged once per window of 100 ms: when more than one request in a hundred
+ * took longer than the target latency, or than twice the usual latency of the server when that
+ * is higher, the limit is cut by a quarter; otherwise, if the requests pressed against the limit,
+ * it grows by its square root. The usual latency is the lowest mean latency of a window in the
+ * last 10 to 20 seconds.
+ *
+ * A request is also rejected, whatever the limit, once it has waited longer than the target
+ * latency before it could be admitted. This matters where requests are handled on the threads
+ * that read them, as the reactors of the NIO server do without workers: there no more requests
+ * are in flight than there are reactors, and overload builds up as requests waiting to be read
+ * instead, which only their wait reveals.
+ *
+ * A rejected request is answered with a hint of when to retry: twice the mean latency of the last
+ * window, scaled up by the share of requests that were rejected in it.
+ */
+public final class AdmissionController {
+    private static final long WINDOW_NANOS = 100_000_000L;
+    private static final long BASELINE_PERIOD_NANOS = 10_000_000_000L;
+    private static final int MIN_LIMIT = 4;
+    private static final double BACKOFF = 0.75;
+    private static final long MIN_RETRY_AFTER_MILLIS = 5;
+    private static final long MAX_RETRY_AFTER_MILLIS = 1000;
+
+    private final int maxLimit;
+    private final int minLimit;
+    private final long targetNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int limit;
+    private volatile long slowNanos;
+    private volatile long retryAfterMillis = MIN_RETRY_AFTER_MILLIS;
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder latencySum = new LongAdder();
+    private final LongAdder slowSamples = new LongAdder();
+    private final LongAdder windowRejections = new LongAdder();
+    private long baselineStart = System.nanoTime();
+    private long baselineNanos = Long.MAX_VALUE;
+    private long previousBaselineNanos = Long.MAX_VALUE;
+
+    /**
+     * Creates a controller that admits up to the highest limit until latency rises.
+     *
+     * @param maxLimit      The highest concurrency limit, which bounds the admitted requests
+     *                      globally.
+     * @param targetMillis  The latency at most one admitted request in a hundred should exceed.
+     * @throws IllegalArgumentException If the limit or the target is not positive.
+     */
+    public AdmissionController(int maxLimit, long targetMillis) {
+        if (maxLimit <= 0 || targetMillis <= 0) {
+            throw new IllegalArgumentException("Concurrency limit of " + maxLimit + " with a target of "
+                    + targetMillis + " ms");
+        }
+        this.maxLimit = maxLimit;
+        this.minLimit = Math.min(MIN_LIMIT, maxLimit);
+        this.targetNanos = targetMillis * 1_000_000;
+        this.limit = maxLimit;
+        this.slowNanos = targetNanos;
+    }
+
+    /**
+     * Admits a request if it has not waited longer than the target latency and fewer requests
+     * than the limit are in flight.
+     *
+     * @param arrivedNanos The `System.nanoTime` at which the request arrived.
+     * @return True if the request was admitted and `release` has to be called once it is answered,
+     *         false if it has to be rejected.
+     */
+    public boolean tryAcquire(long arrivedNanos) {
+        if (System.nanoTime() - arrivedNanos > targetNanos) {
+            reject();
+            return false;
+        }
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                reject();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        if (current >= peakInFlight.get()) {
+            peakInFlight.accumulateAndGet(current + 1, Math::max);
+        }
+        return true;
+    }
+
+    /**
+     * Admits a request that must not be rejected, such as a health check or the replication
+     * stream of another node. It still counts against the limit of the others.
+     */
+    public void acquire() {
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * Records that an admitted request has been answered, together with its latency.
+     *
+     * @param arrivedNanos The `System.nanoTime` at which the request arrived.
+     */
+    public void release(long arrivedNanos) {
+        long now = System.nanoTime();
+        inFlight.decrementAndGet();
+        long latency = now - arrivedNanos;
+        samples.increment();
+        latencySum.add(latency);
+        if (latency > slowNanos) {
+            slowSamples.increment();
+        }
+        long start = windowStart.get();
+        if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            adjust(now);
+        }
+    }
+
+    /**
+     * Retrieves the concurrency limit.
+     *
+     * @return The most requests that are admitted at once.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Retrieves the number of admitted requests that have not been answered yet.
+     *
+     * @return The requests in flight.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Retrieves the number of requests rejected so far.
+     *
+     * @return The rejection count.
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Retrieves how long a rejected client should wait before it sends the request again.
+     *
+     * @return The hint in milliseconds.
+     */
+    public long retryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    private void reject() {
+        rejected.increment();
+        windowRejections.increment();
+    }
+
+    /**
+     * Ends a window: judges its latency, adjusts the limit and the retry hint, and tracks the
+     * usual latency. Only the thread that moved the window start calls it.
+     */
+    private synchronized void adjust(long now) {
+        long count = samples.sumThenReset();
+        long sum = latencySum.sumThenReset();
+        long slow = slowSamples.sumThenReset();
+        long rejections = windowRejections.sumThenReset();
+        int peak = peakInFlight.getAndSet(inFlight.get());
+        if (count == 0) {
+            return;
+        }
+        long mean = sum / count;
+        if (now - baselineStart >= BASELINE_PERIOD_NANOS) {
+            previousBaselineNanos = baselineNanos;
+            baselineNanos = mean;
+            baselineStart = now;
+        } else {
+            baselineNanos = Math.min(baselineNanos, mean);
+        }
+        long usual = Math.min(baselineNanos, previousBaselineNanos);
+        slowNanos = Math.max(targetNanos, 2 * usual);
+
+        int current = limit;
+        if (slow * 100 > count) {
+            limit = Math.max(minLimit, (int) (current * BACKOFF));
+        } else if (rejections > 0 || 2 * peak >= current) {
+            limit = Math.min(maxLimit, current + Math.max(1, (int) Math.sqrt(current)));
+        }
+        long hint = 2 * mean * (count + rejections) / count / 1_000_000;
+        retryAfterMillis = Math.max(MIN_RETRY_AFTER_MILLIS, Math.min(MAX_RETRY_AFTER_MILLIS, hint));
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The `BufferPool` class hands out direct `ByteBuffer`s of one fixed size and takes them back for
+ * reuse, so that serving a datagram does not allocate. It is safe to share between threads. The
+ * pool only keeps a bounded number of idle buffers; buffers returned beyond that are left to the
+ * garbage collector.
+ */
+final class BufferPool {
+    private final int bufferBytes;
+    private final int maxIdle;
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferBytes The capacity of every buffer.
+     * @param maxIdle     The most idle buffers to keep.
+     */
+    BufferPool(int bufferBytes, int maxIdle) {
+        this.bufferBytes = bufferBytes;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes an idle buffer, or allocates one if none is left.
+     *
+     * @return A cleared buffer.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferBytes);
+        }
+        idleCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Returns a buffer taken with `acquire`. The caller must not use it afterwards.
+     *
+     * @param buffer The buffer to return.
+     */
+    void release(ByteBuffer buffer) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * The `ConcurrentServer` interface defines the contract for a server that accepts and serves
+ * many clients at the same time, dispatching every request through a `RequestHandler`.
+ */
+public interface ConcurrentServer {
+
+    /**
+     * Binds the server to the specified port and starts serving clients in the background.
+     *
+     * @param port The port number on which to listen, or 0 for an ephemeral port.
+     * @throws IOException If there is an issue with binding the port.
+     */
+    void start(int port) throws IOException;
+
+    /**
+     * Retrieves the port number the server is bound to.
+     *
+     * @return The local port of the server.
+     */
+    int getPort();
+
+    /**
+     * Blocks the calling thread until the server has been stopped.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    void awaitTermination() throws InterruptedException;
+
+    /**
+     * Stops accepting clients and closes every open connection.
+     *
+     * @throws IOException If there is an issue with closing the server.
+     */
+    void stop() throws IOException;
+
+    /**
+     * Retrieves the number of client connections currently open.
+     *
+     * @return The open connections, or 0 for a server without connections.
+     */
+    default int openConnections() {
+        return 0;
+    }
+
+    /**
+     * Retrieves the number of requests or connections waiting for a thread to serve them.
+     *
+     * @return The queue depth, or 0 for a server that serves everything as it arrives.
+     */
+    default int queuedWork() {
+        return 0;
+    }
+}
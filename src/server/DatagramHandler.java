@@ -0,0 +1,177 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import protocol.BinaryProtocol;
+import protocol.Command;
+
+/**
+ * The `DatagramHandler` class turns one request datagram into its response datagram, in either
+ * protocol. Everything it needs about the sender is passed in with the datagram, so one handler
+ * can serve many receive threads at once. Retransmitted requests are answered from the
+ * `IdempotencyCache` when there is one.
+ */
+final class DatagramHandler {
+    /** Largest payload of a UDP datagram over IPv4; batch requests can fill a whole datagram. */
+    static final int MAX_DATAGRAM_BYTES = 65507;
+
+    private final RequestHandler requestHandler;
+    private final IdempotencyCache responseCache;
+    private final boolean echoToConsole = ServerConfig.consoleLog();
+
+    /**
+     * Constructor for the `DatagramHandler` class.
+     *
+     * @param requestHandler The handler requests are dispatched to.
+     * @param responseCache  The cache of recent responses, or null to handle every datagram.
+     */
+    DatagramHandler(RequestHandler requestHandler, IdempotencyCache responseCache) {
+        this.requestHandler = requestHandler;
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Handles one datagram.
+     *
+     * @param request  A buffer in read mode holding the datagram.
+     * @param sender   The address the datagram came from.
+     * @param command  A command the calling thread reuses for binary requests.
+     * @param response A cleared buffer of `MAX_DATAGRAM_BYTES` capacity; on success it holds the
+     *                 response in read mode.
+     * @return True if the response has to be sent to the sender, false if the datagram is dropped.
+     */
+    boolean handle(ByteBuffer request, InetSocketAddress sender, Command command, ByteBuffer response) {
+        String clientIp = sender.getAddress().toString();
+        boolean binary = request.hasRemaining() && BinaryProtocol.isBinary(request.get(request.position()));
+        String received = null;
+        boolean decodedText = false;
+        String requestId;
+        if (binary) {
+            try {
+                if (BinaryProtocol.requestLength(request) > request.remaining()) {
+                    throw new ProtocolException("Truncated binary request");
+                }
+            } catch (ProtocolException e) {
+                System.out.println("Dropping datagram from " + clientIp + ": " + e.getMessage());
+                return false;
+            }
+            BinaryProtocol.readRequest(request, command);
+            requestId = String.valueOf(command.requestId());
+        } else if (requestHandler.decodeText(request, request.position(), request.remaining(), command)) {
+            decodedText = true;
+            // Only the response cache needs the id as a string.
+            requestId = responseCache != null ? String.valueOf(command.requestId()) : "";
+        } else {
+            byte[] bytes = new byte[request.remaining()];
+            request.get(bytes);
+            received = new String(bytes);
+            if (echoToConsole) {
+                System.out.println(received + "server side:");
+            }
+            requestId = RequestHandler.packetId(received);
+        }
+
+        String cacheKey = null;
+        if (responseCache != null && !requestId.isEmpty()) {
+            cacheKey = IdempotencyCache.key(sender.getAddress().getHostAddress() + ":" + sender.getPort(), binary,
+                    requestId);
+            byte[] cached = responseCache.begin(cacheKey);
+            if (cached == IdempotencyCache.PENDING) {
+                return false;
+            }
+            if (cached != null) {
+                if (echoToConsole) {
+                    System.out.println("Answering duplicate request #" + requestId + " from " + clientIp + " from the cache");
+                }
+                response.put(cached).flip();
+                return true;
+            }
+        }
+
+        long admittedNanos = System.nanoTime();
+        boolean admitted = binary || decodedText ? requestHandler.admit(command.opcode(), admittedNanos)
+                : requestHandler.admit(received, admittedNanos);
+        if (!admitted) {
+            // A busy response is not cached, so the client's retry is handled once there is room.
+            if (cacheKey != null) {
+                responseCache.abandon(cacheKey);
+            }
+            if (binary) {
+                requestHandler.rejectBinaryRequest(command.opcode(), command.requestId(), response);
+            } else if (decodedText) {
+                requestHandler.rejectTextCommand(command, response);
+            } else {
+                response.put(requestHandler.rejectRequest(received).getBytes());
+            }
+            response.flip();
+            return true;
+        }
+        try {
+            if (binary) {
+                handleBinary(command, response, clientIp);
+            } else if (decodedText) {
+                requestHandler.handleTextCommand(command, response, clientIp);
+            } else {
+                handleText(received, response, clientIp);
+            }
+        } catch (RuntimeException e) {
+            if (cacheKey != null) {
+                responseCache.abandon(cacheKey);
+            }
+            throw e;
+        } finally {
+            requestHandler.complete(admittedNanos);
+        }
+        response.flip();
+        if (cacheKey != null) {
+            byte[] copy = new byte[response.remaining()];
+            response.get(response.position(), copy);
+            responseCache.complete(cacheKey, copy);
+        }
+        return true;
+    }
+
+    private void handleBinary(Command command, ByteBuffer response, String clientIp) {
+        if (BinaryProtocol.maxResponseSize(command) > response.capacity()) {
+            // Only an MGET of tens of thousands of keys gets here; it is rejected unapplied.
+            System.out.println("Rejecting a batch of " + command.count() + " keys from " + clientIp
+                    + ": its response does not fit in a datagram");
+            BinaryProtocol.writeBatchHeader(response, command.opcode(), BinaryProtocol.ERROR, command.requestId(),
+                    command.count());
+            return;
+        }
+        requestHandler.handleBinaryRequest(command, response, clientIp);
+    }
+
+    private void handleText(String received, ByteBuffer response, String clientIp) {
+        String responseText;
+        if (isBatch(received) && (long) countSpaces(received) * RequestHandler.MAX_TEXT_OUTCOME_BYTES > response.capacity()) {
+            // Rejected unapplied, like an oversized binary batch.
+            System.out.println("Rejecting a text batch from " + clientIp + ": its response may not fit in a datagram");
+            responseText = "Invalid operation provided by user. #" + RequestHandler.packetId(received);
+        } else {
+            responseText = requestHandler.handleRequest(received, clientIp);
+        }
+        if (echoToConsole) {
+            System.out.println(responseText + "server sending this:");
+        }
+        response.put(responseText.getBytes());
+    }
+
+    private static boolean isBatch(String received) {
+        return received.startsWith("MPUT ") || received.startsWith("MGET ") || received.startsWith("MDELETE ")
+                || received.startsWith("MINCRBY ") || received.startsWith("MCAS ");
+    }
+
+    private static int countSpaces(String received) {
+        int spaces = 0;
+        for (int i = 0; i < received.length(); i++) {
+            if (received.charAt(i) == ' ') {
+                spaces++;
+            }
+        }
+        return spaces;
+    }
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The `IdempotencyCache` class remembers the responses recently sent to UDP clients, keyed by the
+ * client address and the request id, so that a retransmitted request is answered with the
+ * original response instead of being applied to the store a second time.
+ *
+ * The cache is bounded both in entries and in age: the oldest entries are evicted once there are
+ * too many, and entries older than the time to live are evicted as new requests arrive. A
+ * request that is still being handled is marked as pending, and duplicates of it are dropped;
+ * the client retransmits again and then finds the response.
+ *
+ * The entries are split over independently locked segments by key hash, so that many threads
+ * serving datagrams do not queue up on one lock; the limits apply per segment.
+ */
+public final class IdempotencyCache {
+    /** Returned by `begin` for a duplicate of a request that is still being handled. */
+    public static final byte[] PENDING = new byte[0];
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxEntries The most responses to keep.
+     * @param ttlMillis  How long a response is kept; it should exceed the longest retransmission
+     *                   window of the clients.
+     */
+    public IdempotencyCache(int maxEntries, long ttlMillis) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS));
+        }
+    }
+
+    /**
+     * Builds the key of a request.
+     *
+     * @param clientAddress The address and port the request came from.
+     * @param binary        Whether the request used the binary protocol.
+     * @param requestId     The request id the client attached.
+     * @return The cache key.
+     */
+    public static String key(String clientAddress, boolean binary, String requestId) {
+        return clientAddress + (binary ? "|b|" : "|t|") + requestId;
+    }
+
+    /**
+     * Looks a request up and, if it has not been seen, marks it as pending.
+     *
+     * @param key The key built by `key`.
+     * @return The cached response of a duplicate, `PENDING` for a duplicate that is still being
+     *         handled, or null for a new request that the caller must handle and `complete`.
+     */
+    public byte[] begin(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            long now = System.nanoTime();
+            segment.evictExpired(now, ttlNanos);
+            Entry entry = segment.entries.get(key);
+            if (entry != null) {
+                duplicates.increment();
+                return entry.response;
+            }
+            segment.entries.put(key, new Entry(now));
+            while (segment.entries.size() > segment.maxEntries) {
+                Iterator<Entry> eldest = segment.entries.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Records the response to a request marked by `begin`.
+     *
+     * @param key      The key of the request.
+     * @param response The response bytes sent to the client.
+     */
+    public void complete(String key, byte[] response) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(key);
+            if (entry != null) {
+                entry.response = response;
+            }
+        }
+    }
+
+    /**
+     * Forgets a request marked by `begin` that produced no response, so a retransmission is
+     * handled again.
+     *
+     * @param key The key of the request.
+     */
+    public void abandon(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(key);
+            if (entry != null && entry.response == PENDING) {
+                segment.entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of duplicate requests seen.
+     *
+     * @return The number of requests answered from the cache or dropped as pending.
+     */
+    public long duplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Retrieves the number of requests currently remembered.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * The requests of one segment in arrival order, guarded by the segment's monitor.
+     */
+    private static final class Segment {
+        final int maxEntries;
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        void evictExpired(long now, long ttlNanos) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().getValue().createdNanos <= ttlNanos) {
+                    return;
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A remembered request; its response stays `PENDING` until it has been handled.
+     */
+    private static final class Entry {
+        final long createdNanos;
+        byte[] response = PENDING;
+
+        Entry(long createdNanos) {
+            this.createdNanos = createdNanos;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package server;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The `ModifiedUtf8` class encodes and decodes the frames written by `DataOutputStream.writeUTF`:
+ * a two byte big-endian length followed by the string in modified UTF-8. It lets non-blocking
+ * servers talk to the existing `TCPClient` without wrapping their buffers in streams.
+ */
+public final class ModifiedUtf8 {
+
+    /** Size of the length prefix in front of every frame. */
+    public static final int HEADER_BYTES = 2;
+
+    /** Largest payload a single frame can carry. */
+    public static final int MAX_PAYLOAD = 0xFFFF;
+
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Returns the payload length of the frame starting at the buffer position, or -1 if the
+     * buffer does not hold a complete frame yet. The buffer position is left untouched.
+     *
+     * @param buffer A buffer in read mode.
+     * @return The payload length of the next frame, or -1 if it is incomplete.
+     */
+    public static int completeFrameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_BYTES) {
+            return -1;
+        }
+        int length = buffer.getShort(buffer.position()) & 0xFFFF;
+        return buffer.remaining() >= HEADER_BYTES + length ? length : -1;
+    }
+
+    /**
+     * Decodes the complete frame at the buffer position and advances past it.
+     *
+     * @param buffer A buffer in read mode holding a complete frame.
+     * @return The decoded string.
+     * @throws ProtocolException If the frame is not valid modified UTF-8, for example because a
+     *                           character is cut off by the end of the frame.
+     */
+    public static String readFrame(ByteBuffer buffer) throws ProtocolException {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new ProtocolException("Truncated frame of " + length + " bytes");
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int b = buffer.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | continuation(buffer, end));
+            } else if ((b & 0xF0) == 0xE0) {
+                int b2 = continuation(buffer, end);
+                int b3 = continuation(buffer, end);
+                chars[count++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | b3);
+            } else {
+                throw new ProtocolException("Malformed modified UTF-8: byte 0x" + Integer.toHexString(b));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Reads the next byte of a multibyte character, which has to lie within the frame.
+     *
+     * @return The six payload bits of the byte.
+     */
+    private static int continuation(ByteBuffer buffer, int end) throws ProtocolException {
+        if (buffer.position() >= end) {
+            throw new ProtocolException("Modified UTF-8 character cut off by the end of the frame");
+        }
+        int b = buffer.get() & 0xFF;
+        if ((b & 0xC0) != 0x80) {
+            throw new ProtocolException("Malformed modified UTF-8: byte 0x" + Integer.toHexString(b));
+        }
+        return b & 0x3F;
+    }
+
+    /**
+     * Returns the number of bytes needed to write the string as a frame, header included.
+     *
+     * @param message The string to encode.
+     * @return The encoded frame size.
+     */
+    public static int frameSize(String message) {
+        return HEADER_BYTES + encodedLength(message);
+    }
+
+    /**
+     * Returns the number of bytes the string takes in modified UTF-8, without the header.
+     *
+     * @param message The string to encode.
+     * @return The encoded length.
+     */
+    public static int encodedLength(String message) {
+        int size = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                size += 1;
+            } else if (c <= 0x07FF) {
+                size += 2;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the string as a frame at the buffer position.
+     *
+     * @param message The string to encode.
+     * @param buffer  A buffer in write mode with at least `frameSize(message)` bytes remaining.
+     * @throws IllegalArgumentException If the encoded string exceeds `MAX_PAYLOAD` bytes.
+     * @throws BufferOverflowException  If the buffer is too small.
+     */
+    public static void writeFrame(String message, ByteBuffer buffer) {
+        int payload = frameSize(message) - HEADER_BYTES;
+        if (payload > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Encoded string too long: " + payload + " bytes");
+        }
+        buffer.putShort((short) payload);
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
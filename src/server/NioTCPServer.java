@@ -0,0 +1,591 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import protocol.BinaryProtocol;
+import protocol.Command;
+import protocol.TextProtocol;
+
+/**
+ * The `NioTCPServer` class serves many TCP clients at once with a small pool of selector
+ * threads. A single acceptor thread hands every new connection to one of the reactors in
+ * round-robin order; each reactor then performs non-blocking reads and writes for all of its
+ * connections. Text frames use the `writeUTF` format of the existing `TCPClient`; binary
+ * requests follow `BinaryProtocol`.
+ *
+ * Clients may pipeline requests. By default the reactor handles them itself, in order. With a
+ * worker executor the reactor only decodes requests and hands them to the workers, so a slow
+ * request (such as a PUT waiting for fsync) does not hold up the ones behind it; responses are
+ * then written as they complete and clients match them to requests by their packet id.
+ *
+ * Every request passes the admission control of the request handler when it arrives, before
+ * it is handled or queued for a worker, and is answered at once with a busy response if the
+ * server is at its concurrency limit or the request has waited too long. A request counts as
+ * having arrived when its reactor woke up to read it, so requests that wait behind others the
+ * reactor handles itself are shed once the reactor falls behind. A connection with
+ * `kvstore.connectionQueue` requests waiting for workers is not read from until some of them are
+ * answered.
+ *
+ * Every connection has a `WatchSession` for the keys its client watches. The reactor moves the
+ * changes waiting there into the write buffer only while little is waiting to be written, so
+ * changes the client does not read yet stay in the session, where they are coalesced and
+ * bounded, rather than in an ever-growing buffer.
+ */
+public class NioTCPServer implements ConcurrentServer {
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    private static final int MAX_PENDING_WRITE_BYTES = 1 << 20;
+
+    private final RequestHandler requestHandler;
+    private final int watchQueue = ServerConfig.watchQueue();
+    private final int connectionQueue = ServerConfig.connectionQueue();
+    private final ExecutorService workers;
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private ServerSocketChannel serverChannel;
+    private Thread acceptorThread;
+    private volatile boolean running;
+
+    /**
+     * Constructor for the `NioTCPServer` class.
+     *
+     * @param requestHandler The handler every request is dispatched to.
+     * @param reactorCount   The number of selector threads serving connections.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public NioTCPServer(RequestHandler requestHandler, int reactorCount) throws IOException {
+        this(requestHandler, reactorCount, null);
+    }
+
+    /**
+     * Constructor for a `NioTCPServer` that handles requests on worker threads and answers
+     * pipelined requests in completion order.
+     *
+     * @param requestHandler The handler every request is dispatched to.
+     * @param reactorCount   The number of selector threads serving connections.
+     * @param workers        The executor requests are handled on, or null to handle them on the
+     *                       reactor threads in arrival order.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public NioTCPServer(RequestHandler requestHandler, int reactorCount, ExecutorService workers) throws IOException {
+        this.requestHandler = requestHandler;
+        this.workers = workers;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+        }
+    }
+
+    /**
+     * Binds the server socket and starts the acceptor and reactor threads.
+     *
+     * @param port The port number on which to listen, or 0 for an ephemeral port.
+     * @throws IOException If there is an issue with binding the port.
+     */
+    @Override
+    public void start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+        acceptorThread = new Thread(this::acceptLoop, "tcp-acceptor");
+        acceptorThread.start();
+        System.out.println("Server listening for TCP clients on port " + getPort()
+                + " with " + reactors.length + " reactor threads");
+    }
+
+    /**
+     * Retrieves the port number the server is bound to.
+     *
+     * @return The local port of the server socket.
+     */
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Blocks the calling thread until the server has been stopped.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Closes the server socket, every reactor and every connection they serve.
+     *
+     * @throws IOException If there is an issue with closing the server socket.
+     */
+    @Override
+    public void stop() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+        terminated.countDown();
+    }
+
+    /**
+     * Retrieves the number of connections registered with a reactor and not closed yet.
+     *
+     * @return The open connections.
+     */
+    @Override
+    public int openConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Retrieves the number of requests waiting for a worker thread.
+     *
+     * @return The requests queued for the workers, or 0 without a worker pool.
+     */
+    @Override
+    public int queuedWork() {
+        return workers instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) workers).getQueue().size() : 0;
+    }
+
+    /**
+     * Accepts connections in blocking mode and hands them to the reactors in round-robin order.
+     */
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)].register(channel);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("Failed to accept TCP client: " + e);
+            }
+        }
+    }
+
+    /**
+     * A selector thread that serves the connections assigned to it.
+     */
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> connectionsWithResponses = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        /** When the selector last returned; the requests read since then have waited as long. */
+        private long readyNanos;
+
+        Reactor(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "tcp-reactor-" + index);
+        }
+
+        /**
+         * Queues a freshly accepted channel and wakes the selector up to register it.
+         *
+         * @param channel The accepted channel, already in non-blocking mode.
+         */
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Queues a connection whose workers completed responses and wakes the selector up to
+         * write them.
+         *
+         * @param connection The connection with completed responses.
+         */
+        void responsesReady(Connection connection) {
+            connectionsWithResponses.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    readyNanos = System.nanoTime();
+                    registerPendingChannels();
+                    writeCompletedResponses();
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // Only the connection that failed is given up; the reactor keeps serving the others.
+                            System.out.println("Closing TCP client connection after an unexpected failure: " + e);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.out.println("Reactor stopped: " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+            }
+        }
+
+        private void writeCompletedResponses() {
+            Connection connection;
+            while ((connection = connectionsWithResponses.poll()) != null) {
+                if (connection.key.isValid()) {
+                    try {
+                        connection.writeCompletedResponses();
+                    } catch (IOException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        System.out.println("Closing TCP client connection after an unexpected failure: " + e);
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    openConnections.incrementAndGet();
+                } catch (IOException e) {
+                    System.out.println("Failed to register TCP client: " + e);
+                    try {
+                        channel.close();
+                    } catch (IOException closeException) {
+                        System.out.println(closeException);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The per-connection state: a read buffer that accumulates partial frames and a write
+     * buffer that holds responses the socket could not take yet. The first byte a client sends
+     * decides whether the connection speaks the text or the binary protocol.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final String clientIp;
+        private final Command command = new Command();
+        private final Queue<ByteBuffer> completedResponses = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final WatchSession watches;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private Boolean binary;
+
+        Connection(SocketChannel channel, Reactor reactor) throws IOException {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.clientIp = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().toString();
+            this.watches = new WatchSession(watchQueue, () -> reactor.responsesReady(this));
+        }
+
+        /**
+         * Reads whatever is available, handles every complete frame and flushes the responses.
+         *
+         * @throws IOException If there is an issue with reading from or writing to the socket.
+         */
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            if (binary == null && readBuffer.hasRemaining()) {
+                binary = BinaryProtocol.isBinary(readBuffer.get(0));
+            }
+            int pendingRequestBytes = Boolean.TRUE.equals(binary) ? handleBinaryRequests() : handleTextRequests();
+            readBuffer.compact();
+            growReadBufferFor(pendingRequestBytes);
+            flush();
+        }
+
+        /**
+         * Handles every complete text frame in the read buffer. On the reactor thread, requests
+         * the handler decodes in place are answered straight into the write buffer.
+         *
+         * @return The size of the incomplete frame left in the buffer, or 0 if its length is unknown.
+         */
+        private int handleTextRequests() throws ProtocolException {
+            int length;
+            while ((length = ModifiedUtf8.completeFrameLength(readBuffer)) >= 0) {
+                int payload = readBuffer.position() + ModifiedUtf8.HEADER_BYTES;
+                if (workers == null && requestHandler.decodeText(readBuffer, payload, length, command)) {
+                    ensureWriteRoom(ModifiedUtf8.HEADER_BYTES + TextProtocol.MAX_RESPONSE_BYTES);
+                    int header = writeBuffer.position();
+                    writeBuffer.position(header + ModifiedUtf8.HEADER_BYTES);
+                    long admitted = reactor.readyNanos;
+                    if (requestHandler.admit(command.opcode(), admitted)) {
+                        try {
+                            requestHandler.handleTextCommand(command, writeBuffer, clientIp);
+                        } finally {
+                            requestHandler.complete(admitted);
+                        }
+                    } else {
+                        requestHandler.rejectTextCommand(command, writeBuffer);
+                    }
+                    writeBuffer.putShort(header, (short) (writeBuffer.position() - header - ModifiedUtf8.HEADER_BYTES));
+                    readBuffer.position(payload + length);
+                    continue;
+                }
+                String receivedMsg = ModifiedUtf8.readFrame(readBuffer);
+                long admitted = reactor.readyNanos;
+                if (!requestHandler.admit(receivedMsg, admitted)) {
+                    enqueueResponse(requestHandler.rejectRequest(receivedMsg));
+                    continue;
+                }
+                if (workers == null) {
+                    try {
+                        enqueueResponse(requestHandler.handleRequest(receivedMsg, clientIp, watches));
+                    } finally {
+                        requestHandler.complete(admitted);
+                    }
+                } else {
+                    dispatch(admitted, () -> textFrame(requestHandler.handleRequest(receivedMsg, clientIp, watches)),
+                            e -> textFrame(requestHandler.failRequest(receivedMsg, e)));
+                }
+            }
+            if (readBuffer.remaining() < ModifiedUtf8.HEADER_BYTES) {
+                return 0;
+            }
+            return ModifiedUtf8.HEADER_BYTES + (readBuffer.getShort(readBuffer.position()) & 0xFFFF);
+        }
+
+        /**
+         * Handles every complete binary request in the read buffer, encoding the responses
+         * straight into the write buffer.
+         *
+         * @return The size the incomplete request left in the buffer has at least.
+         * @throws ProtocolException If the client sent a malformed request.
+         */
+        private int handleBinaryRequests() throws ProtocolException {
+            int length;
+            while ((length = BinaryProtocol.requestLength(readBuffer)) <= readBuffer.remaining()) {
+                int start = readBuffer.position();
+                long admitted = reactor.readyNanos;
+                if (!requestHandler.admit(readBuffer.get(start), admitted)) {
+                    ensureWriteRoom(BinaryProtocol.MAX_RESPONSE_BYTES);
+                    requestHandler.rejectBinaryRequest(readBuffer.get(start), readBuffer.getLong(start + length - 8),
+                            writeBuffer);
+                    readBuffer.position(start + length);
+                    continue;
+                }
+                if (workers == null) {
+                    try {
+                        BinaryProtocol.readRequest(readBuffer, command);
+                        ensureWriteRoom(BinaryProtocol.maxResponseSize(command));
+                        requestHandler.handleBinaryRequest(command, writeBuffer, clientIp, watches);
+                    } finally {
+                        requestHandler.complete(admitted);
+                    }
+                    continue;
+                }
+                // The read buffer is reused, so a request handed to a worker needs its own copy.
+                ByteBuffer request = ByteBuffer.allocate(length);
+                request.put(readBuffer.slice(start, length)).flip();
+                readBuffer.position(start + length);
+                dispatch(admitted, () -> {
+                    Command workerCommand = new Command();
+                    BinaryProtocol.readRequest(request, workerCommand);
+                    ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.maxResponseSize(workerCommand));
+                    requestHandler.handleBinaryRequest(workerCommand, response, clientIp, watches);
+                    return response.flip();
+                }, e -> {
+                    ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.MAX_RESPONSE_BYTES);
+                    requestHandler.failBinaryRequest(request.get(0), request.getLong(request.limit() - 8), e, response);
+                    return response.flip();
+                });
+            }
+            return length;
+        }
+
+        private ByteBuffer textFrame(String response) {
+            ByteBuffer frame = ByteBuffer.allocate(ModifiedUtf8.frameSize(response));
+            ModifiedUtf8.writeFrame(response, frame);
+            return frame.flip();
+        }
+
+        /**
+         * Hands an admitted request to the workers. The encoded response is queued for the
+         * reactor, which writes it out in completion order. A request that fails with an
+         * unexpected exception is answered with the error response built by `failure`, so the
+         * client still gets a reply and the request does not stay counted as in flight.
+         */
+        private void dispatch(long admitted, Supplier<ByteBuffer> request,
+                Function<RuntimeException, ByteBuffer> failure) {
+            inFlight.incrementAndGet();
+            try {
+                workers.execute(() -> {
+                    try {
+                        ByteBuffer response;
+                        try {
+                            response = request.get();
+                        } catch (RuntimeException e) {
+                            response = failure.apply(e);
+                        }
+                        completedResponses.add(response);
+                    } finally {
+                        requestHandler.complete(admitted);
+                        reactor.responsesReady(this);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The server is stopping.
+                inFlight.decrementAndGet();
+                requestHandler.complete(admitted);
+            }
+        }
+
+        /**
+         * Moves the responses completed by workers, and the changes of watched keys, into the
+         * write buffer and flushes it.
+         *
+         * @throws IOException If there is an issue with writing to the socket.
+         */
+        void writeCompletedResponses() throws IOException {
+            ByteBuffer response;
+            while ((response = completedResponses.poll()) != null) {
+                ensureWriteRoom(response.remaining());
+                writeBuffer.put(response);
+                inFlight.decrementAndGet();
+            }
+            flush();
+        }
+
+        /**
+         * Writes out responses that were left over by an earlier partial write, and more changes
+         * of watched keys.
+         *
+         * @throws IOException If there is an issue with writing to the socket.
+         */
+        void onWritable() throws IOException {
+            flush();
+        }
+
+        private void growReadBufferFor(int needed) {
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        private void enqueueResponse(String response) {
+            ensureWriteRoom(ModifiedUtf8.frameSize(response));
+            ModifiedUtf8.writeFrame(response, writeBuffer);
+        }
+
+        private void ensureWriteRoom(int size) {
+            if (writeBuffer.remaining() < size) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + size));
+                writeBuffer.flip();
+                larger.put(writeBuffer);
+                writeBuffer = larger;
+            }
+        }
+
+        /**
+         * Moves waiting changes of watched keys into the write buffer while it holds less than
+         * `WRITE_BUFFER_SIZE` bytes.
+         */
+        private void writeEvents() {
+            WatchSession.Event event;
+            while (writeBuffer.position() < WRITE_BUFFER_SIZE && (event = watches.poll()) != null) {
+                if (Boolean.TRUE.equals(binary)) {
+                    ensureWriteRoom(BinaryProtocol.eventSize(event.key()));
+                    event.writeBinary(writeBuffer);
+                } else {
+                    enqueueResponse(event.toText());
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            writeEvents();
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+            int pending = writeBuffer.position();
+            // Waiting changes are written once the socket can take more.
+            int interest = pending > 0 || watches.hasPending() ? SelectionKey.OP_WRITE : 0;
+            // Stop reading from clients that do not drain their responses or have too many
+            // requests in flight.
+            if (pending < MAX_PENDING_WRITE_BYTES && inFlight.get() < connectionQueue) {
+                interest |= SelectionKey.OP_READ;
+            }
+            if (key.interestOps() != interest) {
+                key.interestOps(interest);
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            openConnections.decrementAndGet();
+            watches.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+}
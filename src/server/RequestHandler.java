@@ -0,0 +1,1212 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cluster.ShardedKeyValueStore;
+import cluster.WriteAck;
+import metrics.RequestMetrics;
+import protocol.BinaryProtocol;
+import protocol.ByteKey;
+import protocol.Command;
+import protocol.TextProtocol;
+import store.ExpiringKeyValueStore;
+import store.KeyValueStore;
+import store.WatchingKeyValueStore;
+
+/**
+ * The `RequestHandler` class parses a single client request, applies it to the key store and
+ * builds the response that has to be sent back to the client. Every connection, whatever its
+ * transport, dispatches its requests through the same handler, in either the text or the
+ * binary protocol.
+ *
+ * A "PING #id" request, or a binary PING, is answered with "PONG #id" without touching the store,
+ * so clients can check idle connections.
+ *
+ * On a cluster node, writes may name the acknowledgement level they wait for: in the text
+ * protocol with an "ACK=LOCAL", "ACK=ONE" or "ACK=ALL" token just before the packet id, as in
+ * "PUT a 1 ACK=ALL #7", and in the binary protocol with the flag bits of the opcode. Mutations
+ * streamed by other nodes arrive as binary REPLICATE requests.
+ *
+ * When the key store is an `ExpiringKeyValueStore`, a PUT may give its key a time to live in
+ * milliseconds with a "TTL=" token after the value, as in "PUT a 1 TTL=30000 #7", or with the
+ * `EXPIRES` flag of a binary PUT. Elsewhere such a PUT fails.
+ *
+ * SCAN and PREFIX read the entries of a range of keys, or of the keys starting with a prefix, in
+ * key order and one page at a time, as in "SCAN a m 100 #7" or "PREFIX user: 100 #8". The
+ * response lists keys and values and, when the range goes on, a continuation token, as in
+ * "SCAN a 4 b 6 NEXT=b #7"; the token is passed after the page size to read the next page. Only
+ * stores that keep an ordered index of their keys serve scans.
+ *
+ * INCRBY and DECRBY add to or subtract from the value of a key atomically, an absent key counting
+ * as 0, and answer with the new value, as in "INCRBY hits 5 #7" answered by "12 #7". CAS sets a
+ * key only if it holds an expected value, or is absent when the expected value is "-": "CAS a 4 5
+ * #8" is answered by "Cas operation success #8" or, if the key holds something else, by "Cas
+ * operation failed, value: 6 #8", where the value is NOT_FOUND for an absent key. DECRBY is an
+ * INCRBY of the negated delta. MINCRBY, which takes negative deltas for decrements, and MCAS
+ * apply many of them in one request. Like other writes they take an ACK= token on a cluster
+ * node.
+ *
+ * "WATCH &lt;key&gt; #id" and "WATCH PREFIX &lt;prefix&gt; #id", or a binary WATCH, ask the server to push
+ * the changes of a key, or of every key starting with a prefix, over the connection. They are
+ * answered with "Watch operation success #id", after which changes arrive as "EVENT PUT a 5 #id"
+ * and "EVENT DELETE a #id", carrying the packet id of the WATCH, until "UNWATCH" with the same key
+ * or prefix cancels the watch or the server gives up on a client that fell behind with "EVENT
+ * OVERFLOW #id". Watches need a connection that can push, which only `NioTCPServer` provides, and
+ * a store set up for them; elsewhere they fail.
+ *
+ * With an `AdmissionController`, servers ask the handler to `admit` every request, with the
+ * time it arrived, before they queue or handle it and to `complete` it once it is answered. A
+ * request that is not admitted is answered at once, unapplied, with "Server busy
+ * RETRY_AFTER=&lt;millis&gt; #id", or a binary BUSY status carrying the same hint, and the client
+ * should send it again after that many milliseconds. PING and REPLICATE requests are always
+ * admitted.
+ *
+ * Every request is counted in the `RequestMetrics` of the handler by command, wire format and
+ * outcome, together with the time it took to handle.
+ *
+ * Text requests can be served in two ways, chosen with {@code kvstore.parser}. With "inplace",
+ * the default, servers first try `decodeText`, which decodes single-key requests from the bytes
+ * they arrived in, and answer them with `handleTextCommand`, which writes the response into the
+ * server's buffer; neither allocates, nor does the request otherwise unless it is logged. Other
+ * requests, and every request with "split", go through `handleRequest`, which splits the
+ * request string into words and builds a response string.
+ */
+public class RequestHandler {
+    /** Longest outcome of one key in a text batch response, such as " -2147483648". */
+    static final int MAX_TEXT_OUTCOME_BYTES = 12;
+
+    private static final byte[] PONG = ascii("PONG");
+    private static final byte[] PUT_SUCCESS = ascii("Put operation success");
+    private static final byte[] DELETE_SUCCESS = ascii("Delete operation success");
+    private static final byte[] GET_FAILED = ascii("Get operation terminated with exception, packet_id: ");
+    private static final byte[] INVALID = ascii("Invalid operation provided by user. ");
+    private static final byte[] HASH = ascii("#");
+    private static final byte[] BUSY = ascii("Server busy RETRY_AFTER=");
+
+    private final KeyValueStore keyStore;
+    private final ShardedKeyValueStore clusterStore;
+    private final ExpiringKeyValueStore expiringStore;
+    private final WatchingKeyValueStore watchStore;
+    private final AdmissionController admission;
+    private final Logger logger;
+    private final int port;
+    private final RequestMetrics metrics;
+    private final boolean echoToConsole = ServerConfig.consoleLog();
+    private final boolean parseInPlace = ServerConfig.textParser().equals("inplace");
+
+    /**
+     * Constructor for a `RequestHandler` whose metrics are not collected anywhere.
+     *
+     * @param keyStore The key store the requests are applied to.
+     * @param logger   The logger used to record requests and their outcome.
+     * @param port     The port number the server is listening on, used in log messages.
+     */
+    public RequestHandler(KeyValueStore keyStore, Logger logger, int port) {
+        this(keyStore, logger, port, new RequestMetrics());
+    }
+
+    /**
+     * Constructor for the `RequestHandler` class.
+     *
+     * @param keyStore The key store the requests are applied to.
+     * @param logger   The logger used to record requests and their outcome.
+     * @param port     The port number the server is listening on, used in log messages.
+     * @param metrics  The metrics every handled request is recorded in.
+     */
+    public RequestHandler(KeyValueStore keyStore, Logger logger, int port, RequestMetrics metrics) {
+        this(keyStore, logger, port, metrics, null);
+    }
+
+    /**
+     * Constructor for a `RequestHandler` that serves watches.
+     *
+     * @param keyStore   The key store the requests are applied to.
+     * @param logger     The logger used to record requests and their outcome.
+     * @param port       The port number the server is listening on, used in log messages.
+     * @param metrics    The metrics every handled request is recorded in.
+     * @param watchStore The layer of the key store that reports changes, or null to fail watches.
+     */
+    public RequestHandler(KeyValueStore keyStore, Logger logger, int port, RequestMetrics metrics,
+                          WatchingKeyValueStore watchStore) {
+        this(keyStore, logger, port, metrics, watchStore, null);
+    }
+
+    /**
+     * Constructor for a `RequestHandler` that serves watches and sheds load.
+     *
+     * @param keyStore   The key store the requests are applied to.
+     * @param logger     The logger used to record requests and their outcome.
+     * @param port       The port number the server is listening on, used in log messages.
+     * @param metrics    The metrics every handled request is recorded in.
+     * @param watchStore The layer of the key store that reports changes, or null to fail watches.
+     * @param admission  The admission control requests pass, or null to admit every request.
+     */
+    public RequestHandler(KeyValueStore keyStore, Logger logger, int port, RequestMetrics metrics,
+                          WatchingKeyValueStore watchStore, AdmissionController admission) {
+        this.keyStore = keyStore;
+        this.clusterStore = keyStore instanceof ShardedKeyValueStore ? (ShardedKeyValueStore) keyStore : null;
+        this.expiringStore = keyStore instanceof ExpiringKeyValueStore ? (ExpiringKeyValueStore) keyStore : null;
+        this.watchStore = watchStore;
+        this.admission = admission;
+        this.logger = logger;
+        this.port = port;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Admits a text request before it is queued or handled. Health checks are always admitted.
+     *
+     * @param receivedMsg  The request message received from the client.
+     * @param arrivedNanos The `System.nanoTime` at which the request arrived, such as when the
+     *                     reactor that reads it woke up; the wait since then counts against it.
+     * @return True if the request has to be handled and then passed to `complete`, false if it
+     *         has to be answered with `rejectRequest`.
+     */
+    boolean admit(String receivedMsg, long arrivedNanos) {
+        return admit(receivedMsg.startsWith("PING "), arrivedNanos);
+    }
+
+    /**
+     * Admits a binary request, or a text request decoded by `decodeText`, before it is queued or
+     * handled. Health checks and replication are always admitted.
+     *
+     * @param opcode       The opcode of the request, with or without flag bits.
+     * @param arrivedNanos The `System.nanoTime` at which the request arrived.
+     * @return True if the request has to be handled and then passed to `complete`, false if it
+     *         has to be answered with `rejectTextCommand` or `rejectBinaryRequest`.
+     */
+    boolean admit(byte opcode, long arrivedNanos) {
+        byte base = BinaryProtocol.baseOpcode(opcode);
+        return admit(base == BinaryProtocol.PING || base == BinaryProtocol.REPLICATE, arrivedNanos);
+    }
+
+    private boolean admit(boolean exempt, long arrivedNanos) {
+        if (admission == null) {
+            return true;
+        }
+        if (exempt) {
+            admission.acquire();
+            return true;
+        }
+        return admission.tryAcquire(arrivedNanos);
+    }
+
+    /**
+     * Records that an admitted request has been answered.
+     *
+     * @param arrivedNanos The arrival time the request was admitted with.
+     */
+    void complete(long arrivedNanos) {
+        if (admission != null) {
+            admission.release(arrivedNanos);
+        }
+    }
+
+    /**
+     * Builds the busy response to a text request that was not admitted.
+     *
+     * @param receivedMsg The request message received from the client.
+     * @return "Server busy RETRY_AFTER=&lt;millis&gt; #id".
+     */
+    String rejectRequest(String receivedMsg) {
+        int space = receivedMsg.indexOf(' ');
+        metrics.reject(RequestMetrics.command(space < 0 ? receivedMsg : receivedMsg.substring(0, space)),
+                RequestMetrics.TEXT);
+        return "Server busy RETRY_AFTER=" + admission.retryAfterMillis() + " #" + packetId(receivedMsg);
+    }
+
+    /**
+     * Writes the busy response to a text request decoded by `decodeText` that was not admitted.
+     *
+     * @param command  The decoded request.
+     * @param response The buffer the response is written to, with at least
+     *                 `TextProtocol.MAX_RESPONSE_BYTES` bytes remaining.
+     */
+    void rejectTextCommand(Command command, ByteBuffer response) {
+        metrics.reject(RequestMetrics.command(command.opcode()), RequestMetrics.TEXT);
+        TextProtocol.writeDecimal(response.put(BUSY), admission.retryAfterMillis());
+        TextProtocol.writeRequestId(response, command.requestId());
+    }
+
+    /**
+     * Writes the BUSY response to a binary request that was not admitted. The request need not
+     * be decoded: every request ends with its id.
+     *
+     * @param opcode    The opcode of the request, with or without flag bits.
+     * @param requestId The id of the request.
+     * @param response  The buffer the response is written to, with at least
+     *                  `BinaryProtocol.MAX_RESPONSE_BYTES` bytes remaining.
+     */
+    void rejectBinaryRequest(byte opcode, long requestId, ByteBuffer response) {
+        metrics.reject(RequestMetrics.command(opcode), RequestMetrics.BINARY);
+        BinaryProtocol.writeResponse(response, BinaryProtocol.baseOpcode(opcode), BinaryProtocol.BUSY, requestId,
+                (int) admission.retryAfterMillis());
+    }
+
+    /**
+     * Builds the response to a text request whose handling failed with an unexpected exception,
+     * so that the client is still answered.
+     *
+     * @param receivedMsg The request message received from the client.
+     * @param e           The exception the request failed with.
+     * @return "Operation terminated with exception, packet_id: #id".
+     */
+    String failRequest(String receivedMsg, RuntimeException e) {
+        return logException(e, "Operation terminated with exception, packet_id: #" + packetId(receivedMsg));
+    }
+
+    /**
+     * Writes the ERROR response to a binary request whose handling failed with an unexpected
+     * exception, so that the client is still answered.
+     *
+     * @param opcode    The opcode of the request, with or without flag bits.
+     * @param requestId The id of the request.
+     * @param e         The exception the request failed with.
+     * @param response  The buffer the response is written to, with at least
+     *                  `BinaryProtocol.MAX_RESPONSE_BYTES` bytes remaining.
+     */
+    void failBinaryRequest(byte opcode, long requestId, RuntimeException e, ByteBuffer response) {
+        logException(e, "Binary operation terminated with exception, packet_id: #" + requestId);
+        byte base = BinaryProtocol.baseOpcode(opcode);
+        if (BinaryProtocol.isBatch(base)) {
+            BinaryProtocol.writeBatchHeader(response, base, BinaryProtocol.ERROR, requestId, 0);
+        } else {
+            BinaryProtocol.writeResponse(response, base, BinaryProtocol.ERROR, requestId, 0);
+        }
+    }
+
+    /**
+     * Handles a request received from a client and returns the response for it.
+     * It is safe to call from many connections at once.
+     *
+     * @param receivedMsg The request message received from the client.
+     * @param inetAddress The IP address of the client that sent the request.
+     * @return The response message to send back to the client.
+     */
+    public String handleRequest(String receivedMsg, String inetAddress) {
+        return handleRequest(receivedMsg, inetAddress, null);
+    }
+
+    /**
+     * Handles a request received on a connection that can push the changes of watched keys.
+     *
+     * @param receivedMsg The request message received from the client.
+     * @param inetAddress The IP address of the client that sent the request.
+     * @param session     The watches of the connection, or null if it cannot push.
+     * @return The response message to send back to the client.
+     */
+    String handleRequest(String receivedMsg, String inetAddress, WatchSession session) {
+        long start = System.nanoTime();
+        String[] instructions = receivedMsg.split(" ");
+        String response = handleTextRequest(instructions, receivedMsg, inetAddress, session);
+        metrics.record(RequestMetrics.command(instructions[0]), RequestMetrics.TEXT, textOutcome(response),
+                System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Decodes a text request in place when it is a single-key request and the in-place parser
+     * is enabled. Requests it declines go to `handleRequest`.
+     *
+     * @param buffer  The buffer holding the request, as ASCII or modified UTF-8.
+     * @param offset  The index of the first byte of the request.
+     * @param length  The length of the request in bytes.
+     * @param command The command to fill; its key points into the buffer.
+     * @return True if the request was decoded and has to be passed to `handleTextCommand`.
+     */
+    public boolean decodeText(ByteBuffer buffer, int offset, int length, Command command) {
+        return parseInPlace && TextProtocol.readRequest(buffer, offset, length, command);
+    }
+
+    /**
+     * Handles a text request decoded by `decodeText` and writes its text response, the same
+     * response `handleRequest` gives, without a frame header.
+     * It is safe to call from many connections at once.
+     *
+     * @param command     The decoded request.
+     * @param response    The buffer the response is written to, with at least
+     *                    `TextProtocol.MAX_RESPONSE_BYTES` bytes remaining.
+     * @param inetAddress The IP address of the client that sent the request.
+     */
+    public void handleTextCommand(Command command, ByteBuffer response, String inetAddress) {
+        long start = System.nanoTime();
+        int outcome = applyTextCommand(command, response, inetAddress);
+        metrics.record(RequestMetrics.command(command.opcode()), RequestMetrics.TEXT, outcome,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Applies a decoded text request and writes its response. Log messages are only built when
+     * they are going to be written somewhere.
+     *
+     * @return The outcome of the request for the metrics.
+     */
+    private int applyTextCommand(Command command, ByteBuffer response, String inetAddress) {
+        byte opcode = command.opcode();
+        long requestId = command.requestId();
+        if (opcode == BinaryProtocol.PING) {
+            response.put(PONG);
+            TextProtocol.writeRequestId(response, requestId);
+            return RequestMetrics.SUCCESS;
+        }
+        boolean traced = echoToConsole || logger.isLoggable(Level.INFO);
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, requestText(command));
+        }
+        WriteAck ack = WriteAck.fromFlag(command.ack());
+        try {
+            if (opcode == BinaryProtocol.PUT) {
+                put(command.key(), command.value(), command.ttlMillis(), ack);
+                if (traced) {
+                    logMessage("Put operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+                }
+                response.put(PUT_SUCCESS);
+            } else if (opcode == BinaryProtocol.GET) {
+                long keyValue = keyStore.get(command.key());
+                if (keyValue == KeyValueStore.NO_VALUE) {
+                    response.put(GET_FAILED);
+                    if (echoToConsole || logger.isLoggable(Level.SEVERE)) {
+                        logException(null, "Get operation terminated with exception, packet_id: #" + requestId);
+                    }
+                    TextProtocol.writeDecimal(response.put(HASH), requestId);
+                    return RequestMetrics.EXCEPTION;
+                }
+                if (traced) {
+                    logMessage("Get operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+                }
+                TextProtocol.writeDecimal(response, keyValue);
+            } else if (remove(command.key(), ack)) {
+                if (traced) {
+                    logMessage("Delete operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+                }
+                response.put(DELETE_SUCCESS);
+            } else {
+                response.put(INVALID);
+                if (echoToConsole || logger.isLoggable(Level.SEVERE)) {
+                    invalidCommandMode("Invalid operation provided by user. #" + requestId);
+                }
+                TextProtocol.writeDecimal(response.put(HASH), requestId);
+                return RequestMetrics.INVALID;
+            }
+        } catch (Exception e) {
+            String name = opcode == BinaryProtocol.PUT ? "Put" : opcode == BinaryProtocol.GET ? "Get" : "Delete";
+            String message = name + " operation terminated with exception, packet_id: #" + requestId;
+            logException(e, message);
+            response.put(message.getBytes(StandardCharsets.US_ASCII));
+            return RequestMetrics.EXCEPTION;
+        }
+        TextProtocol.writeRequestId(response, requestId);
+        return RequestMetrics.SUCCESS;
+    }
+
+    /**
+     * Rebuilds the text of a decoded request for the log.
+     */
+    private static String requestText(Command command) {
+        byte opcode = command.opcode();
+        WriteAck ack = WriteAck.fromFlag(command.ack());
+        return (opcode == BinaryProtocol.PUT ? "PUT " : opcode == BinaryProtocol.GET ? "GET " : "DELETE ") + command.key()
+                + (opcode == BinaryProtocol.PUT ? " " + command.value() : "")
+                + (command.ttlMillis() > 0 ? " TTL=" + command.ttlMillis() : "") + (ack == null ? "" : " ACK=" + ack)
+                + " #" + command.requestId();
+    }
+
+    /**
+     * Applies a text request split into its words and builds its response.
+     */
+    private String handleTextRequest(String[] instructions, String receivedMsg, String inetAddress,
+                                     WatchSession session) {
+        if (instructions.length == 2 && instructions[0].equals("PING")) {
+            // Health checks of idle client connections are answered without being logged.
+            return "PONG " + instructions[1];
+        }
+        logger.log(Level.INFO, receivedMsg);
+        if (instructions[0].equals("WATCH") || instructions[0].equals("UNWATCH")) {
+            return handleWatchRequest(instructions, session, receivedMsg, inetAddress);
+        }
+
+        WriteAck ack = null;
+        if (instructions.length >= 4 && instructions[instructions.length - 2].startsWith("ACK=")) {
+            try {
+                ack = WriteAck.fromName(instructions[instructions.length - 2].substring(4));
+            } catch (IllegalArgumentException e) {
+                return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+            }
+            if (instructions[0].equals("GET") || instructions[0].equals("MGET") || instructions[0].equals("SCAN")
+                    || instructions[0].equals("PREFIX")) {
+                return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+            }
+            String packet = instructions[instructions.length - 1];
+            instructions = Arrays.copyOf(instructions, instructions.length - 1);
+            instructions[instructions.length - 1] = packet;
+        }
+
+        byte batchOpcode = batchOpcode(instructions[0]);
+        if (batchOpcode != 0 && instructions.length >= 3) {
+            return handleBatchRequest(batchOpcode, instructions, ack, receivedMsg, inetAddress);
+        }
+        if (instructions[0].equals("INCRBY") || instructions[0].equals("DECRBY") || instructions[0].equals("CAS")) {
+            return handleNumericRequest(instructions, ack, receivedMsg, inetAddress);
+        }
+        if (instructions[0].equals("SCAN") || instructions[0].equals("PREFIX")) {
+            return handleScanRequest(instructions, receivedMsg, inetAddress);
+        }
+        long ttlMillis = 0;
+        if (instructions.length == 5 && instructions[0].equals("PUT") && instructions[3].startsWith("TTL=")) {
+            try {
+                ttlMillis = Long.parseLong(instructions[3].substring(4));
+            } catch (NumberFormatException e) {
+                ttlMillis = 0;
+            }
+            if (ttlMillis <= 0) {
+                return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+            }
+            instructions = new String[] {instructions[0], instructions[1], instructions[2], instructions[4]};
+        }
+        if (instructions.length == 3 || instructions.length == 4) {
+            if (instructions[0].equals("PUT") && instructions.length == 4) {
+                try {
+                    put(instructions[1], Integer.parseInt(instructions[2]), ttlMillis, ack);
+                    String logDataMessage = "Put operation success";
+                    logMessage(logDataMessage + " packet_id: " + instructions[3] + " InetAddress: " + inetAddress + " port: " + port);
+                    return logDataMessage + " " + instructions[3];
+                } catch (Exception e) {
+                    return logException(e, "Put operation terminated with exception, packet_id: " + instructions[3]);
+                }
+            } else if (instructions[0].equals("GET") && instructions.length == 3) {
+                try {
+                    long keyValue = keyStore.get(instructions[1]);
+                    if (keyValue == KeyValueStore.NO_VALUE) {
+                        return logException(null, "Get operation terminated with exception, packet_id: " + instructions[2]);
+                    }
+                    String logDataMessage = "Get operation success";
+                    logMessage(logDataMessage + " packet_id: " + instructions[2] + " InetAddress: " + inetAddress + " port: " + port);
+                    return keyValue + " " + instructions[2];
+                } catch (Exception e) {
+                    return logException(e, "Get operation terminated with exception, packet_id: " + instructions[2]);
+                }
+            } else if (instructions[0].equals("DELETE") && instructions.length == 3) {
+                try {
+                    if (remove(instructions[1], ack)) {
+                        String logDataMessage = "Delete operation success";
+                        logMessage(logDataMessage + " packet_id: " + instructions[2] + " InetAddress: " + inetAddress + " port: " + port);
+                        return logDataMessage + " " + instructions[2];
+                    }
+                    return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+                } catch (Exception e) {
+                    return logException(e, "Delete operation terminated with exception, packet_id: " + instructions[2]);
+                }
+            }
+        }
+        return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+    }
+
+    /**
+     * Handles a binary request and encodes the response for it. The key is looked up straight
+     * from the request buffer; it is only copied when a PUT inserts it.
+     * It is safe to call from many connections at once.
+     *
+     * @param command     The decoded request.
+     * @param response    The buffer the response is written to, with at least
+     *                    `BinaryProtocol.maxResponseSize(command)` bytes remaining.
+     * @param inetAddress The IP address of the client that sent the request.
+     */
+    public void handleBinaryRequest(Command command, ByteBuffer response, String inetAddress) {
+        handleBinaryRequest(command, response, inetAddress, null);
+    }
+
+    /**
+     * Handles a binary request received on a connection that can push the changes of watched
+     * keys.
+     *
+     * @param command     The decoded request.
+     * @param response    The buffer the response is written to, with at least
+     *                    `BinaryProtocol.maxResponseSize(command)` bytes remaining.
+     * @param inetAddress The IP address of the client that sent the request.
+     * @param session     The watches of the connection, or null if it cannot push.
+     */
+    void handleBinaryRequest(Command command, ByteBuffer response, String inetAddress, WatchSession session) {
+        long start = System.nanoTime();
+        byte status = applyBinaryRequest(command, command.opcode(), response, inetAddress, session);
+        metrics.record(RequestMetrics.command(command.opcode()), RequestMetrics.BINARY,
+                binaryOutcome(command.opcode(), status), System.nanoTime() - start);
+    }
+
+    /**
+     * Applies a binary request and writes its response.
+     *
+     * @return The status of the response.
+     */
+    private byte applyBinaryRequest(Command command, byte opcode, ByteBuffer response, String inetAddress,
+                                    WatchSession session) {
+        long requestId = command.requestId();
+        WriteAck ack = WriteAck.fromFlag(command.ack());
+        if (opcode == BinaryProtocol.REPLICATE) {
+            byte status = applyReplicated(command);
+            BinaryProtocol.writeResponse(response, opcode, status, requestId, 0);
+            return status;
+        }
+        if (opcode == BinaryProtocol.PING) {
+            BinaryProtocol.writeResponse(response, opcode, BinaryProtocol.OK, requestId, 0);
+            return BinaryProtocol.OK;
+        }
+        if (BinaryProtocol.isScan(opcode)) {
+            return applyBinaryScan(command, opcode, response, inetAddress);
+        }
+        if (opcode == BinaryProtocol.WATCH) {
+            byte status = applyWatch(command.key().toString(), command.value(), session, "#" + requestId, inetAddress);
+            BinaryProtocol.writeResponse(response, opcode, status, requestId, 0);
+            return status;
+        }
+        if (BinaryProtocol.isBatch(opcode)) {
+            int count = command.count();
+            byte[] statuses = new byte[count];
+            long[] found = new long[count];
+            applyBatch(opcode, command.keys(), command.values(), command.expectedValues(), count, ack, statuses, found);
+            logMessage(batchName(opcode) + " operation success keys: " + count + " packet_id: #" + requestId
+                    + " InetAddress: " + inetAddress + " port: " + port);
+            BinaryProtocol.writeBatchHeader(response, opcode, BinaryProtocol.OK, requestId, count);
+            for (int i = 0; i < count; i++) {
+                BinaryProtocol.writeBatchEntry(response, opcode, statuses[i], (int) found[i]);
+            }
+            return BinaryProtocol.OK;
+        }
+        byte status = BinaryProtocol.OK;
+        long keyValue = 0;
+        try {
+            if (opcode == BinaryProtocol.PUT) {
+                put(command.key(), command.value(), command.ttlMillis(), ack);
+                logMessage("Put operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+            } else if (opcode == BinaryProtocol.GET) {
+                keyValue = keyStore.get(command.key());
+                if (keyValue == KeyValueStore.NO_VALUE) {
+                    status = BinaryProtocol.NOT_FOUND;
+                    logException(null, "Get operation terminated with exception, packet_id: #" + requestId);
+                } else {
+                    logMessage("Get operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+                }
+            } else if (opcode == BinaryProtocol.INCRBY) {
+                keyValue = addAndGet(command.key(), command.value(), ack);
+                logMessage("Incrby operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+            } else if (opcode == BinaryProtocol.CAS) {
+                keyValue = compareAndExchange(command.key(), command.expectedValue(), command.value(), ack);
+                if (keyValue != command.expectedValue()) {
+                    status = keyValue == KeyValueStore.NO_VALUE ? BinaryProtocol.NOT_FOUND : BinaryProtocol.CONFLICT;
+                    logMessage("Cas operation failed packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+                } else {
+                    logMessage("Cas operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+                }
+            } else if (remove(command.key(), ack)) {
+                logMessage("Delete operation success packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+            } else {
+                status = BinaryProtocol.NOT_FOUND;
+                invalidCommandMode("Invalid operation provided by user. #" + requestId);
+            }
+        } catch (Exception e) {
+            status = BinaryProtocol.ERROR;
+            logException(e, "Binary operation terminated with exception, packet_id: #" + requestId);
+        }
+        BinaryProtocol.writeResponse(response, opcode, status, requestId, (int) keyValue);
+        return status;
+    }
+
+    /**
+     * Handles a text WATCH or UNWATCH: "WATCH &lt;key&gt; #id" or "WATCH PREFIX &lt;prefix&gt; #id", and
+     * the same with UNWATCH. Both are answered with "Watch operation success #id".
+     */
+    private String handleWatchRequest(String[] instructions, WatchSession session, String receivedMsg,
+                                      String inetAddress) {
+        boolean prefix = instructions.length == 4 && instructions[1].equals("PREFIX");
+        if (instructions.length != (prefix ? 4 : 3) || !instructions[instructions.length - 1].startsWith("#")) {
+            return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+        }
+        String packetId = instructions[instructions.length - 1];
+        int flags = (prefix ? BinaryProtocol.WATCH_PREFIX : 0)
+                | (instructions[0].equals("UNWATCH") ? BinaryProtocol.UNWATCH : 0);
+        byte status = applyWatch(instructions[prefix ? 2 : 1], flags, session, packetId, inetAddress);
+        if (status == BinaryProtocol.OK) {
+            return "Watch operation success " + packetId;
+        }
+        return status == BinaryProtocol.NOT_FOUND ? "Invalid operation provided by user. " + packetId
+                : "Watch operation terminated with exception, packet_id: " + packetId;
+    }
+
+    /**
+     * Starts or cancels a watch of the connection a request arrived on.
+     *
+     * @param key      The key or prefix.
+     * @param flags    The WATCH flags of the request.
+     * @param session  The watches of the connection, or null if it cannot push.
+     * @param packetId The packet id of the request, with its '#'.
+     * @return OK, NOT_FOUND for an UNWATCH of a key that was not watched, or ERROR if the
+     *         connection or store cannot serve watches.
+     */
+    private byte applyWatch(String key, int flags, WatchSession session, String packetId, String inetAddress) {
+        boolean prefix = (flags & BinaryProtocol.WATCH_PREFIX) != 0;
+        if (session == null || watchStore == null) {
+            logException(null, "Watch operation terminated with exception, packet_id: " + packetId);
+            return BinaryProtocol.ERROR;
+        }
+        if ((flags & BinaryProtocol.UNWATCH) == 0) {
+            session.watch(watchStore, key, prefix, packetId.substring(1));
+        } else if (!session.unwatch(key, prefix)) {
+            invalidCommandMode("Invalid operation provided by user. " + packetId);
+            return BinaryProtocol.NOT_FOUND;
+        }
+        logMessage("Watch operation success packet_id: " + packetId + " InetAddress: " + inetAddress + " port: " + port);
+        return BinaryProtocol.OK;
+    }
+
+    /**
+     * Handles a text INCRBY, DECRBY or CAS: "INCRBY &lt;key&gt; &lt;delta&gt; #id", "DECRBY &lt;key&gt;
+     * &lt;delta&gt; #id" or "CAS &lt;key&gt; &lt;expected value or -&gt; &lt;new value&gt; #id".
+     */
+    private String handleNumericRequest(String[] instructions, WriteAck ack, String receivedMsg, String inetAddress) {
+        boolean cas = instructions[0].equals("CAS");
+        if (instructions.length != (cas ? 5 : 4)) {
+            return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+        }
+        String name = cas ? "Cas" : "Incrby";
+        String packetId = instructions[instructions.length - 1];
+        try {
+            int value = Integer.parseInt(instructions[cas ? 3 : 2]);
+            if (!cas) {
+                int result = addAndGet(instructions[1], instructions[0].equals("DECRBY") ? Math.negateExact(value) : value, ack);
+                logMessage(name + " operation success packet_id: " + packetId + " InetAddress: " + inetAddress + " port: " + port);
+                return result + " " + packetId;
+            }
+            long expected = instructions[2].equals("-") ? KeyValueStore.NO_VALUE : Integer.parseInt(instructions[2]);
+            long witness = compareAndExchange(instructions[1], expected, value, ack);
+            if (witness != expected) {
+                logMessage("Cas operation failed packet_id: " + packetId + " InetAddress: " + inetAddress + " port: " + port);
+                return "Cas operation failed, value: " + (witness == KeyValueStore.NO_VALUE ? "NOT_FOUND" : witness)
+                        + " " + packetId;
+            }
+            logMessage("Cas operation success packet_id: " + packetId + " InetAddress: " + inetAddress + " port: " + port);
+            return "Cas operation success " + packetId;
+        } catch (Exception e) {
+            return logException(e, name + " operation terminated with exception, packet_id: " + packetId);
+        }
+    }
+
+    /**
+     * Handles a text MPUT, MGET, MDELETE, MINCRBY or MCAS. MPUT takes a value after every key,
+     * MINCRBY a delta, and MCAS an expected value, or "-", and a new value. The response names
+     * the command, then lists one outcome per key in request order and ends with the packet id,
+     * for example "MGET 4 NOT_FOUND 8 #12": a value or NOT_FOUND for MGET, the new value or ERROR
+     * for MINCRBY, OK, the current value, NOT_FOUND or ERROR for MCAS, and OK, NOT_FOUND or ERROR
+     * for the others. A batch with more keys than the response is sure to fit in one frame, about
+     * 5400, is rejected unapplied.
+     */
+    private String handleBatchRequest(byte opcode, String[] instructions, WriteAck ack, String receivedMsg,
+                                      String inetAddress) {
+        String packetId = instructions[instructions.length - 1];
+        int arguments = instructions.length - 2;
+        int stride = opcode == BinaryProtocol.MCAS ? 3 : opcode == BinaryProtocol.MPUT || opcode == BinaryProtocol.MINCRBY ? 2 : 1;
+        int count = arguments / stride;
+        if (arguments % stride != 0 || count > BinaryProtocol.MAX_BATCH_KEYS) {
+            return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+        }
+        // Rejected unapplied if the response might not fit in one writeUTF frame.
+        if (ModifiedUtf8.frameSize(instructions[0] + ' ' + packetId) + (long) count * MAX_TEXT_OUTCOME_BYTES
+                > ModifiedUtf8.HEADER_BYTES + ModifiedUtf8.MAX_PAYLOAD) {
+            return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+        }
+        String[] keys = new String[count];
+        int[] values = new int[count];
+        long[] expected = opcode == BinaryProtocol.MCAS ? new long[count] : null;
+        byte[] statuses = new byte[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = instructions[1 + stride * i];
+            if (stride > 1) {
+                try {
+                    values[i] = Integer.parseInt(instructions[stride * (i + 1)]);
+                    if (expected != null) {
+                        String word = instructions[2 + stride * i];
+                        expected[i] = word.equals("-") ? KeyValueStore.NO_VALUE : Integer.parseInt(word);
+                    }
+                } catch (NumberFormatException e) {
+                    statuses[i] = BinaryProtocol.ERROR;
+                }
+            }
+        }
+        long[] found = new long[count];
+        applyBatch(opcode, keys, values, expected, count, ack, statuses, found);
+        logMessage(batchName(opcode) + " operation success keys: " + count + " packet_id: " + packetId
+                + " InetAddress: " + inetAddress + " port: " + port);
+        StringBuilder response = new StringBuilder(instructions[0].length() + 12 * count + packetId.length());
+        response.append(instructions[0]);
+        for (int i = 0; i < count; i++) {
+            response.append(' ');
+            if (BinaryProtocol.hasValue(opcode, statuses[i])) {
+                response.append(found[i]);
+            } else {
+                response.append(statuses[i] == BinaryProtocol.OK ? "OK"
+                        : statuses[i] == BinaryProtocol.NOT_FOUND ? "NOT_FOUND" : "ERROR");
+            }
+        }
+        return response.append(' ').append(packetId).toString();
+    }
+
+    /**
+     * Handles a text SCAN or PREFIX: "SCAN &lt;from&gt; &lt;to&gt; &lt;page size&gt; [token] #id", where
+     * "-" leaves the range open at that end, or "PREFIX &lt;prefix&gt; &lt;page size&gt; [token] #id".
+     * The response names the command, lists the keys and values of the page in key order and,
+     * if more entries follow, ends with "NEXT=" and the token of the next page before the
+     * packet id.
+     */
+    private String handleScanRequest(String[] instructions, String receivedMsg, String inetAddress) {
+        boolean prefix = instructions[0].equals("PREFIX");
+        int bounds = prefix ? 1 : 2;
+        int arguments = instructions.length - 2;
+        String packetId = instructions[instructions.length - 1];
+        if ((arguments != bounds + 1 && arguments != bounds + 2) || !packetId.startsWith("#")) {
+            return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+        }
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(instructions[1 + bounds]);
+        } catch (NumberFormatException e) {
+            pageSize = 0;
+        }
+        if (pageSize < 1 || pageSize > BinaryProtocol.MAX_SCAN_PAGE) {
+            return invalidCommandMode("Invalid operation provided by user. #" + packetId(receivedMsg));
+        }
+        String first = prefix || !instructions[1].equals("-") ? instructions[1] : null;
+        String to = prefix || instructions[2].equals("-") ? null : instructions[2];
+        String token = arguments == bounds + 2 ? instructions[bounds + 2] : null;
+        TextScanPage page = new TextScanPage(instructions[0], pageSize, packetId);
+        try {
+            scan(prefix ? BinaryProtocol.PREFIX : BinaryProtocol.SCAN, first, to, token, page);
+        } catch (Exception e) {
+            return logException(e, "Scan operation terminated with exception, packet_id: " + packetId);
+        }
+        logMessage((prefix ? "Prefix" : "Scan") + " operation success keys: " + page.count + " packet_id: " + packetId
+                + " InetAddress: " + inetAddress + " port: " + port);
+        return page.finish(packetId);
+    }
+
+    /**
+     * Applies a binary SCAN or PREFIX and writes the page straight into the response.
+     *
+     * @return The status of the response.
+     */
+    private byte applyBinaryScan(Command command, byte opcode, ByteBuffer response, String inetAddress) {
+        long requestId = command.requestId();
+        byte bounds = command.bounds();
+        ByteKey[] keys = command.keys();
+        CharSequence first = opcode == BinaryProtocol.PREFIX || (bounds & BinaryProtocol.FROM_KEY) != 0 ? keys[0] : null;
+        CharSequence to = (bounds & BinaryProtocol.TO_KEY) != 0 ? keys[1] : null;
+        CharSequence token = (bounds & BinaryProtocol.AFTER_KEY) != 0 ? keys[2] : null;
+        int start = response.position();
+        BinaryProtocol.writeScanHeader(response, opcode, BinaryProtocol.OK, requestId);
+        BinaryScanPage page = new BinaryScanPage(response, command.count());
+        try {
+            scan(opcode, first, to, token, page);
+            if (page.count == 0 && page.more) {
+                throw new IllegalStateException("An entry does not fit in a page");
+            }
+        } catch (Exception e) {
+            logException(e, "Scan operation terminated with exception, packet_id: #" + requestId);
+            response.position(start);
+            BinaryProtocol.writeScanHeader(response, opcode, BinaryProtocol.ERROR, requestId);
+            return BinaryProtocol.ERROR;
+        }
+        BinaryProtocol.endScanResponse(response, start, page.count, page.more);
+        logMessage((opcode == BinaryProtocol.PREFIX ? "Prefix" : "Scan") + " operation success keys: " + page.count
+                + " packet_id: #" + requestId + " InetAddress: " + inetAddress + " port: " + port);
+        return BinaryProtocol.OK;
+    }
+
+    /**
+     * Visits the entries of a page of a SCAN or PREFIX. A continuation token is the last key of
+     * the previous page, so the page starts after it unless it lies before the range.
+     *
+     * @param opcode  SCAN or PREFIX.
+     * @param first   The start of the range, null for the smallest key, or the prefix.
+     * @param to      The end of the range of a SCAN, or null for the largest key.
+     * @param token   The continuation token, or null for the first page.
+     * @param visitor Receives the entries.
+     */
+    private void scan(byte opcode, CharSequence first, CharSequence to, CharSequence token,
+                      KeyValueStore.EntryVisitor visitor) {
+        CharSequence from = first;
+        CharSequence end = opcode == BinaryProtocol.PREFIX ? KeyValueStore.prefixEnd(first) : to;
+        boolean after = false;
+        if (token != null && (from == null || CharSequence.compare(token, from) >= 0)) {
+            from = token;
+            after = true;
+        }
+        keyStore.scan(from, after, end, visitor);
+    }
+
+    /**
+     * Collects a page of a text scan response. It ends the page at the page size or once the
+     * response would grow beyond `BinaryProtocol.SCAN_PAGE_BYTES` encoded bytes, and notes
+     * whether the range goes on by looking at one entry more. Whatever the keys, the response,
+     * with its NEXT token and packet id, always fits in one writeUTF frame.
+     */
+    private static final class TextScanPage implements KeyValueStore.EntryVisitor {
+        private final StringBuilder response;
+        private final int pageSize;
+        private final int packetIdBytes;
+        private int bytes;
+        private String lastKey;
+        private boolean more;
+        int count;
+
+        TextScanPage(String command, int pageSize, String packetId) {
+            this.response = new StringBuilder(command);
+            this.pageSize = pageSize;
+            this.packetIdBytes = ModifiedUtf8.encodedLength(packetId);
+            this.bytes = ModifiedUtf8.encodedLength(command);
+        }
+
+        @Override
+        public boolean visit(String key, int value) {
+            int keyBytes = ModifiedUtf8.encodedLength(key);
+            // A space, the key, a space and at most 11 digits; then perhaps " NEXT=", the key, a space and the id.
+            int entryBytes = keyBytes + 13;
+            boolean fitsFrame = bytes + entryBytes + 6 + keyBytes + 1 + packetIdBytes <= ModifiedUtf8.MAX_PAYLOAD;
+            if (count == 0 && !fitsFrame) {
+                throw new IllegalStateException("Key of " + keyBytes + " bytes does not fit in a text scan page");
+            }
+            if (count == pageSize || (count > 0 && (!fitsFrame || bytes + entryBytes > BinaryProtocol.SCAN_PAGE_BYTES))) {
+                more = true;
+                return false;
+            }
+            bytes += entryBytes;
+            response.append(' ').append(key).append(' ').append(value);
+            lastKey = key;
+            count++;
+            return true;
+        }
+
+        String finish(String packetId) {
+            if (more) {
+                response.append(" NEXT=").append(lastKey);
+            }
+            return response.append(' ').append(packetId).toString();
+        }
+    }
+
+    /**
+     * Writes a page of a binary scan response into the response buffer as the entries arrive,
+     * within the page size and `BinaryProtocol.SCAN_PAGE_BYTES`, and notes whether the range
+     * goes on by looking at one entry more.
+     */
+    private static final class BinaryScanPage implements KeyValueStore.EntryVisitor {
+        private final ByteBuffer response;
+        private final int pageSize;
+        private int bytes;
+        boolean more;
+        int count;
+
+        BinaryScanPage(ByteBuffer response, int pageSize) {
+            this.response = response;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean visit(String key, int value) {
+            int size = BinaryProtocol.scanEntrySize(key);
+            if (count == pageSize || bytes + size > BinaryProtocol.SCAN_PAGE_BYTES) {
+                more = true;
+                return false;
+            }
+            BinaryProtocol.writeScanEntry(response, key, value);
+            bytes += size;
+            count++;
+            return true;
+        }
+    }
+
+    /**
+     * Applies a batch to the key store with a single batch call. Keys whose status is already
+     * ERROR, or that are too long, are left out of the call.
+     *
+     * @param opcode   MPUT, MGET, MDELETE, MINCRBY or MCAS.
+     * @param keys     The keys of the batch.
+     * @param values   The values of an MPUT or MCAS, or the deltas of an MINCRBY.
+     * @param expected The expected values of an MCAS; null for other batches.
+     * @param count    The number of keys to use from the start of the arrays.
+     * @param ack      The acknowledgement level of a write, or null for the default.
+     * @param statuses The outcome for each key; entries that are ERROR on entry are skipped.
+     * @param found    Receives the value of each key present for an MGET, the new value of each
+     *                 key of an MINCRBY, and the current value of each key of an MCAS that
+     *                 ends in CONFLICT.
+     */
+    private void applyBatch(byte opcode, CharSequence[] keys, int[] values, long[] expected, int count, WriteAck ack,
+                            byte[] statuses, long[] found) {
+        for (int i = 0; i < count; i++) {
+            if (keys[i].length() > KeyValueStore.MAX_KEY_LENGTH) {
+                statuses[i] = BinaryProtocol.ERROR;
+            }
+        }
+        // Usually every key is valid and the arrays are passed on as they are; otherwise the
+        // valid keys are packed to the front of copies.
+        int[] positions = null;
+        int valid = count;
+        for (int i = 0; i < count; i++) {
+            if (statuses[i] == BinaryProtocol.ERROR) {
+                positions = new int[count];
+                break;
+            }
+        }
+        if (positions != null) {
+            CharSequence[] packedKeys = new CharSequence[count];
+            int[] packedValues = new int[count];
+            long[] packedExpected = expected == null ? null : new long[count];
+            valid = 0;
+            for (int i = 0; i < count; i++) {
+                if (statuses[i] != BinaryProtocol.ERROR) {
+                    packedKeys[valid] = keys[i];
+                    packedValues[valid] = values[i];
+                    if (expected != null) {
+                        packedExpected[valid] = expected[i];
+                    }
+                    positions[valid++] = i;
+                }
+            }
+            keys = packedKeys;
+            values = packedValues;
+            expected = packedExpected;
+        }
+        boolean withResults = opcode == BinaryProtocol.MGET || opcode == BinaryProtocol.MINCRBY
+                || opcode == BinaryProtocol.MCAS;
+        long[] results = withResults ? new long[valid] : null;
+        boolean[] removed = opcode == BinaryProtocol.MDELETE ? new boolean[valid] : null;
+        try {
+            if (opcode == BinaryProtocol.MGET) {
+                keyStore.getAll(keys, valid, results);
+            } else if (opcode == BinaryProtocol.MINCRBY) {
+                if (clusterStore != null) {
+                    clusterStore.addAndGetAll(keys, values, valid, results, ack);
+                } else {
+                    keyStore.addAndGetAll(keys, values, valid, results);
+                }
+            } else if (opcode == BinaryProtocol.MCAS) {
+                if (clusterStore != null) {
+                    clusterStore.compareAndExchangeAll(keys, expected, values, valid, results, ack);
+                } else {
+                    keyStore.compareAndExchangeAll(keys, expected, values, valid, results);
+                }
+            } else if (clusterStore != null) {
+                if (opcode == BinaryProtocol.MPUT) {
+                    clusterStore.putAll(keys, values, valid, ack);
+                } else {
+                    clusterStore.removeAll(keys, valid, removed, ack);
+                }
+            } else if (opcode == BinaryProtocol.MPUT) {
+                keyStore.putAll(keys, values, valid);
+            } else {
+                keyStore.removeAll(keys, valid, removed);
+            }
+        } catch (Exception e) {
+            logException(e, batchName(opcode) + " operation terminated with exception: " + e);
+            for (int k = 0; k < valid; k++) {
+                statuses[positions == null ? k : positions[k]] = BinaryProtocol.ERROR;
+            }
+            return;
+        }
+        for (int k = 0; k < valid; k++) {
+            int i = positions == null ? k : positions[k];
+            if (opcode == BinaryProtocol.MGET) {
+                found[i] = results[k];
+                statuses[i] = results[k] == KeyValueStore.NO_VALUE ? BinaryProtocol.NOT_FOUND : BinaryProtocol.OK;
+            } else if (opcode == BinaryProtocol.MINCRBY) {
+                found[i] = results[k];
+                statuses[i] = results[k] == KeyValueStore.NO_VALUE ? BinaryProtocol.ERROR : BinaryProtocol.OK;
+            } else if (opcode == BinaryProtocol.MCAS) {
+                found[i] = results[k];
+                statuses[i] = results[k] == expected[k] ? BinaryProtocol.OK
+                        : results[k] == KeyValueStore.NO_VALUE ? BinaryProtocol.NOT_FOUND : BinaryProtocol.CONFLICT;
+            } else if (opcode == BinaryProtocol.MDELETE) {
+                statuses[i] = removed[k] ? BinaryProtocol.OK : BinaryProtocol.NOT_FOUND;
+            } else {
+                statuses[i] = BinaryProtocol.OK;
+            }
+        }
+    }
+
+    /**
+     * Writes a key, at the given acknowledgement level on a cluster node. A key with a time to
+     * live needs a store that lets keys expire, which cluster nodes do not have.
+     */
+    private void put(CharSequence key, int value, long ttlMillis, WriteAck ack) {
+        if (ttlMillis > 0) {
+            if (expiringStore == null) {
+                throw new UnsupportedOperationException("Keys cannot expire on this server");
+            }
+            expiringStore.put(key, value, ttlMillis);
+        } else if (clusterStore != null) {
+            clusterStore.put(key, value, ack);
+        } else {
+            keyStore.put(key, value);
+        }
+    }
+
+    /**
+     * Adds to the value of a key, at the given acknowledgement level on a cluster node.
+     */
+    private int addAndGet(CharSequence key, int delta, WriteAck ack) {
+        return clusterStore != null ? clusterStore.addAndGet(key, delta, ack) : keyStore.addAndGet(key, delta);
+    }
+
+    /**
+     * Sets the value of a key if it holds the expected one, at the given acknowledgement level on
+     * a cluster node.
+     */
+    private long compareAndExchange(CharSequence key, long expected, int value, WriteAck ack) {
+        return clusterStore != null ? clusterStore.compareAndExchange(key, expected, value, ack)
+                : keyStore.compareAndExchange(key, expected, value);
+    }
+
+    /**
+     * Removes a key, at the given acknowledgement level on a cluster node.
+     */
+    private boolean remove(CharSequence key, WriteAck ack) {
+        return clusterStore != null ? clusterStore.remove(key, ack) : keyStore.remove(key);
+    }
+
+    /**
+     * Applies the mutations of a REPLICATE request. Successful batches are not logged, since
+     * every node receives them several times a second.
+     *
+     * @return OK, or ERROR if this server is not a cluster node or the batch failed.
+     */
+    private byte applyReplicated(Command command) {
+        if (clusterStore == null) {
+            invalidCommandMode("Replication received by a server outside a cluster. #" + command.requestId());
+            return BinaryProtocol.ERROR;
+        }
+        try {
+            clusterStore.applyReplicated(command.replicationSource(), command.replicatedAsOf(), command.keys(),
+                    command.values(), command.removals(), command.count());
+            return BinaryProtocol.OK;
+        } catch (Exception e) {
+            logException(e, "Replication terminated with exception, packet_id: #" + command.requestId());
+            return BinaryProtocol.ERROR;
+        }
+    }
+
+    /**
+     * Classifies a text response by the message it starts with: the invalid-command messages,
+     * the exception messages, or anything else for success.
+     */
+    private static int textOutcome(String response) {
+        if (response.startsWith("Invalid operation") || response.startsWith("Replication received")) {
+            return RequestMetrics.INVALID;
+        }
+        return response.contains(" terminated with exception") ? RequestMetrics.EXCEPTION : RequestMetrics.SUCCESS;
+    }
+
+    /**
+     * Classifies a binary response the way the text protocol classifies the same outcome: a
+     * missing key is an exception for a GET and an invalid request for a DELETE or an UNWATCH,
+     * while a CAS that finds another value was carried out.
+     */
+    private static int binaryOutcome(byte opcode, byte status) {
+        if (status == BinaryProtocol.OK
+                || (BinaryProtocol.baseOpcode(opcode) == BinaryProtocol.CAS && status != BinaryProtocol.ERROR)) {
+            return RequestMetrics.SUCCESS;
+        }
+        if (status == BinaryProtocol.NOT_FOUND && (BinaryProtocol.baseOpcode(opcode) == BinaryProtocol.DELETE
+                || BinaryProtocol.baseOpcode(opcode) == BinaryProtocol.WATCH)) {
+            return RequestMetrics.INVALID;
+        }
+        return RequestMetrics.EXCEPTION;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte batchOpcode(String command) {
+        switch (command) {
+            case "MPUT":
+                return BinaryProtocol.MPUT;
+            case "MGET":
+                return BinaryProtocol.MGET;
+            case "MDELETE":
+                return BinaryProtocol.MDELETE;
+            case "MINCRBY":
+                return BinaryProtocol.MINCRBY;
+            case "MCAS":
+                return BinaryProtocol.MCAS;
+            default:
+                return 0;
+        }
+    }
+
+    private static String batchName(byte opcode) {
+        switch (opcode) {
+            case BinaryProtocol.MPUT:
+                return "Mput";
+            case BinaryProtocol.MGET:
+                return "Mget";
+            case BinaryProtocol.MINCRBY:
+                return "Mincrby";
+            case BinaryProtocol.MCAS:
+                return "Mcas";
+            default:
+                return "Mdelete";
+        }
+    }
+
+    /**
+     * Extracts the packet id that follows the '#' of a request.
+     *
+     * @param receivedMsg The request message received from the client.
+     * @return The packet id, or an empty string if the request carries none.
+     */
+    static String packetId(String receivedMsg) {
+        int hashIndex = receivedMsg.indexOf('#');
+        return hashIndex < 0 ? "" : receivedMsg.substring(hashIndex + 1);
+    }
+
+    /**
+     * Handles and logs an invalid command.
+     *
+     * @param message The message indicating the invalid command.
+     * @return The message, to be sent back as the response.
+     */
+    private String invalidCommandMode(String message) {
+        if (echoToConsole) {
+            System.out.println(message);
+        }
+        logger.log(Level.SEVERE, message);
+        return message;
+    }
+
+    /**
+     * Logs an exception along with a message.
+     *
+     * @param e       The exception that occurred, or null if the key was not found.
+     * @param message The message to log along with the exception.
+     * @return The message, to be sent back as the response.
+     */
+    private String logException(Exception e, String message) {
+        if (echoToConsole) {
+            System.out.println(message);
+        }
+        logger.log(Level.SEVERE, message);
+        return message;
+    }
+
+    /**
+     * Logs a message at INFO level.
+     *
+     * @param msg The message to log.
+     */
+    private void logMessage(String msg) {
+        if (echoToConsole) {
+            System.out.println("Successfully performed operation. " + msg);
+        }
+        logger.log(Level.INFO, msg);
+    }
+}
@@ -1,22 +1,48 @@
 package server;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import cluster.ClusterNode;
+import cluster.HashRing;
+import cluster.ReplicationPolicy;
+import cluster.ShardedKeyValueStore;
+import cluster.WriteAck;
+import logger.AsyncLogHandler;
 import logger.LoggerHandler;
+import metrics.MetricsHttpServer;
+import metrics.MetricsRegistry;
+import store.CachingKeyValueStore;
+import store.ExpiringKeyValueStore;
+import store.KeyValueStore;
+import store.KeyValueStores;
+import store.OrderedKeyValueStore;
+import store.PersistentKeyValueStore;
+import store.WatchingKeyValueStore;
 
 /**
  * The `ServerApp` class represents a server application that communicates with clients using TCP or UDP protocols.
  */
 public class ServerApp {
-  private static Map<String, Integer> keyStore = new HashMap<String, Integer>();
-  private static Server socketProtocolConnection = null;
+  private static KeyValueStore keyStore = KeyValueStores.create(ServerConfig.storeBackend());
 
   private static final Logger logger = Logger.getLogger(ServerApp.class.getName());
 
+  private static PersistentKeyValueStore persistentStore;
+
+  private static CachingKeyValueStore cache;
+
+  private static WatchingKeyValueStore watchStore;
+
+  private static AdmissionController admission;
+
   static {
 	  keyStore.put("a", 4);
 	  keyStore.put("b", 6);
@@ -32,38 +58,141 @@ public class ServerApp {
   }
 
   /**
-   * Handles and logs an invalid command.
+   * Restores the key store from the data directory and makes every later mutation durable.
+   * The seeded entries are only carried over when the directory holds no earlier state.
    *
-   * @param message The message indicating the invalid command.
-   * @throws IOException If there is an issue with sending the response.
+   * @param dataDirectory The directory holding the write-ahead log and snapshots.
+   * @return The persistent key store.
+   * @throws IOException If the stored state cannot be read.
    */
-  private static void invalidCommandMode(String message) throws IOException {
-    System.out.println(message);
-    socketProtocolConnection.sendResponse(message);
-    logger.log(Level.SEVERE, message);
+  private static KeyValueStore openPersistentStore(Path dataDirectory) throws IOException {
+    persistentStore = PersistentKeyValueStore.open(
+        KeyValueStores.create(ServerConfig.storeBackend()), dataDirectory, ServerConfig.fsyncPolicy(),
+        ServerConfig.fsyncIntervalMillis(), ServerConfig.snapshotIntervalMillis());
+    if (!persistentStore.recoveredState()) {
+      keyStore.forEach(persistentStore::put);
+    }
+    System.out.println(persistentStore.recoverySummary());
+    logger.log(Level.INFO, persistentStore.recoverySummary());
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        persistentStore.close();
+      } catch (IOException e) {
+        System.out.println(e);
+      }
+    }));
+    return persistentStore;
   }
 
   /**
-   * Logs an exception along with a message.
+   * Bounds the key store to the configured memory or entry budget, evicting keys with the
+   * W-TinyLFU policy once it is full.
    *
-   * @param e       The exception that occurred.
-   * @param message The message to log along with the exception.
-   * @throws IOException If there is an issue with sending the response.
+   * @param store The store to bound.
+   * @return The bounded store.
    */
-  private static void logException(Exception e, String message) throws IOException {
-    System.out.println(message);
-    socketProtocolConnection.sendResponse(message);
-    logger.log(Level.SEVERE, message);
+  private static KeyValueStore openCache(KeyValueStore store) {
+    long memoryMb = ServerConfig.cacheMemoryMb();
+    cache = memoryMb > 0 ? new CachingKeyValueStore(store, memoryMb << 20, CachingKeyValueStore.Budget.BYTES)
+        : new CachingKeyValueStore(store, ServerConfig.cacheEntries(), CachingKeyValueStore.Budget.ENTRIES);
+    String summary = "Cache mode: at most " + (memoryMb > 0 ? memoryMb + " MB of entries" : cache.capacity() + " entries")
+        + ", evicted with W-TinyLFU";
+    System.out.println(summary);
+    logger.log(Level.INFO, summary);
+    cache.startTracking();
+    return cache;
   }
 
   /**
-   * Logs a message at INFO level.
+   * Makes the server a node of the cluster described by a ring file. Keys owned by other nodes
+   * are forwarded to them, and writes of its own keys are streamed to their replicas.
    *
-   * @param msg The message to log.
+   * @param localStore The store holding the keys of this node.
+   * @param ringFile   The ring file shared by all nodes.
+   * @param port       The port the server listens on, used to find the node when no id is set.
+   * @return The sharded key store.
+   * @throws IOException If the ring file cannot be read or does not list this server.
    */
-  private static void logMessage(String msg) {
-    System.out.println("Successfully performed operation. " + msg);
-    logger.log(Level.INFO, msg);
+  private static KeyValueStore joinCluster(KeyValueStore localStore, Path ringFile, int port) throws IOException {
+    HashRing ring = HashRing.load(ringFile);
+    ClusterNode self = null;
+    for (ClusterNode node : ring.nodes()) {
+      if (ServerConfig.nodeId() != null ? node.id().equals(ServerConfig.nodeId()) : node.port() == port) {
+        self = node;
+      }
+    }
+    if (self == null) {
+      throw new IOException("No node of " + ringFile + " has " + (ServerConfig.nodeId() != null
+          ? "id " + ServerConfig.nodeId() : "port " + port));
+    }
+    double[] shares = ring.ownership();
+    ReplicationPolicy policy = new ReplicationPolicy(WriteAck.fromName(ServerConfig.writeAck()),
+        ServerConfig.ackTimeoutMillis(), ServerConfig.maxStalenessMillis(), ServerConfig.replicationQueue());
+    String summary = "Node " + self + " of a ring of " + ring.nodes().size() + " nodes, owning "
+        + String.format("%.1f", 100 * shares[ring.nodes().indexOf(self)]) + "% of the keys with "
+        + ring.replicas() + " replicas each, writes acknowledged " + policy.defaultAck();
+    System.out.println(summary);
+    logger.log(Level.INFO, summary);
+    return new ShardedKeyValueStore(localStore, ring, self, ServerConfig.clusterConnections(), policy);
+  }
+
+  /**
+   * Publishes the metrics of the server through JMX and, when a metrics port is configured,
+   * through a local HTTP endpoint. The gauges are read only when the metrics are collected.
+   *
+   * @param metrics The registry the request handler records into.
+   * @param server  The server, for its connection and queue gauges.
+   * @throws IOException If the metrics port cannot be bound.
+   */
+  private static void publishMetrics(MetricsRegistry metrics, ConcurrentServer server) throws IOException {
+    KeyValueStore store = keyStore;
+    metrics.gauge("kvstore_keys", "Keys held by this server.", store::size);
+    metrics.gauge("kvstore_open_connections", "Client connections currently open.", server::openConnections);
+    metrics.gauge("kvstore_worker_queue_depth", "Requests or connections waiting for a server thread.",
+        server::queuedWork);
+    for (Handler handler : logger.getHandlers()) {
+      if (handler instanceof AsyncLogHandler) {
+        metrics.gauge("kvstore_log_queue_depth", "Log records waiting for the log writer.",
+            ((AsyncLogHandler) handler)::queueDepth);
+      }
+    }
+    if (cache != null) {
+      metrics.counter("kvstore_cache_hits_total", "GETs that found their key in the cache.", cache::hits);
+      metrics.counter("kvstore_cache_misses_total", "GETs that did not find their key in the cache.", cache::misses);
+      metrics.counter("kvstore_cache_evictions_total", "Keys evicted to keep the cache within its budget.",
+          cache::evictions);
+      metrics.gauge("kvstore_cache_weighted_size", "Size of the cache in the unit of its budget, entries or bytes.",
+          cache::weightedSize);
+    }
+    if (admission != null) {
+      metrics.gauge("kvstore_concurrency_limit", "Requests the server admits at once before it answers busy.",
+          admission::limit);
+      metrics.gauge("kvstore_requests_in_flight", "Admitted requests that have not been answered yet.",
+          admission::inFlight);
+      metrics.counter("kvstore_requests_shed_total", "Requests answered busy because the server was at its limit.",
+          admission::rejected);
+    }
+    if (watchStore != null) {
+      metrics.gauge("kvstore_watches", "Keys and prefixes watched by connected clients.", watchStore::watches);
+    }
+    if (store instanceof ExpiringKeyValueStore) {
+      metrics.gauge("kvstore_expiring_keys", "Keys with a time to live that have not been removed yet.",
+          ((ExpiringKeyValueStore) store)::expiringKeys);
+    }
+    if (store instanceof ShardedKeyValueStore) {
+      metrics.gauge("kvstore_replication_queue_depth", "Mutations waiting to be streamed to replicas.",
+          ((ShardedKeyValueStore) store)::replicationBacklog);
+    }
+    try {
+      metrics.registerMBean();
+    } catch (JMException e) {
+      System.out.println("Metrics are not published through JMX: " + e);
+    }
+    if (ServerConfig.metricsPort() > 0) {
+      MetricsHttpServer endpoint = new MetricsHttpServer(metrics);
+      endpoint.start(ServerConfig.metricsPort());
+      System.out.println("Serving metrics at http://127.0.0.1:" + endpoint.getPort() + "/metrics");
+    }
   }
 
   /**
@@ -74,84 +203,86 @@ public class ServerApp {
    */
   public static void main(String args[]) throws IOException {
     // Initialize the logger.
-    LoggerHandler.initLogger(logger, "src/server/Server.log");
+    LoggerHandler.initLogger(logger, "src/server/Server.log", ServerConfig.logQueueCapacity(),
+        ServerConfig.logOverflowPolicy());
+    logger.setLevel(Level.parse(ServerConfig.logLevel()));
 
     if (args.length == 1) {
       int port = Integer.valueOf(args[0]);
+      if (ServerConfig.dataDirectory() != null) {
+        keyStore = openPersistentStore(Paths.get(ServerConfig.dataDirectory()));
+      }
+      if (ServerConfig.scanIndex() && ServerConfig.clusterConfig() == null) {
+        // Scans are served where the keys are stored; cluster nodes would only see their own keys.
+        OrderedKeyValueStore orderedStore = new OrderedKeyValueStore(keyStore);
+        orderedStore.startIndexing();
+        keyStore = orderedStore;
+      }
+      // Watches see every change of the stored keys: writes, replicated writes, evictions and expiries.
+      // They sit below the cache, whose evictions remove keys through them.
+      watchStore = new WatchingKeyValueStore(keyStore);
+      keyStore = watchStore;
+      if (ServerConfig.cacheMemoryMb() > 0 || ServerConfig.cacheEntries() > 0) {
+        keyStore = openCache(keyStore);
+      }
+      if (ServerConfig.clusterConfig() != null) {
+        keyStore = joinCluster(keyStore, Paths.get(ServerConfig.clusterConfig()), port);
+      } else {
+        // Expiry is applied where a key is stored; cluster nodes forward and replicate plain writes.
+        ExpiringKeyValueStore expiringStore = new ExpiringKeyValueStore(keyStore, ServerConfig.ttlTickMillis());
+        if (persistentStore != null) {
+          // Keys written with a time to live before a restart expire when they were due to.
+          persistentStore.forEachDeadline(expiringStore::restoreDeadline);
+        }
+        expiringStore.startExpirer();
+        keyStore = expiringStore;
+      }
       Scanner sc = new Scanner(System.in);
       System.out.println("Enter protocol mode of the server.");
       String protocolType = sc.nextLine();
-      String inetAddress = "";
+      MetricsRegistry metrics = new MetricsRegistry(protocolType.toLowerCase());
+      if (ServerConfig.maxConcurrency() > 0) {
+        admission = new AdmissionController(ServerConfig.maxConcurrency(), ServerConfig.latencyTargetMillis());
+        System.out.println("Admission control: at most " + ServerConfig.maxConcurrency()
+            + " requests at once, adapted to a latency target of " + ServerConfig.latencyTargetMillis() + " ms");
+      }
+      RequestHandler requestHandler = new RequestHandler(keyStore, logger, port, metrics.requests(), watchStore,
+          admission);
 
+      ConcurrentServer concurrentServer = null;
       if (protocolType.equals("TCP")) {
-        socketProtocolConnection = new TCPServer();
-        socketProtocolConnection.openConnection(port);
+        int workerThreads = ServerConfig.workerThreads();
+        ExecutorService workers = workerThreads > 0 ? Executors.newFixedThreadPool(workerThreads) : null;
+        if (workers == null && ServerConfig.clusterConfig() != null) {
+          // A forwarded request waits for another node, which may be forwarding requests back;
+          // neither may hold up the reactor threads that read them.
+          workers = Executors.newCachedThreadPool();
+        }
+        concurrentServer = new NioTCPServer(requestHandler, ServerConfig.reactorThreads(), workers);
+      } else if (protocolType.equals("VTHREAD")) {
+        concurrentServer = ThreadPerConnectionServer.withVirtualThreads(requestHandler);
+      } else if (protocolType.equals("THREADPOOL")) {
+        concurrentServer = ThreadPerConnectionServer.withPlatformThreadPool(requestHandler, ServerConfig.poolThreads());
       } else if (protocolType.equals("UDP")) {
-        socketProtocolConnection = new UDPServer();
-        socketProtocolConnection.openConnection(port);
+        int dedupEntries = ServerConfig.udpDedupEntries();
+        concurrentServer = new WorkerUDPServer(requestHandler, ServerConfig.udpWorkers(), dedupEntries > 0
+            ? new IdempotencyCache(dedupEntries, ServerConfig.udpDedupTtlMillis()) : null);
       }
 
-      while (true) {
-        if (protocolType.equals("TCP") || protocolType.equals("UDP")) {
-          String receivedMsg = socketProtocolConnection.receiveRequest();
-          logger.log(Level.INFO, receivedMsg);
-
-          if (receivedMsg != null) {
-            String[] instructions = receivedMsg.split(" ");
-            inetAddress = socketProtocolConnection.getClientIp();
-
-            if (instructions.length == 3 || instructions.length == 4) {
-              if (instructions[0].equals("PUT") && instructions.length == 4) {
-                try {
-                  keyStore.put(instructions[1], Integer.valueOf(instructions[2]));
-                  String logDataMessage = "Put operation success";
-                  logMessage(logDataMessage + " packet_id: " + instructions[3] + " InetAddress: " + inetAddress + " port: " + port);
-                  socketProtocolConnection.sendResponse(logDataMessage + " " + String.valueOf(instructions[3]));
-
-                } catch (Exception e) {
-                  logException(e, "Put operation terminated with exception, packet_id: " +
-                      String.valueOf(instructions[3]));
-                }
-              } else if (instructions[0].equals("GET") && instructions.length == 3) {
-                try {
-                  int keyValue = keyStore.get(instructions[1]);
-                  String logDataMessage = "Get operation success";
-                  logMessage(logDataMessage + " packet_id: " + instructions[2] + " InetAddress: " + inetAddress + " port: " + port);
-                  socketProtocolConnection.sendResponse(String.valueOf(keyValue) + " " + String.valueOf(instructions[2]));
-                } catch (Exception e) {
-                  logException(e, "Get operation terminated with exception, packet_id: " +
-                      String.valueOf(instructions[2]));
-                }
-              } else if (instructions[0].equals("DELETE") && instructions.length == 3) {
-
-                try {
-                  if (keyStore.containsKey(instructions[1])) {
-                    keyStore.remove(instructions[1]);
-                    String logDataMessage = "Delete operation success";
-                    logMessage(logDataMessage + " packet_id: " + instructions[2] + " InetAddress: " + inetAddress + " port: " + port);
-                    socketProtocolConnection.sendResponse(String.valueOf(logDataMessage) + " " + String.valueOf(instructions[2]));
-                  } else {
-                    invalidCommandMode("Invalid operation provided by user. #" + receivedMsg.split("#")[1]);
-                  }
-                } catch (Exception e) {
-                  logException(e, "Delete operation terminated with exception, packet_id: " +
-                      String.valueOf(instructions[2]));
-                }
-              } else {
-                invalidCommandMode("Invalid operation provided by user. #" + receivedMsg.split("#")[1]);
-              }
-            } else {
-              invalidCommandMode("Invalid operation provided by user. #" + receivedMsg.split("#")[1]);
-            }
-          }
-        } else {
-          System.out.println("Invalid protocol Mode");
-          break;
+      if (concurrentServer != null) {
+        concurrentServer.start(port);
+        publishMetrics(metrics, concurrentServer);
+        try {
+          concurrentServer.awaitTermination();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
+        concurrentServer.stop();
+      } else {
+        System.out.println("Invalid protocol Mode");
       }
     } else {
       System.out.println("Server not started.");
     }
-    socketProtocolConnection.closeConnection();
   }
 }
@@ -0,0 +1,325 @@
+package server;
+
+import logger.OverflowPolicy;
+import store.FsyncPolicy;
+
+/**
+ * The `ServerConfig` class collects the tuning options of the server application. Every option
+ * is read from a `-Dkvstore.*` system property so that `java ServerApp <port>` keeps working
+ * with sensible defaults.
+ */
+public final class ServerConfig {
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Number of selector threads serving TCP connections ({@code kvstore.reactors}).
+     *
+     * @return The configured reactor count, defaulting to the number of available processors.
+     */
+    public static int reactorThreads() {
+        return Integer.getInteger("kvstore.reactors", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Number of worker threads that handle the requests of TCP mode ({@code kvstore.workers}).
+     * With workers, pipelined requests are answered in completion order.
+     *
+     * @return The configured worker count, defaulting to 0 to handle requests on the reactor threads.
+     */
+    public static int workerThreads() {
+        return Integer.getInteger("kvstore.workers", 0);
+    }
+
+    /**
+     * Number of platform threads serving connections in THREADPOOL mode ({@code kvstore.poolThreads}).
+     *
+     * @return The configured pool size, defaulting to 256.
+     */
+    public static int poolThreads() {
+        return Integer.getInteger("kvstore.poolThreads", 256);
+    }
+
+    /**
+     * Name of the key store backend ({@code kvstore.store}), either "striped" or "offheap".
+     *
+     * @return The configured backend, defaulting to "striped".
+     */
+    public static String storeBackend() {
+        return System.getProperty("kvstore.store", "striped");
+    }
+
+    /**
+     * Directory holding the write-ahead log and snapshots ({@code kvstore.dataDir}).
+     *
+     * @return The configured directory, or null to keep the store in memory only.
+     */
+    public static String dataDirectory() {
+        return System.getProperty("kvstore.dataDir");
+    }
+
+    /**
+     * When the write-ahead log is forced to disk ({@code kvstore.fsync}): "always", "interval" or "never".
+     *
+     * @return The configured policy, defaulting to INTERVAL.
+     */
+    public static FsyncPolicy fsyncPolicy() {
+        return FsyncPolicy.fromName(System.getProperty("kvstore.fsync", "interval"));
+    }
+
+    /**
+     * How often the write-ahead log is flushed for the "interval" and "never" policies
+     * ({@code kvstore.fsyncIntervalMs}).
+     *
+     * @return The flush interval in milliseconds, defaulting to 50.
+     */
+    public static long fsyncIntervalMillis() {
+        return Long.getLong("kvstore.fsyncIntervalMs", 50);
+    }
+
+    /**
+     * How often a snapshot of the store is written ({@code kvstore.snapshotIntervalSec}).
+     *
+     * @return The snapshot interval in milliseconds, defaulting to five minutes.
+     */
+    public static long snapshotIntervalMillis() {
+        return Long.getLong("kvstore.snapshotIntervalSec", 300) * 1000;
+    }
+
+    /**
+     * Number of log records that can wait for the log writer thread ({@code kvstore.logQueue}).
+     *
+     * @return The configured queue capacity, defaulting to 65536.
+     */
+    public static int logQueueCapacity() {
+        return Integer.getInteger("kvstore.logQueue", 64 * 1024);
+    }
+
+    /**
+     * What a request thread does when the log queue is full ({@code kvstore.logOverflow}):
+     * "block" or "drop".
+     *
+     * @return The configured policy, defaulting to BLOCK.
+     */
+    public static OverflowPolicy logOverflowPolicy() {
+        return OverflowPolicy.fromName(System.getProperty("kvstore.logOverflow", "block"));
+    }
+
+    /**
+     * Whether the outcome of every request is also printed to the console ({@code kvstore.consoleLog}).
+     *
+     * @return The configured flag, defaulting to true.
+     */
+    public static boolean consoleLog() {
+        return Boolean.parseBoolean(System.getProperty("kvstore.consoleLog", "true"));
+    }
+
+    /**
+     * Number of worker threads serving UDP datagrams ({@code kvstore.udpWorkers}).
+     *
+     * @return The configured worker count, defaulting to the number of available processors.
+     */
+    public static int udpWorkers() {
+        return Integer.getInteger("kvstore.udpWorkers", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Number of recent UDP responses kept to answer retransmitted requests
+     * ({@code kvstore.udpDedupEntries}).
+     *
+     * @return The configured cache size, defaulting to 65536; 0 disables duplicate detection.
+     */
+    public static int udpDedupEntries() {
+        return Integer.getInteger("kvstore.udpDedupEntries", 65536);
+    }
+
+    /**
+     * How long a UDP response is kept for retransmitted requests ({@code kvstore.udpDedupTtlMs}).
+     *
+     * @return The configured time to live in milliseconds, defaulting to 60000.
+     */
+    public static long udpDedupTtlMillis() {
+        return Long.getLong("kvstore.udpDedupTtlMs", 60_000L);
+    }
+
+    /**
+     * Ring file that makes the server a node of a cluster ({@code kvstore.cluster}).
+     *
+     * @return The configured file, or null to serve the whole key space alone.
+     */
+    public static String clusterConfig() {
+        return System.getProperty("kvstore.cluster");
+    }
+
+    /**
+     * Id of this server in the ring file ({@code kvstore.nodeId}).
+     *
+     * @return The configured id, or null to pick the node listed with the server's port.
+     */
+    public static String nodeId() {
+        return System.getProperty("kvstore.nodeId");
+    }
+
+    /**
+     * Number of idle connections kept to every other node for forwarded requests
+     * ({@code kvstore.clusterConnections}).
+     *
+     * @return The configured connection count, defaulting to 16.
+     */
+    public static int clusterConnections() {
+        return Integer.getInteger("kvstore.clusterConnections", 16);
+    }
+
+    /**
+     * Acknowledgement level of replicated writes that do not choose one ({@code kvstore.writeAck}):
+     * {@code local}, {@code one} or {@code all}.
+     *
+     * @return The configured level name, defaulting to {@code local}.
+     */
+    public static String writeAck() {
+        return System.getProperty("kvstore.writeAck", "local");
+    }
+
+    /**
+     * Time a replicated write waits for its replicas before it fails ({@code kvstore.ackTimeoutMs}).
+     *
+     * @return The configured timeout in milliseconds, defaulting to 2000.
+     */
+    public static long ackTimeoutMillis() {
+        return Long.getLong("kvstore.ackTimeoutMs", 2000L);
+    }
+
+    /**
+     * How far behind its primary a replica may be and still answer a GET itself
+     * ({@code kvstore.maxStalenessMs}).
+     *
+     * @return The configured bound in milliseconds, defaulting to -1 to send every GET to the primary.
+     */
+    public static long maxStalenessMillis() {
+        return Long.getLong("kvstore.maxStalenessMs", -1L);
+    }
+
+    /**
+     * Number of mutations that may wait to be streamed to one replica ({@code kvstore.replicationQueue}).
+     *
+     * @return The configured capacity, defaulting to 65536.
+     */
+    public static int replicationQueue() {
+        return Integer.getInteger("kvstore.replicationQueue", 65536);
+    }
+
+    /**
+     * Port of the local HTTP endpoint serving metrics in the Prometheus text format
+     * ({@code kvstore.metricsPort}).
+     *
+     * @return The configured port, defaulting to 0 to serve metrics through JMX only.
+     */
+    public static int metricsPort() {
+        return Integer.getInteger("kvstore.metricsPort", 0);
+    }
+
+    /**
+     * Parser of text requests ({@code kvstore.parser}): "inplace" decodes single-key requests
+     * from the bytes they arrived in without allocating, "split" splits every request string
+     * into words.
+     *
+     * @return The configured parser, defaulting to "inplace".
+     */
+    public static String textParser() {
+        return System.getProperty("kvstore.parser", "inplace");
+    }
+
+    /**
+     * Lowest level of the records written to the server log ({@code kvstore.logLevel}). Above
+     * INFO, successful requests are not logged and build no log messages.
+     *
+     * @return The configured level name, defaulting to "INFO".
+     */
+    public static String logLevel() {
+        return System.getProperty("kvstore.logLevel", "INFO");
+    }
+
+    /**
+     * Resolution of key expiry in milliseconds ({@code kvstore.ttlTickMs}): the timing wheel
+     * that removes expired keys advances once per tick.
+     *
+     * @return The configured tick, defaulting to 10 ms.
+     */
+    public static long ttlTickMillis() {
+        return Long.getLong("kvstore.ttlTickMs", 10);
+    }
+
+    /**
+     * Whether the server keeps an ordered index of its keys beside the hash index, so that it can
+     * serve SCAN and PREFIX requests ({@code kvstore.scanIndex}).
+     *
+     * @return The configured flag, defaulting to false.
+     */
+    public static boolean scanIndex() {
+        return Boolean.parseBoolean(System.getProperty("kvstore.scanIndex", "false"));
+    }
+
+    /**
+     * Entry budget of cache mode ({@code kvstore.cacheEntries}): the server keeps at most this
+     * many keys and evicts the least valuable ones.
+     *
+     * @return The configured budget, defaulting to 0 for a store without a bound.
+     */
+    public static long cacheEntries() {
+        return Long.getLong("kvstore.cacheEntries", 0);
+    }
+
+    /**
+     * Memory budget of cache mode in megabytes ({@code kvstore.cacheMemoryMb}), counted with an
+     * estimate of the heap every entry takes. It takes precedence over {@code kvstore.cacheEntries}.
+     *
+     * @return The configured budget, defaulting to 0 for a store without a bound.
+     */
+    public static long cacheMemoryMb() {
+        return Long.getLong("kvstore.cacheMemoryMb", 0);
+    }
+
+    /**
+     * Bound of the changes waiting to be pushed to one watching connection ({@code
+     * kvstore.watchQueue}), in distinct keys. A client that falls further behind loses its
+     * watches.
+     *
+     * @return The configured bound, defaulting to 4096.
+     */
+    public static int watchQueue() {
+        return Integer.getInteger("kvstore.watchQueue", 4096);
+    }
+
+    /**
+     * Highest concurrency limit of admission control ({@code kvstore.maxConcurrency}): the most
+     * requests the server has admitted and not answered yet. Within it the limit adapts to the
+     * measured latency, and requests beyond the limit are answered with a busy response.
+     *
+     * @return The configured limit, defaulting to 1024; 0 admits every request.
+     */
+    public static int maxConcurrency() {
+        return Integer.getInteger("kvstore.maxConcurrency", 1024);
+    }
+
+    /**
+     * Latency that admission control keeps at most one admitted request in a hundred above
+     * ({@code kvstore.latencyTargetMs}), counted from admission to response.
+     *
+     * @return The configured target in milliseconds, defaulting to 50.
+     */
+    public static long latencyTargetMillis() {
+        return Long.getLong("kvstore.latencyTargetMs", 50);
+    }
+
+    /**
+     * Number of requests of one TCP connection that may wait for a worker thread
+     * ({@code kvstore.connectionQueue}). Beyond it the server stops reading from the connection
+     * until some of them are answered.
+     *
+     * @return The configured bound, defaulting to 1024.
+     */
+    public static int connectionQueue() {
+        return Integer.getInteger("kvstore.connectionQueue", 1024);
+    }
+}
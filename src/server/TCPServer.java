@@ -1,10 +1,17 @@
 package server;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import protocol.BinaryProtocol;
+import protocol.Command;
+import protocol.TextProtocol;
 
 /**
  * The `TCPServer` class represents a server implementation using the TCP protocol.
@@ -15,6 +22,10 @@ public class TCPServer implements Server {
     private ServerSocket serverSocket = null;
     private DataInputStream serverIn = null;
     private DataOutputStream serverOut = null;
+    private ByteBuffer binaryRequest;
+    private ByteBuffer binaryResponse;
+    private ByteBuffer textRequest;
+    private ByteBuffer textResponse;
 
     /**
      * Default constructor for the `TCPServer` class.
@@ -23,6 +34,15 @@ public class TCPServer implements Server {
 
     }
 
+    /**
+     * Constructor for a `TCPServer` that serves a client connection accepted elsewhere.
+     *
+     * @param socketPort The socket of the accepted client connection.
+     */
+    public TCPServer(Socket socketPort) {
+        this.socketPort = socketPort;
+    }
+
     /**
      * Opens a TCP connection on the specified port and accepts a client connection.
      *
@@ -46,7 +66,9 @@ public class TCPServer implements Server {
      */
     @Override
     public void sendResponse(String message) throws IOException {
-        serverOut = new DataOutputStream((socketPort.getOutputStream()));
+        if (serverOut == null) {
+            serverOut = new DataOutputStream((socketPort.getOutputStream()));
+        }
         serverOut.writeUTF(message);
     }
 
@@ -58,11 +80,135 @@ public class TCPServer implements Server {
      */
     @Override
     public String receiveRequest() throws IOException {
-        serverIn = new DataInputStream((socketPort.getInputStream()));
-        String line = serverIn.readUTF();
+        String line = input().readUTF();
         return line;
     }
 
+    /**
+     * Reads one text frame, as written by `writeUTF`, into a buffer reused for every request.
+     *
+     * @return A buffer in read mode holding the frame, its two byte length included.
+     * @throws IOException If the frame cannot be read.
+     */
+    public ByteBuffer receiveTextFrame() throws IOException {
+        DataInputStream in = input();
+        int length = in.readUnsignedShort();
+        if (textRequest == null || textRequest.capacity() < ModifiedUtf8.HEADER_BYTES + length) {
+            textRequest = ByteBuffer.allocate(Math.max(256, ModifiedUtf8.HEADER_BYTES + length));
+        }
+        textRequest.clear();
+        textRequest.putShort((short) length);
+        in.readFully(textRequest.array(), ModifiedUtf8.HEADER_BYTES, length);
+        return textRequest.position(ModifiedUtf8.HEADER_BYTES + length).flip();
+    }
+
+    /**
+     * Retrieves the buffer a text response is written into, positioned after the room left for
+     * the frame length.
+     *
+     * @return A buffer in write mode with at least `TextProtocol.MAX_RESPONSE_BYTES` remaining.
+     */
+    public ByteBuffer textResponseBuffer() {
+        if (textResponse == null) {
+            textResponse = ByteBuffer.allocate(ModifiedUtf8.HEADER_BYTES + TextProtocol.MAX_RESPONSE_BYTES);
+        }
+        return textResponse.clear().position(ModifiedUtf8.HEADER_BYTES);
+    }
+
+    /**
+     * Sends the response written into `textResponseBuffer` as one frame.
+     *
+     * @throws IOException If there is an issue with sending the response.
+     */
+    public void sendTextResponse() throws IOException {
+        if (serverOut == null) {
+            serverOut = new DataOutputStream((socketPort.getOutputStream()));
+        }
+        textResponse.putShort(0, (short) (textResponse.position() - ModifiedUtf8.HEADER_BYTES));
+        serverOut.write(textResponse.array(), 0, textResponse.position());
+    }
+
+    /**
+     * Waits for the first byte of the connection and checks whether the client speaks the
+     * binary protocol. The byte is not consumed.
+     *
+     * @return True if the client sends binary requests.
+     * @throws IOException If the client disconnects before sending anything.
+     */
+    public boolean isBinaryClient() throws IOException {
+        DataInputStream in = input();
+        in.mark(1);
+        int firstByte = in.read();
+        if (firstByte < 0) {
+            throw new EOFException();
+        }
+        in.reset();
+        return BinaryProtocol.isBinary((byte) firstByte);
+    }
+
+    /**
+     * Reads one binary request into a command. The key of the command stays valid until the
+     * next request is read.
+     *
+     * @param command The command to fill.
+     * @throws IOException If the request cannot be read or is malformed.
+     */
+    public void receiveBinaryRequest(Command command) throws IOException {
+        DataInputStream in = input();
+        if (binaryRequest == null) {
+            binaryRequest = ByteBuffer.allocate(256);
+        }
+        binaryRequest.clear();
+        int length;
+        // Reading up to the lower bound never reads past the request, and takes a few reads
+        // even for a large batch.
+        while ((length = BinaryProtocol.requestLength(binaryRequest.duplicate().flip())) > binaryRequest.position()) {
+            if (length > binaryRequest.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(length, binaryRequest.capacity() * 2));
+                binaryRequest.flip();
+                larger.put(binaryRequest);
+                binaryRequest = larger;
+            }
+            in.readFully(binaryRequest.array(), binaryRequest.position(), length - binaryRequest.position());
+            binaryRequest.position(length);
+        }
+        binaryRequest.flip();
+        BinaryProtocol.readRequest(binaryRequest, command);
+    }
+
+    /**
+     * Retrieves the buffer a binary response is encoded into. It is cleared on every call.
+     *
+     * @param command The request that is going to be answered.
+     * @return A buffer in write mode with room for any response to the request.
+     */
+    public ByteBuffer binaryResponseBuffer(Command command) {
+        int size = BinaryProtocol.maxResponseSize(command);
+        if (binaryResponse == null || binaryResponse.capacity() < size) {
+            binaryResponse = ByteBuffer.allocate(Math.max(size, BinaryProtocol.MAX_RESPONSE_BYTES));
+        }
+        return binaryResponse.clear();
+    }
+
+    /**
+     * Sends the response encoded into `binaryResponseBuffer`.
+     *
+     * @throws IOException If there is an issue with sending the response.
+     */
+    public void sendBinaryResponse() throws IOException {
+        if (serverOut == null) {
+            serverOut = new DataOutputStream((socketPort.getOutputStream()));
+        }
+        serverOut.write(binaryResponse.array(), 0, binaryResponse.position());
+    }
+
+    private DataInputStream input() throws IOException {
+        if (serverIn == null) {
+            serverIn = new DataInputStream(new BufferedInputStream(socketPort.getInputStream()));
+        }
+        return serverIn;
+    }
+
     /**
      * Closes the TCP connection to the client.
      *
@@ -70,8 +216,12 @@ public class TCPServer implements Server {
      */
     @Override
     public void closeConnection() throws IOException {
-        serverIn.close();
-        serverOut.close();
+        if (serverIn != null) {
+            serverIn.close();
+        }
+        if (serverOut != null) {
+            serverOut.close();
+        }
         socketPort.close();
     }
 
@@ -0,0 +1,252 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import protocol.Command;
+
+/**
+ * The `ThreadPerConnectionServer` class serves every accepted socket on its own thread with the
+ * blocking `TCPServer` streams, in the text or the binary protocol. The executor decides what
+ * kind of thread that is: one virtual thread per connection, or a bounded pool of platform
+ * threads.
+ */
+public class ThreadPerConnectionServer implements ConcurrentServer {
+    private final RequestHandler requestHandler;
+    private final ExecutorService connectionExecutor;
+    private final String modeName;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    /**
+     * Constructor for the `ThreadPerConnectionServer` class.
+     *
+     * @param requestHandler     The handler every request is dispatched to.
+     * @param connectionExecutor The executor each accepted connection is served on.
+     * @param modeName           A short description of the executor, used in log messages.
+     */
+    public ThreadPerConnectionServer(RequestHandler requestHandler, ExecutorService connectionExecutor,
+                                     String modeName) {
+        this.requestHandler = requestHandler;
+        this.connectionExecutor = connectionExecutor;
+        this.modeName = modeName;
+    }
+
+    /**
+     * Creates a server that runs every connection on a new virtual thread.
+     * Virtual threads need Java 21; on older runtimes an unbounded cached pool of platform
+     * threads is used instead so that the mode keeps working.
+     *
+     * @param requestHandler The handler every request is dispatched to.
+     * @return The server, not yet started.
+     */
+    public static ThreadPerConnectionServer withVirtualThreads(RequestHandler requestHandler) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new ThreadPerConnectionServer(requestHandler, (ExecutorService) factory.invoke(null),
+                    "virtual threads");
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on Java "
+                    + Runtime.version().feature() + ", using a cached platform thread pool.");
+            return new ThreadPerConnectionServer(requestHandler, Executors.newCachedThreadPool(),
+                    "cached platform threads");
+        }
+    }
+
+    /**
+     * Creates a server that runs connections on a fixed pool of platform threads. Connections
+     * beyond the pool size wait until an earlier connection is closed.
+     *
+     * @param requestHandler The handler every request is dispatched to.
+     * @param poolThreads    The number of platform threads in the pool.
+     * @return The server, not yet started.
+     */
+    public static ThreadPerConnectionServer withPlatformThreadPool(RequestHandler requestHandler, int poolThreads) {
+        return new ThreadPerConnectionServer(requestHandler, Executors.newFixedThreadPool(poolThreads),
+                poolThreads + " platform threads");
+    }
+
+    /**
+     * Binds the server socket and starts accepting clients on a background thread.
+     *
+     * @param port The port number on which to listen, or 0 for an ephemeral port.
+     * @throws IOException If there is an issue with binding the port.
+     */
+    @Override
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        new Thread(this::acceptLoop, "tcp-acceptor").start();
+        System.out.println("Server listening for TCP clients on port " + getPort() + " with " + modeName);
+    }
+
+    /**
+     * Retrieves the port number the server is bound to.
+     *
+     * @return The local port of the server socket.
+     */
+    @Override
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Blocks the calling thread until the server has been stopped.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Closes the server socket and every open connection, then shuts the executor down.
+     *
+     * @throws IOException If there is an issue with closing the server socket.
+     */
+    @Override
+    public void stop() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket socket : openSockets) {
+            socket.close();
+        }
+        connectionExecutor.shutdown();
+        try {
+            connectionExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        terminated.countDown();
+    }
+
+    /**
+     * Retrieves the number of accepted clients that are not closed yet.
+     *
+     * @return The open connections, including those waiting for a pool thread.
+     */
+    @Override
+    public int openConnections() {
+        return openSockets.size();
+    }
+
+    /**
+     * Retrieves the number of accepted clients waiting for a thread of the platform pool.
+     *
+     * @return The clients queued in the pool, or 0 with virtual threads.
+     */
+    @Override
+    public int queuedWork() {
+        return connectionExecutor instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) connectionExecutor).getQueue().size() : 0;
+    }
+
+    /**
+     * Accepts clients and submits each one to the connection executor.
+     */
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                openSockets.add(socket);
+                connectionExecutor.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("Failed to accept TCP client: " + e);
+            }
+        }
+    }
+
+    /**
+     * Serves requests from one client until it disconnects.
+     *
+     * @param socket The socket of the accepted client.
+     */
+    private void serve(Socket socket) {
+        TCPServer connection = new TCPServer(socket);
+        String inetAddress = connection.getClientIp();
+        Command command = new Command();
+        try {
+            if (connection.isBinaryClient()) {
+                while (true) {
+                    connection.receiveBinaryRequest(command);
+                    ByteBuffer response = connection.binaryResponseBuffer(command);
+                    long admitted = System.nanoTime();
+                    if (requestHandler.admit(command.opcode(), admitted)) {
+                        try {
+                            requestHandler.handleBinaryRequest(command, response, inetAddress);
+                        } finally {
+                            requestHandler.complete(admitted);
+                        }
+                    } else {
+                        requestHandler.rejectBinaryRequest(command.opcode(), command.requestId(), response);
+                    }
+                    connection.sendBinaryResponse();
+                }
+            }
+            while (true) {
+                ByteBuffer frame = connection.receiveTextFrame();
+                int length = frame.remaining() - ModifiedUtf8.HEADER_BYTES;
+                if (requestHandler.decodeText(frame, ModifiedUtf8.HEADER_BYTES, length, command)) {
+                    ByteBuffer response = connection.textResponseBuffer();
+                    long admitted = System.nanoTime();
+                    if (requestHandler.admit(command.opcode(), admitted)) {
+                        try {
+                            requestHandler.handleTextCommand(command, response, inetAddress);
+                        } finally {
+                            requestHandler.complete(admitted);
+                        }
+                    } else {
+                        requestHandler.rejectTextCommand(command, response);
+                    }
+                    connection.sendTextResponse();
+                } else {
+                    String receivedMsg = ModifiedUtf8.readFrame(frame);
+                    String response;
+                    long admitted = System.nanoTime();
+                    if (requestHandler.admit(receivedMsg, admitted)) {
+                        try {
+                            response = requestHandler.handleRequest(receivedMsg, inetAddress);
+                        } finally {
+                            requestHandler.complete(admitted);
+                        }
+                    } else {
+                        response = requestHandler.rejectRequest(receivedMsg);
+                    }
+                    connection.sendResponse(response);
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            // The client closed the connection.
+        } catch (IOException e) {
+            System.out.println("TCP client connection failed: " + e);
+        } finally {
+            openSockets.remove(socket);
+            try {
+                connection.closeConnection();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+}
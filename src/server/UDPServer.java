@@ -4,24 +4,47 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
+import protocol.Command;
+
 /**
- * The `UDPServer` class represents a server implementation using the UDP protocol.
+ * The `UDPServer` class represents a server implementation using the UDP protocol. Every
+ * datagram carries one request, in the text or the binary protocol.
+ *
+ * Clients retransmit requests whose response was lost. With an `IdempotencyCache` the server
+ * answers such duplicates with the response it sent the first time, so a retransmitted PUT or
+ * DELETE is never applied twice.
  */
 public class UDPServer implements Server {
     private DatagramSocket udpSocket;
     private int clientPort;
-    private byte[] dataGramPacket = new byte[5000];
+    private byte[] dataGramPacket = new byte[DatagramHandler.MAX_DATAGRAM_BYTES];
     private InetAddress address;
+    private final Command command = new Command();
+    private final ByteBuffer response = ByteBuffer.allocate(DatagramHandler.MAX_DATAGRAM_BYTES);
+    private final IdempotencyCache responseCache;
+    private DatagramHandler datagramHandler;
 
     /**
-     * Default constructor for the `UDPServer` class.
+     * Default constructor for the `UDPServer` class. Duplicate requests are not detected.
      *
      * @throws SocketException If there is an issue with socket creation.
      */
     public UDPServer() throws SocketException {
+        this(null);
+    }
+
+    /**
+     * Constructor for a `UDPServer` that answers duplicate requests from a cache.
+     *
+     * @param responseCache The cache of recent responses, or null to handle every datagram.
+     */
+    public UDPServer(IdempotencyCache responseCache) {
+        this.responseCache = responseCache;
     }
 
     /**
@@ -45,8 +68,7 @@ public class UDPServer implements Server {
      */
     @Override
     public void sendResponse(String message) throws IOException {
-        byte[] newSendingMessageBytes = new byte[5000];
-        newSendingMessageBytes = message.getBytes();
+        byte[] newSendingMessageBytes = message.getBytes();
         DatagramPacket packet = new DatagramPacket(newSendingMessageBytes, newSendingMessageBytes.length,
                 address, clientPort);
         System.out.println(new String(packet.getData(), StandardCharsets.UTF_8) + "server sending this:");
@@ -72,6 +94,30 @@ public class UDPServer implements Server {
         return received;
     }
 
+    /**
+     * Receives one datagram, handles it in whichever protocol it uses and sends the response
+     * back to its sender. Binary requests are decoded straight from the receive buffer. A
+     * duplicate of a recent request is answered from the response cache without touching the
+     * store.
+     *
+     * @param requestHandler The handler the request is dispatched to; the first call fixes it.
+     * @throws IOException If there is an issue with receiving the request or sending the response.
+     */
+    public void handleNextRequest(RequestHandler requestHandler) throws IOException {
+        if (datagramHandler == null) {
+            datagramHandler = new DatagramHandler(requestHandler, responseCache);
+        }
+        DatagramPacket packet = new DatagramPacket(dataGramPacket, dataGramPacket.length);
+        udpSocket.receive(packet);
+        address = packet.getAddress();
+        clientPort = packet.getPort();
+        response.clear();
+        if (datagramHandler.handle(ByteBuffer.wrap(dataGramPacket, 0, packet.getLength()),
+                (InetSocketAddress) packet.getSocketAddress(), command, response)) {
+            udpSocket.send(new DatagramPacket(response.array(), response.limit(), address, clientPort));
+        }
+    }
+
     /**
      * Closes the UDP connection.
      *
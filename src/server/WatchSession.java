@@ -0,0 +1,272 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import protocol.BinaryProtocol;
+import store.KeyValueStore;
+import store.WatchingKeyValueStore;
+
+/**
+ * The `WatchSession` class holds the watches of one client connection and the changes waiting
+ * to be pushed to it. Writers hand changes to the session without blocking; the connection's
+ * reactor takes them out as fast as the client reads them.
+ *
+ * The queue of waiting changes is bounded. While a key already has a change waiting, a newer
+ * change of the key replaces it in place, so a client that falls behind receives only the latest
+ * value of a busy key. When more distinct keys are waiting than the bound allows, the client is
+ * considered lost: every watch of the session is cancelled, the waiting changes are dropped and
+ * an overflow event tells the client to read the keys again and watch them anew. A lagging
+ * client therefore costs at most the bound in memory and never holds up a writer.
+ */
+final class WatchSession {
+
+    /**
+     * A change waiting to be pushed: a new value, a removal, or the end of an overflowed watch.
+     */
+    static final class Event {
+        private final Subscription subscription;
+        private final String watchId;
+        private final String key;
+        private long value;
+
+        private Event(Subscription subscription, String key, long value) {
+            this.subscription = subscription;
+            this.watchId = subscription.watchId;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Retrieves the id of the watch the event belongs to, the packet id of its WATCH request.
+         *
+         * @return The id, without the '#'.
+         */
+        String watchId() {
+            return watchId;
+        }
+
+        /**
+         * Retrieves the key that changed.
+         *
+         * @return The key, or null for an overflow event.
+         */
+        String key() {
+            return key;
+        }
+
+        /**
+         * Retrieves the new value of the key.
+         *
+         * @return The value, or `NO_VALUE` if the key was removed.
+         */
+        long value() {
+            return value;
+        }
+
+        /**
+         * Checks whether the event ends a watch because the client fell behind.
+         *
+         * @return True for an overflow event.
+         */
+        boolean isOverflow() {
+            return key == null;
+        }
+
+        /**
+         * Builds the text form of the event: "EVENT PUT a 5 #7", "EVENT DELETE a #7" or "EVENT
+         * OVERFLOW #7".
+         *
+         * @return The text event.
+         */
+        String toText() {
+            if (isOverflow()) {
+                return "EVENT OVERFLOW #" + watchId;
+            }
+            return value == KeyValueStore.NO_VALUE ? "EVENT DELETE " + key + " #" + watchId
+                    : "EVENT PUT " + key + " " + value + " #" + watchId;
+        }
+
+        /**
+         * Encodes the event in the binary protocol, where the watch id is the numeric request id.
+         *
+         * @param buffer A buffer in write mode with at least `BinaryProtocol.eventSize(key())`
+         *               bytes remaining.
+         */
+        void writeBinary(ByteBuffer buffer) {
+            byte event = isOverflow() ? BinaryProtocol.OVERFLOW_EVENT
+                    : value == KeyValueStore.NO_VALUE ? BinaryProtocol.DELETE_EVENT : BinaryProtocol.PUT_EVENT;
+            BinaryProtocol.writeEvent(buffer, event, Long.parseLong(watchId), key, (int) value);
+        }
+    }
+
+    private final int capacity;
+    private final Runnable ready;
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
+    private final LinkedHashMap<String, Event> pending = new LinkedHashMap<>();
+    private final List<Event> overflows = new ArrayList<>();
+    private long nextSerial;
+    private boolean closed;
+
+    /**
+     * Creates a session without watches.
+     *
+     * @param capacity The most distinct keys with a change waiting before the session overflows.
+     * @param ready    Called, without locks held, when changes start waiting after none did.
+     */
+    WatchSession(int capacity, Runnable ready) {
+        this.capacity = capacity;
+        this.ready = ready;
+    }
+
+    /**
+     * Starts a watch, replacing the session's earlier watch of the same key or prefix.
+     *
+     * @param store   The store to watch.
+     * @param key     The key, or the prefix.
+     * @param prefix  True to watch every key starting with `key`.
+     * @param watchId The packet id of the WATCH request, which the changes carry.
+     */
+    void watch(WatchingKeyValueStore store, String key, boolean prefix, String watchId) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Subscription subscription = new Subscription(watchId, nextSerial++);
+            Subscription previous = subscriptions.put(name(key, prefix), subscription);
+            if (previous != null) {
+                previous.cancel();
+            }
+            // Registered under the session lock, so a concurrent close cannot miss the watch.
+            subscription.watch = store.watch(key, prefix, (changedKey, value) -> offer(subscription, changedKey, value));
+        }
+    }
+
+    /**
+     * Cancels the session's watch of a key or prefix and drops its waiting changes.
+     *
+     * @param key    The key, or the prefix.
+     * @param prefix True for a prefix watch.
+     * @return False if the session had no such watch.
+     */
+    synchronized boolean unwatch(String key, boolean prefix) {
+        Subscription subscription = subscriptions.remove(name(key, prefix));
+        if (subscription == null) {
+            return false;
+        }
+        subscription.cancel();
+        // Watch ids come from the client and may repeat, so events are matched by their watch.
+        pending.values().removeIf(event -> event.subscription == subscription);
+        return true;
+    }
+
+    /**
+     * Takes the oldest waiting change. Overflow events come first.
+     *
+     * @return The change, or null if none is waiting.
+     */
+    synchronized Event poll() {
+        if (!overflows.isEmpty()) {
+            return overflows.remove(overflows.size() - 1);
+        }
+        Iterator<Event> events = pending.values().iterator();
+        if (!events.hasNext()) {
+            return null;
+        }
+        Event event = events.next();
+        events.remove();
+        return event;
+    }
+
+    /**
+     * Checks whether changes are waiting.
+     *
+     * @return True if `poll` would return a change.
+     */
+    synchronized boolean hasPending() {
+        return !pending.isEmpty() || !overflows.isEmpty();
+    }
+
+    /**
+     * Cancels every watch of the session once its connection is closed.
+     */
+    synchronized void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.cancel();
+        }
+        subscriptions.clear();
+        pending.clear();
+        overflows.clear();
+    }
+
+    /**
+     * Queues a change reported by the store, coalescing it with a waiting change of its key.
+     */
+    private void offer(Subscription subscription, String key, long value) {
+        boolean wasEmpty;
+        synchronized (this) {
+            if (!subscription.active) {
+                return;
+            }
+            wasEmpty = pending.isEmpty() && overflows.isEmpty();
+            String name = subscription.serial + " " + key;
+            Event waiting = pending.get(name);
+            if (waiting != null) {
+                waiting.value = value;
+                return;
+            }
+            if (pending.size() >= capacity) {
+                overflow();
+            } else {
+                pending.put(name, new Event(subscription, key, value));
+            }
+        }
+        if (wasEmpty) {
+            ready.run();
+        }
+    }
+
+    /**
+     * Gives up on a client that fell too far behind. The caller holds the session lock.
+     */
+    private void overflow() {
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.cancel();
+            overflows.add(new Event(subscription, null, KeyValueStore.NO_VALUE));
+        }
+        subscriptions.clear();
+        pending.clear();
+    }
+
+    private static String name(String key, boolean prefix) {
+        return (prefix ? "P " : "K ") + key;
+    }
+
+    /**
+     * A watch of the session.
+     */
+    private static final class Subscription {
+        private final String watchId;
+        private final long serial;
+        private WatchingKeyValueStore.Watch watch;
+        private boolean active = true;
+
+        Subscription(String watchId, long serial) {
+            this.watchId = watchId;
+            this.serial = serial;
+        }
+
+        void cancel() {
+            active = false;
+            if (watch != null) {
+                watch.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+
+import protocol.Command;
+
+/**
+ * The `WorkerUDPServer` class serves UDP requests on several worker threads. Where the platform
+ * supports SO_REUSEPORT every worker receives on its own `DatagramChannel` bound to the same
+ * port, and the kernel spreads clients over the channels by their address; elsewhere all workers
+ * take turns receiving from one shared channel.
+ *
+ * Each worker replies to the address its datagram came from, so no sender state is shared
+ * between threads. Request and response buffers come from a shared `BufferPool` and go back
+ * after every datagram, and retransmitted requests are answered from an `IdempotencyCache`.
+ */
+public class WorkerUDPServer implements ConcurrentServer {
+    private final DatagramHandler datagramHandler;
+    private final int workerCount;
+    private final BufferPool buffers;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private DatagramChannel[] channels;
+    private Thread[] workers;
+    private volatile boolean running;
+
+    /**
+     * Constructor for the `WorkerUDPServer` class.
+     *
+     * @param requestHandler The handler every request is dispatched to.
+     * @param workerCount    The number of threads receiving and handling datagrams.
+     * @param responseCache  The cache of recent responses, or null to handle every datagram.
+     */
+    public WorkerUDPServer(RequestHandler requestHandler, int workerCount, IdempotencyCache responseCache) {
+        this.datagramHandler = new DatagramHandler(requestHandler, responseCache);
+        this.workerCount = Math.max(1, workerCount);
+        this.buffers = new BufferPool(DatagramHandler.MAX_DATAGRAM_BYTES, 4 * this.workerCount);
+    }
+
+    /**
+     * Binds the channels and starts the worker threads.
+     *
+     * @param port The port number on which to listen, or 0 for an ephemeral port.
+     * @throws IOException If there is an issue with binding the port.
+     */
+    @Override
+    public void start(int port) throws IOException {
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        first.bind(new InetSocketAddress(port));
+        int boundPort = ((InetSocketAddress) first.getLocalAddress()).getPort();
+        channels = new DatagramChannel[reusePort ? workerCount : 1];
+        channels[0] = first;
+        for (int i = 1; i < channels.length; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channels[i].bind(new InetSocketAddress(boundPort));
+        }
+        running = true;
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            DatagramChannel channel = channels[i % channels.length];
+            workers[i] = new Thread(() -> serve(channel));
+            workers[i].setName("udp-worker-" + i);
+            workers[i].start();
+        }
+        System.out.println("Server listening for UDP clients on port " + boundPort + " with " + workerCount
+                + " worker threads" + (reusePort ? " on SO_REUSEPORT channels" : " sharing one channel"));
+    }
+
+    /**
+     * Retrieves the port number the server is bound to.
+     *
+     * @return The local port of the channels.
+     */
+    @Override
+    public int getPort() {
+        return channels[0].socket().getLocalPort();
+    }
+
+    /**
+     * Blocks the calling thread until the server has been stopped.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    /**
+     * Closes the channels and waits for the workers to finish the datagram they are handling.
+     *
+     * @throws IOException If there is an issue with closing a channel.
+     */
+    @Override
+    public void stop() throws IOException {
+        running = false;
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        terminated.countDown();
+    }
+
+    /**
+     * Receives, handles and answers datagrams until the channel is closed.
+     *
+     * @param channel The channel this worker receives from.
+     */
+    private void serve(DatagramChannel channel) {
+        Command command = new Command();
+        while (running) {
+            ByteBuffer request = buffers.acquire();
+            ByteBuffer response = buffers.acquire();
+            try {
+                SocketAddress sender = channel.receive(request);
+                request.flip();
+                if (datagramHandler.handle(request, (InetSocketAddress) sender, command, response)) {
+                    channel.send(response, sender);
+                }
+            } catch (ClosedChannelException e) {
+                // The server is stopping.
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to serve UDP datagram: " + e);
+            } finally {
+                buffers.release(request);
+                buffers.release(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package store;
+
+import java.util.Arrays;
+
+/**
+ * The `BatchOrder` class sorts the keys of a batch by the stripe or segment they fall in, so that
+ * a batch operation takes every lock once and then works through all of its keys.
+ *
+ * An order entry packs the lock number into the high half and the index of the key in the batch
+ * into the low half. Keys of the same lock keep their batch order, so a key written twice in one
+ * batch ends up with its last value.
+ */
+final class BatchOrder {
+
+    private BatchOrder() {
+    }
+
+    /**
+     * Computes the spread hash of every key and sorts the keys by the lock they map to.
+     *
+     * @param keys   The keys of the batch.
+     * @param count  The number of keys to use from the start of the array.
+     * @param shift  The shift that turns a spread hash into a lock number.
+     * @param hashes Receives the spread hash of each key at the index of the key.
+     * @return The order entries, sorted by lock number.
+     */
+    static long[] byLock(CharSequence[] keys, int count, int shift, int[] hashes) {
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            int hash = KeyRecord.spread(KeyValueStore.hash(keys[i]));
+            hashes[i] = hash;
+            order[i] = ((long) (hash >>> shift) << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+
+    /**
+     * Finds the end of the run of entries that share the lock of the entry at `from`.
+     *
+     * @return The index after the last entry of the run.
+     */
+    static int runEnd(long[] order, int from) {
+        int lock = lock(order[from]);
+        int end = from + 1;
+        while (end < order.length && lock(order[end]) == lock) {
+            end++;
+        }
+        return end;
+    }
+
+    static int lock(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    static int index(long entry) {
+        return (int) entry;
+    }
+}
@@ -0,0 +1,338 @@
+package store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `CachingKeyValueStore` class bounds another `KeyValueStore` to a budget of entries or of
+ * estimated memory, turning it into a cache. A `TinyLfuPolicy` tracks every key and picks the keys
+ * to evict when a write takes the store over its budget; evicted keys are removed from the store
+ * and a later GET misses them.
+ *
+ * GETs never take a lock of their own: they read the store and record the key hash in a lossy
+ * `ReadBuffer`, which is replayed into the policy by whichever thread next holds the policy lock.
+ * Writes and deletes change the store under a lock per key and then update the policy under its
+ * lock; evicted keys are removed afterwards, unless they have been written again meanwhile.
+ * Numeric updates count as writes of their key when they change it.
+ * Batches are applied one key at a time.
+ *
+ * The entries already in the store are counted against the budget by `startTracking` on a
+ * background thread, so that a large store, or one still being hydrated from a snapshot, does
+ * not delay startup; until that walk has finished the store may exceed its budget.
+ */
+public class CachingKeyValueStore implements KeyValueStore {
+    private static final int KEY_LOCKS = 256;
+
+    /**
+     * What the budget of a cache counts.
+     */
+    public enum Budget {
+        /** Every entry weighs 1, so the budget is a number of entries. */
+        ENTRIES,
+
+        /** Every entry weighs an estimate of the heap it takes, so the budget is in bytes. */
+        BYTES;
+
+        /** Estimated heap taken by an entry beside the characters of its key. */
+        private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+        /**
+         * Retrieves the weight of an entry.
+         *
+         * @param key The key of the entry.
+         * @return The weight.
+         */
+        public long weigh(CharSequence key) {
+            return this == ENTRIES ? 1 : ENTRY_OVERHEAD_BYTES + 2L * key.length();
+        }
+
+        long expectedEntries(long capacity) {
+            return this == ENTRIES ? capacity : capacity / ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    private final KeyValueStore delegate;
+    private final Budget budget;
+    private final long capacity;
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final TinyLfuPolicy policy;
+    private final IntConsumer replay;
+    private final ReadBuffer readBuffer = new ReadBuffer();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache over a store. Entries already in the store are only counted against the
+     * budget by `startTracking`.
+     *
+     * @param delegate The store holding the cached entries.
+     * @param capacity The budget, in entries or bytes.
+     * @param budget   What the budget counts.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public CachingKeyValueStore(KeyValueStore delegate, long capacity, Budget budget) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity of " + capacity);
+        }
+        this.delegate = delegate;
+        this.budget = budget;
+        this.capacity = capacity;
+        this.policy = new TinyLfuPolicy(capacity, budget.expectedEntries(capacity));
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
+        this.replay = policy::recordAccess;
+    }
+
+    /**
+     * Starts counting the entries already in the store against the budget on a daemon thread,
+     * evicting those that exceed it.
+     */
+    public void startTracking() {
+        Thread tracker = new Thread(this::trackExisting, "cache-tracker");
+        tracker.setDaemon(true);
+        tracker.start();
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        long value = delegate.get(key);
+        (value == NO_VALUE ? misses : hits).increment();
+        if (readBuffer.offer(hash(key)) && policyLock.tryLock()) {
+            try {
+                readBuffer.drain(replay);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        int hash = hash(key);
+        TinyLfuPolicy.Node evicted;
+        synchronized (lockFor(hash)) {
+            delegate.put(key, value);
+            evicted = recordWrite(key, hash);
+        }
+        removeEvicted(evicted);
+    }
+
+    @Override
+    public void putExpiring(CharSequence key, int value, long deadlineMillis) {
+        int hash = hash(key);
+        TinyLfuPolicy.Node evicted;
+        synchronized (lockFor(hash)) {
+            delegate.putExpiring(key, value, deadlineMillis);
+            evicted = recordWrite(key, hash);
+        }
+        removeEvicted(evicted);
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        int hash = hash(key);
+        int value;
+        TinyLfuPolicy.Node evicted;
+        synchronized (lockFor(hash)) {
+            value = delegate.addAndGet(key, delta);
+            evicted = recordWrite(key, hash);
+        }
+        removeEvicted(evicted);
+        return value;
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        int hash = hash(key);
+        long witness;
+        TinyLfuPolicy.Node evicted = null;
+        synchronized (lockFor(hash)) {
+            witness = delegate.compareAndExchange(key, expected, value);
+            if (witness == expected) {
+                evicted = recordWrite(key, hash);
+            }
+        }
+        removeEvicted(evicted);
+        return witness;
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        int hash = hash(key);
+        synchronized (lockFor(hash)) {
+            boolean removed = delegate.remove(key);
+            policyLock.lock();
+            try {
+                policy.recordRemoval(key, hash);
+            } finally {
+                policyLock.unlock();
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Retrieves the number of entries. Until the keys evicted by concurrent writes have been
+     * removed this may exceed the budget briefly.
+     *
+     * @return The number of entries.
+     */
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        delegate.forEach(action);
+    }
+
+    /**
+     * Visits the entries in a range of keys of the store. Scans do not count as reads for the
+     * eviction policy, so a scan over many keys does not displace the keys that are read often.
+     */
+    @Override
+    public void scan(CharSequence from, boolean after, CharSequence to, EntryVisitor visitor) {
+        delegate.scan(from, after, to, visitor);
+    }
+
+    /**
+     * Retrieves the number of GETs that found their key.
+     *
+     * @return The hit count.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Retrieves the number of GETs that did not find their key.
+     *
+     * @return The miss count.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Retrieves the number of entries evicted to stay within the budget.
+     *
+     * @return The eviction count.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Retrieves the budget of the cache.
+     *
+     * @return The capacity, in the unit of `budget()`.
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Retrieves what the budget counts.
+     *
+     * @return The budget kind.
+     */
+    public Budget budget() {
+        return budget;
+    }
+
+    /**
+     * Retrieves the weight of the entries the policy tracks.
+     *
+     * @return The weighted size, in the unit of `budget()`.
+     */
+    public long weightedSize() {
+        policyLock.lock();
+        try {
+            return policy.weightedSize();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Records a write of a key in the policy. The caller holds the lock of the key.
+     *
+     * @return The keys the policy evicted, chained through `nextEvicted`.
+     */
+    private TinyLfuPolicy.Node recordWrite(CharSequence key, int hash) {
+        policyLock.lock();
+        try {
+            readBuffer.drain(replay);
+            return policy.recordWrite(key, hash, budget.weigh(key));
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Records the keys that were in the store before the cache was created. A key is only
+     * recorded under its lock and while the store still holds it, so a key removed meanwhile is
+     * not charged to the budget.
+     */
+    private void trackExisting() {
+        // The store is being iterated, so the keys evicted meanwhile are only removed afterwards.
+        List<String> overflow = new ArrayList<>();
+        delegate.forEach((key, value) -> {
+            int hash = hash(key);
+            synchronized (lockFor(hash)) {
+                if (!delegate.containsKey(key)) {
+                    return;
+                }
+                for (TinyLfuPolicy.Node evicted = recordWrite(key, hash); evicted != null;
+                        evicted = evicted.nextEvicted()) {
+                    overflow.add(evicted.key());
+                }
+            }
+        });
+        for (String key : overflow) {
+            removeIfEvicted(key);
+        }
+    }
+
+    /**
+     * Removes the keys the policy evicted from the store, except those written again since.
+     */
+    private void removeEvicted(TinyLfuPolicy.Node evicted) {
+        for (; evicted != null; evicted = evicted.nextEvicted()) {
+            removeIfEvicted(evicted.key());
+        }
+    }
+
+    private void removeIfEvicted(String key) {
+        int hash = hash(key);
+        synchronized (lockFor(hash)) {
+            boolean readmitted;
+            policyLock.lock();
+            try {
+                readmitted = policy.contains(key, hash);
+            } finally {
+                policyLock.unlock();
+            }
+            if (!readmitted && delegate.remove(key)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private Object lockFor(int hash) {
+        return keyLocks[hash >>> 24];
+    }
+
+    private static int hash(CharSequence key) {
+        return KeyRecord.spread(KeyValueStore.hash(key));
+    }
+}
@@ -0,0 +1,423 @@
+package store;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `ExpiringKeyValueStore` class lets keys of another `KeyValueStore` expire a given time
+ * after they were written. The deadline of every expiring key is kept in an index beside the
+ * store and as a timer on a `TimingWheel`; a daemon thread advances the wheel once per tick and
+ * removes the keys whose timers fired, so the work per tick depends only on the keys expiring
+ * then and not on how many keys are stored. A GET, DELETE or batch lookup that reaches an
+ * expired key before the wheel does removes it on the spot and reports it absent. Deadlines
+ * reach the stores below through `putExpiring`, so that a `PersistentKeyValueStore` can keep
+ * them, and `restoreDeadline` schedules the kept ones again after a restart.
+ *
+ * A PUT without a time to live makes its key permanent again, while `addAndGet` and
+ * `compareAndExchange` change the value and keep the deadline; on an expired key they start from
+ * an absent key. The index is striped with a lock per stripe, and a key's entry and its value in
+ * the store are only changed under the lock of its stripe. GETs look deadlines up without the
+ * lock and only take it to remove a key whose time has passed; writers therefore change the
+ * store before they drop a deadline, so a GET that finds no deadline never sees a stale value.
+ * While no key has a deadline, GETs and batches go straight to the store; a batch that races
+ * with a PUT with a time to live of one of its keys may then leave that key's deadline in place.
+ */
+public class ExpiringKeyValueStore implements KeyValueStore {
+    private static final int STRIPES = 64;
+
+    private final KeyValueStore delegate;
+    private final long tickMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final TimingWheel wheel;
+    private final AtomicInteger expiring = new AtomicInteger();
+
+    /**
+     * Creates a store whose keys can expire.
+     *
+     * @param delegate   The store holding the keys and values.
+     * @param tickMillis The resolution of expiry in milliseconds; a key is removed by the wheel
+     *                   at most one tick after its deadline.
+     */
+    public ExpiringKeyValueStore(KeyValueStore delegate, long tickMillis) {
+        this.delegate = delegate;
+        this.tickMillis = tickMillis;
+        this.wheel = new TimingWheel(tickMillis, now());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Starts the daemon thread that advances the timing wheel once per tick.
+     */
+    public void startExpirer() {
+        Thread expirer = new Thread(this::expire, "key-expirer");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    /**
+     * Retrieves the number of keys that currently have a deadline.
+     *
+     * @return The count, including expired keys that have not been removed yet.
+     */
+    public int expiringKeys() {
+        return expiring.get();
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        if (expiring.get() == 0) {
+            return delegate.get(key);
+        }
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        Expiry expiry = stripe.find(key, hash);
+        if (expiry == null || expiry.deadlineMillis > now()) {
+            return delegate.get(key);
+        }
+        synchronized (stripe) {
+            expiry = stripe.find(key, hash);
+            if (expiry != null && expiry.deadlineMillis <= now()) {
+                evict(stripe, expiry);
+                return NO_VALUE;
+            }
+            return delegate.get(key);
+        }
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            delegate.put(key, value);
+            Expiry expiry = stripe.find(key, hash);
+            if (expiry != null) {
+                forget(stripe, expiry);
+            }
+        }
+    }
+
+    /**
+     * Maps a key to a value that expires after the given time, replacing any previous value and
+     * deadline.
+     *
+     * @param key        The key to write, at most `MAX_KEY_LENGTH` characters long.
+     * @param value      The value to store.
+     * @param ttlMillis  The time to live in milliseconds; it must be positive.
+     * @throws IllegalArgumentException If the key is too long or the time to live is not positive.
+     */
+    public void put(CharSequence key, int value, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Time to live of " + ttlMillis + " ms");
+        }
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            // The stores below see the deadline on the wall clock, so a persistent one can keep
+            // it across a restart.
+            delegate.putExpiring(key, value, System.currentTimeMillis() + ttlMillis);
+            arm(stripe, key, hash, now() + ttlMillis);
+        }
+    }
+
+    /**
+     * Gives a key that is already in the store the deadline it had before a restart, as kept by
+     * a `PersistentKeyValueStore`. A key whose deadline passed while the server was down is
+     * removed at the next tick.
+     *
+     * @param key            The key.
+     * @param deadlineMillis The wall-clock time, in milliseconds since the epoch, at which the
+     *                       key expires.
+     */
+    public void restoreDeadline(CharSequence key, long deadlineMillis) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            arm(stripe, key, hash, now() + deadlineMillis - System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        if (expiring.get() == 0) {
+            return delegate.addAndGet(key, delta);
+        }
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            evictIfExpired(stripe, key, hash);
+            return delegate.addAndGet(key, delta);
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        if (expiring.get() == 0) {
+            return delegate.compareAndExchange(key, expected, value);
+        }
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            evictIfExpired(stripe, key, hash);
+            return delegate.compareAndExchange(key, expected, value);
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            Expiry expiry = stripe.find(key, hash);
+            if (expiry != null) {
+                boolean expired = expiry.deadlineMillis <= now();
+                boolean removed = delegate.remove(key);
+                forget(stripe, expiry);
+                return removed && !expired;
+            }
+            return delegate.remove(key);
+        }
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        if (expiring.get() == 0) {
+            delegate.getAll(keys, count, values);
+            return;
+        }
+        KeyValueStore.super.getAll(keys, count, values);
+    }
+
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        if (expiring.get() == 0) {
+            delegate.putAll(keys, values, count);
+            return;
+        }
+        KeyValueStore.super.putAll(keys, values, count);
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        if (expiring.get() == 0) {
+            delegate.removeAll(keys, count, removed);
+            return;
+        }
+        KeyValueStore.super.removeAll(keys, count, removed);
+    }
+
+    /**
+     * Visits the entries in a range of keys, leaving out keys whose time has passed; they are
+     * left for the wheel to remove.
+     */
+    @Override
+    public void scan(CharSequence from, boolean after, CharSequence to, EntryVisitor visitor) {
+        if (expiring.get() == 0) {
+            delegate.scan(from, after, to, visitor);
+            return;
+        }
+        long now = now();
+        delegate.scan(from, after, to, (key, value) -> isExpired(key, now) || visitor.visit(key, value));
+    }
+
+    /**
+     * Retrieves the number of keys. Expired keys count until they are removed.
+     *
+     * @return The number of keys.
+     */
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    /**
+     * Calls the action once for every entry. Expired keys are seen until they are removed.
+     *
+     * @param action The action to call with each key and value.
+     */
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        delegate.forEach(action);
+    }
+
+    /**
+     * Advances the wheel once per tick and removes the keys whose timers fired.
+     */
+    private void expire() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            TimingWheel.Timer expired;
+            synchronized (wheel) {
+                expired = wheel.advance(now());
+            }
+            while (expired != null) {
+                Expiry expiry = (Expiry) expired;
+                expired = expired.nextExpired();
+                Stripe stripe = stripeFor(expiry.hash);
+                synchronized (stripe) {
+                    if (stripe.find(expiry.key, expiry.hash) == expiry) {
+                        evict(stripe, expiry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the deadline of a key and schedules its timer. The caller holds the lock of the
+     * stripe.
+     */
+    private void arm(Stripe stripe, CharSequence key, int hash, long deadlineMillis) {
+        Expiry expiry = stripe.find(key, hash);
+        if (expiry != null) {
+            forget(stripe, expiry);
+        }
+        // The entry is replaced rather than moved, so the expirer can tell that a timer it has
+        // taken off the wheel no longer belongs to the key.
+        expiry = new Expiry(key.toString(), hash, deadlineMillis);
+        stripe.add(expiry);
+        expiring.incrementAndGet();
+        synchronized (wheel) {
+            wheel.schedule(expiry, expiry.deadlineMillis);
+        }
+    }
+
+    private boolean isExpired(String key, long now) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Expiry expiry = stripeFor(hash).find(key, hash);
+        return expiry != null && expiry.deadlineMillis <= now;
+    }
+
+    /**
+     * Removes a key if its time has passed. The caller holds the lock of the stripe.
+     */
+    private void evictIfExpired(Stripe stripe, CharSequence key, int hash) {
+        Expiry expiry = stripe.find(key, hash);
+        if (expiry != null && expiry.deadlineMillis <= now()) {
+            evict(stripe, expiry);
+        }
+    }
+
+    /**
+     * Removes an expired key from the index, the wheel and the store. The caller holds the lock
+     * of the stripe.
+     */
+    private void evict(Stripe stripe, Expiry expiry) {
+        delegate.remove(expiry.key);
+        forget(stripe, expiry);
+    }
+
+    /**
+     * Removes the deadline of a key. The caller holds the lock of the stripe.
+     */
+    private void forget(Stripe stripe, Expiry expiry) {
+        stripe.remove(expiry);
+        expiring.decrementAndGet();
+        synchronized (wheel) {
+            wheel.cancel(expiry);
+        }
+    }
+
+    private Stripe stripeFor(int hash) {
+        return stripes[hash >>> 26];
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * The deadline of one key, which is also its timer on the wheel.
+     */
+    private static final class Expiry extends TimingWheel.Timer {
+        final String key;
+        final int hash;
+        final long deadlineMillis;
+
+        Expiry(String key, int hash, long deadlineMillis) {
+            this.key = key;
+            this.hash = hash;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+
+    /**
+     * One stripe of the index: a chained hash table of the deadlines of its keys. It is changed
+     * under the lock of the stripe but can be searched without it: chain nodes are immutable, so
+     * a removal copies the nodes in front of the removed one and a resize builds a new table.
+     */
+    private static final class Stripe {
+        private volatile AtomicReferenceArray<Node> buckets = new AtomicReferenceArray<>(16);
+        private int size;
+
+        Expiry find(CharSequence key, int hash) {
+            AtomicReferenceArray<Node> table = buckets;
+            for (Node n = table.get(hash & (table.length() - 1)); n != null; n = n.next) {
+                Expiry e = n.expiry;
+                if (e.hash == hash && KeyValueStore.keyEquals(e.key, key)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        void add(Expiry expiry) {
+            if (size >= buckets.length()) {
+                resize();
+            }
+            AtomicReferenceArray<Node> table = buckets;
+            int bucket = expiry.hash & (table.length() - 1);
+            table.set(bucket, new Node(expiry, table.get(bucket)));
+            size++;
+        }
+
+        void remove(Expiry expiry) {
+            AtomicReferenceArray<Node> table = buckets;
+            int bucket = expiry.hash & (table.length() - 1);
+            Node head = table.get(bucket);
+            Node removed = head;
+            while (removed.expiry != expiry) {
+                removed = removed.next;
+            }
+            Node rest = removed.next;
+            for (Node n = head; n != removed; n = n.next) {
+                rest = new Node(n.expiry, rest);
+            }
+            table.set(bucket, rest);
+            size--;
+        }
+
+        private void resize() {
+            AtomicReferenceArray<Node> old = buckets;
+            AtomicReferenceArray<Node> table = new AtomicReferenceArray<>(old.length() * 2);
+            for (int i = 0; i < old.length(); i++) {
+                for (Node n = old.get(i); n != null; n = n.next) {
+                    int bucket = n.expiry.hash & (table.length() - 1);
+                    table.set(bucket, new Node(n.expiry, table.get(bucket)));
+                }
+            }
+            buckets = table;
+        }
+    }
+
+    /**
+     * A link of a stripe's chain.
+     */
+    private static final class Node {
+        final Expiry expiry;
+        final Node next;
+
+        Node(Expiry expiry, Node next) {
+            this.expiry = expiry;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package store;
+
+/**
+ * The `FrequencySketch` class estimates how often each key hash was seen recently, for the
+ * admission decisions of `TinyLfuPolicy`. It is a count-min sketch of 4-bit counters, 16 to a
+ * long: a hash is counted in four counters chosen by four hash functions and its frequency is the
+ * smallest of them. Once ten times as many increments as there are table longs have been made,
+ * every counter is halved, so old popularity fades and the counters never saturate for long.
+ *
+ * The sketch is not thread-safe.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch sized for a number of distinct keys.
+     *
+     * @param expectedEntries The number of keys the cache is expected to hold.
+     */
+    FrequencySketch(long expectedEntries) {
+        int length = Integer.highestOneBit((int) Math.max(64, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+    }
+
+    /**
+     * Retrieves the estimated recent frequency of a hash.
+     *
+     * @param hash The key hash.
+     * @return The estimate, from 0 to 15.
+     */
+    int frequency(int hash) {
+        int h = rehash(hash);
+        int start = (h & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            frequency = Math.min(frequency, (int) ((table[indexOf(h, i)] >>> offset) & 0xF));
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts one occurrence of a hash.
+     *
+     * @param hash The key hash.
+     */
+    void increment(int hash) {
+        int h = rehash(hash);
+        int start = (h & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(h, i);
+            int offset = (start + i) << 2;
+            if (((table[index] >>> offset) & 0xF) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int h, int i) {
+        long hash = (h + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return (int) hash & tableMask;
+    }
+
+    private static int rehash(int x) {
+        x *= 0x31848BAB;
+        x ^= x >>> 14;
+        return x;
+    }
+}
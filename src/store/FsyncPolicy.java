@@ -0,0 +1,36 @@
+package store;
+
+/**
+ * The `FsyncPolicy` enum defines when the write-ahead log forces its writes to the disk.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * Every mutation waits until it has been forced to disk. Writers that arrive while a force is
+     * in progress are committed together by the next one (group commit).
+     */
+    ALWAYS,
+
+    /**
+     * The log is written and forced in the background at a fixed interval. A crash can lose the
+     * mutations of the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * The log is written in the background and never forced; the operating system decides when
+     * the data reaches the disk.
+     */
+    NEVER;
+
+    /**
+     * Parses a policy name, ignoring case.
+     *
+     * @param name "always", "interval" or "never".
+     * @return The matching policy.
+     * @throws IllegalArgumentException If the name is not known.
+     */
+    public static FsyncPolicy fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
@@ -0,0 +1,241 @@
+package store;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `HydratingKeyValueStore` class serves a `MappedSnapshot` as soon as it is mapped and copies
+ * its entries into a mutable store in the background.
+ *
+ * Writes always go to the mutable store. Until hydration has finished, a GET that misses there
+ * falls through to the snapshot, and keys deleted meanwhile are remembered as tombstones so the
+ * snapshot cannot bring them back. The hydrator never overwrites a key that was written or
+ * deleted after the snapshot was opened. A numeric update of a key that is still only in the
+ * snapshot first copies the key across, so it starts from the snapshot's value. Once every entry
+ * has been copied the snapshot and the tombstones are dropped and the store behaves exactly like
+ * the mutable store.
+ */
+public class HydratingKeyValueStore implements KeyValueStore {
+    private static final int KEY_LOCKS = 256;
+    private static final long SLOTS_PER_BATCH = 4096;
+
+    private final KeyValueStore delegate;
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+    private final ReentrantLock hydrationPause = new ReentrantLock();
+    private final CountDownLatch hydrated = new CountDownLatch(1);
+    private volatile Layer layer;
+    private volatile long hydrationMillis = -1;
+
+    /**
+     * Creates a store that layers an empty mutable store over a snapshot.
+     *
+     * @param delegate The empty store that receives writes and the hydrated entries.
+     * @param snapshot The snapshot to serve until it has been copied.
+     */
+    public HydratingKeyValueStore(KeyValueStore delegate, MappedSnapshot snapshot) {
+        this.delegate = delegate;
+        this.layer = new Layer(snapshot);
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Starts copying the snapshot into the mutable store on a daemon thread.
+     */
+    public void startHydration() {
+        Thread hydrator = new Thread(this::hydrate, "snapshot-hydrator");
+        hydrator.setDaemon(true);
+        hydrator.start();
+    }
+
+    /**
+     * Waits until every snapshot entry has been copied into the mutable store.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void awaitHydration() throws InterruptedException {
+        hydrated.await();
+    }
+
+    /**
+     * Retrieves how long hydration took.
+     *
+     * @return The hydration time in milliseconds, or -1 while it is still running.
+     */
+    public long hydrationMillis() {
+        return hydrationMillis;
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        Layer l = layer;
+        long value = delegate.get(key);
+        if (value != NO_VALUE || l == null) {
+            return value;
+        }
+        // The layer is read again after the miss. If hydration finished in between, a DELETE may
+        // since have removed the key without a tombstone, so the snapshot must not be consulted;
+        // the mutable store now holds every live key instead.
+        l = layer;
+        if (l == null) {
+            return delegate.get(key);
+        }
+        if (!l.deleted.isEmpty() && l.deleted.contains(key.toString())) {
+            return NO_VALUE;
+        }
+        return l.snapshot.get(key);
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        Layer l = layer;
+        delegate.getAll(keys, count, values);
+        if (l == null) {
+            return;
+        }
+        l = layer;
+        for (int i = 0; i < count; i++) {
+            if (values[i] != NO_VALUE) {
+                continue;
+            }
+            if (l == null) {
+                values[i] = delegate.get(keys[i]);
+            } else if (!l.deleted.contains(keys[i].toString())) {
+                values[i] = l.snapshot.get(keys[i]);
+            }
+        }
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        synchronized (lockFor(key)) {
+            delegate.put(key, value);
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        synchronized (lockFor(key)) {
+            hydrateKey(key);
+            return delegate.addAndGet(key, delta);
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        synchronized (lockFor(key)) {
+            hydrateKey(key);
+            return delegate.compareAndExchange(key, expected, value);
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        synchronized (lockFor(key)) {
+            Layer l = layer;
+            boolean shadowed = false;
+            if (l != null && l.snapshot.get(key) != NO_VALUE) {
+                // The tombstone goes in first and even if the key had been hydrated, since a GET
+                // that misses the mutable store may be about to look at the snapshot.
+                shadowed = l.deleted.add(key.toString());
+            }
+            boolean removed = delegate.remove(key);
+            return removed || shadowed;
+        }
+    }
+
+    /**
+     * Retrieves the number of keys. Until hydration has finished this is an estimate.
+     *
+     * @return The number of keys.
+     */
+    @Override
+    public int size() {
+        Layer l = layer;
+        if (l == null) {
+            return delegate.size();
+        }
+        return (int) Math.max(delegate.size(), l.snapshot.entryCount() - l.deleted.size());
+    }
+
+    /**
+     * Calls the action once for every entry. Hydration is paused meanwhile, so that no entry is
+     * skipped or seen twice while it moves from the snapshot into the mutable store.
+     *
+     * @param action The action to call with each key and value.
+     */
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        hydrationPause.lock();
+        try {
+            Layer l = layer;
+            delegate.forEach(action);
+            if (l != null) {
+                l.snapshot.forEach((key, value) -> {
+                    if (!l.deleted.contains(key) && !delegate.containsKey(key)) {
+                        action.accept(key, value);
+                    }
+                });
+            }
+        } finally {
+            hydrationPause.unlock();
+        }
+    }
+
+    private void hydrate() {
+        long start = System.nanoTime();
+        Layer l = layer;
+        long slotCount = l.snapshot.slotCount();
+        for (long from = 0; from < slotCount; from += SLOTS_PER_BATCH) {
+            hydrationPause.lock();
+            try {
+                l.snapshot.forEach(from, Math.min(slotCount, from + SLOTS_PER_BATCH), (key, value) -> {
+                    synchronized (lockFor(key)) {
+                        if (!l.deleted.contains(key) && !delegate.containsKey(key)) {
+                            delegate.put(key, value);
+                        }
+                    }
+                });
+            } finally {
+                hydrationPause.unlock();
+            }
+        }
+        layer = null;
+        hydrationMillis = (System.nanoTime() - start) / 1_000_000;
+        hydrated.countDown();
+    }
+
+    /**
+     * Copies a key that is only in the snapshot into the mutable store ahead of the hydrator.
+     * The caller holds the lock of the key.
+     */
+    private void hydrateKey(CharSequence key) {
+        Layer l = layer;
+        if (l != null && !delegate.containsKey(key) && !l.deleted.contains(key.toString())) {
+            long value = l.snapshot.get(key);
+            if (value != NO_VALUE) {
+                delegate.put(key, (int) value);
+            }
+        }
+    }
+
+    private Object lockFor(CharSequence key) {
+        return keyLocks[KeyValueStore.hash(key) & (KEY_LOCKS - 1)];
+    }
+
+    /**
+     * The snapshot still being served and the keys deleted since it was opened.
+     */
+    private static final class Layer {
+        final MappedSnapshot snapshot;
+        final Set<String> deleted = ConcurrentHashMap.newKeySet();
+
+        Layer(MappedSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The `KeyRecord` class encodes keys for the off-heap structures. A record is a two byte header
+ * holding the key length and a UTF-16 flag, followed by the characters: one byte each when the
+ * key is Latin-1 and two otherwise. Records can be compared with any `CharSequence` in place.
+ */
+final class KeyRecord {
+
+    /** Longest key a record can hold; the remaining header bit is the UTF-16 flag. */
+    static final int MAX_KEY_LENGTH = KeyValueStore.MAX_KEY_LENGTH;
+
+    private static final int UTF16_FLAG = 0x8000;
+
+    private KeyRecord() {
+    }
+
+    /**
+     * Rejects keys that do not fit in a record.
+     *
+     * @throws IllegalArgumentException If the key is longer than `MAX_KEY_LENGTH`.
+     */
+    static void checkLength(CharSequence key) {
+        if (key.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key longer than " + MAX_KEY_LENGTH + " characters");
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a key.
+     */
+    static int size(CharSequence key) {
+        return 2 + (isLatin1(key) ? key.length() : key.length() * 2);
+    }
+
+    /**
+     * Returns the size of the record stored at an offset.
+     */
+    static int size(ByteBuffer buffer, int offset) {
+        int header = buffer.getShort(offset) & 0xFFFF;
+        int length = header & MAX_KEY_LENGTH;
+        return 2 + ((header & UTF16_FLAG) == 0 ? length : length * 2);
+    }
+
+    /**
+     * Encodes a key at an offset without moving the buffer position.
+     *
+     * @return The number of bytes written.
+     */
+    static int write(ByteBuffer buffer, int offset, CharSequence key) {
+        boolean latin1 = isLatin1(key);
+        int length = key.length();
+        buffer.putShort(offset, (short) (latin1 ? length : length | UTF16_FLAG));
+        int data = offset + 2;
+        for (int i = 0; i < length; i++) {
+            if (latin1) {
+                buffer.put(data + i, (byte) key.charAt(i));
+            } else {
+                buffer.putChar(data + 2 * i, key.charAt(i));
+            }
+        }
+        return 2 + (latin1 ? length : length * 2);
+    }
+
+    /**
+     * Compares the record at an offset with a key without decoding it.
+     */
+    static boolean equals(ByteBuffer buffer, int offset, CharSequence key) {
+        int header = buffer.getShort(offset) & 0xFFFF;
+        int length = header & MAX_KEY_LENGTH;
+        if (length != key.length()) {
+            return false;
+        }
+        int data = offset + 2;
+        if ((header & UTF16_FLAG) == 0) {
+            for (int i = 0; i < length; i++) {
+                if ((buffer.get(data + i) & 0xFF) != key.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (buffer.getChar(data + 2 * i) != key.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the record at an offset into a new string.
+     */
+    static String read(ByteBuffer buffer, int offset) {
+        int header = buffer.getShort(offset) & 0xFFFF;
+        int length = header & MAX_KEY_LENGTH;
+        boolean latin1 = (header & UTF16_FLAG) == 0;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = latin1 ? (char) (buffer.get(offset + 2 + i) & 0xFF) : buffer.getChar(offset + 2 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Mixes the bits of a string hash (the MurmurHash3 finaliser) so that both its high and its
+     * low bits can be used to pick a segment or slot.
+     */
+    static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static boolean isLatin1(CharSequence key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
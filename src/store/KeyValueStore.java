@@ -0,0 +1,274 @@
+package store;
+
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `KeyValueStore` interface defines the contract for the map from string keys to integer
+ * values that the server applies client requests to. Implementations must be safe to use from
+ * many request threads at once.
+ *
+ * Keys are accepted as any `CharSequence` and compared by content, so that callers can look up a
+ * key straight from a reusable buffer; a key is only copied into a `String` when it is inserted.
+ * Values are kept as primitive ints and an absent key is reported as `NO_VALUE`. `addAndGet` and
+ * `compareAndExchange` read and write a value as one atomic step, so counters and optimistic
+ * updates need no lock on the client side.
+ *
+ * Stores that keep an ordered index of their keys also serve range scans, which visit keys in
+ * ascending order of their characters, as `String.compareTo` orders them.
+ */
+public interface KeyValueStore {
+
+    /** Returned by `get` when the key is not present. It lies outside the range of int values. */
+    long NO_VALUE = Long.MIN_VALUE;
+
+    /** Longest key, in characters, that a store has to accept. */
+    int MAX_KEY_LENGTH = 0x7FFF;
+
+    /**
+     * Retrieves the value mapped to a key.
+     *
+     * @param key The key to look up.
+     * @return The value of the key, or `NO_VALUE` if the key is not present.
+     */
+    long get(CharSequence key);
+
+    /**
+     * Checks whether a key is present.
+     *
+     * @param key The key to look up.
+     * @return True if the key is mapped to a value.
+     */
+    default boolean containsKey(CharSequence key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key   The key to write, at most `MAX_KEY_LENGTH` characters long.
+     * @param value The value to store.
+     * @throws IllegalArgumentException If the key is too long.
+     */
+    void put(CharSequence key, int value);
+
+    /**
+     * Maps a key to a value that an `ExpiringKeyValueStore` above this store removes at a
+     * deadline. Stores that do not persist deadlines write the value like `put`; stores that
+     * wrap another pass the deadline on, so that a persistent store below can keep it.
+     *
+     * @param key            The key to write, at most `MAX_KEY_LENGTH` characters long.
+     * @param value          The value to store.
+     * @param deadlineMillis The wall-clock time, in milliseconds since the epoch, at which the
+     *                       key expires.
+     * @throws IllegalArgumentException If the key is too long.
+     */
+    default void putExpiring(CharSequence key, int value, long deadlineMillis) {
+        put(key, value);
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key The key to remove.
+     * @return True if the key was present and has been removed.
+     */
+    boolean remove(CharSequence key);
+
+    /**
+     * Adds a delta to the value of a key as one atomic step, so that concurrent increments of a
+     * key are never lost. An absent key counts as 0 and is created.
+     *
+     * @param key   The key to update, at most `MAX_KEY_LENGTH` characters long.
+     * @param delta The amount to add; negative to subtract.
+     * @return The value of the key after the update.
+     * @throws ArithmeticException      If the result does not fit in an int; the value is left
+     *                                  unchanged.
+     * @throws IllegalArgumentException If the key is too long.
+     */
+    int addAndGet(CharSequence key, int delta);
+
+    /**
+     * Sets the value of a key if it currently holds an expected value, as one atomic step.
+     *
+     * @param key      The key to update, at most `MAX_KEY_LENGTH` characters long.
+     * @param expected The value the key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param value    The new value.
+     * @return The value the key held before, or `NO_VALUE` if it was absent; the key was set if,
+     *         and only if, this equals `expected`.
+     * @throws IllegalArgumentException If the key is too long.
+     */
+    long compareAndExchange(CharSequence key, long expected, int value);
+
+    /**
+     * Retrieves the values of several keys in one pass. Stores that are split into locked parts
+     * visit every part once per batch instead of once per key.
+     *
+     * @param keys   The keys to look up.
+     * @param count  The number of keys to use from the start of the array.
+     * @param values Receives the value of each key, or `NO_VALUE`, at the index of the key.
+     */
+    default void getAll(CharSequence[] keys, int count, long[] values) {
+        for (int i = 0; i < count; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
+    /**
+     * Maps several keys to values in one pass. When a key repeats, its last value wins.
+     *
+     * @param keys   The keys to write, each at most `MAX_KEY_LENGTH` characters long.
+     * @param values The value of each key, at the index of the key.
+     * @param count  The number of entries to use from the start of the arrays.
+     * @throws IllegalArgumentException If a key is too long; the batch may then be partly applied.
+     */
+    default void putAll(CharSequence[] keys, int[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            put(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Removes several keys in one pass.
+     *
+     * @param keys    The keys to remove.
+     * @param count   The number of keys to use from the start of the array.
+     * @param removed Receives, at the index of each key, whether it was present and removed.
+     */
+    default void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        for (int i = 0; i < count; i++) {
+            removed[i] = remove(keys[i]);
+        }
+    }
+
+    /**
+     * Adds deltas to several keys, each key atomically. When a key repeats, its deltas add up.
+     *
+     * @param keys    The keys to update, each at most `MAX_KEY_LENGTH` characters long.
+     * @param deltas  The amount to add to each key, at the index of the key.
+     * @param count   The number of entries to use from the start of the arrays.
+     * @param results Receives the value of each key after its update, or `NO_VALUE` where the
+     *                result did not fit in an int and the key was left unchanged.
+     * @throws IllegalArgumentException If a key is too long; the batch may then be partly applied.
+     */
+    default void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results) {
+        for (int i = 0; i < count; i++) {
+            try {
+                results[i] = addAndGet(keys[i], deltas[i]);
+            } catch (ArithmeticException e) {
+                results[i] = NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Applies several compare-and-set updates, each key atomically and in batch order.
+     *
+     * @param keys      The keys to update, each at most `MAX_KEY_LENGTH` characters long.
+     * @param expected  The value each key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param values    The new value of each key.
+     * @param count     The number of entries to use from the start of the arrays.
+     * @param witnesses Receives the value each key held before its update, or `NO_VALUE`; a key
+     *                  was set where this equals its expected value.
+     * @throws IllegalArgumentException If a key is too long; the batch may then be partly applied.
+     */
+    default void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count,
+                                       long[] witnesses) {
+        for (int i = 0; i < count; i++) {
+            witnesses[i] = compareAndExchange(keys[i], expected[i], values[i]);
+        }
+    }
+
+    /**
+     * Retrieves the number of keys in the store. While writers are active this is an estimate.
+     *
+     * @return The number of keys.
+     */
+    int size();
+
+    /**
+     * Calls the action once for every entry. Entries written concurrently may or may not be seen.
+     *
+     * @param action The action to call with each key and value.
+     */
+    void forEach(ObjIntConsumer<String> action);
+
+    /**
+     * Visits the entries whose keys lie in a range, in ascending key order, until the visitor
+     * asks to stop. Entries written concurrently may or may not be seen, and a scan does not
+     * hold up writers.
+     *
+     * @param from    The lowest key of the range, or null to start at the smallest key.
+     * @param after   True to leave `from` itself out of the range.
+     * @param to      The key the range ends before, or null to run to the largest key.
+     * @param visitor Receives each entry in the range.
+     * @throws UnsupportedOperationException If the store keeps no ordered index of its keys.
+     */
+    default void scan(CharSequence from, boolean after, CharSequence to, EntryVisitor visitor) {
+        throw new UnsupportedOperationException("Scans need an ordered key index");
+    }
+
+    /**
+     * Receives the entries of a scan.
+     */
+    @FunctionalInterface
+    interface EntryVisitor {
+
+        /**
+         * Receives one entry.
+         *
+         * @param key   The key.
+         * @param value The value of the key.
+         * @return True to receive the next entry, false to end the scan.
+         */
+        boolean visit(String key, int value);
+    }
+
+    /**
+     * Computes the smallest key that is greater than every key starting with a prefix, so that
+     * the keys with the prefix are the range from the prefix up to that key.
+     *
+     * @param prefix The prefix.
+     * @return The end of the range, or null if the range runs to the largest key.
+     */
+    static String prefixEnd(CharSequence prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        StringBuilder next = new StringBuilder(end).append(prefix, 0, end);
+        next.setCharAt(end - 1, (char) (prefix.charAt(end - 1) + 1));
+        return next.toString();
+    }
+
+    /**
+     * Computes the hash of a key. It is equal to `String.hashCode` for the same characters, so a
+     * `String` key can use its cached hash and any other `CharSequence` hashes the same way.
+     *
+     * @param key The key to hash.
+     * @return The hash code of the key.
+     */
+    static int hash(CharSequence key) {
+        if (key instanceof String) {
+            return key.hashCode();
+        }
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * Compares a stored key with a key that is being looked up.
+     *
+     * @param stored The key held by the store.
+     * @param key    The key to compare with.
+     * @return True if both keys hold the same characters.
+     */
+    static boolean keyEquals(String stored, CharSequence key) {
+        return stored.length() == key.length() && stored.contentEquals(key);
+    }
+}
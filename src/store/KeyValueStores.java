@@ -0,0 +1,29 @@
+package store;
+
+/**
+ * The `KeyValueStores` class creates the `KeyValueStore` backend selected by name.
+ */
+public final class KeyValueStores {
+
+    private KeyValueStores() {
+    }
+
+    /**
+     * Creates an empty store of the named backend.
+     *
+     * @param backend "striped" for the on-heap lock-striped store, or "offheap" for the store that
+     *                keeps keys and values in direct buffers.
+     * @return The new store.
+     * @throws IllegalArgumentException If the backend name is not known.
+     */
+    public static KeyValueStore create(String backend) {
+        switch (backend) {
+            case "striped":
+                return new StripedKeyValueStore();
+            case "offheap":
+                return new OffHeapKeyValueStore();
+            default:
+                throw new IllegalArgumentException("Unknown store backend: " + backend);
+        }
+    }
+}
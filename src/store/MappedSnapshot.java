@@ -0,0 +1,175 @@
+package store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The `MappedSnapshot` class serves read-only lookups from a `SnapshotFile` mapped into memory.
+ * Opening one only checks the header, so it costs the same for ten keys as for ten million;
+ * the operating system pages the index and key records in as lookups touch them.
+ *
+ * The mapping stays valid after the file is deleted and is released once the snapshot is
+ * garbage collected.
+ */
+public final class MappedSnapshot {
+    private final MappedByteBuffer[] chunks;
+    private final long walSegmentId;
+    private final long entryCount;
+    private final long slotCount;
+    private final long deadlineOffset;
+    private final long deadlineCount;
+
+    private MappedSnapshot(MappedByteBuffer[] chunks, long walSegmentId, long entryCount, long slotCount,
+                           long deadlineOffset, long deadlineCount) {
+        this.chunks = chunks;
+        this.walSegmentId = walSegmentId;
+        this.entryCount = entryCount;
+        this.slotCount = slotCount;
+        this.deadlineOffset = deadlineOffset;
+        this.deadlineCount = deadlineCount;
+    }
+
+    /**
+     * Maps a snapshot file.
+     *
+     * @param snapshot The snapshot file.
+     * @return The mapped snapshot.
+     * @throws IOException If the file cannot be mapped or is not a complete snapshot.
+     */
+    public static MappedSnapshot open(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long fileBytes = channel.size();
+            if (fileBytes < SnapshotFile.HEADER_BYTES) {
+                throw new IOException("Truncated snapshot " + snapshot);
+            }
+            MappedByteBuffer[] chunks = SnapshotFile.map(channel, FileChannel.MapMode.READ_ONLY, fileBytes);
+            ByteBuffer header = chunks[0];
+            long slotCount = header.getLong(24);
+            long dataOffset = header.getLong(32);
+            long deadlineOffset = header.getLong(48);
+            long deadlineCount = header.getLong(56);
+            if (header.getInt(0) != SnapshotFile.MAGIC
+                    || header.getLong(40) != fileBytes
+                    || Long.bitCount(slotCount) != 1
+                    || dataOffset != SnapshotFile.HEADER_BYTES + slotCount * SnapshotFile.SLOT_BYTES
+                    || deadlineCount < 0
+                    || deadlineCount > 0 && (deadlineOffset < dataOffset
+                            || deadlineOffset % SnapshotFile.DEADLINE_BYTES != 0
+                            || deadlineCount > (fileBytes - deadlineOffset) / SnapshotFile.DEADLINE_BYTES)) {
+                throw new IOException("Corrupt snapshot " + snapshot);
+            }
+            return new MappedSnapshot(chunks, header.getLong(8), header.getLong(16), slotCount, deadlineOffset,
+                    deadlineCount);
+        }
+    }
+
+    /**
+     * Retrieves the value mapped to a key.
+     *
+     * @param key The key to look up.
+     * @return The value of the key, or `NO_VALUE` if the snapshot does not hold it.
+     */
+    public long get(CharSequence key) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        long mask = slotCount - 1;
+        long slot = (hash & 0xFFFFFFFFL) & mask;
+        while (true) {
+            long position = SnapshotFile.HEADER_BYTES + slot * SnapshotFile.SLOT_BYTES;
+            ByteBuffer chunk = chunkAt(position);
+            int offset = offsetOf(position);
+            long recordOffset = chunk.getLong(offset + 8);
+            if (recordOffset == 0) {
+                return KeyValueStore.NO_VALUE;
+            }
+            if (chunk.getInt(offset) == hash && KeyRecord.equals(chunkAt(recordOffset), offsetOf(recordOffset), key)) {
+                return chunk.getInt(offset + 4);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Calls the action once for every entry.
+     *
+     * @param action The action to call with each key and value.
+     */
+    public void forEach(ObjIntConsumer<String> action) {
+        forEach(0, slotCount, action);
+    }
+
+    /**
+     * Calls the action for the entries held by a range of index slots, so that a large
+     * snapshot can be walked in pieces.
+     *
+     * @param fromSlot The first slot, inclusive.
+     * @param toSlot   The last slot, exclusive.
+     * @param action   The action to call with each key and value.
+     */
+    public void forEach(long fromSlot, long toSlot, ObjIntConsumer<String> action) {
+        for (long slot = fromSlot; slot < toSlot; slot++) {
+            long position = SnapshotFile.HEADER_BYTES + slot * SnapshotFile.SLOT_BYTES;
+            ByteBuffer chunk = chunkAt(position);
+            int offset = offsetOf(position);
+            long recordOffset = chunk.getLong(offset + 8);
+            if (recordOffset != 0) {
+                action.accept(KeyRecord.read(chunkAt(recordOffset), offsetOf(recordOffset)), chunk.getInt(offset + 4));
+            }
+        }
+    }
+
+    /**
+     * Calls the action once for every key that expires, with its deadline.
+     *
+     * @param action The action to call with each key and its deadline in epoch milliseconds.
+     */
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        for (long i = 0; i < deadlineCount; i++) {
+            long position = deadlineOffset + i * SnapshotFile.DEADLINE_BYTES;
+            ByteBuffer chunk = chunkAt(position);
+            int offset = offsetOf(position);
+            long recordOffset = chunk.getLong(offset);
+            action.accept(KeyRecord.read(chunkAt(recordOffset), offsetOf(recordOffset)), chunk.getLong(offset + 8));
+        }
+    }
+
+    /**
+     * Retrieves the number of entries in the snapshot.
+     *
+     * @return The entry count.
+     */
+    public long entryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Retrieves the number of index slots, the exclusive upper bound for `forEach` ranges.
+     *
+     * @return The slot count.
+     */
+    public long slotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Retrieves the first write-ahead log segment that has to be replayed on top of the snapshot.
+     *
+     * @return The segment id.
+     */
+    public long walSegmentId() {
+        return walSegmentId;
+    }
+
+    private ByteBuffer chunkAt(long position) {
+        return chunks[(int) (position >>> SnapshotFile.CHUNK_SHIFT)];
+    }
+
+    private static int offsetOf(long position) {
+        return (int) (position & (SnapshotFile.CHUNK_BYTES - 1));
+    }
+}
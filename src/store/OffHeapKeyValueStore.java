@@ -0,0 +1,490 @@
+package store;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `OffHeapKeyValueStore` class is a `KeyValueStore` that keeps its keys, values and hash
+ * index in direct `ByteBuffer`s, so that tens of millions of entries add almost nothing to the
+ * Java heap and nothing for the garbage collector to trace.
+ *
+ * The key space is split into lock-protected segments. Each segment holds an open-addressing
+ * index with linear probing whose 16 byte slots hold a reference to the key bytes, the spread
+ * key hash and the int value. Keys are appended to slab chunks as `KeyRecord`s. GET, and PUT
+ * on an existing key, read and write the buffers in place and do not allocate. Space left by
+ * deleted keys is reclaimed by compacting the slab once it holds more garbage than live keys.
+ * `addAndGet` and `compareAndExchange` on a present key update the value in its slot with a
+ * compare-and-set under the read lock of the segment, which keeps the slot in place.
+ *
+ * Direct memory is bounded by {@code -XX:MaxDirectMemorySize}, which defaults to the maximum
+ * heap size.
+ */
+public class OffHeapKeyValueStore implements KeyValueStore {
+    private static final int SLOT_BYTES = 16;
+    private static final int INITIAL_SLOTS = 64;
+    private static final int INITIAL_CHUNK_BYTES = 64 * 1024;
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_GARBAGE_TO_COMPACT = 1024 * 1024;
+    private static final VarHandle SLOT_VALUE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * Creates a store with four segments per available processor.
+     */
+    public OffHeapKeyValueStore() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a store with at least the given number of segments.
+     *
+     * @param minimumSegments The minimum number of segments; it is rounded up to a power of two.
+     */
+    public OffHeapKeyValueStore(int minimumSegments) {
+        int segmentCount = Integer.highestOneBit(Math.max(2, minimumSegments) - 1) << 1;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.findSlot(key, hash);
+            return slot < 0 ? NO_VALUE : segment.index.getInt(slot * SLOT_BYTES + 12);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        KeyRecord.checkLength(key);
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            segment.put(key, hash, value);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            return segment.remove(key, hash);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        KeyRecord.checkLength(key);
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.readLock();
+        try {
+            int slot = segment.findSlot(key, hash);
+            if (slot >= 0) {
+                return segment.addAt(slot, delta);
+            }
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+        stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.findSlot(key, hash);
+            if (slot >= 0) {
+                return segment.addAt(slot, delta);
+            }
+            segment.put(key, hash, delta);
+            return delta;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        KeyRecord.checkLength(key);
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Segment segment = segmentFor(hash);
+        if (expected != NO_VALUE) {
+            long stamp = segment.lock.readLock();
+            try {
+                int slot = segment.findSlot(key, hash);
+                return slot < 0 ? NO_VALUE : segment.compareAndExchangeAt(slot, expected, value);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.findSlot(key, hash);
+            if (slot >= 0) {
+                return segment.index.getInt(slot * SLOT_BYTES + 12);
+            }
+            segment.put(key, hash, value);
+            return NO_VALUE;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Retrieves the values of several keys, taking each segment's read lock once.
+     */
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        int[] hashes = new int[count];
+        long[] order = BatchOrder.byLock(keys, count, segmentShift, hashes);
+        for (int from = 0; from < count; ) {
+            int end = BatchOrder.runEnd(order, from);
+            Segment segment = segments[BatchOrder.lock(order[from])];
+            long stamp = segment.lock.readLock();
+            try {
+                for (int i = from; i < end; i++) {
+                    int index = BatchOrder.index(order[i]);
+                    int slot = segment.findSlot(keys[index], hashes[index]);
+                    values[index] = slot < 0 ? NO_VALUE : segment.index.getInt(slot * SLOT_BYTES + 12);
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+            from = end;
+        }
+    }
+
+    /**
+     * Maps several keys to values, taking each segment's write lock once. Key lengths are checked
+     * before anything is written, so a batch with a key that is too long is not applied at all.
+     */
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            KeyRecord.checkLength(keys[i]);
+        }
+        int[] hashes = new int[count];
+        long[] order = BatchOrder.byLock(keys, count, segmentShift, hashes);
+        for (int from = 0; from < count; ) {
+            int end = BatchOrder.runEnd(order, from);
+            Segment segment = segments[BatchOrder.lock(order[from])];
+            long stamp = segment.lock.writeLock();
+            try {
+                for (int i = from; i < end; i++) {
+                    int index = BatchOrder.index(order[i]);
+                    segment.put(keys[index], hashes[index], values[index]);
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+            from = end;
+        }
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        int[] hashes = new int[count];
+        long[] order = BatchOrder.byLock(keys, count, segmentShift, hashes);
+        for (int from = 0; from < count; ) {
+            int end = BatchOrder.runEnd(order, from);
+            Segment segment = segments[BatchOrder.lock(order[from])];
+            long stamp = segment.lock.writeLock();
+            try {
+                for (int i = from; i < end; i++) {
+                    int index = BatchOrder.index(order[i]);
+                    removed[index] = segment.remove(keys[index], hashes[index]);
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+            from = end;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                for (int slot = 0; slot <= segment.mask; slot++) {
+                    long keyRef = segment.index.getLong(slot * SLOT_BYTES);
+                    if (keyRef != 0) {
+                        action.accept(segment.readKey(keyRef), segment.index.getInt(slot * SLOT_BYTES + 12));
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of direct memory bytes held by the index and the key slabs.
+     *
+     * @return The off-heap footprint of the store in bytes.
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                bytes += segment.index.capacity();
+                for (ByteBuffer chunk : segment.chunks) {
+                    bytes += chunk.capacity();
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> segmentShift];
+    }
+
+    /**
+     * One lock-protected index and the slab chunks its keys live in. A key reference packs the
+     * chunk number plus one into the high half and the byte offset into the low half, so that
+     * zero marks an empty slot.
+     */
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        ByteBuffer index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_BYTES);
+        int mask = INITIAL_SLOTS - 1;
+        volatile int size;
+        long liveKeyBytes;
+        long garbageKeyBytes;
+
+        /**
+         * Finds the slot holding a key.
+         *
+         * @return The slot number, or -1 if the key is not present.
+         */
+        int findSlot(CharSequence key, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                int base = slot * SLOT_BYTES;
+                long keyRef = index.getLong(base);
+                if (keyRef == 0) {
+                    return -1;
+                }
+                if (index.getInt(base + 8) == hash && keyEquals(keyRef, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Adds to the value in a slot. The caller holds the read lock, so other updates of the
+         * slot may run at the same time and the value is retried until no update came between.
+         */
+        int addAt(int slot, int delta) {
+            int offset = slot * SLOT_BYTES + 12;
+            int current;
+            int updated;
+            do {
+                current = (int) SLOT_VALUE.getVolatile(index, offset);
+                updated = Math.addExact(current, delta);
+            } while (!SLOT_VALUE.compareAndSet(index, offset, current, updated));
+            return updated;
+        }
+
+        /**
+         * Swaps the value in a slot if it holds the expected one. The caller holds the read lock.
+         */
+        long compareAndExchangeAt(int slot, long expected, int value) {
+            int offset = slot * SLOT_BYTES + 12;
+            if (expected < Integer.MIN_VALUE || expected > Integer.MAX_VALUE) {
+                return (int) SLOT_VALUE.getVolatile(index, offset);
+            }
+            return (int) SLOT_VALUE.compareAndExchange(index, offset, (int) expected, value);
+        }
+
+        void put(CharSequence key, int hash, int value) {
+            int slot = hash & mask;
+            while (true) {
+                int base = slot * SLOT_BYTES;
+                long keyRef = index.getLong(base);
+                if (keyRef == 0) {
+                    index.putLong(base, appendKey(key));
+                    index.putInt(base + 8, hash);
+                    index.putInt(base + 12, value);
+                    size = size + 1;
+                    if (size * 4 > (mask + 1) * 3) {
+                        resize();
+                    }
+                    return;
+                }
+                if (index.getInt(base + 8) == hash && keyEquals(keyRef, key)) {
+                    index.putInt(base + 12, value);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        boolean remove(CharSequence key, int hash) {
+            int slot = findSlot(key, hash);
+            if (slot < 0) {
+                return false;
+            }
+            int recordBytes = recordBytes(index.getLong(slot * SLOT_BYTES));
+            liveKeyBytes -= recordBytes;
+            garbageKeyBytes += recordBytes;
+            deleteSlot(slot);
+            size = size - 1;
+            if (garbageKeyBytes > MIN_GARBAGE_TO_COMPACT && garbageKeyBytes > liveKeyBytes) {
+                compact();
+            }
+            return true;
+        }
+
+        /**
+         * Empties a slot and shifts later entries of the same probe run back, so that the index
+         * never needs tombstones.
+         */
+        private void deleteSlot(int hole) {
+            int slot = hole;
+            while (true) {
+                slot = (slot + 1) & mask;
+                int base = slot * SLOT_BYTES;
+                long keyRef = index.getLong(base);
+                if (keyRef == 0) {
+                    break;
+                }
+                int ideal = index.getInt(base + 8) & mask;
+                boolean staysInPlace = hole <= slot
+                        ? hole < ideal && ideal <= slot
+                        : hole < ideal || ideal <= slot;
+                if (!staysInPlace) {
+                    int holeBase = hole * SLOT_BYTES;
+                    index.putLong(holeBase, keyRef);
+                    index.putInt(holeBase + 8, index.getInt(base + 8));
+                    index.putInt(holeBase + 12, index.getInt(base + 12));
+                    hole = slot;
+                }
+            }
+            index.putLong(hole * SLOT_BYTES, 0);
+        }
+
+        private void resize() {
+            ByteBuffer old = index;
+            int oldSlots = mask + 1;
+            index = ByteBuffer.allocateDirect(oldSlots * 2 * SLOT_BYTES);
+            mask = oldSlots * 2 - 1;
+            for (int slot = 0; slot < oldSlots; slot++) {
+                long keyRef = old.getLong(slot * SLOT_BYTES);
+                if (keyRef != 0) {
+                    insertSlot(keyRef, old.getInt(slot * SLOT_BYTES + 8), old.getInt(slot * SLOT_BYTES + 12));
+                }
+            }
+        }
+
+        private void insertSlot(long keyRef, int hash, int value) {
+            int slot = hash & mask;
+            while (index.getLong(slot * SLOT_BYTES) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int base = slot * SLOT_BYTES;
+            index.putLong(base, keyRef);
+            index.putInt(base + 8, hash);
+            index.putInt(base + 12, value);
+        }
+
+        /**
+         * Copies every live key into fresh chunks and points the index at the copies.
+         */
+        private void compact() {
+            List<ByteBuffer> oldChunks = new ArrayList<>(chunks);
+            chunks.clear();
+            liveKeyBytes = 0;
+            garbageKeyBytes = 0;
+            for (int slot = 0; slot <= mask; slot++) {
+                int base = slot * SLOT_BYTES;
+                long keyRef = index.getLong(base);
+                if (keyRef != 0) {
+                    index.putLong(base, copyRecord(oldChunks, keyRef));
+                }
+            }
+        }
+
+        private long copyRecord(List<ByteBuffer> fromChunks, long keyRef) {
+            ByteBuffer from = fromChunks.get((int) (keyRef >>> 32) - 1);
+            int offset = (int) keyRef;
+            int recordBytes = KeyRecord.size(from, offset);
+            ByteBuffer to = chunkWithRoom(recordBytes);
+            int target = to.position();
+            for (int i = 0; i < recordBytes; i++) {
+                to.put(from.get(offset + i));
+            }
+            liveKeyBytes += recordBytes;
+            return ((long) chunks.size() << 32) | target;
+        }
+
+        /**
+         * Appends a key record and returns its reference.
+         */
+        private long appendKey(CharSequence key) {
+            int recordBytes = KeyRecord.size(key);
+            ByteBuffer chunk = chunkWithRoom(recordBytes);
+            int offset = chunk.position();
+            KeyRecord.write(chunk, offset, key);
+            chunk.position(offset + recordBytes);
+            liveKeyBytes += recordBytes;
+            return ((long) chunks.size() << 32) | offset;
+        }
+
+        private ByteBuffer chunkWithRoom(int recordBytes) {
+            ByteBuffer current = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (current == null || current.remaining() < recordBytes) {
+                int nextSize = current == null ? INITIAL_CHUNK_BYTES : Math.min(MAX_CHUNK_BYTES, current.capacity() * 2);
+                current = ByteBuffer.allocateDirect(Math.max(nextSize, recordBytes));
+                chunks.add(current);
+            }
+            return current;
+        }
+
+        private boolean keyEquals(long keyRef, CharSequence key) {
+            return KeyRecord.equals(chunks.get((int) (keyRef >>> 32) - 1), (int) keyRef, key);
+        }
+
+        String readKey(long keyRef) {
+            return KeyRecord.read(chunks.get((int) (keyRef >>> 32) - 1), (int) keyRef);
+        }
+
+        private int recordBytes(long keyRef) {
+            return KeyRecord.size(chunks.get((int) (keyRef >>> 32) - 1), (int) keyRef);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package store;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `OrderedKeyValueStore` class keeps an ordered index of the keys of another `KeyValueStore`
+ * beside its hash index, so that the store can serve range and prefix scans. The index is a
+ * concurrent skip list: a scan walks it without locks and reads each value from the store, so
+ * writers are never held up by a scan and a scan sees a key that is written or removed while it
+ * runs either before or after the change.
+ *
+ * A single-key write changes the store and the index under a lock per key. A batch is applied
+ * to the store in one pass and each of its keys is then brought into the index under its lock,
+ * from whatever the store holds for the key by then.
+ *
+ * The keys already in the store are added by `startIndexing` on a background thread, so that a
+ * large store, or one still being hydrated from a snapshot, does not delay startup. Until that
+ * walk has finished, a scan cannot rely on the index and walks the whole store instead, sorting
+ * the keys of its range; scans are slow during that time, but never incomplete.
+ */
+public class OrderedKeyValueStore implements KeyValueStore {
+    private static final int KEY_LOCKS = 256;
+
+    private final KeyValueStore delegate;
+    private final ConcurrentSkipListSet<CharSequence> index = new ConcurrentSkipListSet<>(CharSequence::compare);
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+    private volatile boolean indexed;
+
+    /**
+     * Creates an ordered index over a store. The entries already in it are only added by
+     * `startIndexing`.
+     *
+     * @param delegate The store holding the keys and values.
+     */
+    public OrderedKeyValueStore(KeyValueStore delegate) {
+        this.delegate = delegate;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Starts adding the entries already in the store to the index on a daemon thread.
+     */
+    public void startIndexing() {
+        Thread indexer = new Thread(this::indexExisting, "scan-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        return delegate.get(key);
+    }
+
+    @Override
+    public boolean containsKey(CharSequence key) {
+        return delegate.containsKey(key);
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        synchronized (lockFor(key)) {
+            delegate.put(key, value);
+            // Overwrites, the usual case, only search the index; a new key is copied once.
+            if (!index.contains(key)) {
+                index.add(key.toString());
+            }
+        }
+    }
+
+    @Override
+    public void putExpiring(CharSequence key, int value, long deadlineMillis) {
+        synchronized (lockFor(key)) {
+            delegate.putExpiring(key, value, deadlineMillis);
+            if (!index.contains(key)) {
+                index.add(key.toString());
+            }
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        synchronized (lockFor(key)) {
+            int value = delegate.addAndGet(key, delta);
+            if (!index.contains(key)) {
+                index.add(key.toString());
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        synchronized (lockFor(key)) {
+            long witness = delegate.compareAndExchange(key, expected, value);
+            if (witness == NO_VALUE && expected == NO_VALUE) {
+                index.add(key.toString());
+            }
+            return witness;
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        synchronized (lockFor(key)) {
+            boolean removed = delegate.remove(key);
+            if (removed) {
+                index.remove(key);
+            }
+            return removed;
+        }
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        delegate.getAll(keys, count, values);
+    }
+
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        try {
+            delegate.putAll(keys, values, count);
+        } finally {
+            reindex(keys, count);
+        }
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        try {
+            delegate.removeAll(keys, count, removed);
+        } finally {
+            reindex(keys, count);
+        }
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        delegate.forEach(action);
+    }
+
+    @Override
+    public void scan(CharSequence from, boolean after, CharSequence to, EntryVisitor visitor) {
+        if (!indexed) {
+            scanStore(from, after, to, visitor);
+            return;
+        }
+        NavigableSet<CharSequence> range;
+        if (from != null && to != null) {
+            if (CharSequence.compare(from, to) >= 0) {
+                return;
+            }
+            range = index.subSet(from, !after, to, false);
+        } else if (from != null) {
+            range = index.tailSet(from, !after);
+        } else if (to != null) {
+            range = index.headSet(to, false);
+        } else {
+            range = index;
+        }
+        for (CharSequence key : range) {
+            long value = delegate.get(key);
+            // A key removed since the index was read is skipped.
+            if (value != NO_VALUE && !visitor.visit((String) key, (int) value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serves a scan before the index is complete by collecting the keys of the range from the
+     * whole store.
+     */
+    private void scanStore(CharSequence from, boolean after, CharSequence to, EntryVisitor visitor) {
+        if (from != null && to != null && CharSequence.compare(from, to) >= 0) {
+            return;
+        }
+        TreeMap<String, Integer> range = new TreeMap<>();
+        delegate.forEach((key, value) -> {
+            int sinceFrom = from == null ? 1 : CharSequence.compare(key, from);
+            if ((after ? sinceFrom > 0 : sinceFrom >= 0) && (to == null || CharSequence.compare(key, to) < 0)) {
+                range.put(key, value);
+            }
+        });
+        for (Map.Entry<String, Integer> entry : range.entrySet()) {
+            if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the keys that were in the store before the index was created. A key is only added
+     * under its lock and while the store still holds it, so a key removed meanwhile stays out.
+     */
+    private void indexExisting() {
+        delegate.forEach((key, value) -> {
+            synchronized (lockFor(key)) {
+                if (delegate.containsKey(key)) {
+                    index.add(key);
+                }
+            }
+        });
+        indexed = true;
+    }
+
+    /**
+     * Makes the index agree with the store for the keys of a batch that has been applied.
+     */
+    private void reindex(CharSequence[] keys, int count) {
+        for (int i = 0; i < count; i++) {
+            CharSequence key = keys[i];
+            synchronized (lockFor(key)) {
+                if (!delegate.containsKey(key)) {
+                    index.remove(key);
+                } else if (!index.contains(key)) {
+                    index.add(key.toString());
+                }
+            }
+        }
+    }
+
+    private Object lockFor(CharSequence key) {
+        return keyLocks[KeyRecord.spread(KeyValueStore.hash(key)) >>> 24];
+    }
+}
@@ -0,0 +1,457 @@
+package store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The `PersistentKeyValueStore` class makes another `KeyValueStore` durable. Every PUT and DELETE
+ * is applied to the wrapped store and appended to a `WriteAheadLog`, as is the value a numeric
+ * update leaves behind, which is logged as a PUT; a background task periodically writes a
+ * `SnapshotFile` and drops the log segments it covers.
+ *
+ * The deadlines of keys written through `putExpiring` are kept beside the store, written into
+ * their PUT records and the snapshots, and handed back through `forEachDeadline` after a
+ * restart, so that an `ExpiringKeyValueStore` above can schedule them again. A numeric update
+ * keeps the deadline of its key; a plain PUT or a DELETE drops it.
+ *
+ * On startup the latest valid snapshot is memory-mapped rather than loaded, so GETs are served
+ * from it straight away while a `HydratingKeyValueStore` copies it into the wrapped store in the
+ * background. Only the log segments written after the snapshot are replayed before the store
+ * is returned, which keeps the time to the first response independent of the data set size.
+ */
+public class PersistentKeyValueStore implements KeyValueStore, Closeable {
+    private static final int KEY_LOCKS = 256;
+
+    private final KeyValueStore delegate;
+    private final HydratingKeyValueStore hydrating;
+    private final Path directory;
+    private final WriteAheadLog wal;
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+    private final Map<String, Long> deadlines;
+    private final ScheduledExecutorService snapshotScheduler;
+    private final boolean recoveredState;
+    private final long recoveredEntries;
+    private final long replayedRecords;
+    private final long recoveryMillis;
+    private volatile long bytesAtLastSnapshot;
+
+    private PersistentKeyValueStore(KeyValueStore delegate, HydratingKeyValueStore hydrating, Path directory,
+                                    WriteAheadLog wal, Map<String, Long> deadlines, boolean recoveredState,
+                                    long recoveredEntries, long replayedRecords, long recoveryMillis,
+                                    long snapshotIntervalMillis) {
+        this.delegate = delegate;
+        this.hydrating = hydrating;
+        this.directory = directory;
+        this.wal = wal;
+        this.deadlines = deadlines;
+        this.recoveredState = recoveredState;
+        this.recoveredEntries = recoveredEntries;
+        this.replayedRecords = replayedRecords;
+        this.recoveryMillis = recoveryMillis;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotIntervalMillis > 0) {
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotIntervalMillis,
+                    snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Restores the state kept in a directory into an empty store and starts logging to it.
+     *
+     * @param delegate               The empty store that holds the data in memory.
+     * @param directory              The directory holding the snapshots and log segments.
+     * @param policy                 When the log is forced to disk.
+     * @param fsyncIntervalMillis    How often the log is flushed for the INTERVAL and NEVER policies.
+     * @param snapshotIntervalMillis How often a snapshot is taken, or 0 to only take them on demand.
+     * @return The persistent store.
+     * @throws IOException If the directory cannot be read or the log cannot be opened.
+     */
+    public static PersistentKeyValueStore open(KeyValueStore delegate, Path directory, FsyncPolicy policy,
+                                               long fsyncIntervalMillis, long snapshotIntervalMillis)
+            throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        long firstSegment = 0;
+        long recoveredEntries = 0;
+        boolean recoveredState = false;
+        HydratingKeyValueStore hydrating = null;
+        Map<String, Long> deadlines = new ConcurrentHashMap<>();
+        List<Long> snapshots = SnapshotFile.snapshotIds(directory);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Path snapshot = SnapshotFile.snapshotPath(directory, snapshots.get(i));
+            try {
+                MappedSnapshot mapped = MappedSnapshot.open(snapshot);
+                mapped.forEachDeadline(deadlines::put);
+                hydrating = new HydratingKeyValueStore(delegate, mapped);
+                recoveredEntries = mapped.entryCount();
+                firstSegment = snapshots.get(i);
+                recoveredState = true;
+                break;
+            } catch (IOException e) {
+                System.out.println("Skipping corrupt snapshot " + snapshot);
+            }
+        }
+        KeyValueStore target = hydrating != null ? hydrating : delegate;
+
+        long replayedRecords = 0;
+        long lastSegment = firstSegment - 1;
+        List<Long> segments = WriteAheadLog.segmentIds(directory);
+        for (int i = 0; i < segments.size(); i++) {
+            long id = segments.get(i);
+            if (id >= firstSegment) {
+                boolean newest = i == segments.size() - 1;
+                replayedRecords += WriteAheadLog.replay(WriteAheadLog.segmentPath(directory, id), target, deadlines,
+                        newest);
+                recoveredState = true;
+            }
+            lastSegment = Math.max(lastSegment, id);
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(directory, lastSegment + 1, policy, fsyncIntervalMillis);
+        long recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        if (hydrating != null) {
+            hydrating.startHydration();
+        }
+        return new PersistentKeyValueStore(target, hydrating, directory, wal, deadlines, recoveredState,
+                recoveredEntries, replayedRecords, recoveryMillis, snapshotIntervalMillis);
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        return delegate.get(key);
+    }
+
+    /**
+     * Maps a key to a value and logs the mutation. With the ALWAYS policy it returns once the
+     * mutation is on disk.
+     *
+     * @param key   The key to write.
+     * @param value The value to store.
+     */
+    @Override
+    public void put(CharSequence key, int value) {
+        long ticket;
+        // Applying and logging under the same key lock keeps the log order of a key equal to
+        // the order its mutations were applied in.
+        synchronized (lockFor(key)) {
+            delegate.put(key, value);
+            forgetDeadline(key);
+            ticket = wal.append(WriteAheadLog.PUT, key, value);
+        }
+        wal.awaitDurable(ticket);
+    }
+
+    /**
+     * Maps a key to a value and logs the mutation together with the deadline of the key. With
+     * the ALWAYS policy it returns once the mutation is on disk.
+     *
+     * @param key            The key to write.
+     * @param value          The value to store.
+     * @param deadlineMillis The wall-clock time, in milliseconds since the epoch, at which the
+     *                       key expires.
+     */
+    @Override
+    public void putExpiring(CharSequence key, int value, long deadlineMillis) {
+        long ticket;
+        synchronized (lockFor(key)) {
+            delegate.put(key, value);
+            deadlines.put(key.toString(), deadlineMillis);
+            ticket = wal.appendExpiring(key, value, deadlineMillis);
+        }
+        wal.awaitDurable(ticket);
+    }
+
+    /**
+     * Removes a key and logs the mutation. With the ALWAYS policy it returns once the mutation
+     * is on disk.
+     *
+     * @param key The key to remove.
+     * @return True if the key was present and has been removed.
+     */
+    @Override
+    public boolean remove(CharSequence key) {
+        long ticket;
+        synchronized (lockFor(key)) {
+            if (!delegate.remove(key)) {
+                return false;
+            }
+            forgetDeadline(key);
+            ticket = wal.append(WriteAheadLog.DELETE, key, 0);
+        }
+        wal.awaitDurable(ticket);
+        return true;
+    }
+
+    /**
+     * Adds to the value of a key and logs the result as a PUT. With the ALWAYS policy it returns
+     * once the mutation is on disk.
+     *
+     * @param key   The key to update.
+     * @param delta The amount to add.
+     * @return The value of the key after the update.
+     */
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        long ticket;
+        int value;
+        synchronized (lockFor(key)) {
+            value = delegate.addAndGet(key, delta);
+            ticket = appendUpdate(key, value);
+        }
+        wal.awaitDurable(ticket);
+        return value;
+    }
+
+    /**
+     * Sets the value of a key if it holds the expected one and logs the new value as a PUT. A
+     * comparison that fails writes nothing.
+     *
+     * @param key      The key to update.
+     * @param expected The value the key has to hold, or `NO_VALUE` for a key that has to be absent.
+     * @param value    The new value.
+     * @return The value the key held before, or `NO_VALUE` if it was absent.
+     */
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        long ticket;
+        long witness;
+        synchronized (lockFor(key)) {
+            witness = delegate.compareAndExchange(key, expected, value);
+            if (witness != expected) {
+                return witness;
+            }
+            ticket = appendUpdate(key, value);
+        }
+        wal.awaitDurable(ticket);
+        return witness;
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        delegate.getAll(keys, count, values);
+    }
+
+    /**
+     * Maps several keys to values and logs every mutation. With the ALWAYS policy it waits for
+     * the disk once, after the last record of the batch has been appended, so a batch costs a
+     * single fsync instead of one per key.
+     *
+     * @param keys   The keys to write.
+     * @param values The value of each key, at the index of the key.
+     * @param count  The number of entries to use from the start of the arrays.
+     */
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        long ticket = 0;
+        for (int i = 0; i < count; i++) {
+            synchronized (lockFor(keys[i])) {
+                delegate.put(keys[i], values[i]);
+                forgetDeadline(keys[i]);
+                ticket = wal.append(WriteAheadLog.PUT, keys[i], values[i]);
+            }
+        }
+        wal.awaitDurable(ticket);
+    }
+
+    /**
+     * Removes several keys and logs every removal, waiting for the disk once per batch like
+     * `putAll`.
+     *
+     * @param keys    The keys to remove.
+     * @param count   The number of keys to use from the start of the array.
+     * @param removed Receives, at the index of each key, whether it was present and removed.
+     */
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        long ticket = 0;
+        for (int i = 0; i < count; i++) {
+            synchronized (lockFor(keys[i])) {
+                removed[i] = delegate.remove(keys[i]);
+                if (removed[i]) {
+                    forgetDeadline(keys[i]);
+                    ticket = wal.append(WriteAheadLog.DELETE, keys[i], 0);
+                }
+            }
+        }
+        wal.awaitDurable(ticket);
+    }
+
+    /**
+     * Adds to several keys and logs every result, waiting for the disk once per batch like
+     * `putAll`.
+     */
+    @Override
+    public void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results) {
+        long ticket = 0;
+        for (int i = 0; i < count; i++) {
+            synchronized (lockFor(keys[i])) {
+                try {
+                    results[i] = delegate.addAndGet(keys[i], deltas[i]);
+                } catch (ArithmeticException e) {
+                    results[i] = NO_VALUE;
+                    continue;
+                }
+                ticket = appendUpdate(keys[i], (int) results[i]);
+            }
+        }
+        wal.awaitDurable(ticket);
+    }
+
+    /**
+     * Applies several compare-and-set updates and logs the ones that took place, waiting for the
+     * disk once per batch like `putAll`.
+     */
+    @Override
+    public void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count,
+                                      long[] witnesses) {
+        long ticket = 0;
+        for (int i = 0; i < count; i++) {
+            synchronized (lockFor(keys[i])) {
+                witnesses[i] = delegate.compareAndExchange(keys[i], expected[i], values[i]);
+                if (witnesses[i] == expected[i]) {
+                    ticket = appendUpdate(keys[i], values[i]);
+                }
+            }
+        }
+        wal.awaitDurable(ticket);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        delegate.forEach(action);
+    }
+
+    /**
+     * Writes a snapshot of the current state and deletes the snapshots and log segments it
+     * makes obsolete.
+     *
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public synchronized void snapshot() throws IOException {
+        long appended = wal.appendedBytes();
+        long firstSegment = wal.rollSegment();
+        SnapshotFile.write(directory, firstSegment, delegate, deadlines);
+        bytesAtLastSnapshot = appended;
+        for (long id : SnapshotFile.snapshotIds(directory)) {
+            if (id < firstSegment) {
+                Files.deleteIfExists(SnapshotFile.snapshotPath(directory, id));
+            }
+        }
+        wal.deleteSegmentsBefore(firstSegment);
+    }
+
+    /**
+     * Calls the action once for every key that expires, with its deadline. After a restart this
+     * hands the recovered deadlines to the store that enforces them.
+     *
+     * @param action The action to call with each key and its deadline in epoch milliseconds.
+     */
+    public void forEachDeadline(ObjLongConsumer<String> action) {
+        deadlines.forEach(action::accept);
+    }
+
+    /**
+     * Checks whether a snapshot or log was found when the store was opened.
+     *
+     * @return True if state was restored from disk.
+     */
+    public boolean recoveredState() {
+        return recoveredState;
+    }
+
+    /**
+     * Retrieves a one-line summary of the recovery performed when the store was opened.
+     *
+     * @return The number of snapshot entries mapped, log records replayed and the time it took.
+     */
+    public String recoverySummary() {
+        return "Mapped " + recoveredEntries + " snapshot entries and replayed " + replayedRecords
+                + " log records in " + recoveryMillis + " ms";
+    }
+
+    /**
+     * Waits until the snapshot found on startup has been copied into the wrapped store.
+     *
+     * @return How long the copy took in milliseconds, or 0 if there was no snapshot.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public long awaitHydration() throws InterruptedException {
+        if (hydrating == null) {
+            return 0;
+        }
+        hydrating.awaitHydration();
+        return hydrating.hydrationMillis();
+    }
+
+    /**
+     * Stops the snapshot task and flushes and closes the write-ahead log.
+     *
+     * @throws IOException If the remaining log records could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotScheduler.shutdown();
+        try {
+            snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wal.close();
+    }
+
+    private void snapshotIfChanged() {
+        try {
+            if (wal.appendedBytes() != bytesAtLastSnapshot) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            System.out.println("Snapshot failed: " + e);
+        }
+    }
+
+    /**
+     * Logs the value a numeric update left behind, keeping the deadline of an expiring key. The
+     * caller holds the lock of the key.
+     */
+    private long appendUpdate(CharSequence key, int value) {
+        Long deadline = deadlines.isEmpty() ? null : deadlines.get(key.toString());
+        return deadline == null ? wal.append(WriteAheadLog.PUT, key, value)
+                : wal.appendExpiring(key, value, deadline);
+    }
+
+    /**
+     * Drops the deadline of a key that was overwritten or removed. The caller holds the lock of
+     * the key.
+     */
+    private void forgetDeadline(CharSequence key) {
+        if (!deadlines.isEmpty()) {
+            deadlines.remove(key.toString());
+        }
+    }
+
+    private Object lockFor(CharSequence key) {
+        return keyLocks[KeyValueStore.hash(key) & (KEY_LOCKS - 1)];
+    }
+}
@@ -0,0 +1,81 @@
+package store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * The `ReadBuffer` class collects the key hashes of cache reads so that the eviction policy can
+ * replay them later under its lock, instead of every read taking that lock. Reading threads are
+ * spread over striped ring buffers by thread id and claim a slot with a single compare-and-set.
+ * The buffer is lossy: a read that finds its stripe full, or loses the race for a slot, is not
+ * recorded, which only makes the policy's view of popularity slightly less precise.
+ *
+ * Any number of threads may offer; one thread at a time drains.
+ */
+final class ReadBuffer {
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPE_SIZE = 1 << STRIPE_BITS;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+    private static final long PRESENT = 1L << 32;
+    // The tail and head of a stripe sit 16 longs apart, so stripes do not share cache lines.
+    private static final int SPACING = 16;
+
+    private final int stripeCount;
+    private final AtomicLongArray slots;
+    private final AtomicLongArray tails;
+    private final AtomicLongArray heads;
+
+    /**
+     * Creates a buffer with four stripes per available processor.
+     */
+    ReadBuffer() {
+        stripeCount = Integer.highestOneBit(Math.max(1, 4 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        slots = new AtomicLongArray(stripeCount * STRIPE_SIZE);
+        tails = new AtomicLongArray(stripeCount * SPACING);
+        heads = new AtomicLongArray(stripeCount * SPACING);
+    }
+
+    /**
+     * Records a read.
+     *
+     * @param hash The hash of the key that was read.
+     * @return True if the stripe of the calling thread is full enough to be drained.
+     */
+    boolean offer(int hash) {
+        int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 40) & (stripeCount - 1);
+        int counters = stripe * SPACING;
+        long tail = tails.get(counters);
+        long pending = tail - heads.get(counters);
+        if (pending >= STRIPE_SIZE) {
+            return true;
+        }
+        if (tails.compareAndSet(counters, tail, tail + 1)) {
+            slots.lazySet(stripe * STRIPE_SIZE + (int) (tail & STRIPE_MASK), PRESENT | (hash & 0xFFFFFFFFL));
+        }
+        return pending + 1 >= STRIPE_SIZE / 2;
+    }
+
+    /**
+     * Hands every recorded read to a consumer and empties the buffer.
+     *
+     * @param consumer Receives the key hash of each read.
+     */
+    void drain(IntConsumer consumer) {
+        for (int stripe = 0; stripe < stripeCount; stripe++) {
+            int counters = stripe * SPACING;
+            long head = heads.get(counters);
+            long tail = tails.get(counters);
+            for (; head < tail; head++) {
+                int slot = stripe * STRIPE_SIZE + (int) (head & STRIPE_MASK);
+                long entry = slots.get(slot);
+                if (entry == 0) {
+                    // The reader that claimed this slot has not written it yet.
+                    break;
+                }
+                slots.lazySet(slot, 0);
+                consumer.accept((int) entry);
+            }
+            heads.lazySet(counters, head);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The `SnapshotFile` class writes compacted copies of a store in a layout that `MappedSnapshot`
+ * can serve lookups from straight out of a memory-mapped file, without parsing it first.
+ *
+ * A snapshot file is named after the first write-ahead log segment that has to be replayed on
+ * top of it. It starts with a 64 byte header, followed by an open-addressing hash index, a
+ * data region of `KeyRecord`s and the deadlines of the keys that expire:
+ *
+ * <pre>
+ * header     int magic, int 0, long walSegmentId, long entryCount, long slotCount,
+ *            long dataOffset, long fileBytes, long deadlineOffset, long deadlineCount
+ * index      slotCount slots of int spread key hash, int value, long file offset of the key record
+ * data       key records, padded so that none crosses a 1 GB boundary
+ * deadlines  deadlineCount pairs of long file offset of the key record and long deadline in
+ *            epoch milliseconds, starting at a multiple of 16 bytes
+ * </pre>
+ *
+ * The index is probed linearly from the low bits of the spread hash and a key offset of zero
+ * marks an empty slot. Snapshots are written to a temporary file whose header is completed
+ * last, then forced and renamed into place, so a crash never leaves a half-written snapshot
+ * under its final name.
+ */
+public final class SnapshotFile {
+    static final int MAGIC = 0x4B565332;
+    static final int HEADER_BYTES = 64;
+    static final int SLOT_BYTES = 16;
+    static final int DEADLINE_BYTES = 16;
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+    private static final int MIN_SLOTS = 16;
+    private static final int STAGING_BYTES = 1 << 20;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes a snapshot of a store. Entries written concurrently may or may not be included,
+     * which is harmless as long as the log from `walSegmentId` onwards is replayed on top.
+     *
+     * @param directory    The directory holding the snapshots.
+     * @param walSegmentId The first log segment to replay after loading this snapshot.
+     * @param source       The store to copy.
+     * @param deadlines    The deadlines of the keys that expire, in epoch milliseconds.
+     * @return The path of the written snapshot.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static Path write(Path directory, long walSegmentId, KeyValueStore source, Map<String, Long> deadlines)
+            throws IOException {
+        Path target = snapshotPath(directory, walSegmentId);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        long wanted = Math.max(MIN_SLOTS, 2L * source.size());
+        long slotCount = Long.highestOneBit(wanted - 1) << 1;
+        // The size is only an estimate while writers are active; start over with a larger index
+        // if more entries turned up than it can hold.
+        while (!write(temporary, walSegmentId, source, deadlines, slotCount)) {
+            slotCount *= 2;
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    /**
+     * Lists the log segment ids of the snapshots in a directory in ascending order.
+     *
+     * @param directory The directory holding the snapshots.
+     * @return The snapshot ids.
+     * @throws IOException If the directory cannot be read.
+     */
+    public static List<Long> snapshotIds(Path directory) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.snap")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(9, name.length() - 5)));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Builds the path of a snapshot file.
+     *
+     * @param directory    The directory holding the snapshots.
+     * @param walSegmentId The first log segment to replay after the snapshot.
+     * @return The snapshot path.
+     */
+    public static Path snapshotPath(Path directory, long walSegmentId) {
+        return directory.resolve(String.format("snapshot-%016d.snap", walSegmentId));
+    }
+
+    /**
+     * Maps a region of a file in chunks of at most 1 GB, the largest a `MappedByteBuffer` can
+     * address. Chunk `i` starts at file offset `i * CHUNK_BYTES`.
+     */
+    static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long bytes) throws IOException {
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(mode, start, Math.min(CHUNK_BYTES, bytes - start));
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes the whole snapshot into a temporary file.
+     *
+     * @return False if the index filled up and the snapshot has to be written with more slots.
+     */
+    private static boolean write(Path temporary, long walSegmentId, KeyValueStore source,
+                                 Map<String, Long> deadlines, long slotCount) throws IOException {
+        long dataOffset = HEADER_BYTES + slotCount * SLOT_BYTES;
+        long maxEntries = slotCount / 4 * 3;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer[] index = map(channel, FileChannel.MapMode.READ_WRITE, dataOffset);
+            DataWriter data = new DataWriter(channel, dataOffset);
+            long[] count = new long[1];
+            LongPairs expiring = new LongPairs();
+            try {
+                source.forEach((key, value) -> {
+                    if (++count[0] > maxEntries) {
+                        return;
+                    }
+                    try {
+                        long recordOffset = data.append(key);
+                        insert(index, slotCount, KeyRecord.spread(KeyValueStore.hash(key)), value, recordOffset);
+                        Long deadline = deadlines.isEmpty() ? null : deadlines.get(key);
+                        if (deadline != null) {
+                            expiring.add(recordOffset, deadline);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (count[0] > maxEntries) {
+                return false;
+            }
+            long deadlineOffset = 0;
+            if (expiring.size > 0) {
+                // Aligned to the pair size, no pair crosses a 1 GB boundary.
+                deadlineOffset = data.align(DEADLINE_BYTES);
+                for (int i = 0; i < expiring.size; i++) {
+                    data.appendPair(expiring.pairs[2 * i], expiring.pairs[2 * i + 1]);
+                }
+            }
+            data.flush();
+            channel.force(true);
+            ByteBuffer header = index[0];
+            header.putInt(0, MAGIC);
+            header.putLong(8, walSegmentId);
+            header.putLong(16, count[0]);
+            header.putLong(24, slotCount);
+            header.putLong(32, dataOffset);
+            header.putLong(40, data.position());
+            header.putLong(48, deadlineOffset);
+            header.putLong(56, expiring.size);
+            for (MappedByteBuffer chunk : index) {
+                chunk.force();
+            }
+            channel.force(true);
+        }
+        return true;
+    }
+
+    private static void insert(MappedByteBuffer[] index, long slotCount, int hash, int value, long recordOffset) {
+        long mask = slotCount - 1;
+        long slot = (hash & 0xFFFFFFFFL) & mask;
+        while (true) {
+            long position = HEADER_BYTES + slot * SLOT_BYTES;
+            ByteBuffer chunk = index[(int) (position >>> CHUNK_SHIFT)];
+            int offset = (int) (position & (CHUNK_BYTES - 1));
+            if (chunk.getLong(offset + 8) == 0) {
+                chunk.putInt(offset, hash);
+                chunk.putInt(offset + 4, value);
+                chunk.putLong(offset + 8, recordOffset);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * A growable list of pairs of longs.
+     */
+    private static final class LongPairs {
+        long[] pairs = new long[32];
+        int size;
+
+        void add(long first, long second) {
+            if (2 * size == pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[2 * size] = first;
+            pairs[2 * size + 1] = second;
+            size++;
+        }
+    }
+
+    /**
+     * Appends key records to the data region through a staging buffer.
+     */
+    private static final class DataWriter {
+        private final FileChannel channel;
+        private final ByteBuffer staging = ByteBuffer.allocate(STAGING_BYTES);
+        private long stagingStart;
+
+        DataWriter(FileChannel channel, long start) {
+            this.channel = channel;
+            this.stagingStart = start;
+        }
+
+        long position() {
+            return stagingStart + staging.position();
+        }
+
+        /**
+         * Appends a record and returns its file offset. A record that would cross a 1 GB
+         * boundary starts at the boundary instead and the gap is left as a hole in the file.
+         */
+        long append(CharSequence key) throws IOException {
+            int size = KeyRecord.size(key);
+            long position = position();
+            long room = CHUNK_BYTES - (position & (CHUNK_BYTES - 1));
+            if (room < size) {
+                flush();
+                stagingStart += room;
+                position = stagingStart;
+            } else if (staging.remaining() < size) {
+                flush();
+            }
+            staging.position(staging.position() + KeyRecord.write(staging, staging.position(), key));
+            return position;
+        }
+
+        /**
+         * Pads the data with zeros up to a multiple of the alignment and returns the position.
+         */
+        long align(int alignment) throws IOException {
+            int padding = (int) (-position() & (alignment - 1));
+            if (staging.remaining() < padding) {
+                flush();
+            }
+            for (int i = 0; i < padding; i++) {
+                staging.put((byte) 0);
+            }
+            return position();
+        }
+
+        void appendPair(long first, long second) throws IOException {
+            if (staging.remaining() < 16) {
+                flush();
+            }
+            staging.putLong(first).putLong(second);
+        }
+
+        void flush() throws IOException {
+            staging.flip();
+            while (staging.hasRemaining()) {
+                stagingStart += channel.write(staging, stagingStart);
+            }
+            staging.clear();
+        }
+    }
+}
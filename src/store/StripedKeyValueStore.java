@@ -0,0 +1,429 @@
+package store;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `StripedKeyValueStore` class is a concurrent `KeyValueStore` that splits the key space into
+ * a power-of-two number of stripes. Each stripe is an open-addressing table with linear probing
+ * that keeps keys and primitive int values in parallel arrays, guarded by its own `StampedLock`.
+ *
+ * Readers first try an optimistic read and only fall back to the read lock when a writer
+ * modified the stripe meanwhile, so GETs on hot keys never contend on a lock. Writers only
+ * block the stripe they touch.
+ *
+ * `addAndGet` and `compareAndExchange` on a present key only take the read lock, which pins the
+ * slot of the key, and update the value with a compare-and-set on its array element. Updates of
+ * different keys of a stripe, and of the same key, therefore run side by side and do not disturb
+ * optimistic readers; only creating a key takes the write lock.
+ */
+public class StripedKeyValueStore implements KeyValueStore {
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    /**
+     * Creates a store with four stripes per available processor.
+     */
+    public StripedKeyValueStore() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a store with at least the given number of stripes.
+     *
+     * @param minimumStripes The minimum number of stripes; it is rounded up to a power of two.
+     */
+    public StripedKeyValueStore(int minimumStripes) {
+        int stripeCount = Integer.highestOneBit(Math.max(2, minimumStripes) - 1) << 1;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeShift = 32 - Integer.numberOfTrailingZeros(stripeCount);
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            long value = stripe.find(key, hash);
+            if (stripe.lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = stripe.lock.readLock();
+        try {
+            return stripe.find(key, hash);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        KeyRecord.checkLength(key);
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            stripe.put(key, hash, value);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.writeLock();
+        try {
+            return stripe.remove(key, hash);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        KeyRecord.checkLength(key);
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        long stamp = stripe.lock.readLock();
+        try {
+            int index = stripe.slot(key, hash);
+            if (index >= 0) {
+                return stripe.addAt(index, delta);
+            }
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+        stamp = stripe.lock.writeLock();
+        try {
+            // Another writer may have created the key while no lock was held.
+            int index = stripe.slot(key, hash);
+            if (index >= 0) {
+                return stripe.addAt(index, delta);
+            }
+            stripe.put(key, hash, delta);
+            return delta;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        KeyRecord.checkLength(key);
+        int hash = KeyRecord.spread(KeyValueStore.hash(key));
+        Stripe stripe = stripeFor(hash);
+        if (expected != NO_VALUE) {
+            long stamp = stripe.lock.readLock();
+            try {
+                int index = stripe.slot(key, hash);
+                return index < 0 ? NO_VALUE : stripe.compareAndExchangeAt(index, expected, value);
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+        long stamp = stripe.lock.writeLock();
+        try {
+            long current = stripe.find(key, hash);
+            if (current == NO_VALUE) {
+                stripe.put(key, hash, value);
+            }
+            return current;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Retrieves the values of several keys, reading each stripe once with a single optimistic
+     * stamp for all of its keys.
+     */
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        int[] hashes = new int[count];
+        long[] order = BatchOrder.byLock(keys, count, stripeShift, hashes);
+        for (int from = 0; from < count; ) {
+            int end = BatchOrder.runEnd(order, from);
+            Stripe stripe = stripes[BatchOrder.lock(order[from])];
+            long stamp = stripe.lock.tryOptimisticRead();
+            if (stamp != 0) {
+                findRun(stripe, keys, hashes, order, from, end, values);
+            }
+            if (stamp == 0 || !stripe.lock.validate(stamp)) {
+                stamp = stripe.lock.readLock();
+                try {
+                    findRun(stripe, keys, hashes, order, from, end, values);
+                } finally {
+                    stripe.lock.unlockRead(stamp);
+                }
+            }
+            from = end;
+        }
+    }
+
+    /**
+     * Maps several keys to values, taking each stripe's write lock once. Key lengths are checked
+     * before anything is written, so a batch with a key that is too long is not applied at all.
+     */
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        for (int i = 0; i < count; i++) {
+            KeyRecord.checkLength(keys[i]);
+        }
+        int[] hashes = new int[count];
+        long[] order = BatchOrder.byLock(keys, count, stripeShift, hashes);
+        for (int from = 0; from < count; ) {
+            int end = BatchOrder.runEnd(order, from);
+            Stripe stripe = stripes[BatchOrder.lock(order[from])];
+            long stamp = stripe.lock.writeLock();
+            try {
+                for (int i = from; i < end; i++) {
+                    int index = BatchOrder.index(order[i]);
+                    stripe.put(keys[index], hashes[index], values[index]);
+                }
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+            from = end;
+        }
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        int[] hashes = new int[count];
+        long[] order = BatchOrder.byLock(keys, count, stripeShift, hashes);
+        for (int from = 0; from < count; ) {
+            int end = BatchOrder.runEnd(order, from);
+            Stripe stripe = stripes[BatchOrder.lock(order[from])];
+            long stamp = stripe.lock.writeLock();
+            try {
+                for (int i = from; i < end; i++) {
+                    int index = BatchOrder.index(order[i]);
+                    removed[index] = stripe.remove(keys[index], hashes[index]);
+                }
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+            from = end;
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.readLock();
+            try {
+                Table table = stripe.table;
+                for (int i = 0; i < table.keys.length; i++) {
+                    if (table.keys[i] != null) {
+                        action.accept(table.keys[i], table.values[i]);
+                    }
+                }
+            } finally {
+                stripe.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    private Stripe stripeFor(int hash) {
+        return stripes[hash >>> stripeShift];
+    }
+
+    /**
+     * Looks up a run of batch keys that share a stripe.
+     */
+    private static void findRun(Stripe stripe, CharSequence[] keys, int[] hashes, long[] order,
+                                int from, int end, long[] values) {
+        for (int i = from; i < end; i++) {
+            int index = BatchOrder.index(order[i]);
+            values[index] = stripe.find(keys[index], hashes[index]);
+        }
+    }
+
+    /**
+     * The key and value arrays of a stripe. They are replaced together on resize so that an
+     * optimistic reader always sees a matching pair.
+     */
+    private static final class Table {
+        final String[] keys;
+        final int[] values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new String[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    /**
+     * One lock-protected open-addressing table.
+     */
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        Table table = new Table(INITIAL_STRIPE_CAPACITY);
+        volatile int size;
+
+        /**
+         * Looks a key up. It may run concurrently with a writer during an optimistic read, so it
+         * never probes more slots than the table holds and its result is only trusted once the
+         * stamp has been validated.
+         */
+        long find(CharSequence key, int hash) {
+            Table t = table;
+            String[] keys = t.keys;
+            int index = hash & t.mask;
+            for (int probes = 0; probes < keys.length; probes++) {
+                String stored = keys[index];
+                if (stored == null) {
+                    return NO_VALUE;
+                }
+                if (KeyValueStore.keyEquals(stored, key)) {
+                    return t.values[index];
+                }
+                index = (index + 1) & t.mask;
+            }
+            return NO_VALUE;
+        }
+
+        /**
+         * Finds the slot of a key. The caller holds the read or the write lock.
+         *
+         * @return The index of the slot, or -1 if the key is not present.
+         */
+        int slot(CharSequence key, int hash) {
+            Table t = table;
+            int index = hash & t.mask;
+            String stored;
+            while ((stored = t.keys[index]) != null) {
+                if (KeyValueStore.keyEquals(stored, key)) {
+                    return index;
+                }
+                index = (index + 1) & t.mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Adds to the value in a slot. The caller holds the read lock, so other updates of the
+         * slot may run at the same time and the value is retried until no update came between.
+         */
+        int addAt(int index, int delta) {
+            int[] values = table.values;
+            int current;
+            int updated;
+            do {
+                current = (int) VALUES.getVolatile(values, index);
+                updated = Math.addExact(current, delta);
+            } while (!VALUES.compareAndSet(values, index, current, updated));
+            return updated;
+        }
+
+        /**
+         * Swaps the value in a slot if it holds the expected one. The caller holds the read lock.
+         */
+        long compareAndExchangeAt(int index, long expected, int value) {
+            int[] values = table.values;
+            if (expected < Integer.MIN_VALUE || expected > Integer.MAX_VALUE) {
+                return (int) VALUES.getVolatile(values, index);
+            }
+            return (int) VALUES.compareAndExchange(values, index, (int) expected, value);
+        }
+
+        void put(CharSequence key, int hash, int value) {
+            Table t = table;
+            int index = hash & t.mask;
+            String stored;
+            while ((stored = t.keys[index]) != null) {
+                if (KeyValueStore.keyEquals(stored, key)) {
+                    t.values[index] = value;
+                    return;
+                }
+                index = (index + 1) & t.mask;
+            }
+            t.keys[index] = key.toString();
+            t.values[index] = value;
+            size = size + 1;
+            if (size * 3 > t.keys.length * 2) {
+                resize();
+            }
+        }
+
+        boolean remove(CharSequence key, int hash) {
+            Table t = table;
+            int index = hash & t.mask;
+            String stored;
+            while ((stored = t.keys[index]) != null) {
+                if (KeyValueStore.keyEquals(stored, key)) {
+                    deleteSlot(t, index);
+                    size = size - 1;
+                    return true;
+                }
+                index = (index + 1) & t.mask;
+            }
+            return false;
+        }
+
+        /**
+         * Empties a slot and shifts later entries of the same probe run back, so that the table
+         * never needs tombstones.
+         */
+        private static void deleteSlot(Table t, int hole) {
+            int index = hole;
+            while (true) {
+                index = (index + 1) & t.mask;
+                String moved = t.keys[index];
+                if (moved == null) {
+                    break;
+                }
+                int ideal = KeyRecord.spread(moved.hashCode()) & t.mask;
+                boolean staysInPlace = hole <= index
+                        ? hole < ideal && ideal <= index
+                        : hole < ideal || ideal <= index;
+                if (!staysInPlace) {
+                    t.keys[hole] = moved;
+                    t.values[hole] = t.values[index];
+                    hole = index;
+                }
+            }
+            t.keys[hole] = null;
+        }
+
+        private void resize() {
+            Table old = table;
+            Table grown = new Table(old.keys.length * 2);
+            for (int i = 0; i < old.keys.length; i++) {
+                String key = old.keys[i];
+                if (key != null) {
+                    int index = KeyRecord.spread(key.hashCode()) & grown.mask;
+                    while (grown.keys[index] != null) {
+                        index = (index + 1) & grown.mask;
+                    }
+                    grown.keys[index] = key;
+                    grown.values[index] = old.values[i];
+                }
+            }
+            table = grown;
+        }
+    }
+}
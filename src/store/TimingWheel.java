@@ -0,0 +1,182 @@
+package store;
+
+/**
+ * The `TimingWheel` class is a hierarchical timing wheel: four wheels of 64 slots, where a slot
+ * of the first wheel covers one tick, a slot of the second 64 ticks, of the third 4096 ticks and
+ * of the fourth 262144 ticks. A timer goes into the slot of the finest wheel that reaches its
+ * tick. Each tick expires the timers of one slot of the first wheel, and whenever a wheel has
+ * turned once, the next slot of the wheel above is emptied into the finer wheels. Scheduling and
+ * cancelling are constant time, and a tick costs only the timers it expires or moves, however
+ * many timers are waiting. Timers further away than the fourth wheel reaches wait in its last
+ * slot and are placed again when it comes round.
+ *
+ * Timers are linked into their slots through their own fields, so the wheel does not allocate.
+ * The wheel is not thread-safe.
+ */
+final class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A timer that can be scheduled on one wheel at a time.
+     */
+    static class Timer {
+        private long tick;
+        private Timer previous;
+        private Timer next;
+        private boolean scheduled;
+
+        /**
+         * Default constructor for the `Timer` class.
+         */
+        Timer() {
+
+        }
+
+        /**
+         * Retrieves the next timer of the chain returned by `advance`.
+         *
+         * @return The next expired timer, or null at the end of the chain.
+         */
+        Timer nextExpired() {
+            return next;
+        }
+    }
+
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+    private final long tickMillis;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates an empty wheel.
+     *
+     * @param tickMillis The length of a tick in milliseconds.
+     * @param nowMillis  The current time on the clock the deadlines are given on.
+     */
+    TimingWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick of " + tickMillis + " ms");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = new Timer();
+                head.previous = head;
+                head.next = head;
+                slots[level][slot] = head;
+            }
+        }
+    }
+
+    /**
+     * Schedules a timer to expire at the first tick at or after a deadline. A timer that is
+     * already scheduled is moved.
+     *
+     * @param timer          The timer.
+     * @param deadlineMillis The deadline, on the clock the wheel was created with.
+     */
+    void schedule(Timer timer, long deadlineMillis) {
+        cancel(timer);
+        timer.tick = Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis);
+        place(timer, currentTick + 1);
+        size++;
+    }
+
+    /**
+     * Removes a timer from the wheel. Cancelling a timer that is not scheduled does nothing.
+     *
+     * @param timer The timer.
+     */
+    void cancel(Timer timer) {
+        if (timer.scheduled) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+    /**
+     * Advances the wheel tick by tick up to the current time and removes the timers that expire
+     * on the way.
+     *
+     * @param nowMillis The current time, on the clock the wheel was created with.
+     * @return The expired timers, chained through `nextExpired`, or null if none expired.
+     */
+    Timer advance(long nowMillis) {
+        long nowTick = Math.floorDiv(nowMillis, tickMillis);
+        Timer expired = null;
+        while (currentTick < nowTick) {
+            currentTick++;
+            for (int level = 1; level < LEVELS && (currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0; level++) {
+                cascade(slots[level][(int) (currentTick >>> (level * SLOT_BITS)) & SLOT_MASK]);
+            }
+            Timer head = slots[0][(int) currentTick & SLOT_MASK];
+            while (head.next != head) {
+                Timer timer = head.next;
+                unlink(timer);
+                if (timer.tick > currentTick) {
+                    // Beyond the reach of the wheels when it was placed.
+                    place(timer, currentTick + 1);
+                    continue;
+                }
+                size--;
+                timer.next = expired;
+                expired = timer;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Retrieves the number of scheduled timers.
+     *
+     * @return The count.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Moves every timer of a slot of a coarser wheel into the finer wheels.
+     */
+    private void cascade(Timer head) {
+        while (head.next != head) {
+            Timer timer = head.next;
+            unlink(timer);
+            place(timer, currentTick);
+        }
+    }
+
+    /**
+     * Links a timer into the slot of the finest wheel that reaches its tick, or the tick after
+     * earliest if it is already due.
+     */
+    private void place(Timer timer, long earliest) {
+        long target = Math.max(timer.tick, earliest);
+        long delta = target - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        if (delta >= 1L << (LEVELS * SLOT_BITS)) {
+            target = currentTick + (1L << (LEVELS * SLOT_BITS)) - 1;
+        }
+        Timer head = slots[level][(int) (target >>> (level * SLOT_BITS)) & SLOT_MASK];
+        timer.previous = head.previous;
+        timer.next = head;
+        head.previous.next = timer;
+        head.previous = timer;
+        timer.scheduled = true;
+    }
+
+    private static void unlink(Timer timer) {
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+    }
+}
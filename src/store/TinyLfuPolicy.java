@@ -0,0 +1,276 @@
+package store;
+
+/**
+ * The `TinyLfuPolicy` class decides which keys a bounded cache keeps, with the W-TinyLFU policy.
+ * New keys enter a small LRU window holding 1% of the capacity. Keys pushed out of the window join
+ * the probation segment of the main space, a segmented LRU whose protected segment, 80% of the
+ * main space, holds the keys that were read again while on probation. When the cache is over its
+ * capacity, the newest key on probation competes with the oldest: a `FrequencySketch` of recent
+ * accesses, misses included, estimates how popular each is, and the less popular one is evicted.
+ * A burst of keys read once therefore passes through the window without displacing keys that are
+ * read again and again, while the window still lets new keys prove themselves.
+ *
+ * Keys are tracked by nodes on intrusive lists and a chained hash index, so every operation is
+ * constant time. Accesses are replayed by key hash alone; in the rare case that two keys share a
+ * hash, both count as read. The policy is not thread-safe.
+ */
+final class TinyLfuPolicy {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * A key tracked by the policy.
+     */
+    static final class Node {
+        private final String key;
+        private final int hash;
+        private long weight;
+        private int segment;
+        private Node previous;
+        private Node next;
+        private Node nextInBucket;
+
+        Node(String key, int hash, long weight) {
+            this.key = key;
+            this.hash = hash;
+            this.weight = weight;
+        }
+
+        /**
+         * Retrieves the key of the node.
+         *
+         * @return The key.
+         */
+        String key() {
+            return key;
+        }
+
+        /**
+         * Retrieves the next node of the chain of evicted keys returned by `recordWrite`.
+         *
+         * @return The next evicted node, or null at the end of the chain.
+         */
+        Node nextEvicted() {
+            return next;
+        }
+    }
+
+    private final Node[] segments = new Node[3];
+    private final long[] weights = new long[3];
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    private Node[] buckets = new Node[64];
+    private int size;
+
+    /**
+     * Creates an empty policy.
+     *
+     * @param capacity        The total weight the cache may hold.
+     * @param expectedEntries The number of keys the capacity is expected to hold, which sizes the
+     *                        frequency sketch.
+     */
+    TinyLfuPolicy(long capacity, long expectedEntries) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+        this.sketch = new FrequencySketch(expectedEntries);
+        for (int s = 0; s < segments.length; s++) {
+            Node head = new Node(null, 0, 0);
+            head.previous = head;
+            head.next = head;
+            segments[s] = head;
+        }
+    }
+
+    /**
+     * Records a read of a key, whether or not it was found.
+     *
+     * @param hash The hash of the key.
+     */
+    void recordAccess(int hash) {
+        sketch.increment(hash);
+        for (Node node = buckets[hash & (buckets.length - 1)]; node != null; node = node.nextInBucket) {
+            if (node.hash == hash) {
+                onHit(node);
+            }
+        }
+    }
+
+    /**
+     * Records a write of a key and evicts keys until the cache is within its capacity.
+     *
+     * @param key    The key.
+     * @param hash   The hash of the key.
+     * @param weight The weight of the entry.
+     * @return The evicted keys, chained through `nextEvicted`, or null if none were evicted.
+     */
+    Node recordWrite(CharSequence key, int hash, long weight) {
+        sketch.increment(hash);
+        Node node = find(key, hash);
+        if (node != null) {
+            weights[node.segment] += weight - node.weight;
+            node.weight = weight;
+            onHit(node);
+        } else {
+            node = new Node(key.toString(), hash, weight);
+            addToIndex(node);
+            link(node, WINDOW);
+        }
+        return evict();
+    }
+
+    /**
+     * Stops tracking a key that was removed from the cache.
+     *
+     * @param key  The key.
+     * @param hash The hash of the key.
+     */
+    void recordRemoval(CharSequence key, int hash) {
+        Node node = find(key, hash);
+        if (node != null) {
+            removeFromIndex(node);
+            unlink(node);
+        }
+    }
+
+    /**
+     * Checks whether a key is tracked.
+     *
+     * @param key  The key.
+     * @param hash The hash of the key.
+     * @return True if the key is in the cache as far as the policy knows.
+     */
+    boolean contains(CharSequence key, int hash) {
+        return find(key, hash) != null;
+    }
+
+    /**
+     * Retrieves the total weight of the tracked keys.
+     *
+     * @return The weight.
+     */
+    long weightedSize() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    private void onHit(Node node) {
+        if (node.segment == PROBATION) {
+            unlink(node);
+            link(node, PROTECTED);
+            while (weights[PROTECTED] > protectedCapacity) {
+                Node demoted = segments[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            unlink(node);
+            link(node, node.segment);
+        }
+    }
+
+    /**
+     * Moves keys that overflow the window to probation, then evicts the loser of each duel
+     * between the newest and the oldest key on probation until the cache fits its capacity.
+     */
+    private Node evict() {
+        while (weights[WINDOW] > windowCapacity) {
+            Node candidate = segments[WINDOW].next;
+            unlink(candidate);
+            link(candidate, PROBATION);
+        }
+        Node evicted = null;
+        while (weightedSize() > capacity) {
+            Node victim = first();
+            Node candidate = segments[PROBATION].previous;
+            Node loser = victim;
+            if (candidate != segments[PROBATION] && candidate != victim
+                    && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                loser = candidate;
+            }
+            removeFromIndex(loser);
+            unlink(loser);
+            loser.next = evicted;
+            evicted = loser;
+        }
+        return evicted;
+    }
+
+    /**
+     * Retrieves the key that has gone unread the longest, preferring probation, then the
+     * protected segment, then the window.
+     */
+    private Node first() {
+        if (segments[PROBATION].next != segments[PROBATION]) {
+            return segments[PROBATION].next;
+        }
+        if (segments[PROTECTED].next != segments[PROTECTED]) {
+            return segments[PROTECTED].next;
+        }
+        return segments[WINDOW].next;
+    }
+
+    private void link(Node node, int segment) {
+        Node head = segments[segment];
+        node.segment = segment;
+        node.previous = head.previous;
+        node.next = head;
+        head.previous.next = node;
+        head.previous = node;
+        weights[segment] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = null;
+        node.next = null;
+        weights[node.segment] -= node.weight;
+    }
+
+    private Node find(CharSequence key, int hash) {
+        for (Node node = buckets[hash & (buckets.length - 1)]; node != null; node = node.nextInBucket) {
+            if (node.hash == hash && KeyValueStore.keyEquals(node.key, key)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private void addToIndex(Node node) {
+        if (size >= buckets.length) {
+            Node[] old = buckets;
+            buckets = new Node[old.length * 2];
+            for (Node head : old) {
+                for (Node n = head; n != null; ) {
+                    Node next = n.nextInBucket;
+                    int bucket = n.hash & (buckets.length - 1);
+                    n.nextInBucket = buckets[bucket];
+                    buckets[bucket] = n;
+                    n = next;
+                }
+            }
+        }
+        int bucket = node.hash & (buckets.length - 1);
+        node.nextInBucket = buckets[bucket];
+        buckets[bucket] = node;
+        size++;
+    }
+
+    private void removeFromIndex(Node node) {
+        int bucket = node.hash & (buckets.length - 1);
+        if (buckets[bucket] == node) {
+            buckets[bucket] = node.nextInBucket;
+        } else {
+            Node n = buckets[bucket];
+            while (n.nextInBucket != node) {
+                n = n.nextInBucket;
+            }
+            n.nextInBucket = node.nextInBucket;
+        }
+        node.nextInBucket = null;
+        size--;
+    }
+}
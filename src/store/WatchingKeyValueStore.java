@@ -0,0 +1,347 @@
+package store;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The `WatchingKeyValueStore` class reports the changes of watched keys of another
+ * `KeyValueStore` as they happen, so that clients can follow keys instead of polling them. A
+ * watch covers a single key or every key starting with a prefix, and its `Watcher` is called with
+ * the new value of each key it covers that is written, updated or removed.
+ *
+ * While nothing is watched, every request goes straight to the store. Otherwise a write changes
+ * the store and reports the change under a lock per key, so the changes of a key reach a watcher
+ * in the order they were applied. Watchers are called on the writing thread and must only hand
+ * the change on; a slow watcher would hold up the writers of its keys. A batch is applied to the
+ * store in one pass and each of its watched keys is then reported, under its lock, with whatever
+ * the store holds for the key by then.
+ */
+public class WatchingKeyValueStore implements KeyValueStore {
+    private static final int KEY_LOCKS = 256;
+    private static final Watch[] NO_WATCHES = new Watch[0];
+
+    /**
+     * Receives the changes of the keys a watch covers.
+     */
+    @FunctionalInterface
+    public interface Watcher {
+
+        /**
+         * Receives one change. It is called under the lock of the key and must not block.
+         *
+         * @param key   The key that changed.
+         * @param value The new value of the key, or `NO_VALUE` if it was removed.
+         */
+        void changed(String key, long value);
+    }
+
+    /**
+     * A registered watch.
+     */
+    public final class Watch {
+        private final String key;
+        private final boolean prefix;
+        private final Watcher watcher;
+
+        private Watch(String key, boolean prefix, Watcher watcher) {
+            this.key = key;
+            this.prefix = prefix;
+            this.watcher = watcher;
+        }
+
+        /**
+         * Stops reporting changes to the watcher. A change being reported concurrently may still
+         * arrive.
+         */
+        public void cancel() {
+            if (prefix) {
+                synchronized (keyWatches) {
+                    Watch[] remaining = without(prefixWatches, this);
+                    if (remaining != prefixWatches) {
+                        prefixWatches = remaining;
+                        watchCount.decrementAndGet();
+                    }
+                }
+            } else {
+                keyWatches.computeIfPresent(key, (watchedKey, watches) -> {
+                    Watch[] remaining = without(watches, this);
+                    if (remaining != watches) {
+                        watchCount.decrementAndGet();
+                    }
+                    return remaining.length == 0 ? null : remaining;
+                });
+            }
+        }
+    }
+
+    private final KeyValueStore delegate;
+    private final ConcurrentHashMap<String, Watch[]> keyWatches = new ConcurrentHashMap<>();
+    private volatile Watch[] prefixWatches = NO_WATCHES;
+    private final AtomicInteger watchCount = new AtomicInteger();
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+
+    /**
+     * Creates a store whose keys can be watched.
+     *
+     * @param delegate The store holding the keys and values.
+     */
+    public WatchingKeyValueStore(KeyValueStore delegate) {
+        this.delegate = delegate;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Starts reporting the changes of a key, or of the keys starting with a prefix. Changes
+     * applied before the call returns may or may not be reported.
+     *
+     * @param key     The key, or the prefix.
+     * @param prefix  True to watch every key starting with `key`.
+     * @param watcher Receives the changes.
+     * @return The watch, to cancel it.
+     */
+    public Watch watch(String key, boolean prefix, Watcher watcher) {
+        Watch watch = new Watch(key, prefix, watcher);
+        if (prefix) {
+            synchronized (keyWatches) {
+                Watch[] watches = Arrays.copyOf(prefixWatches, prefixWatches.length + 1);
+                watches[watches.length - 1] = watch;
+                prefixWatches = watches;
+            }
+        } else {
+            keyWatches.merge(key, new Watch[] {watch}, (watches, added) -> {
+                Watch[] merged = Arrays.copyOf(watches, watches.length + 1);
+                merged[watches.length] = watch;
+                return merged;
+            });
+        }
+        watchCount.incrementAndGet();
+        return watch;
+    }
+
+    /**
+     * Retrieves the number of watches that have not been cancelled.
+     *
+     * @return The count.
+     */
+    public int watches() {
+        return watchCount.get();
+    }
+
+    @Override
+    public long get(CharSequence key) {
+        return delegate.get(key);
+    }
+
+    @Override
+    public boolean containsKey(CharSequence key) {
+        return delegate.containsKey(key);
+    }
+
+    @Override
+    public void put(CharSequence key, int value) {
+        if (watchCount.get() == 0) {
+            delegate.put(key, value);
+            return;
+        }
+        synchronized (lockFor(key)) {
+            delegate.put(key, value);
+            report(key, value);
+        }
+    }
+
+    @Override
+    public void putExpiring(CharSequence key, int value, long deadlineMillis) {
+        if (watchCount.get() == 0) {
+            delegate.putExpiring(key, value, deadlineMillis);
+            return;
+        }
+        synchronized (lockFor(key)) {
+            delegate.putExpiring(key, value, deadlineMillis);
+            report(key, value);
+        }
+    }
+
+    @Override
+    public int addAndGet(CharSequence key, int delta) {
+        if (watchCount.get() == 0) {
+            return delegate.addAndGet(key, delta);
+        }
+        synchronized (lockFor(key)) {
+            int value = delegate.addAndGet(key, delta);
+            report(key, value);
+            return value;
+        }
+    }
+
+    @Override
+    public long compareAndExchange(CharSequence key, long expected, int value) {
+        if (watchCount.get() == 0) {
+            return delegate.compareAndExchange(key, expected, value);
+        }
+        synchronized (lockFor(key)) {
+            long witness = delegate.compareAndExchange(key, expected, value);
+            if (witness == expected) {
+                report(key, value);
+            }
+            return witness;
+        }
+    }
+
+    @Override
+    public boolean remove(CharSequence key) {
+        if (watchCount.get() == 0) {
+            return delegate.remove(key);
+        }
+        synchronized (lockFor(key)) {
+            boolean removed = delegate.remove(key);
+            if (removed) {
+                report(key, NO_VALUE);
+            }
+            return removed;
+        }
+    }
+
+    @Override
+    public void getAll(CharSequence[] keys, int count, long[] values) {
+        delegate.getAll(keys, count, values);
+    }
+
+    @Override
+    public void putAll(CharSequence[] keys, int[] values, int count) {
+        try {
+            delegate.putAll(keys, values, count);
+        } finally {
+            reportAll(keys, count, null);
+        }
+    }
+
+    @Override
+    public void removeAll(CharSequence[] keys, int count, boolean[] removed) {
+        try {
+            delegate.removeAll(keys, count, removed);
+        } finally {
+            reportAll(keys, count, removed);
+        }
+    }
+
+    @Override
+    public void addAndGetAll(CharSequence[] keys, int[] deltas, int count, long[] results) {
+        try {
+            delegate.addAndGetAll(keys, deltas, count, results);
+        } finally {
+            reportAll(keys, count, null);
+        }
+    }
+
+    @Override
+    public void compareAndExchangeAll(CharSequence[] keys, long[] expected, int[] values, int count,
+                                      long[] witnesses) {
+        boolean[] changed = new boolean[count];
+        try {
+            delegate.compareAndExchangeAll(keys, expected, values, count, witnesses);
+            for (int i = 0; i < count; i++) {
+                changed[i] = witnesses[i] == expected[i];
+            }
+        } finally {
+            reportAll(keys, count, changed);
+        }
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void forEach(ObjIntConsumer<String> action) {
+        delegate.forEach(action);
+    }
+
+    @Override
+    public void scan(CharSequence from, boolean after, CharSequence to, EntryVisitor visitor) {
+        delegate.scan(from, after, to, visitor);
+    }
+
+    /**
+     * Reports the keys of a batch that has been applied with what the store now holds for them.
+     *
+     * @param changed Whether each key was changed, or null if every key may have been.
+     */
+    private void reportAll(CharSequence[] keys, int count, boolean[] changed) {
+        if (watchCount.get() == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            CharSequence key = keys[i];
+            if ((changed == null || changed[i]) && isWatched(key)) {
+                synchronized (lockFor(key)) {
+                    report(key, delegate.get(key));
+                }
+            }
+        }
+    }
+
+    private boolean isWatched(CharSequence key) {
+        for (Watch watch : prefixWatches) {
+            if (startsWith(key, watch.key)) {
+                return true;
+            }
+        }
+        return !keyWatches.isEmpty() && keyWatches.containsKey(key.toString());
+    }
+
+    /**
+     * Calls the watchers covering a key. The caller holds the lock of the key.
+     */
+    private void report(CharSequence key, long value) {
+        String name = null;
+        for (Watch watch : prefixWatches) {
+            if (startsWith(key, watch.key)) {
+                name = name == null ? key.toString() : name;
+                watch.watcher.changed(name, value);
+            }
+        }
+        if (keyWatches.isEmpty()) {
+            return;
+        }
+        name = name == null ? key.toString() : name;
+        Watch[] watches = keyWatches.get(name);
+        if (watches != null) {
+            for (Watch watch : watches) {
+                watch.watcher.changed(name, value);
+            }
+        }
+    }
+
+    private static boolean startsWith(CharSequence key, String prefix) {
+        if (key.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (key.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Watch[] without(Watch[] watches, Watch watch) {
+        for (int i = 0; i < watches.length; i++) {
+            if (watches[i] == watch) {
+                Watch[] remaining = new Watch[watches.length - 1];
+                System.arraycopy(watches, 0, remaining, 0, i);
+                System.arraycopy(watches, i + 1, remaining, i, remaining.length - i);
+                return remaining;
+            }
+        }
+        return watches;
+    }
+
+    private Object lockFor(CharSequence key) {
+        return keyLocks[KeyRecord.spread(KeyValueStore.hash(key)) >>> 24];
+    }
+}
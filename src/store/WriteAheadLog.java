@@ -0,0 +1,460 @@
+package store;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * The `WriteAheadLog` class appends PUT and DELETE mutations to binary segment files.
+ *
+ * Every record is laid out as a four byte payload length, a CRC32 of the payload and the payload
+ * itself: an opcode byte, the int value, for a PUT of an expiring key the long deadline in epoch
+ * milliseconds, and the UTF-8 key bytes. Writers copy their records into an in-memory buffer and
+ * a single flusher thread writes that buffer to the current segment and forces it according to
+ * the `FsyncPolicy`. Because writers keep filling the buffer while the flusher forces the
+ * previous one, each force commits every record that arrived during the last one.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /** Opcode of a PUT record. */
+    public static final byte PUT = 1;
+
+    /** Opcode of a DELETE record. */
+    public static final byte DELETE = 2;
+
+    /** Opcode of a PUT record of a key that expires at a deadline. */
+    public static final byte PUT_EXPIRING = 3;
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_PAYLOAD_BYTES = 1 << 20;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final Thread flusher;
+    private ByteBuffer activeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private ByteBuffer spareBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private long appendedBytes;
+    private long durableBytes;
+    private long segmentId;
+    private FileChannel channel;
+    private boolean rollRequested;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Opens a new segment for appending and starts the flusher thread.
+     *
+     * @param directory      The directory holding the log segments.
+     * @param segmentId      The id of the segment to append to; it must not exist yet.
+     * @param policy         When the log is forced to disk.
+     * @param intervalMillis How often the background flusher runs for the INTERVAL and NEVER policies.
+     * @throws IOException If the segment cannot be created.
+     */
+    public WriteAheadLog(Path directory, long segmentId, FsyncPolicy policy, long intervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentId = segmentId;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        this.channel = openSegment(segmentId);
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Appends a mutation to the log. Records appended by one thread reach the log in order.
+     *
+     * @param opcode `PUT` or `DELETE`.
+     * @param key    The key the mutation applies to.
+     * @param value  The value written by a PUT, or 0 for a DELETE.
+     * @return A ticket to pass to `awaitDurable`.
+     * @throws UncheckedIOException If an earlier write to the log failed.
+     */
+    public long append(byte opcode, CharSequence key, int value) {
+        return append(opcode, key, value, 0);
+    }
+
+    /**
+     * Appends a PUT of a key that expires at a deadline. Replaying it restores the deadline
+     * along with the value.
+     *
+     * @param key            The key the mutation applies to.
+     * @param value          The value written.
+     * @param deadlineMillis The wall-clock time, in milliseconds since the epoch, at which the
+     *                       key expires.
+     * @return A ticket to pass to `awaitDurable`.
+     * @throws UncheckedIOException If an earlier write to the log failed.
+     */
+    public long appendExpiring(CharSequence key, int value, long deadlineMillis) {
+        return append(PUT_EXPIRING, key, value, deadlineMillis);
+    }
+
+    private long append(byte opcode, CharSequence key, int value, long deadlineMillis) {
+        byte[] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+        int fixedBytes = opcode == PUT_EXPIRING ? 13 : 5;
+        int payloadBytes = fixedBytes + keyBytes.length;
+        if (payloadBytes > MAX_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("Key too long for the write-ahead log");
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+        record.putInt(payloadBytes).putInt(0).put(opcode).putInt(value);
+        if (opcode == PUT_EXPIRING) {
+            record.putLong(deadlineMillis);
+        }
+        record.put(keyBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_BYTES, payloadBytes);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        lock.lock();
+        try {
+            while (policy != FsyncPolicy.ALWAYS && activeBuffer.position() >= MAX_BUFFERED_BYTES
+                    && failure == null && !closed) {
+                dataAvailable.signal();
+                flushed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (activeBuffer.remaining() < record.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(activeBuffer.capacity() * 2,
+                        activeBuffer.position() + record.remaining()));
+                activeBuffer.flip();
+                larger.put(activeBuffer);
+                activeBuffer = larger;
+            }
+            activeBuffer.put(record);
+            appendedBytes += record.limit();
+            if (policy == FsyncPolicy.ALWAYS) {
+                dataAvailable.signal();
+            }
+            return appendedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record behind a ticket is on disk. It only blocks for the ALWAYS policy.
+     *
+     * @param ticket The ticket returned by `append`.
+     * @throws UncheckedIOException If the log could not be written.
+     */
+    public void awaitDurable(long ticket) {
+        if (policy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableBytes < ticket && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (durableBytes < ticket) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk and continues the log in a new segment.
+     *
+     * @return The id of the new segment. Every record appended after this call returns is in
+     *         this segment or a later one.
+     * @throws IOException If the log could not be written.
+     */
+    public long rollSegment() throws IOException {
+        lock.lock();
+        try {
+            long current = segmentId;
+            rollRequested = true;
+            dataAvailable.signal();
+            while (segmentId == current && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return segmentId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of bytes appended since the log was opened.
+     *
+     * @return The appended byte count.
+     */
+    public long appendedBytes() {
+        lock.lock();
+        try {
+            return appendedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes every segment older than the given one.
+     *
+     * @param firstKeptSegment The id of the oldest segment to keep.
+     * @throws IOException If a segment cannot be deleted.
+     */
+    public void deleteSegmentsBefore(long firstKeptSegment) throws IOException {
+        for (long id : segmentIds(directory)) {
+            if (id < firstKeptSegment) {
+                Files.deleteIfExists(segmentPath(directory, id));
+            }
+        }
+    }
+
+    /**
+     * Writes and forces the remaining records, then stops the flusher and closes the segment.
+     *
+     * @throws IOException If the remaining records could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Lists the ids of the segments in a directory in ascending order.
+     *
+     * @param directory The directory holding the log segments.
+     * @return The segment ids.
+     * @throws IOException If the directory cannot be read.
+     */
+    public static List<Long> segmentIds(Path directory) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Builds the path of a segment file.
+     *
+     * @param directory The directory holding the log segments.
+     * @param segmentId The segment id.
+     * @return The segment path.
+     */
+    public static Path segmentPath(Path directory, long segmentId) {
+        return directory.resolve(String.format("wal-%016d.log", segmentId));
+    }
+
+    /**
+     * Applies every intact record of a segment to a store. Reading stops at the first torn or
+     * corrupt record, which is what a crash in the middle of a write leaves behind.
+     *
+     * @param segment          The segment file to replay.
+     * @param target           The store the mutations are applied to.
+     * @param deadlines        The deadlines of expiring keys, updated by every record: a PUT of
+     *                         an expiring key sets the deadline, any other mutation drops it.
+     * @param truncateTornTail Whether to cut the file off after the last intact record.
+     * @return The number of records applied.
+     * @throws IOException If the segment cannot be read.
+     */
+    public static long replay(Path segment, KeyValueStore target, Map<String, Long> deadlines,
+                              boolean truncateTornTail) throws IOException {
+        long applied = 0;
+        long validBytes = 0;
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file), 1 << 16));
+            byte[] payload = new byte[256];
+            CRC32 crc = new CRC32();
+            try {
+                while (true) {
+                    int payloadBytes = in.readInt();
+                    int expectedCrc = in.readInt();
+                    if (payloadBytes < 5 || payloadBytes > MAX_PAYLOAD_BYTES) {
+                        break;
+                    }
+                    if (payload.length < payloadBytes) {
+                        payload = new byte[payloadBytes];
+                    }
+                    in.readFully(payload, 0, payloadBytes);
+                    crc.reset();
+                    crc.update(payload, 0, payloadBytes);
+                    if ((int) crc.getValue() != expectedCrc) {
+                        break;
+                    }
+                    ByteBuffer record = ByteBuffer.wrap(payload, 0, payloadBytes);
+                    byte opcode = record.get();
+                    int value = record.getInt();
+                    if (opcode == PUT_EXPIRING) {
+                        if (payloadBytes < 13) {
+                            break;
+                        }
+                        long deadlineMillis = record.getLong();
+                        String key = new String(payload, 13, payloadBytes - 13, StandardCharsets.UTF_8);
+                        target.put(key, value);
+                        deadlines.put(key, deadlineMillis);
+                    } else if (opcode == PUT || opcode == DELETE) {
+                        String key = new String(payload, 5, payloadBytes - 5, StandardCharsets.UTF_8);
+                        if (opcode == PUT) {
+                            target.put(key, value);
+                        } else {
+                            target.remove(key);
+                        }
+                        deadlines.remove(key);
+                    } else {
+                        break;
+                    }
+                    applied++;
+                    validBytes += HEADER_BYTES + payloadBytes;
+                }
+            } catch (EOFException e) {
+                // The segment ends here, possibly in the middle of a record.
+            }
+            if (truncateTornTail && validBytes < file.size()) {
+                file.truncate(validBytes);
+            }
+        }
+        return applied;
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentPath(directory, id),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Swaps the buffers, writes the filled one to the segment and forces it, until the log is
+     * closed. A requested roll is performed right after the buffered records have been forced.
+     */
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer toWrite;
+            long target;
+            boolean roll;
+            lock.lock();
+            try {
+                if (policy == FsyncPolicy.ALWAYS) {
+                    while (activeBuffer.position() == 0 && !rollRequested && !closed) {
+                        dataAvailable.awaitUninterruptibly();
+                    }
+                } else if (activeBuffer.position() < MAX_BUFFERED_BYTES && !rollRequested && !closed) {
+                    try {
+                        dataAvailable.await(intervalMillis, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (activeBuffer.position() == 0 && !rollRequested) {
+                    if (closed) {
+                        break;
+                    }
+                    continue;
+                }
+                toWrite = activeBuffer;
+                activeBuffer = spareBuffer;
+                target = appendedBytes;
+                roll = rollRequested;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            long nextSegment = segmentId + 1;
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+                if (policy != FsyncPolicy.NEVER || roll) {
+                    channel.force(false);
+                }
+                if (roll) {
+                    channel.close();
+                    channel = openSegment(nextSegment);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            toWrite.clear();
+
+            lock.lock();
+            try {
+                spareBuffer = toWrite;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableBytes = target;
+                    if (roll) {
+                        segmentId = nextSegment;
+                        rollRequested = false;
+                    }
+                }
+                flushed.signalAll();
+                if (failure != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                failure = e;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package tools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import client.TCPClient;
+import server.NioTCPServer;
+import server.RequestHandler;
+import store.StripedKeyValueStore;
+
+/**
+ * The `BatchBenchmark` class measures the key throughput of a bulk load and a bulk read over one
+ * TCP connection, first with one PUT or GET per round trip and then with `Client.multiPut` and
+ * `Client.multiGet` at growing batch sizes.
+ */
+public class BatchBenchmark {
+
+  /**
+   * Default constructor for the `BatchBenchmark` class.
+   */
+  BatchBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional arguments: [keys] [text|binary] [batch size...].
+   * @throws Exception If the server cannot be started or a request fails.
+   */
+  public static void main(String args[]) throws Exception {
+    int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    boolean binary = args.length > 1 && args[1].equals("binary");
+    int[] batchSizes = {1, 16, 128, 1024};
+    if (args.length > 2) {
+      batchSizes = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        batchSizes[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+    List<String> keys = new ArrayList<>(keyCount);
+    List<Integer> values = new ArrayList<>(keyCount);
+    for (int i = 0; i < keyCount; i++) {
+      keys.add("key" + i);
+      values.add(i);
+    }
+
+    System.out.println("keys=" + keyCount + " wire=" + (binary ? "binary" : "text"));
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try {
+      for (int batchSize : batchSizes) {
+        double[] throughput = run(keys, values, binary, batchSize);
+        console.printf("batch=%-5d put=%.0f keys/s get=%.0f keys/s%n", batchSize, throughput[0], throughput[1]);
+      }
+    } finally {
+      System.setOut(console);
+    }
+  }
+
+  /**
+   * Loads and then reads every key against a fresh server.
+   *
+   * @return The PUT and GET throughput in keys per second.
+   */
+  private static double[] run(List<String> keys, List<Integer> values, boolean binary, int batchSize)
+          throws Exception {
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    RequestHandler handler = new RequestHandler(new StripedKeyValueStore(), silentLogger, 0);
+    NioTCPServer server = new NioTCPServer(handler, 1, null);
+    server.start(0);
+    TCPClient client = new TCPClient(binary);
+    try {
+      client.openConnection("localhost", server.getPort());
+      long start = System.nanoTime();
+      for (int from = 0; from < keys.size(); from += batchSize) {
+        int to = Math.min(keys.size(), from + batchSize);
+        if (batchSize == 1) {
+          client.sendRequestAsync("PUT " + keys.get(from) + " " + values.get(from) + " #" + from).join();
+        } else {
+          client.multiPut(keys.subList(from, to), values.subList(from, to));
+        }
+      }
+      double putThroughput = keys.size() / ((System.nanoTime() - start) / 1e9);
+
+      start = System.nanoTime();
+      for (int from = 0; from < keys.size(); from += batchSize) {
+        int to = Math.min(keys.size(), from + batchSize);
+        if (batchSize == 1) {
+          client.sendRequestAsync("GET " + keys.get(from) + " #" + from).join();
+        } else {
+          List<String> found = client.multiGet(keys.subList(from, to));
+          if (!found.get(0).equals(String.valueOf(values.get(from)))) {
+            throw new IllegalStateException("Unexpected value for " + keys.get(from) + ": " + found.get(0));
+          }
+        }
+      }
+      double getThroughput = keys.size() / ((System.nanoTime() - start) / 1e9);
+      return new double[] {putThroughput, getThroughput};
+    } finally {
+      client.closeConnection();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package tools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+import client.Client;
+import client.ClusterClient;
+import client.TCPClient;
+import cluster.ClusterNode;
+import cluster.HashRing;
+import cluster.ShardedKeyValueStore;
+import server.NioTCPServer;
+import server.RequestHandler;
+import store.StripedKeyValueStore;
+
+/**
+ * The `ClusterBenchmark` class measures the aggregate throughput of clusters of growing size,
+ * with every node running in this process on its own port. Each client thread sends binary GETs
+ * and PUTs (nine to one) over random keys, one at a time. It is measured twice: with clients that
+ * route every request to its owner through `ClusterClient`, and with clients that each talk to one
+ * node, which forwards the keys it does not own. Throughput only grows with the nodes while there
+ * are free cores to run them.
+ */
+public class ClusterBenchmark {
+  private static final int KEY_SPACE = 100_000;
+
+  /**
+   * Default constructor for the `ClusterBenchmark` class.
+   */
+  ClusterBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional arguments: [requests per client] [clients] [node counts...].
+   * @throws Exception If a node cannot be started or a request fails.
+   */
+  public static void main(String args[]) throws Exception {
+    int requestsPerClient = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+    int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int[] nodeCounts = {1, 2, 4};
+    if (args.length > 2) {
+      nodeCounts = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        nodeCounts[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("requests/client=" + requestsPerClient + " clients=" + clientCount + " cores="
+        + Runtime.getRuntime().availableProcessors());
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try {
+      // Warm up the client and server code paths so that the first cluster size is not penalized.
+      run(nodeCounts[0], clientCount, requestsPerClient / 5);
+      for (int nodeCount : nodeCounts) {
+        double[] throughput = run(nodeCount, clientCount, requestsPerClient);
+        console.printf("nodes=%-3d routed=%.0f req/s forwarded=%.0f req/s%n", nodeCount, throughput[0],
+            throughput[1]);
+      }
+    } finally {
+      System.setOut(console);
+    }
+  }
+
+  /**
+   * Starts a cluster and drives it with routing clients and then with forwarding clients.
+   *
+   * @return The routed and the forwarded throughput in requests per second.
+   */
+  private static double[] run(int nodeCount, int clientCount, int requestsPerClient) throws Exception {
+    List<ClusterNode> nodes = new ArrayList<>();
+    for (int n = 0; n < nodeCount; n++) {
+      try (ServerSocket probe = new ServerSocket(0)) {
+        nodes.add(new ClusterNode("n" + n, "localhost", probe.getLocalPort()));
+      }
+    }
+    HashRing ring = new HashRing(nodes, HashRing.DEFAULT_VIRTUAL_NODES);
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    List<NioTCPServer> servers = new ArrayList<>();
+    List<ShardedKeyValueStore> stores = new ArrayList<>();
+    try {
+      for (ClusterNode node : nodes) {
+        ShardedKeyValueStore store = new ShardedKeyValueStore(new StripedKeyValueStore(), ring, node, 16);
+        stores.add(store);
+        NioTCPServer server = new NioTCPServer(new RequestHandler(store, silentLogger, node.port()), 1,
+            Executors.newCachedThreadPool());
+        server.start(node.port());
+        servers.add(server);
+      }
+      double routed = drive(clientCount, requestsPerClient,
+          c -> new ClusterClient(ring, () -> new TCPClient(true)), nodes);
+      double forwarded = drive(clientCount, requestsPerClient, c -> new TCPClient(true), nodes);
+      return new double[] {routed, forwarded};
+    } finally {
+      for (NioTCPServer server : servers) {
+        server.stop();
+      }
+      for (ShardedKeyValueStore store : stores) {
+        store.close();
+      }
+    }
+  }
+
+  /**
+   * Runs the client threads; client c connects to node c modulo the node count.
+   *
+   * @return The completed requests per second.
+   */
+  private static double drive(int clientCount, int requestsPerClient, IntFunction<Client> clients,
+                              List<ClusterNode> nodes) throws Exception {
+    Thread[] threads = new Thread[clientCount];
+    Exception[] failure = new Exception[1];
+    for (int c = 0; c < clientCount; c++) {
+      Client client = clients.apply(c);
+      ClusterNode node = nodes.get(c % nodes.size());
+      client.openConnection(node.host(), node.port());
+      threads[c] = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+          for (int i = 0; i < requestsPerClient; i++) {
+            String key = "key" + random.nextInt(KEY_SPACE);
+            String request = random.nextInt(10) == 0 ? "PUT " + key + " " + i + " #" + i : "GET " + key + " #" + i;
+            client.sendRequestAsync(request).join();
+          }
+        } catch (RuntimeException e) {
+          synchronized (failure) {
+            failure[0] = e;
+          }
+        } finally {
+          client.closeConnection();
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    double throughput = (long) clientCount * requestsPerClient / ((System.nanoTime() - start) / 1e9);
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    return throughput;
+  }
+}
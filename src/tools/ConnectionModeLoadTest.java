@@ -0,0 +1,162 @@
+package tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import server.ConcurrentServer;
+import server.RequestHandler;
+import server.ThreadPerConnectionServer;
+import store.StripedKeyValueStore;
+
+/**
+ * The `ConnectionModeLoadTest` class compares the virtual-thread-per-connection server against
+ * the platform-thread-pool server. For each mode it opens a number of idle connections that
+ * never send anything, then drives a smaller number of active connections as fast as possible
+ * and reports throughput, p50 and p99 latency and the number of clients that timed out.
+ */
+public class ConnectionModeLoadTest {
+  private static final int SOCKET_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * Default constructor for the `ConnectionModeLoadTest` class.
+   */
+  ConnectionModeLoadTest() {
+
+  }
+
+  /**
+   * Runs the load test against both server modes.
+   *
+   * @param args Optional arguments: [activeClients] [idleClients] [requestsPerClient] [poolThreads].
+   * @throws Exception If the server or a client cannot be started.
+   */
+  public static void main(String args[]) throws Exception {
+    int activeClients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int idleClients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int requestsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+    int poolThreads = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+
+    System.out.println("active=" + activeClients + " idle=" + idleClients
+        + " requests/client=" + requestsPerClient + " poolThreads=" + poolThreads);
+    run("VTHREAD", ThreadPerConnectionServer.withVirtualThreads(newHandler()),
+        activeClients, idleClients, requestsPerClient);
+    run("THREADPOOL", ThreadPerConnectionServer.withPlatformThreadPool(newHandler(), poolThreads),
+        activeClients, idleClients, requestsPerClient);
+  }
+
+  /**
+   * Creates a request handler over an empty store that does not write any log file.
+   *
+   * @return The request handler.
+   */
+  private static RequestHandler newHandler() {
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    return new RequestHandler(new StripedKeyValueStore(), silentLogger, 0);
+  }
+
+  /**
+   * Starts the server, applies the load and prints the results for one mode.
+   */
+  private static void run(String mode, ConcurrentServer server, int activeClients, int idleClients,
+                          int requestsPerClient) throws Exception {
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    List<Socket> idleSockets = new ArrayList<>();
+    long[][] latencies = new long[activeClients][];
+    int[] completed = new int[activeClients];
+    AtomicInteger timedOut = new AtomicInteger();
+    long elapsedNanos;
+    try {
+      server.start(0);
+      for (int i = 0; i < idleClients; i++) {
+        idleSockets.add(new Socket("localhost", server.getPort()));
+      }
+      Thread.sleep(200);
+
+      Thread[] threads = new Thread[activeClients];
+      for (int i = 0; i < activeClients; i++) {
+        int client = i;
+        latencies[client] = new long[requestsPerClient];
+        threads[i] = new Thread(() -> {
+          try {
+            drive(server.getPort(), client, latencies[client], completed);
+          } catch (SocketTimeoutException e) {
+            timedOut.incrementAndGet();
+          } catch (IOException e) {
+            console.println("Client " + client + " failed: " + e);
+          }
+        });
+      }
+      long start = System.nanoTime();
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      elapsedNanos = System.nanoTime() - start;
+    } finally {
+      for (Socket socket : idleSockets) {
+        socket.close();
+      }
+      server.stop();
+      System.setOut(console);
+    }
+
+    int total = 0;
+    for (int count : completed) {
+      total += count;
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (int i = 0; i < activeClients; i++) {
+      System.arraycopy(latencies[i], 0, all, offset, completed[i]);
+      offset += completed[i];
+    }
+    Arrays.sort(all);
+    System.out.printf("%-10s requests=%d throughput=%.0f req/s p50=%.1fus p99=%.1fus timedOutClients=%d%n",
+        mode, total, total / (elapsedNanos / 1e9), percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3,
+        timedOut.get());
+  }
+
+  /**
+   * Sends alternating PUT and GET requests on one connection and records each round trip,
+   * counting the completed requests of the client in {@code completed}.
+   */
+  private static void drive(int port, int client, long[] latencies, int[] completed) throws IOException {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+      socket.setTcpNoDelay(true);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      String key = "key" + client;
+      for (int i = 0; i < latencies.length; i++) {
+        String request = (i % 2 == 0 ? "PUT " + key + " " + i : "GET " + key) + " #" + i;
+        long start = System.nanoTime();
+        out.writeUTF(request);
+        in.readUTF();
+        latencies[i] = System.nanoTime() - start;
+        completed[client] = i + 1;
+      }
+    }
+  }
+
+  private static long percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+  }
+}
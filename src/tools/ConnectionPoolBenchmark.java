@@ -0,0 +1,144 @@
+package tools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+import client.Client;
+import client.ConnectionPool;
+import client.TCPClient;
+import server.NioTCPServer;
+import server.RequestHandler;
+import store.StripedKeyValueStore;
+
+/**
+ * The `ConnectionPoolBenchmark` class compares ways for many threads of one process to reach a
+ * server: every thread with a connection of its own, and all threads sharing a `ConnectionPool`
+ * of a few pipelined connections. Each thread sends binary GETs and PUTs (nine to one) over random
+ * keys and waits for every response. Besides throughput it reports the bytes the calling threads
+ * allocate per request.
+ */
+public class ConnectionPoolBenchmark {
+  private static final int KEY_SPACE = 100_000;
+
+  /**
+   * Default constructor for the `ConnectionPoolBenchmark` class.
+   */
+  ConnectionPoolBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark against a server started in this process.
+   *
+   * @param args Optional arguments: [requests per thread] [threads] [pool sizes...].
+   * @throws Exception If the server cannot be started or a request fails.
+   */
+  public static void main(String args[]) throws Exception {
+    int requestsPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+    int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    int[] poolSizes = {1, 4};
+    if (args.length > 2) {
+      poolSizes = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        poolSizes[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+
+    int port;
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    NioTCPServer server = new NioTCPServer(new RequestHandler(new StripedKeyValueStore(), silentLogger, port), 1,
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    server.start(port);
+    try {
+      console.println("requests/thread=" + requestsPerThread + " threads=" + threadCount + " cores="
+          + Runtime.getRuntime().availableProcessors());
+      // Warm up the client and server code paths.
+      drive(threadCount, requestsPerThread / 5, port, t -> new TCPClient(true), null);
+      console.println(drive(threadCount, requestsPerThread, port, t -> new TCPClient(true), null)
+          + " (a connection per thread)");
+      for (int poolSize : poolSizes) {
+        // Spread the threads evenly over the connections of the pool.
+        ConnectionPool pool = new ConnectionPool(true, poolSize, Math.max(1, threadCount / poolSize), 5000);
+        pool.openConnection("localhost", port);
+        try {
+          console.println(drive(threadCount, requestsPerThread, port, t -> pool, pool) + " (pool of "
+              + pool.connectionCount() + " connections)");
+        } finally {
+          pool.closeConnection();
+        }
+      }
+    } finally {
+      server.stop();
+      System.setOut(console);
+    }
+  }
+
+  /**
+   * Runs the threads. Without a shared pool every thread opens and closes its own client.
+   *
+   * @return A line with the throughput and the bytes allocated per request.
+   */
+  private static String drive(int threadCount, int requestsPerThread, int port, IntFunction<Client> clients,
+                              ConnectionPool shared) throws Exception {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Thread[] workers = new Thread[threadCount];
+    AtomicLong allocated = new AtomicLong();
+    Exception[] failure = new Exception[1];
+    for (int t = 0; t < threadCount; t++) {
+      Client client = clients.apply(t);
+      if (shared == null) {
+        client.openConnection("localhost", port);
+      }
+      int thread = t;
+      workers[t] = new Thread(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        try {
+          for (int i = 0; i < requestsPerThread; i++) {
+            String key = "key" + random.nextInt(KEY_SPACE);
+            // Every thread uses the same packet ids; the pool keeps them apart on the wire.
+            String request = random.nextInt(10) == 0 ? "PUT " + key + " " + i + " #" + i : "GET " + key + " #" + i;
+            client.sendRequestAsync(request).join();
+          }
+        } catch (RuntimeException e) {
+          synchronized (failure) {
+            failure[0] = new Exception("Thread " + thread + " failed", e);
+          }
+        } finally {
+          allocated.addAndGet(threads.getCurrentThreadAllocatedBytes() - before);
+          if (shared == null) {
+            client.closeConnection();
+          }
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long requests = (long) threadCount * requestsPerThread;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    return String.format("%.0f req/s, %d bytes allocated per request by the callers", requests / seconds,
+        allocated.get() / requests);
+  }
+}
@@ -0,0 +1,188 @@
+package tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import client.ClusterClient;
+import client.TCPClient;
+import cluster.HashRing;
+
+/**
+ * The `FailoverTest` class checks replication across real server processes. It starts a cluster
+ * of three `ServerApp` processes on this machine, writes keys with ACK=ALL, kills the primary of
+ * the first key without warning and reads every key back through a `ClusterClient`. A key is
+ * lost if its value cannot be read back; keys written with ACK=ALL must all survive. It then
+ * writes and reads new keys while the node is still down, and reports how long the first read
+ * of a key of the killed node took.
+ *
+ * The processes run in a temporary directory, which holds their logs and the ring file.
+ */
+public class FailoverTest {
+  private static final int NODES = 3;
+  private static final long REQUEST_TIMEOUT_MILLIS = 10_000;
+
+  private static long nextPacketId = System.currentTimeMillis();
+
+  /**
+   * Default constructor for the `FailoverTest` class.
+   */
+  FailoverTest() {
+
+  }
+
+  /**
+   * Runs the test.
+   *
+   * @param args Optional arguments: [keys] [replicas] [ack level of the writes after the kill].
+   * @throws Exception If the cluster cannot be started.
+   */
+  public static void main(String args[]) throws Exception {
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int replicas = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+    String laterAck = args.length > 2 ? args[2].toUpperCase() : "ONE";
+
+    Path directory = Files.createTempDirectory("failover");
+    Files.createDirectories(directory.resolve("src/server"));
+    StringBuilder ringText = new StringBuilder("replicas " + replicas + "\n");
+    for (int n = 1; n <= NODES; n++) {
+      try (ServerSocket probe = new ServerSocket(0)) {
+        ringText.append("node n").append(n).append(" localhost:").append(probe.getLocalPort()).append('\n');
+      }
+    }
+    Path ringFile = directory.resolve("cluster.conf");
+    Files.write(ringFile, ringText.toString().getBytes(StandardCharsets.UTF_8));
+    HashRing ring = HashRing.load(ringFile);
+    System.out.println("Cluster of " + NODES + " processes with " + ring.replicas() + " replicas in " + directory);
+
+    List<Process> processes = new ArrayList<>();
+    ClusterClient client = new ClusterClient(ring, () -> new TCPClient(true));
+    try {
+      for (int n = 0; n < NODES; n++) {
+        processes.add(startNode(directory, ringFile, ring, n));
+      }
+      for (int n = 0; n < NODES; n++) {
+        awaitListening(ring.nodes().get(n).host(), ring.nodes().get(n).port());
+      }
+      client.openConnection(null, 0);
+
+      int failedWrites = write(client, "key", keys, "ALL");
+      System.out.println("Wrote " + keys + " keys with ACK=ALL, " + failedWrites + " failed");
+
+      int victim = ring.ownerIndex("key0");
+      int victimKeys = 0;
+      for (int i = 0; i < keys; i++) {
+        victimKeys += ring.ownerIndex("key" + i) == victim ? 1 : 0;
+      }
+      Process killed = processes.get(victim);
+      killed.destroyForcibly();
+      killed.waitFor();
+      long killedAt = System.nanoTime();
+      System.out.println("Killed primary " + ring.nodes().get(victim) + " of " + victimKeys + " keys");
+
+      String first = request(client, "GET key0");
+      double failoverMillis = (System.nanoTime() - killedAt) / 1e6;
+      System.out.printf("First read of a key of the killed node took %.1f ms: %s%n", failoverMillis, first);
+
+      long start = System.nanoTime();
+      int lost = read(client, "key", keys);
+      System.out.printf("Read %d keys back in %.0f ms, %d lost%n", keys, (System.nanoTime() - start) / 1e6, lost);
+
+      int failedLater = write(client, "later", keys, laterAck);
+      int lostLater = read(client, "later", keys);
+      System.out.println("Wrote " + keys + " new keys with ACK=" + laterAck + " while the node is down, "
+          + failedLater + " failed and " + lostLater + " not readable");
+
+      System.out.println(lost == 0 && failedWrites == 0 ? "PASS: no key acknowledged with ACK=ALL was lost"
+          : "FAIL: keys acknowledged with ACK=ALL were lost");
+    } finally {
+      client.closeConnection();
+      for (Process process : processes) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  /**
+   * Starts one node as a separate JVM running `ServerApp` with this class path.
+   */
+  private static Process startNode(Path directory, Path ringFile, HashRing ring, int n) throws IOException {
+    String id = ring.nodes().get(n).id();
+    ProcessBuilder builder = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-Dkvstore.cluster=" + ringFile,
+        "-Dkvstore.nodeId=" + id,
+        "-Dkvstore.consoleLog=false",
+        "-cp", System.getProperty("java.class.path"),
+        "server.ServerApp", String.valueOf(ring.nodes().get(n).port()));
+    builder.directory(directory.toFile());
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(directory.resolve(id + ".out").toFile());
+    Process process = builder.start();
+    // The server asks for its protocol on standard input, which stays open while it runs.
+    OutputStream stdin = process.getOutputStream();
+    stdin.write("TCP\n".getBytes(StandardCharsets.US_ASCII));
+    stdin.flush();
+    return process;
+  }
+
+  private static void awaitListening(String host, int port) throws InterruptedException, IOException {
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (true) {
+      try {
+        new Socket(host, port).close();
+        return;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("Node on port " + port + " did not start", e);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * Writes keys prefix0 to prefix(count - 1), each with its index as value.
+   *
+   * @return The number of writes that were not acknowledged.
+   */
+  private static int write(ClusterClient client, String prefix, int count, String ack) {
+    int failed = 0;
+    for (int i = 0; i < count; i++) {
+      String response = request(client, "PUT " + prefix + i + " " + i + " ACK=" + ack);
+      failed += response.startsWith("Put operation success") ? 0 : 1;
+    }
+    return failed;
+  }
+
+  /**
+   * Reads the keys written by `write` back.
+   *
+   * @return The number of keys that are missing or hold another value.
+   */
+  private static int read(ClusterClient client, String prefix, int count) {
+    int lost = 0;
+    for (int i = 0; i < count; i++) {
+      String response = request(client, "GET " + prefix + i);
+      lost += response.startsWith(i + " #") ? 0 : 1;
+    }
+    return lost;
+  }
+
+  private static String request(ClusterClient client, String message) {
+    try {
+      return client.sendRequestAsync(message + " #" + nextPacketId++)
+          .get(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      return "Request failed: " + e;
+    }
+  }
+}
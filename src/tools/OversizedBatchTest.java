@@ -0,0 +1,95 @@
+package tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import server.ConcurrentServer;
+import server.NioTCPServer;
+import server.RequestHandler;
+import server.ThreadPerConnectionServer;
+import store.StripedKeyValueStore;
+
+/**
+ * The `OversizedBatchTest` class checks that a text batch whose response could not fit in one
+ * writeUTF frame is rejected instead of breaking the server. For the NIO server, with and
+ * without workers, and the virtual-thread server it sends a 14 KB MGET of 7000 keys, whose
+ * response would take about 70 KB, expects "Invalid operation" in reply and then expects a GET
+ * on another connection to be answered.
+ */
+public class OversizedBatchTest {
+  private static final int SOCKET_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * Default constructor for the `OversizedBatchTest` class.
+   */
+  OversizedBatchTest() {
+
+  }
+
+  /**
+   * Runs the test against every TCP server mode.
+   *
+   * @param args Optional arguments: [keys in the MGET].
+   * @throws Exception If a server cannot be started or a check fails.
+   */
+  public static void main(String args[]) throws Exception {
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 7000;
+    check("TCP", new NioTCPServer(newHandler(), 1), keys);
+    check("TCP with workers", new NioTCPServer(newHandler(), 1, Executors.newFixedThreadPool(2)), keys);
+    check("VTHREAD", ThreadPerConnectionServer.withVirtualThreads(newHandler()), keys);
+    System.out.println("Oversized text batches are rejected in every mode");
+  }
+
+  private static RequestHandler newHandler() {
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    return new RequestHandler(new StripedKeyValueStore(), silentLogger, 0);
+  }
+
+  /**
+   * Sends the oversized MGET and a GET to one server.
+   */
+  private static void check(String mode, ConcurrentServer server, int keys) throws Exception {
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    String batchResponse;
+    String getResponse;
+    try {
+      server.start(0);
+      // One short key repeated keeps the request small while every key still needs an outcome.
+      StringBuilder request = new StringBuilder("MGET");
+      for (int i = 0; i < keys; i++) {
+        request.append(" a");
+      }
+      batchResponse = exchange(server.getPort(), request.append(" #1").toString());
+      getResponse = exchange(server.getPort(), "GET a #2");
+    } finally {
+      server.stop();
+      System.setOut(console);
+    }
+    if (!batchResponse.equals("Invalid operation provided by user. #1")) {
+      throw new AssertionError(mode + ": MGET of " + keys + " keys answered with " + batchResponse);
+    }
+    if (!getResponse.endsWith("#2")) {
+      throw new AssertionError(mode + ": GET after the MGET answered with " + getResponse);
+    }
+    System.out.println(mode + ": MGET of " + keys + " keys rejected, server still serving");
+  }
+
+  private static String exchange(int port, String request) throws IOException {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeUTF(request);
+      out.flush();
+      return new DataInputStream(socket.getInputStream()).readUTF();
+    }
+  }
+}
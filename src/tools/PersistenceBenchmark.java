@@ -0,0 +1,103 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+import store.FsyncPolicy;
+import store.PersistentKeyValueStore;
+import store.StripedKeyValueStore;
+
+/**
+ * The `PersistenceBenchmark` class measures the write throughput of the persistent store under
+ * each fsync policy, and how long recovery takes from the write-ahead log alone and from a
+ * snapshot. For the snapshot it reports the time until the first GET is answered from the
+ * mapped file and the time until the snapshot has been hydrated into the heap store. Every
+ * policy runs in a fresh temporary directory.
+ */
+public class PersistenceBenchmark {
+
+  /**
+   * Default constructor for the `PersistenceBenchmark` class.
+   */
+  PersistenceBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional arguments: [threads] [writesPerThread] [keys] [directory].
+   * @throws Exception If the store cannot be written or recovered.
+   */
+  public static void main(String args[]) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int writesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+    int keys = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+    Path parent = args.length > 3 ? Path.of(args[3]) : Path.of(System.getProperty("java.io.tmpdir"));
+
+    System.out.println("threads=" + threads + " writes/thread=" + writesPerThread + " keys=" + keys);
+    for (FsyncPolicy policy : FsyncPolicy.values()) {
+      Path directory = Files.createTempDirectory(parent, "kvstore-bench-");
+      try {
+        run(policy, directory, threads, writesPerThread, keys);
+      } finally {
+        try (Stream<Path> files = Files.walk(directory)) {
+          files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+      }
+    }
+  }
+
+  private static void run(FsyncPolicy policy, Path directory, int threads, int writesPerThread, int keys)
+      throws Exception {
+    PersistentKeyValueStore store = open(directory, policy);
+    Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      long seed = t;
+      writers[t] = new Thread(() -> {
+        SplittableRandom random = new SplittableRandom(seed);
+        StringBuilder key = new StringBuilder(16);
+        for (int i = 0; i < writesPerThread; i++) {
+          key.setLength(0);
+          key.append("key").append(random.nextInt(keys));
+          store.put(key, i);
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    store.close();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long writes = (long) threads * writesPerThread;
+
+    long walStart = System.nanoTime();
+    PersistentKeyValueStore fromLog = open(directory, policy);
+    double walRecoveryMillis = (System.nanoTime() - walStart) / 1e6;
+    fromLog.snapshot();
+    fromLog.close();
+
+    long snapshotStart = System.nanoTime();
+    PersistentKeyValueStore fromSnapshot = open(directory, policy);
+    fromSnapshot.get("key0");
+    double firstResponseMillis = (System.nanoTime() - snapshotStart) / 1e6;
+    long hydrationMillis = fromSnapshot.awaitHydration();
+    int recoveredKeys = fromSnapshot.size();
+    fromSnapshot.close();
+
+    System.out.printf("%-8s writes/s=%.0f logRecovery=%.1f ms snapshotFirstGet=%.1f ms hydration=%d ms keys=%d%n",
+        policy, writes / seconds, walRecoveryMillis, firstResponseMillis, hydrationMillis, recoveredKeys);
+  }
+
+  private static PersistentKeyValueStore open(Path directory, FsyncPolicy policy) throws IOException {
+    return PersistentKeyValueStore.open(new StripedKeyValueStore(), directory, policy, 50, 0);
+  }
+}
@@ -0,0 +1,91 @@
+package tools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import client.TCPClient;
+import server.NioTCPServer;
+import server.RequestHandler;
+import store.StripedKeyValueStore;
+
+/**
+ * The `PipeliningBenchmark` class measures how the throughput of a single TCP connection grows
+ * with the number of requests kept in flight by `TCPClient.sendRequestAsync`. A depth of 1 is
+ * the old one-request-per-round-trip behaviour. Every depth runs against a server that handles
+ * requests on its reactor and against one that hands them to worker threads.
+ */
+public class PipeliningBenchmark {
+
+  /**
+   * Default constructor for the `PipeliningBenchmark` class.
+   */
+  PipeliningBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional arguments: [requests] [text|binary] [depth...].
+   * @throws Exception If the server cannot be started or a request fails.
+   */
+  public static void main(String args[]) throws Exception {
+    int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    boolean binary = args.length > 1 && args[1].equals("binary");
+    int[] depths = {1, 8, 64, 512};
+    if (args.length > 2) {
+      depths = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        depths[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("requests=" + requests + " wire=" + (binary ? "binary" : "text"));
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try {
+      for (int workers : new int[] {0, 4}) {
+        for (int depth : depths) {
+          double throughput = run(requests, binary, depth, workers);
+          console.printf("workers=%d depth=%-4d throughput=%.0f req/s%n", workers, depth, throughput);
+        }
+      }
+    } finally {
+      System.setOut(console);
+    }
+  }
+
+  private static double run(int requests, boolean binary, int depth, int workerThreads) throws Exception {
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    RequestHandler handler = new RequestHandler(new StripedKeyValueStore(), silentLogger, 0);
+    ExecutorService workers = workerThreads > 0 ? Executors.newFixedThreadPool(workerThreads) : null;
+    NioTCPServer server = new NioTCPServer(handler, 1, workers);
+    server.start(0);
+    TCPClient client = new TCPClient(binary);
+    try {
+      client.openConnection("localhost", server.getPort());
+      Semaphore window = new Semaphore(depth);
+      long start = System.nanoTime();
+      CompletableFuture<String> last = null;
+      for (int i = 0; i < requests; i++) {
+        window.acquire();
+        String request = (i % 2 == 0 ? "PUT key" + (i % 1000) + " " + i : "GET key" + (i % 1000)) + " #" + i;
+        last = client.sendRequestAsync(request);
+        last.whenComplete((response, failure) -> window.release());
+      }
+      window.acquire(depth);
+      last.join();
+      return requests / ((System.nanoTime() - start) / 1e9);
+    } finally {
+      client.closeConnection();
+      server.stop();
+    }
+  }
+}
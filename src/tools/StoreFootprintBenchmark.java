@@ -0,0 +1,161 @@
+package tools;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import store.KeyValueStore;
+import store.KeyValueStores;
+
+/**
+ * The `StoreFootprintBenchmark` class loads the same keys into the original `HashMap` and into
+ * each `KeyValueStore` backend, then runs a GET/PUT mix against it. For every store it reports
+ * the retained heap, the direct memory in use, the garbage collections that happened and the
+ * bytes allocated per operation by the measuring thread.
+ *
+ * Run each backend in its own JVM for the cleanest numbers, for example:
+ * java -Xmx4g -cp bin tools.StoreFootprintBenchmark 10000000 5000000 offheap
+ */
+public class StoreFootprintBenchmark {
+  private static final String[] ALL_BACKENDS = {"hashmap", "striped", "offheap"};
+
+  /**
+   * Default constructor for the `StoreFootprintBenchmark` class.
+   */
+  StoreFootprintBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional arguments: [keys] [operations] [backend...], where a backend is one of
+   *             "hashmap", "striped" or "offheap". All three run when none is given.
+   */
+  public static void main(String args[]) {
+    int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+    int operations = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+    String[] backends = ALL_BACKENDS;
+    if (args.length > 2) {
+      backends = new String[args.length - 2];
+      System.arraycopy(args, 2, backends, 0, backends.length);
+    }
+    System.out.println("keys=" + keys + " operations=" + operations);
+    for (String backend : backends) {
+      run(backend, keys, operations);
+    }
+  }
+
+  private static void run(String backend, int keys, int operations) {
+    long[] memoryBefore = retainedMemory();
+    long[] gcBefore;
+    Object retained;
+    long allocatedPerOp;
+    if (backend.equals("hashmap")) {
+      Map<String, Integer> map = new HashMap<>();
+      for (int i = 0; i < keys; i++) {
+        map.put("key" + i, i);
+      }
+      retained = map;
+      gcBefore = gcCounters();
+      long allocatedBefore = threadAllocatedBytes();
+      SplittableRandom random = new SplittableRandom(42);
+      StringBuilder key = new StringBuilder(16);
+      long sum = 0;
+      for (int i = 0; i < operations; i++) {
+        key.setLength(0);
+        key.append("key").append(random.nextInt(keys));
+        if ((i & 3) == 0) {
+          map.put(key.toString(), i);
+        } else {
+          Integer value = map.get(key.toString());
+          sum += value == null ? 0 : value;
+        }
+      }
+      allocatedPerOp = (threadAllocatedBytes() - allocatedBefore) / operations;
+      blackhole(sum);
+    } else {
+      KeyValueStore store = KeyValueStores.create(backend);
+      StringBuilder key = new StringBuilder(16);
+      for (int i = 0; i < keys; i++) {
+        key.setLength(0);
+        key.append("key").append(i);
+        store.put(key, i);
+      }
+      retained = store;
+      gcBefore = gcCounters();
+      long allocatedBefore = threadAllocatedBytes();
+      SplittableRandom random = new SplittableRandom(42);
+      long sum = 0;
+      for (int i = 0; i < operations; i++) {
+        key.setLength(0);
+        key.append("key").append(random.nextInt(keys));
+        if ((i & 3) == 0) {
+          store.put(key, i);
+        } else {
+          sum += store.get(key);
+        }
+      }
+      allocatedPerOp = (threadAllocatedBytes() - allocatedBefore) / operations;
+      blackhole(sum);
+    }
+    long[] gcAfter = gcCounters();
+    long[] memoryAfter = retainedMemory();
+    System.out.printf("%-8s heap=%,d KB direct=%,d KB gcCount=%d gcTime=%d ms allocated/op=%d B (size %d)%n",
+        backend, (memoryAfter[0] - memoryBefore[0]) / 1024, (memoryAfter[1] - memoryBefore[1]) / 1024,
+        gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], allocatedPerOp,
+        retained instanceof Map ? ((Map<?, ?>) retained).size() : ((KeyValueStore) retained).size());
+  }
+
+  /**
+   * Forces a collection and reads the heap and direct memory still in use.
+   *
+   * @return The used heap bytes and the used direct memory bytes.
+   */
+  private static long[] retainedMemory() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    long direct = 0;
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        direct = pool.getMemoryUsed();
+      }
+    }
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    return new long[] {memory.getHeapMemoryUsage().getUsed(), direct};
+  }
+
+  /**
+   * Reads the collection count and accumulated collection time of all garbage collectors.
+   *
+   * @return The collection count and the collection time in milliseconds.
+   */
+  private static long[] gcCounters() {
+    long count = 0;
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += gc.getCollectionCount();
+      millis += gc.getCollectionTime();
+    }
+    return new long[] {count, millis};
+  }
+
+  private static long threadAllocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  private static volatile long sink;
+
+  private static void blackhole(long value) {
+    sink = value;
+  }
+}
@@ -0,0 +1,118 @@
+package tools;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import server.IdempotencyCache;
+import server.RequestHandler;
+import server.WorkerUDPServer;
+import store.StripedKeyValueStore;
+
+/**
+ * The `UdpThroughputBenchmark` class measures the request throughput of `WorkerUDPServer` at
+ * growing numbers of worker threads. Every client thread sends GET requests from its own socket in
+ * a closed loop, so with SO_REUSEPORT the clients spread over the workers' channels. Throughput
+ * only grows with the workers while there are free cores to run them.
+ */
+public class UdpThroughputBenchmark {
+
+  /**
+   * Default constructor for the `UdpThroughputBenchmark` class.
+   */
+  UdpThroughputBenchmark() {
+
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args Optional arguments: [requests per client] [clients] [workers...].
+   * @throws Exception If the server cannot be started or a client fails.
+   */
+  public static void main(String args[]) throws Exception {
+    int requestsPerClient = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+    int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int[] workerCounts = {1, 2, 4, Runtime.getRuntime().availableProcessors()};
+    if (args.length > 2) {
+      workerCounts = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        workerCounts[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("requests/client=" + requestsPerClient + " clients=" + clientCount + " cores="
+            + Runtime.getRuntime().availableProcessors());
+    PrintStream console = System.out;
+    // The request handler echoes every request to the console; keep that out of the measurement.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    try {
+      for (int workerCount : workerCounts) {
+        LongAdder timeouts = new LongAdder();
+        double throughput = run(workerCount, clientCount, requestsPerClient, timeouts);
+        console.printf("workers=%-3d %.0f req/s (%d timeouts)%n", workerCount, throughput, timeouts.sum());
+      }
+    } finally {
+      System.setOut(console);
+    }
+  }
+
+  /**
+   * Runs every client against a fresh server.
+   *
+   * @return The completed requests per second.
+   */
+  private static double run(int workerCount, int clientCount, int requestsPerClient, LongAdder timeouts)
+          throws Exception {
+    Logger silentLogger = Logger.getAnonymousLogger();
+    silentLogger.setUseParentHandlers(false);
+    RequestHandler handler = new RequestHandler(new StripedKeyValueStore(), silentLogger, 0);
+    WorkerUDPServer server = new WorkerUDPServer(handler, workerCount, new IdempotencyCache(65536, 60_000));
+    server.start(0);
+    try {
+      Thread[] clients = new Thread[clientCount];
+      for (int c = 0; c < clientCount; c++) {
+        int clientId = c;
+        clients[c] = new Thread(() -> runClient(server.getPort(), clientId, requestsPerClient, timeouts));
+      }
+      long start = System.nanoTime();
+      for (Thread client : clients) {
+        client.start();
+      }
+      for (Thread client : clients) {
+        client.join();
+      }
+      long completed = (long) clientCount * requestsPerClient - timeouts.sum();
+      return completed / ((System.nanoTime() - start) / 1e9);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Sends one request at a time and waits for its response; a lost datagram counts as a timeout.
+   */
+  private static void runClient(int port, int clientId, int requests, LongAdder timeouts) {
+    try (DatagramSocket socket = new DatagramSocket()) {
+      socket.setSoTimeout(200);
+      InetAddress server = InetAddress.getLoopbackAddress();
+      byte[] responseBytes = new byte[512];
+      for (int i = 0; i < requests; i++) {
+        byte[] request = ("GET key" + (i & 1023) + " #" + clientId + "-" + i).getBytes();
+        socket.send(new DatagramPacket(request, request.length, server, port));
+        try {
+          socket.receive(new DatagramPacket(responseBytes, responseBytes.length));
+        } catch (SocketTimeoutException e) {
+          timeouts.increment();
+        }
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException("UDP client " + clientId + " failed", e);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import client.TCPClient;
+import client.WatchListener;
+
+/**
+ * The `WatchEvictionTest` class checks that a watched key evicted from a cache is reported to
+ * its watcher. It starts a `ServerApp` process in cache mode with room for a few entries, watches
+ * a key, writes it and then writes many other keys until the cache has to evict it, and expects
+ * a DELETE event for the key within a few seconds.
+ *
+ * The process runs in a temporary directory, which holds its log and console output.
+ */
+public class WatchEvictionTest {
+  private static final long EVENT_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * Default constructor for the `WatchEvictionTest` class.
+   */
+  WatchEvictionTest() {
+
+  }
+
+  /**
+   * Runs the test.
+   *
+   * @param args Optional arguments: [cache entries] [keys written after the watched one].
+   * @throws Exception If the server cannot be started or the eviction is not reported.
+   */
+  public static void main(String args[]) throws Exception {
+    int cacheEntries = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int otherKeys = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    Path directory = Files.createTempDirectory("watch-eviction");
+    Files.createDirectories(directory.resolve("src/server"));
+    int port;
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    ProcessBuilder builder = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+        "-Dkvstore.cacheEntries=" + cacheEntries,
+        "-Dkvstore.consoleLog=false",
+        "-cp", System.getProperty("java.class.path"),
+        "server.ServerApp", String.valueOf(port));
+    builder.directory(directory.toFile());
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(directory.resolve("server.out").toFile());
+    Process process = builder.start();
+    TCPClient client = new TCPClient();
+    try {
+      // The server asks for its protocol on standard input, which stays open while it runs.
+      OutputStream stdin = process.getOutputStream();
+      stdin.write("TCP\n".getBytes(StandardCharsets.US_ASCII));
+      stdin.flush();
+      awaitListening(port);
+      client.openConnection("localhost", port);
+
+      CountDownLatch deleted = new CountDownLatch(1);
+      client.watch("watched", new WatchListener() {
+        @Override
+        public void onPut(String key, int value) {
+        }
+
+        @Override
+        public void onDelete(String key) {
+          deleted.countDown();
+        }
+
+        @Override
+        public void onLost() {
+          System.out.println("Watch lost");
+        }
+      });
+      client.multiPut(List.of("watched"), List.of(1));
+      List<String> keys = new ArrayList<>();
+      List<Integer> values = new ArrayList<>();
+      for (int i = 0; i < otherKeys; i++) {
+        keys.add("other" + i);
+        values.add(i);
+      }
+      client.multiPut(keys, values);
+
+      if (!deleted.await(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        throw new AssertionError("No DELETE event for the watched key after writing " + otherKeys
+            + " keys into a cache of " + cacheEntries + " entries; see " + directory);
+      }
+      System.out.println("Eviction of the watched key was reported to its watcher");
+    } finally {
+      client.closeConnection();
+      process.destroy();
+      process.waitFor(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private static void awaitListening(int port) throws InterruptedException, IOException {
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (true) {
+      try {
+        new Socket("localhost", port).close();
+        return;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("Server on port " + port + " did not start", e);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+}